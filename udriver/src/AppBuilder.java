@@ -0,0 +1,154 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.File;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/** Builds applications ready to post from saved application files without
+ * a GUI: the file is read, checked as Udriver checks its window settings
+ * and given the number of exposures wanted. Building can be done on any
+ * thread, e.g. while another run is going.
+ */
+
+public class AppBuilder {
+
+    /** Largest number of exposures a run may have, as allowed by the GUI */
+    public static final int MAX_EXPOSURES = 100000;
+
+    private final Templates _templates;
+
+    // DocumentBuilders are not thread-safe
+    private final ThreadLocal<DocumentBuilder> _builder = new ThreadLocal<DocumentBuilder>() {
+	    protected DocumentBuilder initialValue() {
+		try {
+		    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		    dbf.setValidating(false);
+		    return dbf.newDocumentBuilder();
+		}
+		catch(Exception e){
+		    throw new RuntimeException(e);
+		}
+	    }
+	};
+
+    public AppBuilder(Templates templates) {
+	_templates = templates;
+    }
+
+    /** An application ready to post */
+    public static final class Prepared {
+
+	public final AppFile  app;
+	public final Document document;
+	public final int      nexposures;
+	public final double   cycleTime;
+	public final int      bytesPerImage;
+
+	Prepared(AppFile app, Document document, int nexposures, double cycleTime, int bytesPerImage) {
+	    this.app           = app;
+	    this.document      = document;
+	    this.nexposures    = nexposures;
+	    this.cycleTime     = cycleTime;
+	    this.bytesPerImage = bytesPerImage;
+	}
+
+	/** Expected length of the run, seconds */
+	public double getDuration() {
+	    return nexposures*cycleTime;
+	}
+    }
+
+    /** Builds an application to post
+     * @param file       the saved application
+     * @param nexposures number of exposures, 0 or less to use seconds, or the application's own number if both are
+     * @param seconds    length of the run, seconds, 0 or less to use nexposures
+     */
+    public Prepared build(File file, int nexposures, double seconds) throws Exception {
+
+	AppFile app = AppFile.read(file, _templates);
+	validate(app.getSetup());
+
+	TimingModel.Timing timing = TimingModel.timing(app.getSetup());
+	nexposures = runLength(app, timing.cycleTime, nexposures, seconds);
+	if(nexposures <= 0)
+	    throw new Exception("No run length given and " + file.getName() + " has no limit to its exposures");
+	if(nexposures > MAX_EXPOSURES)
+	    throw new Exception("Number of exposures = " + nexposures + " is more than the maximum of " + MAX_EXPOSURES);
+
+	Document document = _builder.get().parse(file);
+	boolean found = false;
+	NodeList nlist = document.getElementsByTagName("set_parameter");
+	for(int i=0; i<nlist.getLength(); i++){
+	    Element elem = (Element)nlist.item(i);
+	    if(elem.getAttribute("ref").equals("NO_EXPOSURES")){
+		elem.setAttribute("value", String.valueOf(nexposures));
+		found = true;
+	    }
+	}
+	if(!found)
+	    throw new Exception("Failed to find NO_EXPOSURES in " + file.getAbsolutePath());
+
+	return new Prepared(app, document, nexposures, timing.cycleTime, TimingModel.nbytesPerImage(app.getSetup()));
+    }
+
+    /** Number of exposures in a run, as Udriver and NightPlanner both count it: the
+     * number asked for if any, or else as many as fit in the time asked for, at
+     * least one, but no more than the application's own number if it has one, or
+     * else the application's own number. 0 if none is given anywhere.
+     * @param app        the application
+     * @param cycleTime  its cycle time, seconds
+     * @param nexposures number of exposures, 0 or less to use seconds
+     * @param seconds    length of the run, seconds, 0 or less to use the application's number
+     */
+    public static int runLength(AppFile app, double cycleTime, int nexposures, double seconds) {
+	if(nexposures > 0)
+	    return nexposures;
+	if(seconds > 0){
+	    int n = Math.max(1, (int)Math.min(MAX_EXPOSURES, seconds/cycleTime));
+	    return app.getNexposures() > 0 ? Math.min(n, app.getNexposures()) : n;
+	}
+	return Math.max(0, app.getNexposures());
+    }
+
+    /** Checks a setup as WindowPairs checks the window settings, throwing an Exception which says what is wrong */
+    public static void validate(TimingModel.Setup setup) throws Exception {
+
+	int xbin = setup.getXbin(), ybin = setup.getYbin();
+	if(xbin < 1 || xbin > 8)
+	    throw new Exception("X bin factor = " + xbin + " is out of range 1 to 8");
+	if(ybin < 1 || ybin > 8)
+	    throw new Exception("Y bin factor = " + ybin + " is out of range 1 to 8");
+	if(setup.getExpose() < 0)
+	    throw new Exception("exposure delay = " + setup.getExpose() + " is negative");
+
+	for(int i=0; i<setup.getNpair(); i++){
+
+	    int[] values = {setup.getYstart(i), setup.getXleft(i), setup.getXright(i), setup.getNx(i), setup.getNy(i)};
+	    for(int value=0; value<WindowModel.NVALUE; value++)
+		_throw(WindowValidator.range(i, value, values[value]));
+
+	    int ystart = values[WindowModel.YSTART], ny = values[WindowModel.NY];
+	    _throw(WindowValidator.check(i, ystart, values[WindowModel.XLEFT], values[WindowModel.XRIGHT], values[WindowModel.NX], ny, xbin, ybin));
+
+	    for(int j=0; j<i; j++)
+		if(WindowValidator.overlaps(ystart, ny, setup.getYstart(j), setup.getNy(j)))
+		    throw new Exception("ystart of window pair " + (i+1) + " overlaps with window pair " + (j+1));
+	}
+    }
+
+    private static void _throw(WindowValidator.Problem problem) throws Exception {
+	if(problem != null) throw new Exception(problem.message);
+    }
+
+}
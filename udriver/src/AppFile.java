@@ -0,0 +1,351 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/** The settings of a saved application file that fix its timing and data
+ * volume, with its target, PI and programme ID, read without a GUI. The parameters looked for
+ * are those Udriver's _loadApp sets the GUI from, and their absence is an
+ * error in the same way. The file is streamed rather than built into a DOM,
+ * as the planner reads hundreds of them. Instances are immutable.
+ */
+
+public final class AppFile {
+
+    // Values of GAIN_SPEED
+    public static final String SLOW_SPEED  = "0xcdd";
+    public static final String FAST_SPEED  = "0xfbb";
+    public static final String TURBO_SPEED = "0xfdd";
+
+    // Names of the checks which FormatExceptions report the failure of
+    public static final String XML       = "xml";
+    public static final String TEMPLATE  = "template";
+    public static final String PARAMETER = "parameter";
+
+    // Parameters every application must set, besides those of its windows, as _loadApp requires
+    private static final String[] REQUIRED = {"GAIN_SPEED", "X_BIN_FAC", "Y_BIN_FAC", "NBLUE", "EXPOSE_TIME", "NO_EXPOSURES"};
+
+    /** Thrown when a file is not a well-formed application, saying which check failed */
+    public static class FormatException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	/** XML, TEMPLATE or PARAMETER */
+	public final String check;
+
+	public FormatException(String check, String message) {
+	    super(message);
+	    this.check = check;
+	}
+    }
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+    static {
+	FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+	FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    private final File              _file;
+    private final long              _modified;
+    private final long              _length;
+    private final TimingModel.Setup _setup;
+    private final int               _nexposures;
+    private final int               _nblue;
+    private final String            _target;
+    private final String            _pi;
+    private final String            _progid;
+
+    private AppFile(File file, long modified, long length, TimingModel.Setup setup, int nexposures, int nblue,
+		    String target, String pi, String progid) {
+	_file       = file;
+	_modified   = modified;
+	_length     = length;
+	_setup      = setup;
+	_nexposures = nexposures;
+	_nblue      = nblue;
+	_target     = target;
+	_pi         = pi;
+	_progid     = progid;
+    }
+
+    public File getFile() {
+	return _file;
+    }
+
+    public TimingModel.Setup getSetup() {
+	return _setup;
+    }
+
+    /** Number of exposures the application asks for, 0 or less if unlimited */
+    public int getNexposures() {
+	return _nexposures;
+    }
+
+    /** The NBLUE parameter: the blue CCD is read out once every nblue exposures */
+    public int getNblue() {
+	return _nblue;
+    }
+
+    /** The target name from the user section, blank if none */
+    public String getTarget() {
+	return _target;
+    }
+
+    /** The PI from the user section, blank if none */
+    public String getPi() {
+	return _pi;
+    }
+
+    /** The programme ID from the user section, blank if none */
+    public String getProgramId() {
+	return _progid;
+    }
+
+    /** Time the file was last modified when it was read */
+    public long getModified() {
+	return _modified;
+    }
+
+    /** Whether the file is unchanged since it was read */
+    public boolean isCurrent() {
+	return _file.lastModified() == _modified && _file.length() == _length;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Reads an application file
+     * @param file      the file
+     * @param templates the templates which applications are made from
+     */
+    public static AppFile read(File file, Templates templates) throws Exception {
+
+	long modified = file.lastModified();
+	long length   = file.length();
+
+	String appValue = null, target = "", pi = "", progid = "";
+	Map<String,String> parameters = new HashMap<String,String>();
+
+	InputStream in = new BufferedInputStream(new FileInputStream(file), 16384);
+	try {
+	    XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+	    boolean inUser = false;
+	    while(reader.hasNext()){
+		int event = reader.next();
+		if(event == XMLStreamConstants.START_ELEMENT){
+		    String name = reader.getLocalName();
+		    if(name.equals("executablecode")){
+			for(int i=0; i<reader.getAttributeCount(); i++)
+			    if(reader.getAttributeLocalName(i).equals("href") || reader.getAttributeLocalName(i).equals("xlink:href"))
+				appValue = reader.getAttributeValue(i);
+		    }else if(name.equals("set_parameter")){
+			String ref   = reader.getAttributeValue(null, "ref");
+			String value = reader.getAttributeValue(null, "value");
+			if(ref != null && value != null) parameters.put(ref, value);
+		    }else if(name.equals("user")){
+			inUser = true;
+		    }else if(inUser && name.equals("target")){
+			target = reader.getElementText().trim();
+		    }else if(inUser && name.equals("PI")){
+			pi = reader.getElementText().trim();
+		    }else if(inUser && name.equals("ID")){
+			progid = reader.getElementText().trim();
+		    }
+		}else if(event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("user")){
+		    inUser = false;
+		}
+	    }
+	    reader.close();
+	}
+	catch(XMLStreamException e){
+	    throw new FormatException(XML, "Failed to parse " + file.getAbsolutePath() + ": " + e.getMessage());
+	}
+	finally {
+	    in.close();
+	}
+
+	if(appValue == null)
+	    throw new FormatException(TEMPLATE, "Failed to locate application name from " + file.getAbsolutePath());
+	int iapp = templates.indexOfId(appValue);
+	if(iapp < 0)
+	    throw new FormatException(TEMPLATE, "Application type = \"" + appValue + "\" was not recognised in " + file.getAbsolutePath());
+
+	// Every parameter missing is named at once
+	int npair = templates.getNpair(iapp);
+	List<String> missing = new ArrayList<String>();
+	for(String ref : REQUIRED)
+	    if(!parameters.containsKey(ref)) missing.add(ref);
+	for(int np=0; np<npair; np++)
+	    for(String ref : _windowRefs(np))
+		if(!parameters.containsKey(ref)) missing.add(ref);
+	if(!missing.isEmpty()){
+	    String names = missing.toString();
+	    throw new FormatException(PARAMETER, "Failed to find " + names.substring(1, names.length()-1) + " in " + file.getAbsolutePath());
+	}
+
+	String gainSpeed = _parameter(parameters, "GAIN_SPEED", file), readSpeed;
+	if(gainSpeed.equals(SLOW_SPEED)){
+	    readSpeed = "Slow";
+	}else if(gainSpeed.equals(FAST_SPEED)){
+	    readSpeed = "Fast";
+	}else if(gainSpeed.equals(TURBO_SPEED)){
+	    readSpeed = "Turbo";
+	}else{
+	    throw new FormatException(PARAMETER, "Failed to recognise GAIN_SPEED = " + gainSpeed  + " in " + file.getAbsolutePath());
+	}
+
+	int xbin       = _integer(parameters, "X_BIN_FAC", file);
+	int ybin       = _integer(parameters, "Y_BIN_FAC", file);
+	int expose     = _integer(parameters, "EXPOSE_TIME", file);
+	int nexposures = _integer(parameters, "NO_EXPOSURES", file);
+	int nblue      = _integer(parameters, "NBLUE", file);
+
+	int[] pairs = new int[WindowModel.NVALUE*npair];
+	for(int np=0; np<npair; np++){
+	    String[] refs = _windowRefs(np);
+	    for(int i=0; i<WindowModel.NVALUE; i++)
+		pairs[WindowModel.NVALUE*np+i] = _integer(parameters, refs[i], file);
+	}
+
+	TimingModel.Setup setup = new TimingModel.Setup(templates.getLabel(iapp), readSpeed, xbin, ybin, expose, pairs);
+	return new AppFile(file, modified, length, setup, nexposures, nblue, target, pi, progid);
+    }
+
+    // Parameters of a window pair, in the order of TimingModel.Setup: ystart, xleft, xright, nx, ny
+    private static String[] _windowRefs(int np) {
+	String[] refs = new String[WindowModel.NVALUE];
+	for(int i=0; i<refs.length; i++)
+	    refs[i] = WindowModel.parameter(np, i);
+	return refs;
+    }
+
+    private static String _parameter(Map<String,String> parameters, String ref, File file) throws Exception {
+	String value = parameters.get(ref);
+	if(value == null)
+	    throw new FormatException(PARAMETER, "Failed to find " + ref + " in " + file.getAbsolutePath());
+	return value.trim();
+    }
+
+    private static int _integer(Map<String,String> parameters, String ref, File file) throws Exception {
+	String value = _parameter(parameters, ref, file);
+	try {
+	    return Integer.parseInt(value);
+	}
+	catch(NumberFormatException e){
+	    throw new FormatException(PARAMETER, ref + " = \"" + value + "\" is not an integer in " + file.getAbsolutePath());
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** One line, tab-separated, from which fromLine() recreates the instance, for caching */
+    public String toLine() {
+	StringBuffer buffer = new StringBuffer();
+	buffer.append(_file.getPath()).append('\t').append(_modified).append('\t').append(_length).append('\t');
+	buffer.append(_setup.getTemplate()).append('\t').append(_setup.getReadSpeed()).append('\t');
+	buffer.append(_setup.getXbin()).append('\t').append(_setup.getYbin()).append('\t').append(_setup.getExpose()).append('\t');
+	buffer.append(_nexposures).append('\t').append(_nblue).append('\t').append(_field(_target)).append('\t');
+	buffer.append(_field(_pi)).append('\t').append(_field(_progid)).append('\t');
+	for(int i=0; i<_setup.getNpair(); i++){
+	    if(i > 0) buffer.append(',');
+	    buffer.append(_setup.getYstart(i)).append(',').append(_setup.getXleft(i)).append(',').append(_setup.getXright(i));
+	    buffer.append(',').append(_setup.getNx(i)).append(',').append(_setup.getNy(i));
+	}
+	return buffer.toString();
+    }
+
+    /** Recreates an instance from toLine(); throws an IllegalArgumentException if the line is malformed */
+    public static AppFile fromLine(String line) {
+	String[] fields = line.split("\t", -1);
+	if(fields.length != 14)
+	    throw new IllegalArgumentException("expected 14 fields, found " + fields.length);
+	try {
+	    String[] values = fields[13].length() > 0 ? fields[13].split(",") : new String[0];
+	    if(values.length % 5 != 0)
+		throw new IllegalArgumentException("window values not a multiple of 5");
+	    int[] pairs = new int[values.length];
+	    for(int i=0; i<values.length; i++)
+		pairs[i] = Integer.parseInt(values[i]);
+	    TimingModel.Setup setup = new TimingModel.Setup(fields[3], fields[4], Integer.parseInt(fields[5]), Integer.parseInt(fields[6]),
+							    Integer.parseInt(fields[7]), pairs);
+	    return new AppFile(new File(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]), setup,
+			       Integer.parseInt(fields[8]), Integer.parseInt(fields[9]), fields[10], fields[11], fields[12]);
+	}
+	catch(NumberFormatException e){
+	    throw new IllegalArgumentException(e.getMessage());
+	}
+    }
+
+    // Text from the user section made safe for one field of a line
+    private static String _field(String text) {
+	return text.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /** Reads a cache file written by writeCache(); a missing file gives none. Malformed
+     * lines, including those from older versions, are dropped, to be read again from
+     * the applications.
+     */
+    public static List<AppFile> readCache(File file) throws IOException {
+	List<AppFile> apps = new ArrayList<AppFile>();
+	if(!file.exists()) return apps;
+	BufferedReader reader = new BufferedReader(new FileReader(file));
+	try {
+	    String line;
+	    while((line = reader.readLine()) != null){
+		try {
+		    apps.add(fromLine(line));
+		}
+		catch(IllegalArgumentException e){
+		    // Dropped
+		}
+	    }
+	}
+	finally {
+	    reader.close();
+	}
+	return apps;
+    }
+
+    /** Writes a cache file, by way of a temporary file so that it is never left half-written */
+    public static void writeCache(File file, Collection<AppFile> apps) throws IOException {
+	File temp = new File(file.getPath() + ".tmp");
+	PrintWriter writer = new PrintWriter(new FileWriter(temp));
+	try {
+	    for(AppFile app : apps)
+		writer.println(app.toLine());
+	}
+	finally {
+	    writer.close();
+	}
+	if(writer.checkError())
+	    throw new IOException("Failed to write " + temp);
+	if(!temp.renameTo(file)){
+	    file.delete();
+	    if(!temp.renameTo(file))
+		throw new IOException("Failed to rename " + temp + " to " + file);
+	}
+    }
+
+}
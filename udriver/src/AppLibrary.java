@@ -0,0 +1,526 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/** An index of the saved applications under a directory, normally
+ * APP_DIRECTORY, so that old setups can be found without loading them one
+ * by one. Each application is streamed by AppFile, in parallel, and its
+ * timing worked out once, so that searching and previewing touch nothing
+ * on disk. The index is kept in a cache file between sessions; at start
+ * only applications changed since are read again, and thereafter the
+ * directory is watched so that applications saved, changed or deleted are
+ * picked up as it happens. Files that are not applications, or that cannot
+ * be read, are left out. Thread-safe; listeners are called from the
+ * library's own thread.
+ *
+ * A query is a list of terms, all of which must match, ignoring case:
+ * <pre>
+ * target:ss       target starting "ss"
+ * pi:marsh        PI with a word starting "marsh"
+ * id:085          programme ID starting "085"
+ * template:drift  template starting "drift", ignoring spaces and punctuation
+ * speed:slow      readout speed
+ * bin:2           binned 2 in x or y; bin:2x1 for an exact binning
+ * word            a word starting "word" in the file name, target, PI, ID or template
+ * </pre>
+ */
+
+public class AppLibrary {
+
+    /** Told when the index changes */
+    public interface Listener {
+	void changed(AppLibrary library);
+    }
+
+    /** An indexed application with its predicted timing */
+    public static final class Entry {
+
+	public final AppFile app;
+	public final double  cycleTime;
+	public final double  exposureTime;
+	public final double  dataRate;
+
+	// Lower case, for queries
+	private final String   _target;
+	private final String   _progid;
+	private final String   _template;
+	private final String[] _pi;
+	private final String[] _words;
+
+	Entry(AppFile app) {
+	    TimingModel.Setup  setup  = app.getSetup();
+	    TimingModel.Timing timing = TimingModel.timing(setup);
+	    this.app          = app;
+	    this.cycleTime    = timing.cycleTime;
+	    this.exposureTime = timing.exposureTime;
+	    this.dataRate     = TimingModel.nbytesPerImage(setup)/timing.cycleTime;
+
+	    _target   = app.getTarget().toLowerCase();
+	    _progid   = app.getProgramId().toLowerCase();
+	    _template = _squash(setup.getTemplate());
+	    Set<String> pi = new HashSet<String>();
+	    _split(app.getPi(), pi);
+	    _pi = pi.toArray(new String[pi.size()]);
+	    Set<String> words = new HashSet<String>();
+	    _split(app.getFile().getName().replaceFirst("\\.xml$", ""), words);
+	    _split(app.getTarget(),    words);
+	    _split(app.getPi(),        words);
+	    _split(app.getProgramId(), words);
+	    _split(setup.getTemplate(), words);
+	    _words = words.toArray(new String[words.size()]);
+	}
+
+	public double getFrameRate() {
+	    return 1./cycleTime;
+	}
+    }
+
+    // Entries returned by a query at most, newest first
+    public static final int MAX_RESULTS = 2000;
+
+    // Milliseconds without further changes to a file before it is read again, so that a file is read once it is fully written
+    public static final long SETTLE = 500;
+
+    private final File                   _directory;
+    private final Templates              _templates;
+    private final File                   _cache;
+    private final Map<String,Entry>      _entries   = new ConcurrentHashMap<String,Entry>();
+    private final List<Listener>         _listeners = new CopyOnWriteArrayList<Listener>();
+    private final Map<WatchKey,Path>     _keys      = new HashMap<WatchKey,Path>();
+
+    // The entries newest first, replaced whenever they change
+    private volatile Entry[] _sorted    = new Entry[0];
+
+    private Thread                _thread   = null;
+    private volatile WatchService _watcher  = null;
+    private volatile boolean      _scanning = false;
+    private volatile int          _failed   = 0;
+    private volatile boolean      _stopped  = false;
+    private volatile String       _problem  = null;
+
+    /** Constructor
+     * @param directory the directory searched, with its subdirectories, for applications
+     * @param templates the templates which the applications are made from
+     * @param cache     file in which the index is kept between sessions; null for none
+     */
+    public AppLibrary(File directory, Templates templates, File cache) {
+	_directory = directory;
+	_templates = templates;
+	_cache     = cache;
+    }
+
+    public void addListener(Listener listener) {
+	_listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+	_listeners.remove(listener);
+    }
+
+    /** Starts indexing in the background: the cache is loaded, the directory
+     * scanned for applications new or changed since, then watched. */
+    public synchronized void start() {
+	if(_thread != null) throw new IllegalStateException("library already started");
+	_scanning = true;
+	_thread = new Thread(new Runnable() {
+		public void run() {
+		    _run();
+		}
+	    }, "application library");
+	_thread.setDaemon(true);
+	_thread.setPriority(Thread.MIN_PRIORITY);
+	_thread.start();
+    }
+
+    /** Stops watching the directory */
+    public synchronized void stop() {
+	_stopped = true;
+	if(_thread != null) _thread.interrupt();
+	if(_watcher != null){
+	    try {
+		_watcher.close();
+	    }
+	    catch(IOException e){
+		// closing anyway
+	    }
+	}
+    }
+
+    public File getDirectory() {
+	return _directory;
+    }
+
+    /** Number of applications indexed */
+    public int size() {
+	return _entries.size();
+    }
+
+    /** Number of files in the last scan that could not be read as applications */
+    public int getFailed() {
+	return _failed;
+    }
+
+    /** Whether the directory is still being scanned */
+    public boolean isScanning() {
+	return _scanning;
+    }
+
+    /** Why the directory cannot be watched or the cache saved, if it cannot; null otherwise */
+    public String getProblem() {
+	return _problem;
+    }
+
+    /** The entry of a file, null if it is not indexed */
+    public Entry get(File file) {
+	return _entries.get(_key(file));
+    }
+
+    /** Returns the entries matching a query, newest first, at most MAX_RESULTS of them */
+    public List<Entry> query(String query) {
+
+	List<Term> terms = new ArrayList<Term>();
+	for(String token : query.trim().toLowerCase().split("\\s+"))
+	    if(token.length() > 0) terms.add(_term(token));
+
+	List<Entry> result = new ArrayList<Entry>();
+	for(Entry entry : _sorted){
+	    boolean match = true;
+	    for(int i=0; match && i<terms.size(); i++)
+		match = terms.get(i).matches(entry);
+	    if(match){
+		result.add(entry);
+		if(result.size() == MAX_RESULTS) break;
+	    }
+	}
+	return result;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    private void _run() {
+	try {
+	    if(_cache != null){
+		try {
+		    for(AppFile app : AppFile.readCache(_cache))
+			if(_inside(app.getFile())) _entries.put(_key(app.getFile()), new Entry(app));
+		}
+		catch(Exception e){
+		    _problem = "Failed to read the cache " + _cache + ": " + e;
+		}
+		_changed();
+	    }
+
+	    try {
+		_watcher = FileSystems.getDefault().newWatchService();
+		if(_stopped) _watcher.close();
+	    }
+	    catch(IOException e){
+		_problem = "Cannot watch " + _directory + " for changes: " + e;
+	    }
+
+	    _scan();
+	    _scanning = false;
+	    _changed();
+
+	    if(_watcher != null) _watch();
+	}
+	catch(InterruptedException e){
+	    // stopped
+	}
+	catch(ClosedWatchServiceException e){
+	    // stopped
+	}
+	finally {
+	    _scanning = false;
+	}
+    }
+
+    // Finds every application, registering each directory with the watcher, and reads those new or changed
+    private void _scan() throws InterruptedException {
+
+	List<File> files = new ArrayList<File>();
+	_find(_directory, files);
+
+	Set<String> found = new HashSet<String>();
+	for(File file : files) found.add(_key(file));
+	boolean removed = _entries.keySet().retainAll(found);
+
+	List<File> read = new ArrayList<File>();
+	for(File file : files){
+	    Entry entry = _entries.get(_key(file));
+	    if(entry == null || !entry.app.isCurrent()) read.add(file);
+	}
+	_failed = _read(read);
+	if(removed || !read.isEmpty()) _save();
+    }
+
+    // Adds the applications under a directory to a list, watching each directory
+    private void _find(File directory, List<File> files) {
+	if(_watcher != null){
+	    try {
+		Path path = directory.toPath();
+		_keys.put(path.register(_watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE), path);
+	    }
+	    catch(IOException e){
+		_problem = "Cannot watch " + directory + " for changes: " + e;
+	    }
+	}
+	File[] list = directory.listFiles();
+	if(list == null) return;
+	for(File file : list){
+	    if(file.getName().startsWith(".")) continue;
+	    if(file.isDirectory())
+		_find(file, files);
+	    else if(_isApp(file))
+		files.add(file);
+	}
+    }
+
+    // Reads files in parallel into the index, returning the number that could not be read
+    private int _read(List<File> files) throws InterruptedException {
+	if(files.isEmpty()) return 0;
+	int failed = 0;
+	ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(files.size(), Runtime.getRuntime().availableProcessors())));
+	try {
+	    List<Future<Entry>> pending = new ArrayList<Future<Entry>>();
+	    for(final File file : files){
+		pending.add(executor.submit(new Callable<Entry>() {
+			public Entry call() throws Exception {
+			    return new Entry(AppFile.read(file, _templates));
+			}
+		    }));
+	    }
+	    for(int i=0; i<files.size(); i++){
+		try {
+		    _entries.put(_key(files.get(i)), pending.get(i).get());
+		}
+		catch(ExecutionException e){
+		    _entries.remove(_key(files.get(i)));
+		    failed++;
+		}
+	    }
+	}
+	finally {
+	    executor.shutdownNow();
+	}
+	return failed;
+    }
+
+    // Waits for changes to the directory and applies them once they settle
+    private void _watch() throws InterruptedException {
+
+	Set<File> changed = new HashSet<File>();
+	while(!_stopped){
+	    WatchKey key = changed.isEmpty() ? _watcher.take() : _watcher.poll(SETTLE, TimeUnit.MILLISECONDS);
+	    if(key == null){
+		_apply(changed);
+		changed.clear();
+		continue;
+	    }
+
+	    Path directory = _keys.get(key);
+	    boolean rescan = false;
+	    for(WatchEvent<?> event : key.pollEvents()){
+		if(event.kind() == StandardWatchEventKinds.OVERFLOW){
+		    rescan = true;
+		    continue;
+		}
+		if(directory == null) continue;
+		File file = directory.resolve((Path)event.context()).toFile();
+		if(file.getName().startsWith(".")) continue;
+		if(file.isDirectory()){
+		    rescan = true;
+		}else if(_isApp(file)){
+		    changed.add(file);
+		}
+	    }
+	    if(!key.reset()){
+		_keys.remove(key);
+		rescan = true;
+	    }
+
+	    // Events lost, or directories added or removed
+	    if(rescan){
+		changed.clear();
+		for(WatchKey k : _keys.keySet()) k.cancel();
+		_keys.clear();
+		_scanning = true;
+		_scan();
+		_scanning = false;
+		_changed();
+	    }
+	}
+    }
+
+    // Reads again, or drops, files that have changed
+    private void _apply(Set<File> files) throws InterruptedException {
+	List<File> read = new ArrayList<File>();
+	for(File file : files){
+	    if(file.isFile())
+		read.add(file);
+	    else
+		_entries.remove(_key(file));
+	}
+	_read(read);
+	_save();
+	_changed();
+    }
+
+    private void _save() {
+	if(_cache == null) return;
+	List<AppFile> apps = new ArrayList<AppFile>();
+	for(Entry entry : _entries.values())
+	    apps.add(entry.app);
+	try {
+	    AppFile.writeCache(_cache, apps);
+	}
+	catch(IOException e){
+	    _problem = "Failed to save the cache " + _cache + ": " + e;
+	}
+    }
+
+    private void _changed() {
+	Entry[] sorted = _entries.values().toArray(new Entry[0]);
+	Arrays.sort(sorted, new Comparator<Entry>() {
+		public int compare(Entry e1, Entry e2) {
+		    long m1 = e1.app.getModified(), m2 = e2.app.getModified();
+		    return m1 > m2 ? -1 : m1 < m2 ? 1 : e1.app.getFile().compareTo(e2.app.getFile());
+		}
+	    });
+	_sorted = sorted;
+	for(Listener listener : _listeners)
+	    listener.changed(this);
+    }
+
+    private boolean _inside(File file) {
+	return file.getAbsolutePath().startsWith(_directory.getAbsolutePath() + File.separator);
+    }
+
+    private static boolean _isApp(File file) {
+	return file.getName().toLowerCase().endsWith(".xml");
+    }
+
+    // Files are indexed under their absolute path
+    private static String _key(File file) {
+	return file.getAbsolutePath();
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** One term of a query */
+    private interface Term {
+	boolean matches(Entry entry);
+    }
+
+    // Parses one term of a query
+    private static Term _term(String token) {
+
+	int colon = token.indexOf(':');
+	final String name  = colon > 0 ? token.substring(0, colon) : "";
+	final String value = colon > 0 ? token.substring(colon+1) : token;
+
+	if(name.equals("target")){
+	    return new Term() {
+		public boolean matches(Entry entry) {
+		    return entry._target.startsWith(value);
+		}
+	    };
+	}else if(name.equals("pi")){
+	    return new Term() {
+		public boolean matches(Entry entry) {
+		    return _startsWord(entry._pi, value);
+		}
+	    };
+	}else if(name.equals("id")){
+	    return new Term() {
+		public boolean matches(Entry entry) {
+		    return entry._progid.startsWith(value);
+		}
+	    };
+	}else if(name.equals("template")){
+	    final String squashed = _squash(value);
+	    return new Term() {
+		public boolean matches(Entry entry) {
+		    return entry._template.startsWith(squashed);
+		}
+	    };
+	}else if(name.equals("speed")){
+	    return new Term() {
+		public boolean matches(Entry entry) {
+		    return entry.app.getSetup().getReadSpeed().toLowerCase().startsWith(value);
+		}
+	    };
+	}else if(name.equals("bin")){
+	    final String[] bins = value.split("x", -1);
+	    return new Term() {
+		public boolean matches(Entry entry) {
+		    String xbin = String.valueOf(entry.app.getSetup().getXbin());
+		    String ybin = String.valueOf(entry.app.getSetup().getYbin());
+		    if(bins.length == 2) return xbin.equals(bins[0]) && ybin.equals(bins[1]);
+		    return xbin.equals(value) || ybin.equals(value);
+		}
+	    };
+	}
+	// Split as the words of entries are, e.g. "085.d-01"
+	final List<String> parts = new ArrayList<String>();
+	for(String part : token.split("[^\\p{Alnum}]+"))
+	    if(part.length() > 0) parts.add(part);
+	return new Term() {
+	    public boolean matches(Entry entry) {
+		for(String part : parts)
+		    if(!_startsWord(entry._words, part)) return false;
+		return true;
+	    }
+	};
+    }
+
+    // Whether one of a list of words starts with a prefix
+    private static boolean _startsWord(String[] words, String prefix) {
+	for(String word : words)
+	    if(word.startsWith(prefix)) return true;
+	return false;
+    }
+
+    // Lower case words of some text
+    private static void _split(String text, Set<String> words) {
+	for(String word : text.toLowerCase().split("[^\\p{Alnum}]+"))
+	    if(word.length() > 0) words.add(word);
+    }
+
+    // Lower case with only letters and digits
+    private static String _squash(String text) {
+	return text.toLowerCase().replaceAll("[^\\p{Alnum}]+", "");
+    }
+
+}
@@ -0,0 +1,292 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Checks saved applications as Udriver would on loading and posting them,
+ * without a GUI, so that broken ones can be found before the night rather
+ * than at the telescope. Each file is checked for: XML that parses; an
+ * application type amongst TEMPLATE_ID; every set_parameter that _loadApp
+ * needs, with sensible values; window pairs in range, multiples of the
+ * binning and not overlapping, as isValid requires; an exposure and number
+ * of exposures the GUI would accept; and timing that TimingModel can work
+ * out. Windows not synchronised with the binning, which the GUI flags but
+ * allows, are warnings. Files are checked in parallel. Thread-safe.
+ */
+
+public class AppValidator {
+
+    // Names of checks besides those of AppFile.FormatException
+    public static final String IO      = "io";
+    public static final String WINDOWS = "windows";
+    public static final String RANGE   = "range";
+    public static final String TIMING  = "timing";
+    public static final String SYNC    = "sync";
+
+    // Largest exposure delay the GUI allows, 0.1 milliseconds
+    public static final int MAX_EXPOSE = 10*100000+9;
+
+    // Largest NBLUE the GUI allows
+    public static final int MAX_NBLUE = 1000;
+
+    /** Something wrong with an application */
+    public static final class Problem {
+
+	public final String  check;
+	public final boolean error;
+	public final String  message;
+
+	Problem(String check, boolean error, String message) {
+	    this.check   = check;
+	    this.error   = error;
+	    this.message = message;
+	}
+    }
+
+    /** The outcome of checking one file */
+    public static final class Report {
+
+	public final File          file;
+	public final AppFile       app;
+	public final double        cycleTime;
+	public final List<Problem> problems;
+
+	Report(File file, AppFile app, double cycleTime, List<Problem> problems) {
+	    this.file      = file;
+	    this.app       = app;
+	    this.cycleTime = cycleTime;
+	    this.problems  = Collections.unmodifiableList(problems);
+	}
+
+	/** Whether the application would load and post */
+	public boolean isValid() {
+	    for(Problem problem : problems)
+		if(problem.error) return false;
+	    return true;
+	}
+
+	/** As one JSON object, for reports */
+	public Map<String,Object> toMap() {
+	    Map<String,Object> map = new LinkedHashMap<String,Object>();
+	    map.put("file",  file.getPath());
+	    map.put("valid", isValid());
+	    if(app != null){
+		map.put("template", app.getSetup().getTemplate());
+		map.put("target",   app.getTarget());
+	    }
+	    if(cycleTime > 0)
+		map.put("frameRate", 1./cycleTime);
+	    List<Map<String,Object>> list = new ArrayList<Map<String,Object>>();
+	    for(Problem problem : problems){
+		Map<String,Object> entry = new LinkedHashMap<String,Object>();
+		entry.put("check",    problem.check);
+		entry.put("severity", problem.error ? "error" : "warning");
+		entry.put("message",  problem.message);
+		list.add(entry);
+	    }
+	    map.put("problems", list);
+	    return map;
+	}
+    }
+
+    private final Templates _templates;
+
+    public AppValidator(Templates templates) {
+	_templates = templates;
+    }
+
+    /** Checks one application. Never throws; all that is wrong is in the report. */
+    public Report check(File file) {
+
+	List<Problem> problems = new ArrayList<Problem>();
+
+	AppFile app;
+	try {
+	    app = AppFile.read(file, _templates);
+	}
+	catch(AppFile.FormatException e){
+	    problems.add(new Problem(e.check, true, e.getMessage()));
+	    return new Report(file, null, 0., problems);
+	}
+	catch(Exception e){
+	    problems.add(new Problem(IO, true, e.getMessage() != null ? e.getMessage() : e.toString()));
+	    return new Report(file, null, 0., problems);
+	}
+
+	TimingModel.Setup setup = app.getSetup();
+	try {
+	    AppBuilder.validate(setup);
+	}
+	catch(Exception e){
+	    problems.add(new Problem(WINDOWS, true, e.getMessage()));
+	}
+
+	if(setup.getExpose() > MAX_EXPOSE)
+	    problems.add(new Problem(RANGE, true, "EXPOSE_TIME = " + setup.getExpose() + " is more than the maximum of " + MAX_EXPOSE));
+	if(app.getNblue() < 1 || app.getNblue() > MAX_NBLUE)
+	    problems.add(new Problem(RANGE, true, "NBLUE = " + app.getNblue() + " is out of range 1 to " + MAX_NBLUE));
+	if(app.getNexposures() < -1 || app.getNexposures() > AppBuilder.MAX_EXPOSURES)
+	    problems.add(new Problem(RANGE, true, "NO_EXPOSURES = " + app.getNexposures() + " is out of range -1 to " + AppBuilder.MAX_EXPOSURES));
+
+	double cycleTime = 0.;
+	try {
+	    cycleTime = TimingModel.timing(setup).cycleTime;
+	    if(Double.isNaN(cycleTime) || Double.isInfinite(cycleTime) || cycleTime <= 0.){
+		problems.add(new Problem(TIMING, true, "cycle time = " + cycleTime + " s makes no sense"));
+		cycleTime = 0.;
+	    }
+	}
+	catch(Throwable e){
+	    // TimingModel throws Errors for templates it does not know
+	    problems.add(new Problem(TIMING, true, "Timing could not be worked out: " + (e.getMessage() != null ? e.getMessage() : e.toString())));
+	}
+
+	String sync = _sync(setup);
+	if(sync != null)
+	    problems.add(new Problem(SYNC, false, sync));
+
+	return new Report(file, app, cycleTime, problems);
+    }
+
+    /** Checks applications in parallel, returning the reports in the same order
+     * @param files    the applications
+     * @param nthreads threads to use, 0 or less for one per processor
+     */
+    public List<Report> check(List<File> files, int nthreads) throws InterruptedException {
+
+	if(nthreads <= 0) nthreads = Runtime.getRuntime().availableProcessors();
+	ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(nthreads, files.size())));
+	try {
+	    List<Future<Report>> pending = new ArrayList<Future<Report>>(files.size());
+	    for(final File file : files){
+		pending.add(executor.submit(new Callable<Report>() {
+			public Report call() {
+			    return check(file);
+			}
+		    }));
+	    }
+	    List<Report> reports = new ArrayList<Report>(files.size());
+	    for(Future<Report> future : pending){
+		try {
+		    reports.add(future.get());
+		}
+		catch(ExecutionException e){
+		    throw new RuntimeException(e.getCause());
+		}
+	    }
+	    return reports;
+	}
+	finally {
+	    executor.shutdownNow();
+	}
+    }
+
+    // Says how the windows are not synchronised with the binning, by WindowValidator's rules as Udriver uses them; null if they are
+    private static String _sync(TimingModel.Setup setup) {
+
+	String template = setup.getTemplate();
+	int xbin = setup.getXbin(), ybin = setup.getYbin();
+	if(xbin < 1 || ybin < 1) return null;
+
+	if(WindowValidator.isFullFrame(template))
+	    return WindowValidator.frameSync(template, xbin, ybin);
+	for(int i=0; i<setup.getNpair(); i++){
+	    if(!WindowValidator.synchronised(setup.getYstart(i), setup.getXleft(i), setup.getXright(i), xbin, ybin))
+		return "window pair " + (i+1) + " is not synchronised with the binning";
+	}
+	return null;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Finds the applications, files ending .xml, in or under a list of files and directories, in order */
+    public static List<File> find(List<File> roots) {
+	List<File> files = new ArrayList<File>();
+	for(File root : roots){
+	    if(root.isDirectory())
+		_find(root, files);
+	    else
+		files.add(root);
+	}
+	return files;
+    }
+
+    private static void _find(File directory, List<File> files) {
+	File[] list = directory.listFiles();
+	if(list == null) return;
+	Arrays.sort(list);
+	for(File file : list){
+	    if(file.getName().startsWith(".")) continue;
+	    if(file.isDirectory())
+		_find(file, files);
+	    else if(file.getName().toLowerCase().endsWith(".xml"))
+		files.add(file);
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Checks applications from the command line, writing a JSON object per
+     * application with problems (per application with -all) to standard
+     * output, one per line, and a summary to standard error. Arguments are
+     * files and directories, searched for .xml files, with -config file
+     * (default udriver.conf), -threads n and -all. Exits with 0 if all are
+     * valid, 1 if any is not and 2 if they could not be checked.
+     */
+    public static void main(String[] args) {
+	try {
+	    CommandLine command = new CommandLine(args, 0, "-all");
+	    boolean     all     = command.has("-all");
+	    List<File>  roots   = new ArrayList<File>();
+	    for(String arg : command.arguments)
+		roots.add(new File(arg));
+	    if(roots.isEmpty()){
+		System.out.println("usage: AppValidator [-config file] [-threads n] [-all] file|directory ...");
+		System.exit(2);
+	    }
+
+	    long start = System.currentTimeMillis();
+	    List<File> files = find(roots);
+	    List<Report> reports = new AppValidator(Templates.load(new File(command.config))).check(files, command.nthreads);
+
+	    PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 65536), false, "UTF-8");
+	    int invalid = 0, warned = 0;
+	    for(Report report : reports){
+		if(!report.isValid())
+		    invalid++;
+		else if(!report.problems.isEmpty())
+		    warned++;
+		if(all || !report.problems.isEmpty())
+		    out.println(Json.toString(report.toMap()));
+	    }
+	    out.flush();
+
+	    System.err.println("Checked " + reports.size() + " applications in " + (System.currentTimeMillis()-start)/1000. + " s: " +
+			       invalid + " invalid, " + warned + " with warnings only");
+	    System.exit(invalid > 0 ? 1 : 0);
+	}
+	catch(Exception e){
+	    System.err.println(e.getMessage() != null ? e.getMessage() : e.toString());
+	    System.exit(2);
+	}
+    }
+
+}
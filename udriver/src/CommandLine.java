@@ -0,0 +1,88 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** The arguments of the command line tools, AppValidator, TargetResolver
+ * and NightPlanner: the options -config file and -threads n that they
+ * share, any options with values and flags each allows of its own, and the
+ * other arguments, in order. An option not understood, or missing its
+ * value, causes an IllegalArgumentException.
+ */
+
+final class CommandLine {
+
+    /** The configuration file, by default CONFIG_FILE or else udriver.conf */
+    public final String config;
+
+    /** The number of threads, or the default given */
+    public final int nthreads;
+
+    /** The arguments other than options, in order */
+    public final List<String> arguments = new ArrayList<String>();
+
+    private final Set<String>        _flags  = new HashSet<String>();
+    private final Map<String,String> _values = new HashMap<String,String>();
+
+    /** Parses the arguments
+     * @param args     the arguments of main
+     * @param nthreads number of threads if -threads is not given
+     * @param flags    options without values, such as -all, that are allowed as well
+     */
+    CommandLine(String[] args, int nthreads, String... flags) {
+	this(args, nthreads, new String[0], flags);
+    }
+
+    /** Parses the arguments
+     * @param args     the arguments of main
+     * @param nthreads number of threads if -threads is not given
+     * @param options  options with values, such as -start, that are allowed as well
+     * @param flags    options without values, such as -all, that are allowed as well
+     */
+    CommandLine(String[] args, int nthreads, String[] options, String[] flags) {
+	String config = System.getProperty("CONFIG_FILE", "udriver.conf");
+	List<String> valued  = Arrays.asList(options);
+	List<String> allowed = Arrays.asList(flags);
+	for(int i=0; i<args.length; i++){
+	    if((args[i].equals("-config") || args[i].equals("-threads") || valued.contains(args[i])) && i == args.length-1)
+		throw new IllegalArgumentException("no value for " + args[i]);
+	    if(args[i].equals("-config")){
+		config = args[++i];
+	    }else if(args[i].equals("-threads")){
+		nthreads = Integer.parseInt(args[++i]);
+	    }else if(valued.contains(args[i])){
+		_values.put(args[i], args[++i]);
+	    }else if(allowed.contains(args[i])){
+		_flags.add(args[i]);
+	    }else if(!args[i].startsWith("-")){
+		arguments.add(args[i]);
+	    }else{
+		throw new IllegalArgumentException("argument = \"" + args[i] + "\" not understood");
+	    }
+	}
+	this.config   = config;
+	this.nthreads = nthreads;
+    }
+
+    /** Whether a flag was given */
+    public boolean has(String flag) {
+	return _flags.contains(flag);
+    }
+
+    /** The value given to an option, or null if it was not given */
+    public String value(String option) {
+	return _values.get(option);
+    }
+
+}
@@ -0,0 +1,287 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TreeSet;
+
+import warwick.marsh.ultracam.Telescope;
+
+/** The values read from the configuration file, udriver.conf by default.
+ * Udriver copies them into its static fields; the headless driver uses them
+ * directly, so that both read the file in exactly the same way. Compulsory
+ * keys that are missing, and values that make no sense, cause an Exception
+ * naming the key. Nothing here touches AWT. Instances are immutable, so
+ * that a file reloaded while Udriver runs (see ConfigWatcher) can be read
+ * and checked in full on another thread and then swapped in at once.
+ */
+
+public final class Config {
+
+    /** Telescopes supported. See Telescope for a full description of the fields */
+    public static final Telescope[] TELESCOPES = {
+	new Telescope("VLT", new double[] {26.54, 28.35, 27.69, 27.55, 26.71}, 0.15, "vlt.xml"),
+	new Telescope("WHT", new double[] {25.11, 26.92, 26.26, 26.12, 25.28}, 0.30, "wht.xml"),
+	new Telescope("NTT", new double[] {24.47, 26.28, 25.92, 25.48, 24.64}, 0.35, "ntt.xml"),
+    };
+
+    /** Generic application to initialise servers */
+    public static final String GENERIC_APP = "ultracam.xml";
+
+    /** Seconds between fstatus samples by default, and the least allowed */
+    public static final int FSTATUS_INTERVAL     = 30;
+    public static final int MIN_FSTATUS_INTERVAL = 5;
+
+    public final String    file;
+    private final Properties _properties;
+    public final boolean   rtplotServerOn;
+    public final String    rtplotServerHost;
+    public final int       rtplotServerPort;
+    public final int       rtplotWriteTimeout;
+    public final String    rtplotWindowFile;
+    public final boolean   fileLoggingOn;
+    public final boolean   ultracamServersOn;
+    public final boolean   observingMode;
+    public final boolean   debug;
+    public final Telescope telescope;
+    public final String    uacDatabaseHost;
+    public final String    uacDatabaseUser;
+    public final String    uacDatabasePassword;
+    public final String    httpCameraServer;
+    public final String    httpDataServer;
+    public final String    httpPathGet;
+    public final String    httpPathExec;
+    public final String    httpPathConfig;
+    public final String    httpSearchAttrName;
+    public final String    appDirectory;
+    public final boolean   appLibraryOn;
+    public final String    appLibraryCache;
+    public final String    targetCache;
+    public final String    targetStandIn;
+    public final boolean   xmlTreeView;
+    public final boolean   templateFromServer;
+    public final String    templateDirectory;
+    public final boolean   expertMode;
+    public final String    logFileDirectory;
+    public final boolean   journalOn;
+    public final String    journalDirectory;
+    public final double    dataRateBudget;
+    public final boolean   dataRateBlock;
+    public final int       throughputInterval;
+    public final double    throughputTolerance;
+    public final String    dataFileDirectory;
+    public final boolean   confirmOnChange;
+    public final boolean   checkForMask;
+    public final String[]  templateLabel;
+    public final String[]  templatePair;
+    public final String[]  templateApp;
+    public final String[]  templateId;
+    public final String    powerOn;
+    public final String    powerOff;
+    public final boolean   controlServerOn;
+    public final String    controlServerHost;
+    public final int       controlServerPort;
+    public final boolean   configReload;
+
+    /** Reads a configuration file */
+    public static Config load(String file) throws Exception {
+	Properties properties = new Properties();
+	InputStream in = new FileInputStream(file);
+	try {
+	    properties.load(in);
+	}
+	finally {
+	    in.close();
+	}
+	return new Config(file, properties);
+    }
+
+    /** Constructor
+     * @param file       name of the file the properties came from, for messages
+     * @param properties the properties
+     */
+    public Config(String file, Properties properties) throws Exception {
+
+	this.file = file;
+	_properties = (Properties)properties.clone();
+
+	rtplotServerOn     = _loadBooleanProperty(properties, "RTPLOT_SERVER_ON");
+	rtplotServerHost   = _loadProperty(properties, "RTPLOT_SERVER_HOST", "");
+	rtplotServerPort   = Integer.parseInt(_loadProperty(properties, "RTPLOT_SERVER_PORT", "5100").trim());
+	rtplotWriteTimeout = Integer.parseInt(_loadProperty(properties, "RTPLOT_WRITE_TIMEOUT", "5000").trim());
+	rtplotWindowFile   = _loadProperty(properties, "RTPLOT_WINDOW_FILE", "").trim();
+	fileLoggingOn      = _loadBooleanProperty(properties, "FILE_LOGGING_ON");
+	ultracamServersOn  = _loadBooleanProperty(properties, "ULTRACAM_SERVERS_ON");
+	observingMode      = _loadBooleanProperty(properties, "OBSERVING_MODE");
+	debug              = _loadBooleanProperty(properties, "DEBUG");
+	String name        = _loadProperty(properties, "TELESCOPE");
+	uacDatabaseHost    = _loadProperty(properties, "UAC_DATABASE_HOST");
+	uacDatabaseUser    = _loadProperty(properties, "UAC_DATABASE_USER", "").trim();
+	uacDatabasePassword = _loadProperty(properties, "UAC_DATABASE_PASSWORD", "").trim();
+
+	Telescope telescope = null;
+	for(int i=0; i<TELESCOPES.length; i++){
+	    if(TELESCOPES[i].name.equals(name)){
+		telescope = TELESCOPES[i];
+		break;
+	    }
+	}
+	if(telescope == null){
+	    String MESSAGE = "TELESCOPE = " + name + " was not found amongst the list of supported telescopes:\n";
+	    for(int i=0; i<TELESCOPES.length-1; i++)
+		MESSAGE += TELESCOPES[i].name + ", ";
+	    MESSAGE += TELESCOPES[TELESCOPES.length-1].name;
+	    throw new Exception(MESSAGE);
+	}
+	this.telescope = telescope;
+
+	httpCameraServer   = _directory(_loadProperty(properties, "HTTP_CAMERA_SERVER"), "/");
+	httpDataServer     = _directory(_loadProperty(properties, "HTTP_DATA_SERVER"), "/");
+	httpPathGet        = _loadProperty(properties,        "HTTP_PATH_GET");
+	httpPathExec       = _loadProperty(properties,        "HTTP_PATH_EXEC");
+	httpPathConfig     = _loadProperty(properties,        "HTTP_PATH_CONFIG");
+	httpSearchAttrName = _loadProperty(properties,        "HTTP_SEARCH_ATTR_NAME");
+	appDirectory       = _loadProperty(properties,        "APP_DIRECTORY");
+	xmlTreeView        = _loadBooleanProperty(properties, "XML_TREE_VIEW");
+	templateFromServer = observingMode && _loadBooleanProperty(properties, "TEMPLATE_FROM_SERVER");
+	templateDirectory  = _directory(_loadProperty(properties, "TEMPLATE_DIRECTORY"), System.getProperty("file.separator"));
+
+	expertMode          = _loadBooleanProperty(properties, "EXPERT_MODE");
+	logFileDirectory    = _loadProperty(properties, "LOG_FILE_DIRECTORY");
+	journalOn           = _loadBooleanProperty(properties, "JOURNAL_ON", false);
+	journalDirectory    = _loadProperty(properties, "JOURNAL_DIRECTORY", logFileDirectory).trim();
+	appLibraryOn        = _loadBooleanProperty(properties, "APP_LIBRARY_ON", false);
+	appLibraryCache     = _loadProperty(properties, "APP_LIBRARY_CACHE",
+					    new File(logFileDirectory.trim(), "app_library.cache").getPath()).trim();
+	targetCache         = _loadProperty(properties, "TARGET_CACHE",
+					    new File(logFileDirectory.trim(), "target.cache").getPath()).trim();
+	targetStandIn       = _loadProperty(properties, "TARGET_STAND_IN", "").trim();
+	dataRateBudget      = Double.parseDouble(_loadProperty(properties, "DATA_RATE_BUDGET", "0").trim());
+	dataRateBlock       = _loadProperty(properties, "DATA_RATE_ACTION", "warn").trim().equalsIgnoreCase("block");
+	throughputInterval  = Math.max(MIN_FSTATUS_INTERVAL,
+				       Integer.parseInt(_loadProperty(properties, "THROUGHPUT_INTERVAL", String.valueOf(FSTATUS_INTERVAL)).trim()));
+	throughputTolerance = Double.parseDouble(_loadProperty(properties, "THROUGHPUT_TOLERANCE", "10").trim());
+	dataFileDirectory   = _loadProperty(properties, "DATA_FILE_DIRECTORY", "").trim();
+	confirmOnChange     = observingMode && _loadBooleanProperty(properties, "CONFIRM_ON_CHANGE");
+	checkForMask        = observingMode && _loadBooleanProperty(properties, "CHECK_FOR_MASK");
+
+	templateLabel = _loadSplitProperty(properties, "TEMPLATE_LABEL");
+
+	templatePair  = _loadSplitProperty(properties, "TEMPLATE_PAIR");
+	if(templatePair.length != templateLabel.length)
+	    throw new Exception("Number of TEMPLATE_PAIR = " + templatePair.length +
+				" does not equal the number of TEMPLATE_LABEL = " + templateLabel.length);
+	for(int i=0; i<templatePair.length; i++){
+	    try {
+		Integer.parseInt(templatePair[i]);
+	    }
+	    catch(NumberFormatException e){
+		throw new Exception("TEMPLATE_PAIR value = \"" + templatePair[i] + "\" is not an integer");
+	    }
+	}
+
+	templateApp   = _loadSplitProperty(properties, "TEMPLATE_APP");
+	if(templateApp.length != templateLabel.length)
+	    throw new Exception("Number of TEMPLATE_APP = " + templateApp.length +
+				" does not equal the number of TEMPLATE_LABEL = " + templateLabel.length);
+
+	templateId    = _loadSplitProperty(properties, "TEMPLATE_ID");
+	if(templateId.length != templateLabel.length)
+	    throw new Exception("Number of TEMPLATE_ID = " + templateId.length +
+				" does not equal the number of TEMPLATE_LABEL = " + templateLabel.length);
+
+	powerOn  = _loadProperty(properties, "POWER_ON");
+	powerOff = _loadProperty(properties, "POWER_OFF");
+
+	controlServerOn   = _loadBooleanProperty(properties, "CONTROL_SERVER_ON", false);
+	controlServerHost = _loadProperty(properties, "CONTROL_SERVER_HOST", "localhost").trim();
+	controlServerPort = Integer.parseInt(_loadProperty(properties, "CONTROL_SERVER_PORT", "5110").trim());
+
+	configReload      = _loadBooleanProperty(properties, "CONFIG_RELOAD", false);
+    }
+
+    /** The keys whose values differ from those of another configuration, in order */
+    public Set<String> changedKeys(Config other) {
+	Set<String> keys = new TreeSet<String>(_properties.stringPropertyNames());
+	keys.addAll(other._properties.stringPropertyNames());
+	Set<String> changed = new TreeSet<String>();
+	for(String key : keys){
+	    String value = _properties.getProperty(key), previous = other._properties.getProperty(key);
+	    if(value == null || previous == null ? value != previous : !value.trim().equals(previous.trim()))
+		changed.add(key);
+	}
+	return changed;
+    }
+
+    /** The application templates */
+    public Templates getTemplates() throws Exception {
+	return new Templates(templateLabel, templatePair, templateId);
+    }
+
+    /** A link to the servers */
+    public ServerLink getServerLink() throws Exception {
+	return new ServerLink(httpCameraServer, httpDataServer, httpPathGet, httpPathExec, httpPathConfig, httpSearchAttrName);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    // Trims a directory or URL and makes sure it ends with a separator
+    private static String _directory(String value, String separator) {
+	value = value.trim();
+	return value.endsWith(separator) ? value : value + separator;
+    }
+
+    /** Splits up multiple arguments from configuration file */
+    private String[] _loadSplitProperty(Properties properties, String key) throws Exception {
+	String propString = _loadProperty(properties, key);
+	StringTokenizer stringTokenizer = new StringTokenizer(propString, ";\n");
+	String[] multiString = new String[stringTokenizer.countTokens()];
+	int i = 0;
+	while(stringTokenizer.hasMoreTokens())
+	    multiString[i++] = stringTokenizer.nextToken().trim();
+	return multiString;
+    }
+
+    /** Loads a compulsory property */
+    private String _loadProperty(Properties properties, String key) throws Exception {
+	String value = properties.getProperty(key);
+	if(value == null)
+	    throw new Exception("Could not find " + key + " in configration file " + file);
+	return value;
+    }
+
+    /** Loads an optional property, returning a default value if it is absent */
+    private String _loadProperty(Properties properties, String key, String defaultValue) {
+	return properties.getProperty(key, defaultValue);
+    }
+
+    /** Checks that a property has value YES or NO and returns true if yes. It throws an exception
+     * if it neither yes nor no
+     */
+    private boolean _loadBooleanProperty(Properties properties, String key) throws Exception {
+	String value = _loadProperty(properties, key);
+	if(value.equalsIgnoreCase("YES") || value.equalsIgnoreCase("TRUE")){
+	    return true;
+	}else if(value.equalsIgnoreCase("NO") || value.equalsIgnoreCase("FALSE")){
+	    return false;
+	}else{
+	    throw new Exception("Key " + key + " has value = " + value + " which does not match yes/no/true/false");
+	}
+    }
+
+    /** Loads an optional yes/no property, returning a default value if it is absent */
+    private boolean _loadBooleanProperty(Properties properties, String key, boolean defaultValue) throws Exception {
+	if(properties.getProperty(key) == null) return defaultValue;
+	return _loadBooleanProperty(properties, key);
+    }
+
+}
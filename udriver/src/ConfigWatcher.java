@@ -0,0 +1,142 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/** Watches a configuration file and reads it again whenever it changes, so
+ * that Udriver can be reconfigured without a restart. The new file is read
+ * and checked in full on the watcher's own thread, as at start, together
+ * with the templates and server link made from it; only if all is well is
+ * the listener given it, so a mistake made while editing the file leaves
+ * the configuration as it was. Files saved with no change of value are
+ * ignored. The file's directory is watched rather than the file, since
+ * editors often save by writing a new file and renaming it.
+ */
+
+public class ConfigWatcher {
+
+    /** Told of the outcome of reading the file again. Called from the watcher's thread. */
+    public interface Listener {
+
+	/** The file has changed and is valid
+	 * @param config  the new configuration
+	 * @param changed the keys whose values have changed
+	 * @param link    a link to the servers it names
+	 */
+	void reloaded(Config config, Set<String> changed, ServerLink link);
+
+	/** The file has changed but could not be used, for the reason given */
+	void failed(String message);
+    }
+
+    // Milliseconds without further changes before the file is read, so that it is read once fully written
+    public static final long SETTLE = 500;
+
+    private final File     _file;
+    private final Listener _listener;
+    private Config         _config;
+
+    private WatchService     _watcher = null;
+    private Thread           _thread  = null;
+    private volatile boolean _stopped = false;
+
+    /** Constructor
+     * @param config   the configuration in use, whose file is watched
+     * @param listener told of changes
+     */
+    public ConfigWatcher(Config config, Listener listener) {
+	_file     = new File(config.file).getAbsoluteFile();
+	_config   = config;
+	_listener = listener;
+    }
+
+    /** Starts watching */
+    public synchronized void start() throws IOException {
+	if(_thread != null) throw new IllegalStateException("already watching " + _file);
+	_watcher = FileSystems.getDefault().newWatchService();
+	_file.getParentFile().toPath().register(_watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+	_thread = new Thread(new Runnable() {
+		public void run() {
+		    _run();
+		}
+	    }, "configuration watcher");
+	_thread.setDaemon(true);
+	_thread.start();
+    }
+
+    /** Stops watching */
+    public synchronized void stop() {
+	_stopped = true;
+	if(_watcher != null){
+	    try {
+		_watcher.close();
+	    }
+	    catch(IOException e){
+		// closing anyway
+	    }
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    private void _run() {
+	try {
+	    boolean pending = false;
+	    while(!_stopped){
+		WatchKey key = pending ? _watcher.poll(SETTLE, TimeUnit.MILLISECONDS) : _watcher.take();
+		if(key == null){
+		    pending = false;
+		    _reload();
+		    continue;
+		}
+		for(WatchEvent<?> event : key.pollEvents()){
+		    if(event.kind() == StandardWatchEventKinds.OVERFLOW || _file.getName().equals(((Path)event.context()).toString()))
+			pending = true;
+		}
+		if(!key.reset()){
+		    _listener.failed("The directory of " + _file + " can no longer be watched; changes will not be picked up");
+		    return;
+		}
+	    }
+	}
+	catch(InterruptedException e){
+	    // stopped
+	}
+	catch(ClosedWatchServiceException e){
+	    // stopped
+	}
+    }
+
+    // Reads and checks the file, telling the listener if it has changed
+    private void _reload() {
+	if(!_file.exists()) return;
+	try {
+	    Config config = Config.load(_config.file);
+	    Set<String> changed = config.changedKeys(_config);
+	    if(changed.isEmpty()) return;
+	    config.getTemplates();
+	    ServerLink link = config.getServerLink();
+	    _config = config;
+	    _listener.reloaded(config, changed, link);
+	}
+	catch(Exception e){
+	    _listener.failed(e.getMessage() != null ? e.getMessage() : e.toString());
+	}
+    }
+
+}
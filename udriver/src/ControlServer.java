@@ -0,0 +1,319 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/** A local HTTP interface, in JSON, through which scripts can drive Udriver
+ * with the same checks, timing and logging as the GUI. It is served by an
+ * NioHttpServer so that requests to read are answered at once on the server
+ * thread from what the GUI last published, and never wait for the GUI.
+ * Requests to change anything are passed to a Controller on the executor
+ * given, the GUI thread in Udriver, and parked until they are done, so they
+ * are carried out one at a time in order with the user's own actions.
+ *
+ * <pre>
+ * GET  /settings[?wait=s]          settings, timing predictions and state; with an
+ *                                  If-None-Match of the last ETag and wait, returns
+ *                                  when they change or after s seconds (304)
+ * POST /settings                   changes the settings given in a JSON object
+ * POST /post, /start, /stop        acts as the GUI's buttons; an optional JSON object
+ *                                  gives flags such as "force" or "confirm"
+ * GET  /events?since=n[&wait=s]    events numbered after n, waiting up to s seconds
+ *                                  for one if there are none
+ * </pre>
+ *
+ * Replies to changes are {"ok": true, "result": ...} or, with status 400 for
+ * bad requests and 409 for refused ones, {"ok": false, "error": "..."}.
+ * Changes must be sent as application/json and without an Origin header, so
+ * that a web page open in a local browser cannot make them: browsers cannot
+ * send that content type across sites without asking first, and always say
+ * where such requests come from. A change not begun by the GUI within
+ * ACTION_TIMEOUT is dropped and the client told so with status 503; one
+ * begun but not finished is said to be still under way.
+ * Events are those Udriver writes to its journal, plus "settings" whenever
+ * the settings change.
+ */
+
+public class ControlServer {
+
+    /** Carries out changes. Called on the executor. */
+    public interface Controller {
+
+	/** Carries out an action, "settings", "post", "start" or "stop", returning
+	 * what to reply with as a value Json can write. Throws an
+	 * IllegalArgumentException if the request is bad, or any other Exception
+	 * if it was refused or failed, with the reason as its message.
+	 */
+	public Object execute(String action, Map<String,Object> arguments) throws Exception;
+    }
+
+    // Longest wait for a change allowed, seconds
+    public static final int MAX_WAIT = 30;
+
+    // Number of events kept for clients to catch up with
+    public static final int MAX_EVENTS = 1000;
+
+    // Longest a change may take before the client is told it timed out, milliseconds
+    public static final long ACTION_TIMEOUT = 60000;
+
+    private static final String[] ACTIONS = {"settings", "post", "start", "stop"};
+
+    private final NioHttpServer _server;
+    private final Controller    _controller;
+    private final Executor      _executor;
+
+    // Guarded by this
+    private final ArrayDeque<Map<String,Object>> _events = new ArrayDeque<Map<String,Object>>();
+    private long                _seq           = 0;
+    private Map<String,Object>  _settings      = null;
+    private NioHttpServer.Response _settingsReply = _reply(200, _message(false, "no settings published yet"));
+    private NioHttpServer.Response _notModified   = null;
+    private String              _version       = "";
+
+    /** Constructor
+     * @param host         address to bind to; normally "localhost" so that only local scripts can connect
+     * @param port         port to listen on
+     * @param writeTimeout milliseconds a client may take to accept a reply before it is dropped
+     * @param controller   carries out changes
+     * @param executor     runs the controller, e.g. on the GUI thread
+     */
+    public ControlServer(String host, int port, long writeTimeout, Controller controller, Executor executor) {
+	_controller = controller;
+	_executor   = executor;
+	_server     = new NioHttpServer("control server", host, port, new NioHttpServer.Handler() {
+		public NioHttpServer.Response handle(NioHttpServer.Request request) throws Exception {
+		    String path = request.getPath();
+		    if(request.getMethod().equals("GET")){
+			if(path.equals("/settings")) return _settings(request);
+			if(path.equals("/events"))   return _events(request);
+		    }else if(request.getMethod().equals("POST")){
+			for(String action : ACTIONS)
+			    if(path.equals("/" + action)) return _action(action, request);
+		    }
+		    return null;
+		}
+	    }, writeTimeout, 60000);
+    }
+
+    public void start() throws IOException {
+	_server.start();
+    }
+
+    public void stop() {
+	_server.stop();
+    }
+
+    public int getPort() {
+	return _server.getPort();
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Publishes the current settings, a value Json can write with equals()
+     * defined, such as a Map. Returns true, and records a "settings" event,
+     * if they differ from those already published.
+     */
+    public boolean publish(Map<String,Object> settings) {
+	synchronized(this){
+	    if(settings.equals(_settings)) return false;
+	    _settings      = settings;
+	    _version       = Long.toHexString(_seq+1);
+	    Map<String,String> headers = new HashMap<String,String>();
+	    headers.put("ETag", "\"" + _version + "\"");
+	    headers.put("Cache-Control", "no-cache");
+	    _settingsReply = NioHttpServer.Response.rendered(NioHttpServer.Response.render(200, "application/json", headers, _encode(Json.toString(settings))));
+	    _notModified   = NioHttpServer.Response.rendered(NioHttpServer.Response.render(304, null, headers, new byte[0]));
+	}
+	Map<String,Object> fields = new LinkedHashMap<String,Object>();
+	fields.put("settings", settings);
+	event("settings", fields);
+	return true;
+    }
+
+    /** Records an event, waking any client waiting for one. Can be called from any thread.
+     * @param event  the kind of event, e.g. "post"
+     * @param fields further fields; may be null
+     */
+    public void event(String event, Map<String,?> fields) {
+	Map<String,Object> entry = new LinkedHashMap<String,Object>();
+	synchronized(this){
+	    entry.put("seq",   ++_seq);
+	    entry.put("time",  System.currentTimeMillis());
+	    entry.put("event", event);
+	    if(fields != null) entry.putAll(fields);
+	    _events.addLast(entry);
+	    while(_events.size() > MAX_EVENTS) _events.removeFirst();
+	}
+	_server.wakeup();
+    }
+
+    /** Records an event from name, value pairs */
+    public void event(String event, Object... fields) {
+	Map<String,Object> map = new LinkedHashMap<String,Object>();
+	for(int i=0; i+1<fields.length; i+=2)
+	    map.put(String.valueOf(fields[i]), fields[i+1]);
+	event(event, map);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    // The settings, waiting for a change if asked to
+    private synchronized NioHttpServer.Response _settings(NioHttpServer.Request request) {
+	String tags = request.getHeader("If-None-Match");
+	if(_notModified == null || tags == null || !tags.contains("\"" + _version + "\"")) return _settingsReply;
+	double wait = _wait(request);
+	if(wait > 0 && !request.isTimedOut()) return request.park((long)(1000*wait));
+	return _notModified;
+    }
+
+    // Events after the one asked for
+    private NioHttpServer.Response _events(NioHttpServer.Request request) {
+	long since = 0;
+	String value = request.getParameter("since");
+	if(value != null){
+	    try {
+		since = Long.parseLong(value.trim());
+	    }
+	    catch(NumberFormatException e){
+		return _reply(400, _message(false, "since = \"" + value + "\" is not an integer"));
+	    }
+	}
+	List<Map<String,Object>> events = new ArrayList<Map<String,Object>>();
+	long next, first;
+	synchronized(this){
+	    for(Map<String,Object> entry : _events)
+		if((Long)entry.get("seq") > since) events.add(entry);
+	    next  = _seq;
+	    first = _events.isEmpty() ? _seq+1 : (Long)_events.peekFirst().get("seq");
+	}
+	double wait = _wait(request);
+	if(events.isEmpty() && wait > 0 && !request.isTimedOut())
+	    return request.park((long)(1000*wait));
+
+	Map<String,Object> reply = new LinkedHashMap<String,Object>();
+	reply.put("next",   next);
+	reply.put("missed", since+1 < first && since < next);
+	reply.put("events", events);
+	return _reply(200, reply);
+    }
+
+    // Hands a change to the controller the first time it is seen, then waits for it to be done
+    private NioHttpServer.Response _action(final String action, NioHttpServer.Request request) {
+
+	final Pending pending;
+	if(request.getAttachment() == null){
+	    if(request.getHeader("Origin") != null)
+		return _reply(403, _message(false, "changes are not accepted from web pages"));
+	    String type = request.getHeader("Content-Type");
+	    if(type == null || !type.split(";")[0].trim().equalsIgnoreCase("application/json"))
+		return _reply(415, _message(false, "changes must be sent as application/json"));
+
+	    final Map<String,Object> arguments;
+	    try {
+		String body = new String(request.getBody(), "UTF-8").trim();
+		arguments = body.length() > 0 ? Json.parseObject(body) : new LinkedHashMap<String,Object>();
+	    }
+	    catch(Exception e){
+		return _reply(400, _message(false, e.getMessage()));
+	    }
+	    pending = new Pending();
+	    request.setAttachment(pending);
+	    _executor.execute(new Runnable() {
+		    public void run() {
+			synchronized(pending){
+			    if(pending.cancelled) return;
+			    pending.started = true;
+			}
+			NioHttpServer.Response response;
+			try {
+			    Map<String,Object> reply = new LinkedHashMap<String,Object>();
+			    reply.put("ok", true);
+			    reply.put("result", _controller.execute(action, arguments));
+			    response = _reply(200, reply);
+			}
+			catch(IllegalArgumentException e){
+			    response = _reply(400, _message(false, _text(e)));
+			}
+			catch(Exception e){
+			    response = _reply(409, _message(false, _text(e)));
+			}
+			pending.response = response;
+			_server.wakeup();
+		    }
+		});
+	}else{
+	    pending = (Pending)request.getAttachment();
+	}
+	if(pending.response != null) return pending.response;
+	if(request.isTimedOut()){
+	    synchronized(pending){
+		if(!pending.started){
+		    pending.cancelled = true;
+		    return _reply(503, _message(false, action + " timed out waiting for the GUI and was not carried out"));
+		}
+	    }
+	    return _reply(503, _message(false, action + " timed out; it is still being carried out and may yet take effect"));
+	}
+	return request.park(ACTION_TIMEOUT);
+    }
+
+    // Work handed to the controller for a parked request; started and cancelled are guarded by the Pending
+    private static class Pending {
+	volatile NioHttpServer.Response response = null;
+	boolean started   = false;
+	boolean cancelled = false;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    private static double _wait(NioHttpServer.Request request) {
+	String wait = request.getParameter("wait");
+	if(wait == null) return 0.;
+	try {
+	    return Math.min(MAX_WAIT, Double.parseDouble(wait));
+	}
+	catch(NumberFormatException e){
+	    return 0.;
+	}
+    }
+
+    private static String _text(Exception e) {
+	return e.getMessage() != null ? e.getMessage() : e.toString();
+    }
+
+    private static Map<String,Object> _message(boolean ok, String error) {
+	Map<String,Object> map = new LinkedHashMap<String,Object>();
+	map.put("ok",    ok);
+	map.put("error", error);
+	return map;
+    }
+
+    private static NioHttpServer.Response _reply(int status, Object value) {
+	NioHttpServer.Response response = new NioHttpServer.Response(status, "application/json", _encode(Json.toString(value)));
+	response.setHeader("Cache-Control", "no-cache");
+	return response;
+    }
+
+    private static byte[] _encode(String text) {
+	try {
+	    return text.getBytes("UTF-8");
+	}
+	catch(UnsupportedEncodingException e){
+	    throw new Error(e);
+	}
+    }
+
+}
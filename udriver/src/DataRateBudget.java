@@ -0,0 +1,155 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Checks the sustained rate at which a setup produces data, bytes per
+ * image over the cycle time, against the rate the data server can write it.
+ * The budget is configured, and lowered to the rate the data server was
+ * last measured to manage if it fell behind a run. For a setup over budget
+ * it suggests the nearest changes that would fit: coarser binning, a longer
+ * exposure delay or, for windowed setups, shorter windows.
+ */
+
+public class DataRateBudget {
+
+    /** Bytes per megabyte, as for the disk space display */
+    public static final double MEGABYTE = 1024.*1024.;
+
+    /** A run whose measured rate is below this fraction of that predicted
+     * is taken to have been limited by the data server */
+    public static final double SHORTFALL = 0.9;
+
+    /** Largest binning factor */
+    public static final int MAX_BIN = 8;
+
+    private final double _configured;
+    private double       _measured = 0;
+
+    /** Constructor
+     * @param megabytesPerSecond the configured budget, MB/s; 0 or less for none
+     */
+    public DataRateBudget(double megabytesPerSecond) {
+	_configured = megabytesPerSecond > 0 ? megabytesPerSecond*MEGABYTE : 0;
+    }
+
+    /** The budget, bytes per second; 0 if there is none */
+    public synchronized double getBudget() {
+	if(_measured > 0 && (_configured <= 0 || _measured < _configured)) return _measured;
+	return _configured;
+    }
+
+    /** Whether the budget has been lowered to a measured rate */
+    public synchronized boolean isMeasured() {
+	return _measured > 0 && (_configured <= 0 || _measured < _configured);
+    }
+
+    /** Records how fast the data server wrote during a run
+     * @param predictedRate bytes per second the setup produced
+     * @param measuredRate  bytes per second the data server reported writing
+     */
+    public synchronized void observe(double predictedRate, double measuredRate) {
+	if(predictedRate <= 0 || measuredRate <= 0) return;
+	if(measuredRate < SHORTFALL*predictedRate){
+	    _measured = measuredRate;
+	}else if(predictedRate > _measured){
+	    // It kept up with more than it was thought able to
+	    _measured = 0;
+	}
+    }
+
+    /** Whether a setup fits the budget */
+    public boolean fits(TimingModel.Setup setup) {
+	double budget = getBudget();
+	return budget <= 0 || TimingModel.dataRate(setup) <= budget;
+    }
+
+    /** Changes which would bring a setup within the budget, nearest first; empty if none is needed or none found */
+    public List<String> suggest(TimingModel.Setup setup) {
+
+	List<String> suggestions = new ArrayList<String>();
+	double budget = getBudget();
+	if(budget <= 0 || fits(setup)) return suggestions;
+
+	String binning = _binning(setup);
+	if(binning != null) suggestions.add(binning);
+
+	String delay = _delay(setup, budget);
+	if(delay != null) suggestions.add(delay);
+
+	String windows = _windows(setup);
+	if(windows != null) suggestions.add(windows);
+
+	return suggestions;
+    }
+
+    /** Describes a rate, MB/s */
+    public static String format(double bytesPerSecond) {
+	return String.valueOf(Math.round(100.*bytesPerSecond/MEGABYTE)/100.);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    // The coarser binning which fits with the fewest binned pixels merged, windows permitting
+    private String _binning(TimingModel.Setup setup) {
+	TimingModel.Setup best = null;
+	for(int xbin=setup.getXbin(); xbin<=MAX_BIN; xbin++){
+	    for(int ybin=setup.getYbin(); ybin<=MAX_BIN; ybin++){
+		TimingModel.Setup trial = setup.withBinning(xbin, ybin);
+		if(!trial.binningFits() || !fits(trial)) continue;
+		if(best == null || _closer(trial, best)) best = trial;
+		break;
+	    }
+	}
+	if(best == null) return null;
+	return "bin " + best.getXbin() + "x" + best.getYbin() + " (" + format(TimingModel.dataRate(best)) + " MB/s)";
+    }
+
+    // Whether one binning is nearer square one than another, then more nearly square
+    private static boolean _closer(TimingModel.Setup a, TimingModel.Setup b) {
+	int na = a.getXbin()*a.getYbin(), nb = b.getXbin()*b.getYbin();
+	if(na != nb) return na < nb;
+	return Math.abs(a.getXbin()-a.getYbin()) < Math.abs(b.getXbin()-b.getYbin());
+    }
+
+    // The shortest exposure delay which fits; the cycle time grows by 0.1 ms with each unit of it
+    private String _delay(TimingModel.Setup setup, double budget) {
+	double needed = TimingModel.nbytesPerImage(setup)/budget - TimingModel.timing(setup).cycleTime;
+	int expose = setup.getExpose() + (int)Math.ceil(needed/1.e-4);
+	TimingModel.Setup trial = setup.withExpose(expose);
+	while(!fits(trial))
+	    trial = setup.withExpose(++expose);
+	return "exposure delay of " + (expose/10.) + " ms or more (" + format(TimingModel.dataRate(trial)) + " MB/s)";
+    }
+
+    // The tallest windows which fit, shrinking all of them by the same fraction
+    private String _windows(TimingModel.Setup setup) {
+	if(setup.isFullFrame() || setup.getNpair() == 0) return null;
+	for(int percent=95; percent>0; percent-=5){
+	    int[] pairs = new int[5*setup.getNpair()];
+	    StringBuffer heights = new StringBuffer();
+	    for(int i=0; i<setup.getNpair(); i++){
+		int ny = setup.getNy(i)*percent/100/setup.getYbin()*setup.getYbin();
+		if(ny < setup.getYbin()) return null;
+		pairs[5*i]   = setup.getYstart(i);
+		pairs[5*i+1] = setup.getXleft(i);
+		pairs[5*i+2] = setup.getXright(i);
+		pairs[5*i+3] = setup.getNx(i);
+		pairs[5*i+4] = ny;
+		heights.append(i > 0 ? ", " : "").append(ny);
+	    }
+	    TimingModel.Setup trial = new TimingModel.Setup(setup.getTemplate(), setup.getReadSpeed(), setup.getXbin(),
+							    setup.getYbin(), setup.getExpose(), pairs);
+	    if(fits(trial))
+		return "window heights of " + heights + " (" + percent + "% of now, " + format(TimingModel.dataRate(trial)) + " MB/s)";
+	}
+	return null;
+    }
+
+}
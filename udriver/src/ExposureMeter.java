@@ -0,0 +1,119 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+/** Measures the time since a run started and estimates the data written
+ * so far. Times come from System.nanoTime(), passed in by the caller, so
+ * the meter does not drift however irregularly it is read. The volume is
+ * predicted from the rate, bytes per image over the cycle time, and can be
+ * corrected whenever the data server reports how much it has actually
+ * written; after two reports the measured rate replaces the predicted one.
+ * Not thread-safe: use from one thread, normally the GUI thread.
+ */
+
+public class ExposureMeter {
+
+    private final double _predictedRate;
+    private final long   _maxBytes;
+
+    private long    _start    = 0;
+    private long    _stop     = 0;
+    private boolean _running  = false;
+
+    // Last correction from the data server, and the rate measured from the last two
+    private long    _fixBytes = -1;
+    private long    _fixTime  = 0;
+    private double  _rate;
+    private boolean _measured = false;
+
+    /** Constructor
+     * @param cycleTime     seconds per image
+     * @param bytesPerImage bytes per image
+     * @param nexposures    number of images in the run, 0 or less if unlimited
+     */
+    public ExposureMeter(double cycleTime, long bytesPerImage, int nexposures) {
+	_predictedRate = cycleTime > 0 ? bytesPerImage/cycleTime : 0;
+	_rate          = _predictedRate;
+	_maxBytes      = nexposures > 0 ? nexposures*bytesPerImage : Long.MAX_VALUE;
+    }
+
+    /** Starts the meter
+     * @param now System.nanoTime() at which the run started
+     */
+    public void start(long now) {
+	_start    = now;
+	_running  = true;
+	_fixBytes = -1;
+	_rate     = _predictedRate;
+	_measured = false;
+    }
+
+    /** Stops the meter; it then reads the same until started again */
+    public void stop(long now) {
+	if(_running){
+	    _stop    = now;
+	    _running = false;
+	}
+    }
+
+    public boolean isRunning() {
+	return _running;
+    }
+
+    /** Seconds since the start */
+    public double getElapsed(long now) {
+	return ((_running ? now : _stop) - _start)/1.e9;
+    }
+
+    /** Estimated bytes written by now */
+    public long getBytes(long now) {
+	long time = _running ? now : _stop;
+	double bytes = _fixBytes >= 0 ? _fixBytes + _rate*(time - _fixTime)/1.e9 : _rate*(time - _start)/1.e9;
+	return Math.min(_maxBytes, Math.max(0, (long)bytes));
+    }
+
+    /** Bytes per second currently assumed */
+    public double getRate() {
+	return _rate;
+    }
+
+    /** Bytes per second predicted from the setup */
+    public double getPredictedRate() {
+	return _predictedRate;
+    }
+
+    /** Whether the rate has been measured from the data server's reports while it was writing */
+    public boolean isMeasured() {
+	return _measured;
+    }
+
+    /** Corrects the estimate with the bytes the data server reports as written
+     * @param bytes bytes written
+     * @param when  System.nanoTime() at which they were reported
+     */
+    public void correct(long bytes, long when) {
+	if(!_running || when <= _start) return;
+	if(_fixBytes >= 0 && when - _fixTime > 1000000000L && bytes >= _fixBytes){
+	    _rate     = (bytes - _fixBytes)/((when - _fixTime)/1.e9);
+	    // A finite run may have finished in between, which would slow the rate
+	    _measured = bytes < _maxBytes;
+	}
+	_fixBytes = bytes;
+	_fixTime  = when;
+    }
+
+    /** Seconds from now until a number of bytes will have been written: 0 if
+     * already, -1 if never, e.g. because the run will end first
+     */
+    public double getEta(long threshold, long now) {
+	long bytes = getBytes(now);
+	if(bytes >= threshold) return 0;
+	if(!_running || _rate <= 0 || threshold > _maxBytes) return -1;
+	return (threshold - bytes)/_rate;
+    }
+
+}
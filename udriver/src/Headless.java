@@ -0,0 +1,414 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import warwick.marsh.ultracam.LogWriter;
+
+/** Drives ULTRACAM without the GUI, for scripted runs such as bias, flat
+ * and dark sequences. The configuration file is read by Config, saved
+ * applications are built and checked by AppBuilder and the servers are
+ * spoken to through ServerLink, just as Udriver does, but no AWT class is
+ * ever loaded so it starts in a fraction of the time.
+ *
+ * <pre>
+ * java warwick.marsh.ultracam.udriver.Headless [-config file] [-daemon] [command [; command ...]]
+ * </pre>
+ *
+ * Commands given on the command line are carried out in turn, stopping at
+ * the first that fails; the exit status is 0 only if all succeed, with or
+ * without -daemon. With -daemon, further commands are then read one per
+ * line from standard input until it ends or "quit" is read, and the rtplot
+ * server is started if the configuration asks for it, as the GUI does.
+ * Every command is answered with a single line starting "OK" or "ERROR".
+ * Applications are posted with the user section Udriver posts, less the
+ * imedia PC's temperatures and slide position. The commands are:
+ *
+ * <pre>
+ *   load file [length]   build and check a saved application; length is a number of
+ *                        exposures or a time ending in s, m or h, as in a sequence plan
+ *   post [file [length]] post the loaded application, or load one first
+ *   start [force]        start a run; refused if one seems to be active unless forced
+ *   stop                 stop the run
+ *   status               whether a run is active and the number of the last run
+ *   setup-servers        initialise the servers for the telescope, as the GUI's button
+ *   power on|off         power the SDSU on or off
+ *   rtplot [on|off]      serve the loaded application's windows to rtplot
+ *   help                 list the commands
+ * </pre>
+ *
+ * A one-shot command line that starts the rtplot server keeps serving
+ * until killed. Events are written to the run journal as Udriver writes
+ * them, when the configuration asks for one.
+ */
+
+public class Headless {
+
+    private final Config         _config;
+    private final ServerLink     _link;
+    private final AppBuilder     _builder;
+    private final DataRateBudget _budget;
+
+    private RunJournal          _journal      = null;
+    private RtplotServer        _rtplotServer = null;
+    private AppBuilder.Prepared _loaded       = null;
+    private AppBuilder.Prepared _posted       = null;
+
+    public Headless(Config config) throws Exception {
+	_config  = config;
+	_link    = config.getServerLink();
+	_builder = new AppBuilder(config.getTemplates());
+	_budget  = new DataRateBudget(config.dataRateBudget);
+    }
+
+    /** Starts the run journal in the configured directory, if it exists */
+    public void openJournal() {
+	File directory = new File(_config.journalDirectory);
+	if(!directory.isDirectory()){
+	    System.err.println("Journal directory " + directory + " does not exist; no journal will be kept");
+	    return;
+	}
+	_journal = new RunJournal(directory, new LogWriter.Listener() {
+		public void opened(File file, boolean appended) {}
+		public void failed(File file, IOException e) {
+		    System.err.println("Failed to write journal " + file + ": " + e);
+		}
+	    });
+	_journal.record("session", "config", _config.file, "telescope", _config.telescope.name,
+			"camera", _config.httpCameraServer, "data", _config.httpDataServer, "headless", true);
+    }
+
+    /** Stops the rtplot server and closes the journal */
+    public synchronized void close() {
+	if(_rtplotServer != null){
+	    _rtplotServer.stop();
+	    _rtplotServer = null;
+	}
+	if(_journal != null){
+	    _journal.close();
+	    _journal = null;
+	}
+    }
+
+    /** Whether the rtplot server is running */
+    public synchronized boolean isServing() {
+	return _rtplotServer != null;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Carries out a command, returning a line saying what was done. Failures throw an Exception. */
+    public synchronized String execute(String[] words) throws Exception {
+
+	String command = words[0].toLowerCase();
+
+	if(command.equals("load")){
+	    _args(words, 2, 3);
+	    return _load(words);
+
+	}else if(command.equals("post")){
+	    _args(words, 1, 3);
+	    String loaded = words.length > 1 ? _load(words) : null;
+	    if(_loaded == null) throw new Exception("No application has been loaded");
+	    return (loaded != null ? loaded + "; " : "") + _post();
+
+	}else if(command.equals("start")){
+	    _args(words, 1, 2);
+	    if(words.length == 2 && !words[1].equals("force"))
+		throw new Exception("start: argument = \"" + words[1] + "\" not understood");
+	    return _start(words.length == 2);
+
+	}else if(command.equals("stop")){
+	    _args(words, 1, 1);
+	    _servers();
+	    try {
+		_link.command("EX,0", null);
+	    }
+	    catch(Exception e){
+		_journal("stop", "ok", false, "error", e.toString());
+		throw e;
+	    }
+	    _journal("stop", "target", _target(), "run", _lastRun(), "ok", true);
+	    return "stopped";
+
+	}else if(command.equals("status")){
+	    _args(words, 1, 1);
+	    _servers();
+	    boolean active = ServerLink.isRunActive(_link.status());
+	    return (active ? "active" : "idle") + ", last run " + _lastRun() +
+		(_loaded != null ? ", loaded " + _loaded.app.getFile().getName() : "") +
+		(_posted != null ? ", posted " + _posted.app.getFile().getName() : "");
+
+	}else if(command.equals("setup-servers") || command.equals("setup")){
+	    _args(words, 1, 1);
+	    return _setupServers();
+
+	}else if(command.equals("power")){
+	    _args(words, 2, 2);
+	    if(words[1].equals("on"))
+		return _exec(_config.powerOn) + "; powered on";
+	    else if(words[1].equals("off"))
+		return _exec(_config.powerOff) + "; powered off";
+	    throw new Exception("power: argument = \"" + words[1] + "\" not understood");
+
+	}else if(command.equals("rtplot")){
+	    _args(words, 1, 2);
+	    if(words.length == 1 || words[1].equals("on"))
+		return _startRtplot();
+	    else if(words[1].equals("off")){
+		if(_rtplotServer != null) _rtplotServer.stop();
+		_rtplotServer = null;
+		return "rtplot server stopped";
+	    }
+	    throw new Exception("rtplot: argument = \"" + words[1] + "\" not understood");
+
+	}else if(command.equals("help")){
+	    return "commands: load file [length], post [file [length]], start [force], stop, status, setup-servers, power on|off, rtplot [on|off], quit";
+	}
+	throw new Exception("Command = \"" + words[0] + "\" not recognised; try help");
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    // Builds an application, and publishes its windows to rtplot
+    private String _load(String[] words) throws Exception {
+	NightPlanner.Request request = NightPlanner.request(new File(words[1]), words.length == 3 ? words[2] : null);
+	_loaded = _builder.build(request.file, request.nexposures, request.seconds);
+	if(_rtplotServer != null)
+	    _rtplotServer.publish(WindowSnapshot.of(_loaded.app.getSetup()));
+	return "loaded " + _loaded.app.getSetup().getTemplate() + ", " + _loaded.nexposures + " exposures of " +
+	    String.format("%.3f", _loaded.cycleTime) + " s, " + DataRateBudget.format(TimingModel.dataRate(_loaded.app.getSetup())) + " MB/s";
+    }
+
+    // Posts the loaded application to the camera server then the data server
+    private String _post() throws Exception {
+	_servers();
+	TimingModel.Setup setup = _loaded.app.getSetup();
+	String warning = "";
+	if(_budget.getBudget() > 0 && !_budget.fits(setup)){
+	    double rate = TimingModel.dataRate(setup);
+	    _journalSetup("dataRate", _loaded, "rate", rate, "budget", _budget.getBudget(), "measured", false, "blocked", _config.dataRateBlock);
+	    String message = "data rate " + DataRateBudget.format(rate) + " MB/s is over the budget of " + DataRateBudget.format(_budget.getBudget()) + " MB/s";
+	    List<String> suggestions = _budget.suggest(setup);
+	    if(_config.dataRateBlock)
+		throw new Exception(message + "; application was not posted" + (suggestions.isEmpty() ? "" : "; nearest that fit: " + _join(suggestions)));
+	    warning = "; warning: " + message;
+	}
+	try {
+	    // The user section saved with the application, with the revision added as the GUI adds it
+	    for(String problem : UserSection.add(_loaded.document, UserSection.saved(_loaded.document), _link, true, false))
+		warning += "; warning: " + problem;
+	    _link.post(_loaded.document, null);
+	}
+	catch(Exception e){
+	    _journalSetup("post", _loaded, "ok", false, "error", e.toString());
+	    throw e;
+	}
+	_posted = _loaded;
+	_journalSetup("post", _posted, "ok", true);
+	return "posted " + _posted.app.getFile().getName() + warning;
+    }
+
+    // Starts a run, as the GUI's Start button does
+    private String _start(boolean force) throws Exception {
+	_servers();
+	if(ServerLink.isRunActive(_link.status()) && !force)
+	    throw new Exception("A run may already be active; use \"start force\" to start another");
+	int last = _lastRunNumber();
+	_link.command("GO", null);
+	if(_posted != null)
+	    _journalSetup("start", _posted, "cycleTime", _posted.cycleTime, "bytesPerImage", _posted.bytesPerImage, "nexposures", _posted.nexposures);
+	return "started run " + (last >= 0 ? String.valueOf(last+1) : "of unknown number") + (_posted != null ? ", expected to take " + String.format("%.1f", _posted.getDuration()) + " s" : "");
+    }
+
+    // Initialises the servers in the same order as the GUI
+    private String _setupServers() throws Exception {
+	_servers();
+	try {
+	    _link.setupServers(_config.telescope.application, Config.GENERIC_APP, null);
+	}
+	catch(Exception e){
+	    _journal("setup", "application", _config.telescope.application, "ok", false, "error", e.toString());
+	    throw e;
+	}
+	_journal("setup", "application", _config.telescope.application, "ok", true);
+	return "servers set up for " + _config.telescope.name;
+    }
+
+    // Executes an application on both servers then starts it, as the GUI's power buttons do
+    private String _exec(String application) throws Exception {
+	_servers();
+	try {
+	    _link.execApp(application, null);
+	    _link.command("GO", null);
+	}
+	catch(Exception e){
+	    _journal("exec", "application", application, "ok", false, "error", e.toString());
+	    throw e;
+	}
+	_journal("exec", "application", application, "ok", true);
+	return "executed " + application;
+    }
+
+    private String _startRtplot() throws Exception {
+	if(_rtplotServer == null){
+	    RtplotServer server = new RtplotServer(_config.rtplotServerHost, _config.rtplotServerPort, _config.rtplotWriteTimeout);
+	    server.start();
+	    _rtplotServer = server;
+	}
+	if(_loaded != null)
+	    _rtplotServer.publish(WindowSnapshot.of(_loaded.app.getSetup()));
+	return "rtplot server on port " + _rtplotServer.getPort();
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    private void _servers() throws Exception {
+	if(!_config.ultracamServersOn)
+	    throw new Exception("ULTRACAM_SERVERS_ON is not set in " + _config.file + "; the servers cannot be used");
+    }
+
+    // The number of the last run, -1 if it cannot be found
+    private int _lastRunNumber() {
+	try {
+	    return ServerLink.lastRunNumber(_link.fileStatus());
+	}
+	catch(Exception e){
+	    return -1;
+	}
+    }
+
+    private String _lastRun() {
+	int number = _lastRunNumber();
+	return number >= 0 ? String.valueOf(number) : "";
+    }
+
+    private String _target() {
+	return _posted != null ? _posted.app.getTarget() : "";
+    }
+
+    private static void _args(String[] words, int min, int max) throws Exception {
+	if(words.length < min || words.length > max)
+	    throw new Exception(words[0] + ": expected " + (min == max ? String.valueOf(min-1) : (min-1) + " to " + (max-1)) + " arguments");
+    }
+
+    private static String _join(List<String> strings) {
+	StringBuffer buffer = new StringBuffer();
+	for(String s : strings){
+	    if(buffer.length() > 0) buffer.append(", ");
+	    buffer.append(s);
+	}
+	return buffer.toString();
+    }
+
+    private void _journal(String event, Object... fields) {
+	if(_journal != null)
+	    _journal.record(event, fields);
+    }
+
+    // Records an event in the journal with an application's settings, as Udriver's _journalSetup does with the GUI's
+    private void _journalSetup(String event, AppBuilder.Prepared prepared, Object... fields) {
+	if(_journal == null) return;
+	TimingModel.Setup setup = prepared.app.getSetup();
+	Map<String,Object> map = RunJournal.settings(prepared.app.getTarget(), _lastRun(), setup.getTemplate(), WindowSnapshot.of(setup),
+						     setup.getExpose(), prepared.nexposures, setup.getReadSpeed(), fields);
+	map.put("file",      prepared.app.getFile().getPath());
+	_journal.record(event, map);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    // Carries out a command and prints the reply line; returns false if it failed
+    private boolean _reply(String[] words) {
+	try {
+	    System.out.println("OK " + execute(words));
+	    return true;
+	}
+	catch(Exception e){
+	    System.out.println("ERROR " + (e.getMessage() != null ? e.getMessage() : e.toString()).replace('\n', ' '));
+	    return false;
+	}
+    }
+
+    public static void main(String[] args) {
+
+	String  config  = System.getProperty("CONFIG_FILE", "udriver.conf");
+	boolean daemon  = false;
+	List<String[]> commands = new ArrayList<String[]>();
+
+	List<String> words = new ArrayList<String>();
+	for(int i=0; i<args.length; i++){
+	    if(words.isEmpty() && args[i].equals("-config") && i < args.length-1){
+		config = args[++i];
+	    }else if(words.isEmpty() && args[i].equals("-daemon")){
+		daemon = true;
+	    }else if(args[i].equals(";")){
+		if(!words.isEmpty()) commands.add(words.toArray(new String[words.size()]));
+		words.clear();
+	    }else{
+		words.add(args[i]);
+	    }
+	}
+	if(!words.isEmpty()) commands.add(words.toArray(new String[words.size()]));
+	if(commands.isEmpty() && !daemon){
+	    System.out.println("usage: Headless [-config file] [-daemon] [command [args] [; command [args] ...]]");
+	    System.exit(1);
+	}
+
+	final Headless headless;
+	try {
+	    headless = new Headless(Config.load(config));
+	}
+	catch(Exception e){
+	    System.out.println("ERROR " + e);
+	    System.exit(1);
+	    return;
+	}
+	if(headless._config.journalOn)
+	    headless.openJournal();
+	Runtime.getRuntime().addShutdownHook(new Thread() {
+		public void run() {
+		    headless.close();
+		}
+	    });
+
+	boolean ok = true;
+	for(int i=0; i<commands.size() && ok; i++)
+	    ok = headless._reply(commands.get(i));
+
+	try {
+	    if(daemon){
+		if(headless._config.rtplotServerOn && !headless.isServing())
+		    headless._reply(new String[] {"rtplot"});
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		String line;
+		while((line = in.readLine()) != null){
+		    String[] command = line.trim().split("\\s+");
+		    if(command[0].length() == 0 || command[0].startsWith("#")) continue;
+		    if(command[0].equals("quit")) break;
+		    headless._reply(command);
+		}
+	    }else if(ok && headless.isServing()){
+		System.err.println("Serving windows to rtplot until killed");
+		Thread.currentThread().join();
+	    }
+	}
+	catch(Exception e){
+	    System.out.println("ERROR " + e);
+	    ok = false;
+	}
+	System.exit(ok ? 0 : 1);
+    }
+
+}
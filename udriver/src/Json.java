@@ -0,0 +1,309 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Minimal JSON writing and parsing, enough for the run journal and the
+ * control interface without needing an external library. Values are
+ * written from null, Boolean, Number, String, Map, Collection and
+ * int[]/double[]/Object[] arrays. Parsing gives LinkedHashMap, ArrayList,
+ * String, Long (for integers), Double, Boolean and null.
+ */
+
+public final class Json {
+
+    private Json() {}
+
+    /** Returns a value as JSON text */
+    public static String toString(Object value) {
+	StringBuilder buff = new StringBuilder();
+	append(buff, value);
+	return buff.toString();
+    }
+
+    /** Appends a value as JSON text */
+    public static void append(StringBuilder buff, Object value) {
+	if(value == null){
+	    buff.append("null");
+
+	}else if(value instanceof String){
+	    quote(buff, (String)value);
+
+	}else if(value instanceof Boolean){
+	    buff.append(value.toString());
+
+	}else if(value instanceof Double || value instanceof Float){
+	    double d = ((Number)value).doubleValue();
+	    if(Double.isNaN(d) || Double.isInfinite(d))
+		buff.append("null");
+	    else
+		buff.append(d);
+
+	}else if(value instanceof Number){
+	    buff.append(value.toString());
+
+	}else if(value instanceof Map){
+	    buff.append('{');
+	    boolean first = true;
+	    for(Map.Entry<?,?> entry : ((Map<?,?>)value).entrySet()){
+		if(!first) buff.append(',');
+		first = false;
+		quote(buff, String.valueOf(entry.getKey()));
+		buff.append(':');
+		append(buff, entry.getValue());
+	    }
+	    buff.append('}');
+
+	}else if(value instanceof Collection){
+	    buff.append('[');
+	    boolean first = true;
+	    for(Object item : (Collection<?>)value){
+		if(!first) buff.append(',');
+		first = false;
+		append(buff, item);
+	    }
+	    buff.append(']');
+
+	}else if(value instanceof int[]){
+	    int[] array = (int[])value;
+	    buff.append('[');
+	    for(int i=0; i<array.length; i++){
+		if(i > 0) buff.append(',');
+		buff.append(array[i]);
+	    }
+	    buff.append(']');
+
+	}else if(value instanceof double[]){
+	    double[] array = (double[])value;
+	    buff.append('[');
+	    for(int i=0; i<array.length; i++){
+		if(i > 0) buff.append(',');
+		append(buff, array[i]);
+	    }
+	    buff.append(']');
+
+	}else if(value instanceof Object[]){
+	    Object[] array = (Object[])value;
+	    buff.append('[');
+	    for(int i=0; i<array.length; i++){
+		if(i > 0) buff.append(',');
+		append(buff, array[i]);
+	    }
+	    buff.append(']');
+
+	}else{
+	    quote(buff, value.toString());
+	}
+    }
+
+    /** Appends a string as a quoted JSON string */
+    public static void quote(StringBuilder buff, String text) {
+	buff.append('"');
+	for(int i=0; i<text.length(); i++){
+	    char c = text.charAt(i);
+	    switch(c){
+	    case '"':  buff.append("\\\""); break;
+	    case '\\': buff.append("\\\\"); break;
+	    case '\n': buff.append("\\n");  break;
+	    case '\r': buff.append("\\r");  break;
+	    case '\t': buff.append("\\t");  break;
+	    default:
+		if(c < 0x20){
+		    buff.append(String.format("\\u%04x", (int)c));
+		}else{
+		    buff.append(c);
+		}
+	    }
+	}
+	buff.append('"');
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Parses JSON text
+     * @throws IllegalArgumentException if the text is not valid JSON
+     */
+    public static Object parse(String text) {
+	Parser parser = new Parser(text);
+	Object value  = parser.value();
+	parser.space();
+	if(parser.pos != text.length())
+	    throw parser.error("unexpected text after value");
+	return value;
+    }
+
+    /** Parses JSON text which must be an object */
+    @SuppressWarnings("unchecked")
+    public static Map<String,Object> parseObject(String text) {
+	Object value = parse(text);
+	if(!(value instanceof Map))
+	    throw new IllegalArgumentException("JSON: expected an object");
+	return (Map<String,Object>)value;
+    }
+
+    // Deepest nesting of objects and arrays parsed, so that untrusted text cannot overflow the stack
+    public static final int MAX_DEPTH = 64;
+
+    private static final class Parser {
+
+	final String text;
+	int pos   = 0;
+	int depth = 0;
+
+	Parser(String text) {
+	    this.text = text;
+	}
+
+	IllegalArgumentException error(String message) {
+	    return new IllegalArgumentException("JSON: " + message + " at character " + pos);
+	}
+
+	void space() {
+	    while(pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+		pos++;
+	}
+
+	char next() {
+	    space();
+	    if(pos >= text.length()) throw error("unexpected end");
+	    return text.charAt(pos);
+	}
+
+	void expect(char c) {
+	    if(next() != c) throw error("expected '" + c + "'");
+	    pos++;
+	}
+
+	Object value() {
+	    char c = next();
+	    if(c == '{' || c == '['){
+		if(++depth > MAX_DEPTH) throw error("nested more than " + MAX_DEPTH + " deep");
+		Object value = c == '{' ? object() : array();
+		depth--;
+		return value;
+
+	    }else if(c == '"'){
+		return string();
+
+	    }else if(text.startsWith("true", pos)){
+		pos += 4;
+		return Boolean.TRUE;
+
+	    }else if(text.startsWith("false", pos)){
+		pos += 5;
+		return Boolean.FALSE;
+
+	    }else if(text.startsWith("null", pos)){
+		pos += 4;
+		return null;
+
+	    }else{
+		return number();
+	    }
+	}
+
+	Map<String,Object> object() {
+	    Map<String,Object> map = new LinkedHashMap<String,Object>();
+	    pos++;
+	    if(next() == '}'){
+		pos++;
+		return map;
+	    }
+	    for(;;){
+		if(next() != '"') throw error("expected a string key");
+		String key = string();
+		expect(':');
+		map.put(key, value());
+		char c = next();
+		pos++;
+		if(c == '}') return map;
+		if(c != ',') throw error("expected ',' or '}'");
+	    }
+	}
+
+	List<Object> array() {
+	    List<Object> list = new ArrayList<Object>();
+	    pos++;
+	    if(next() == ']'){
+		pos++;
+		return list;
+	    }
+	    for(;;){
+		list.add(value());
+		char c = next();
+		pos++;
+		if(c == ']') return list;
+		if(c != ',') throw error("expected ',' or ']'");
+	    }
+	}
+
+	String string() {
+	    pos++;
+	    StringBuilder buff = null;
+	    int start = pos;
+	    for(;;){
+		if(pos >= text.length()) throw error("unterminated string");
+		char c = text.charAt(pos);
+		if(c == '"'){
+		    String s = buff == null ? text.substring(start, pos) : buff.append(text, start, pos).toString();
+		    pos++;
+		    return s;
+		}
+		if(c == '\\'){
+		    if(buff == null) buff = new StringBuilder();
+		    buff.append(text, start, pos);
+		    if(++pos >= text.length()) throw error("unterminated string");
+		    c = text.charAt(pos++);
+		    switch(c){
+		    case 'n': buff.append('\n'); break;
+		    case 'r': buff.append('\r'); break;
+		    case 't': buff.append('\t'); break;
+		    case 'b': buff.append('\b'); break;
+		    case 'f': buff.append('\f'); break;
+		    case 'u':
+			if(pos + 4 > text.length()) throw error("bad unicode escape");
+			buff.append((char)Integer.parseInt(text.substring(pos, pos+4), 16));
+			pos += 4;
+			break;
+		    default:  buff.append(c);
+		    }
+		    start = pos;
+		}else{
+		    pos++;
+		}
+	    }
+	}
+
+	Object number() {
+	    int start = pos;
+	    boolean integer = true;
+	    while(pos < text.length()){
+		char c = text.charAt(pos);
+		if(c == '.' || c == 'e' || c == 'E'){
+		    integer = false;
+		}else if(!(c == '-' || c == '+' || (c >= '0' && c <= '9'))){
+		    break;
+		}
+		pos++;
+	    }
+	    if(start == pos) throw error("unexpected character");
+	    try {
+		String number = text.substring(start, pos);
+		return integer ? (Object)Long.valueOf(number) : (Object)Double.valueOf(number);
+	    }
+	    catch(NumberFormatException e){
+		throw error("bad number");
+	    }
+	}
+    }
+
+}
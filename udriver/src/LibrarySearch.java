@@ -0,0 +1,257 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.text.DateFormat;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * A window for finding saved applications through an AppLibrary. The
+ * applications matching the query in the search box are listed, newest
+ * first, as it is typed, and the settings and predicted timing of the one
+ * selected are shown beneath; see AppLibrary for the form of queries. The
+ * list is refreshed as the library changes. Load, or a double click,
+ * passes the application to a Loader.
+ */
+
+public class LibrarySearch extends JFrame {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Loads an application chosen */
+    public interface Loader {
+	void load(File file);
+    }
+
+    private final AppLibrary          _library;
+    private final Loader              _loader;
+    private final JTextField          _query   = new JTextField(30);
+    private final JLabel              _status  = new JLabel(" ");
+    private final JTextArea           _preview = new JTextArea(7, 60);
+    private final Model               _model   = new Model();
+    private final JTable              _table   = new JTable(_model);
+    private final JButton             _load    = new JButton("Load");
+    private final AppLibrary.Listener _listener;
+
+    private static final DecimalFormat FORM = new DecimalFormat("#####0.###");
+
+    public LibrarySearch(AppLibrary library, Loader loader) {
+
+	super("Application library");
+	_library = library;
+	_loader  = loader;
+
+	JPanel top = new JPanel(new BorderLayout(5, 5));
+	top.add(new JLabel("Search: "), BorderLayout.WEST);
+	top.add(_query, BorderLayout.CENTER);
+	top.add(_load, BorderLayout.EAST);
+	_query.setToolTipText("Words to find, and target:<name> pi:<name> id:<programme> template:<name> speed:<slow|fast|turbo> bin:<n|nxm>");
+	_query.getDocument().addDocumentListener(new DocumentListener() {
+		public void insertUpdate(DocumentEvent e)  { _search(); }
+		public void removeUpdate(DocumentEvent e)  { _search(); }
+		public void changedUpdate(DocumentEvent e) { _search(); }
+	    });
+
+	_table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+	_table.getSelectionModel().addListSelectionListener(new ListSelectionListener() {
+		public void valueChanged(ListSelectionEvent e) {
+		    if(!e.getValueIsAdjusting()) _preview();
+		}
+	    });
+	_table.addMouseListener(new MouseAdapter() {
+		public void mouseClicked(MouseEvent e) {
+		    if(e.getClickCount() == 2) _load();
+		}
+	    });
+	int[] widths = {110, 160, 120, 80, 70, 120, 50, 40, 60, 60, 60};
+	for(int i=0; i<widths.length; i++)
+	    _table.getColumnModel().getColumn(i).setPreferredWidth(widths[i]);
+
+	_load.setEnabled(false);
+	_load.addActionListener(new ActionListener() {
+		public void actionPerformed(ActionEvent e) {
+		    _load();
+		}
+	    });
+
+	_preview.setEditable(false);
+	_preview.setFont(new Font("Monospaced", Font.PLAIN, 12));
+
+	JPanel bottom = new JPanel(new BorderLayout(5, 5));
+	bottom.add(new JScrollPane(_preview), BorderLayout.CENTER);
+	bottom.add(_status, BorderLayout.SOUTH);
+
+	getContentPane().add(top, BorderLayout.NORTH);
+	getContentPane().add(new JScrollPane(_table), BorderLayout.CENTER);
+	getContentPane().add(bottom, BorderLayout.SOUTH);
+	setPreferredSize(new Dimension(950, 550));
+
+	_listener = new AppLibrary.Listener() {
+		public void changed(AppLibrary library) {
+		    SwingUtilities.invokeLater(new Runnable() {
+			    public void run() {
+				_search();
+			    }
+			});
+		}
+	    };
+	_library.addListener(_listener);
+	addWindowListener(new WindowAdapter() {
+		public void windowClosed(WindowEvent e) {
+		    _library.removeListener(_listener);
+		}
+	    });
+	setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+	_search();
+	pack();
+	setVisible(true);
+    }
+
+    // Runs the query in the search box, keeping the selection if it is still there
+    private void _search() {
+	AppLibrary.Entry selected = _selected();
+	long start = System.nanoTime();
+	_model.setResult(_library.query(_query.getText()));
+	long micro = (System.nanoTime() - start)/1000;
+
+	int row = selected != null ? _model.indexOf(selected.app.getFile()) : -1;
+	if(row >= 0)
+	    _table.getSelectionModel().setSelectionInterval(row, row);
+	else
+	    _preview();
+
+	String status = _model.getRowCount() + (_model.getRowCount() == AppLibrary.MAX_RESULTS ? " most recent" : "") +
+	    " of " + _library.size() + " applications (" + micro + " microseconds)";
+	if(_library.isScanning())
+	    status += "; scanning " + _library.getDirectory();
+	else if(_library.getFailed() > 0)
+	    status += "; " + _library.getFailed() + " files could not be read";
+	if(_library.getProblem() != null)
+	    status += "; " + _library.getProblem();
+	_status.setText(status);
+    }
+
+    // Shows the settings and timing of the application selected
+    private void _preview() {
+	AppLibrary.Entry entry = _selected();
+	_load.setEnabled(entry != null);
+	if(entry == null){
+	    _preview.setText("");
+	    return;
+	}
+	TimingModel.Setup setup = entry.app.getSetup();
+	StringBuffer text = new StringBuffer();
+	text.append(entry.app.getFile().getPath()).append('\n');
+	text.append(setup.getTemplate()).append(", ").append(setup.getReadSpeed()).append(" readout, binned ");
+	text.append(setup.getXbin()).append("x").append(setup.getYbin()).append(", exposure delay ");
+	text.append(FORM.format(setup.getExpose()/10000.)).append(" s, ");
+	text.append(entry.app.getNexposures() > 0 ? entry.app.getNexposures() + " exposures" : "unlimited exposures").append('\n');
+	for(int i=0; i<setup.getNpair(); i++){
+	    text.append("Pair ").append(i+1).append(": ystart = ").append(setup.getYstart(i));
+	    text.append(", xleft = ").append(setup.getXleft(i)).append(", xright = ").append(setup.getXright(i));
+	    text.append(", nx = ").append(setup.getNx(i)).append(", ny = ").append(setup.getNy(i)).append('\n');
+	}
+	text.append("Cycle time ").append(FORM.format(entry.cycleTime)).append(" s, frame rate ").append(FORM.format(entry.getFrameRate()));
+	text.append(" Hz, exposure ").append(FORM.format(entry.exposureTime)).append(" s, duty cycle ");
+	text.append(FORM.format(100.*entry.exposureTime/entry.cycleTime)).append("%, ").append(FORM.format(entry.dataRate/1.e6)).append(" MB/s");
+	if(entry.app.getNexposures() > 0)
+	    text.append(", run ").append(FORM.format(entry.app.getNexposures()*entry.cycleTime/60.)).append(" min");
+	text.append('\n');
+	text.append("Target: ").append(entry.app.getTarget()).append("   PI: ").append(entry.app.getPi());
+	text.append("   ID: ").append(entry.app.getProgramId());
+	_preview.setText(text.toString());
+	_preview.setCaretPosition(0);
+    }
+
+    // Passes the application selected to the loader
+    private void _load() {
+	AppLibrary.Entry entry = _selected();
+	if(entry != null) _loader.load(entry.app.getFile());
+    }
+
+    private AppLibrary.Entry _selected() {
+	int row = _table.getSelectedRow();
+	return row >= 0 && row < _model.getRowCount() ? _model.getEntry(row) : null;
+    }
+
+    /** The applications matched */
+    private final class Model extends AbstractTableModel {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String[]   COLUMNS = {"Saved", "File", "Target", "PI", "ID", "Template", "Speed", "Bin", "Exp (s)", "Rate (Hz)", "MB/s"};
+	private final DateFormat _format = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+	private List<AppLibrary.Entry> _result = new ArrayList<AppLibrary.Entry>();
+
+	void setResult(List<AppLibrary.Entry> result) {
+	    _result = result;
+	    fireTableDataChanged();
+	}
+
+	AppLibrary.Entry getEntry(int row) {
+	    return _result.get(row);
+	}
+
+	int indexOf(File file) {
+	    for(int i=0; i<_result.size(); i++)
+		if(_result.get(i).app.getFile().equals(file)) return i;
+	    return -1;
+	}
+
+	public int getRowCount() {
+	    return _result.size();
+	}
+
+	public int getColumnCount() {
+	    return COLUMNS.length;
+	}
+
+	public String getColumnName(int column) {
+	    return COLUMNS[column];
+	}
+
+	public Object getValueAt(int row, int column) {
+	    AppLibrary.Entry entry = _result.get(row);
+	    TimingModel.Setup setup = entry.app.getSetup();
+	    switch(column){
+	    case 0:  return _format.format(new Date(entry.app.getModified()));
+	    case 1:  return entry.app.getFile().getName();
+	    case 2:  return entry.app.getTarget();
+	    case 3:  return entry.app.getPi();
+	    case 4:  return entry.app.getProgramId();
+	    case 5:  return setup.getTemplate();
+	    case 6:  return setup.getReadSpeed();
+	    case 7:  return setup.getXbin() + "x" + setup.getYbin();
+	    case 8:  return FORM.format(entry.exposureTime);
+	    case 9:  return FORM.format(entry.getFrameRate());
+	    default: return FORM.format(entry.dataRate/1.e6);
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,377 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/** LoadTest drives many simulated Udriver clients against a local stand-in
+ * for the camera and data servers to see how the server interaction code
+ * behaves under contention. Each client has its own ServerLink, exactly as
+ * a separate copy of Udriver would.
+ *
+ * There are two sorts of client. 'Control' clients repeat a cycle of post
+ * application, start run (GO), poll the data server until the run ends, and
+ * stop it (EX,0) if it is still active after the expected run length.
+ * 'Monitor' clients just poll the data server status, as a second copy of
+ * Udriver watching a run would. At the end the throughput, latency
+ * percentiles and error rate of each type of exchange are reported along
+ * with the traffic each client put on the servers.
+ *
+ * <pre>
+ * java warwick.marsh.ultracam.udriver.LoadTest [options]
+ *
+ *   -clients n     number of control clients [4]
+ *   -monitors n    number of monitoring clients [4]
+ *   -cycles n      post/start/poll/stop cycles per control client [5]
+ *   -rate r        maximum cycles per second per control client [no limit]
+ *   -exposures n   exposures per run [10]
+ *   -cycle t       cycle time per exposure, seconds [0.2]
+ *   -poll ms|udriver  status polling interval while a run is active; 'udriver'
+ *                  uses Udriver's own policy (see PollPolicy) [udriver]
+ *   -monitor ms    polling interval of monitoring clients [1000]
+ *   -latency ms    processing delay added by the stand-in servers [0]
+ *   -threads n     threads serving requests in the stand-in servers [4]
+ *   -app file      application to post [a minimal dummy application]
+ * </pre>
+ *
+ * The servers used are always local stand-ins (see StandInServer); it
+ * should never be pointed at the real servers.
+ */
+
+public class LoadTest {
+
+    private int    _nclient     = 4;
+    private int    _nmonitor    = 4;
+    private int    _ncycle      = 5;
+    private double _rate        = 0.;
+    private int    _nexposure   = 10;
+    private double _cycleTime   = 0.2;
+    private int    _pollMillis  = -1;
+    private int    _monitorMillis = 1000;
+    private long   _latency     = 0;
+    private int    _nthread     = 4;
+    private String _appFile     = null;
+
+    private volatile boolean _finished = false;
+
+    public static void main(String[] args) {
+	try {
+	    LoadTest test = new LoadTest();
+	    test._parseArgs(args);
+	    test.run();
+	}
+	catch(Exception e){
+	    System.out.println(e);
+	    System.exit(1);
+	}
+    }
+
+    private void _parseArgs(String[] args) throws Exception {
+	for(int i=0; i<args.length; i++){
+	    String opt = args[i];
+	    if(i+1 == args.length)
+		throw new Exception("Option " + opt + " needs a value");
+	    String val = args[++i];
+	    if(opt.equals("-clients")){
+		_nclient = Integer.parseInt(val);
+	    }else if(opt.equals("-monitors")){
+		_nmonitor = Integer.parseInt(val);
+	    }else if(opt.equals("-cycles")){
+		_ncycle = Integer.parseInt(val);
+	    }else if(opt.equals("-rate")){
+		_rate = Double.parseDouble(val);
+	    }else if(opt.equals("-exposures")){
+		_nexposure = Integer.parseInt(val);
+	    }else if(opt.equals("-cycle")){
+		_cycleTime = Double.parseDouble(val);
+	    }else if(opt.equals("-poll")){
+		_pollMillis = val.equals("udriver") ? -1 : Integer.parseInt(val);
+	    }else if(opt.equals("-monitor")){
+		_monitorMillis = Integer.parseInt(val);
+	    }else if(opt.equals("-latency")){
+		_latency = Long.parseLong(val);
+	    }else if(opt.equals("-threads")){
+		_nthread = Integer.parseInt(val);
+	    }else if(opt.equals("-app")){
+		_appFile = val;
+	    }else{
+		throw new Exception("Unrecognised option " + opt);
+	    }
+	}
+	if(_nclient < 0 || _nmonitor < 0 || _nclient + _nmonitor == 0)
+	    throw new Exception("Need at least one client");
+    }
+
+    /** Runs the test and prints the report */
+    public void run() throws Exception {
+
+	long runLength = (long)(1000*_nexposure*_cycleTime);
+	StandInServer server = new StandInServer(0, 0, runLength, _nthread);
+	server.setLatency(_latency);
+	server.start();
+
+	Document app = _application();
+
+	System.out.println("Camera server = " + server.getCameraServer() + ", data server = " + server.getDataServer());
+	System.out.println(_nclient + " control clients x " + _ncycle + " cycles, " + _nmonitor + " monitors, run length = " +
+			   runLength + " ms, run polling = " + (_pollMillis < 0 ? "udriver policy" : _pollMillis + " ms"));
+
+	List<Client> clients = new ArrayList<Client>();
+	for(int i=0; i<_nclient; i++)
+	    clients.add(new Client("control " + (i+1), true, server, app));
+	for(int i=0; i<_nmonitor; i++)
+	    clients.add(new Client("monitor " + (i+1), false, server, app));
+
+	long start = System.nanoTime();
+	for(Client client : clients)
+	    client.start();
+
+	// Monitors run for as long as any control client does, or
+	// for a single run's length if there are none
+	if(_nclient == 0)
+	    Thread.sleep(Math.max(runLength, 5*_monitorMillis));
+	for(int i=0; i<_nclient; i++)
+	    clients.get(i).join();
+	_finished = true;
+	for(Client client : clients){
+	    client.interrupt();
+	    client.join();
+	}
+	double elapsed = (System.nanoTime() - start)/1.e9;
+	server.stop();
+
+	_report(clients, elapsed);
+    }
+
+    // Loads the application to post, or makes a minimal one
+    private Document _application() throws Exception {
+	DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+	if(_appFile != null)
+	    return builder.parse(new File(_appFile));
+
+	Document document = builder.newDocument();
+	Element root = document.createElement("configure");
+	root.setAttribute("id", "loadtest_app");
+	document.appendChild(root);
+	Element param = document.createElement("set_parameter");
+	param.setAttribute("ref", "NO_EXPOSURES");
+	param.setAttribute("value", String.valueOf(_nexposure));
+	root.appendChild(param);
+	return document;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** One simulated copy of Udriver */
+    private class Client extends Thread {
+
+	private final boolean    _control;
+	private final ServerLink _link;
+	private final Document   _app;
+
+	// Latencies of each type of exchange, nanoseconds
+	final Latencies[] latencies = new Latencies[ServerLink.EXCHANGE_NAMES.length];
+	int cycles = 0;
+	int errors = 0;
+	int overruns = 0;
+
+	Client(String name, boolean control, StandInServer server, Document app) throws Exception {
+	    super(name);
+	    _control = control;
+	    _app     = app;
+	    _link    = new ServerLink(server.getCameraServer(), server.getDataServer(), "get", "exec", "config", "filename");
+	    for(int i=0; i<latencies.length; i++)
+		latencies[i] = new Latencies();
+	}
+
+	ServerLink.Traffic traffic() {
+	    return _link.getTraffic();
+	}
+
+	public void run() {
+	    try {
+		if(_control){
+		    long minCycle = _rate > 0. ? (long)(1.e9/_rate) : 0;
+		    for(int i=0; i<_ncycle; i++){
+			long start = System.nanoTime();
+			_cycle();
+			cycles++;
+			long left = (minCycle - (System.nanoTime() - start))/1000000;
+			if(left > 0) Thread.sleep(left);
+		    }
+		}else{
+		    while(!_finished){
+			_isRunActive();
+			Thread.sleep(_monitorMillis);
+		    }
+		}
+	    }
+	    catch(InterruptedException e){
+		// end of test
+	    }
+	}
+
+	// One post/start/poll/stop cycle, as the Udriver buttons would carry it out
+	private void _cycle() throws InterruptedException {
+
+	    if(!_post(_link.getCameraServer()) || !_post(_link.getDataServer()) || !_exec("GO"))
+		return;
+
+	    // Poll until the run is no longer active
+	    long runLength = (long)(1000*_nexposure*_cycleTime);
+	    long delay     = _pollMillis < 0 ? PollPolicy.initialDelay(_nexposure, _cycleTime) : _pollMillis;
+	    long interval  = _pollMillis < 0 ? PollPolicy.interval(_cycleTime) : _pollMillis;
+	    long start     = System.nanoTime();
+	    Thread.sleep(delay);
+	    while(_isRunActive()){
+		if((System.nanoTime() - start)/1000000 > 2*runLength + interval){
+		    // Taking far too long; stop it as the observer would
+		    overruns++;
+		    _exec("EX,0");
+		    break;
+		}
+		Thread.sleep(interval);
+	    }
+	}
+
+	// Posts the application to one server, returning true if the reply was OK. Each post
+	// is timed on its own, so that latencies match the requests ServerLink counts.
+	private boolean _post(String server) {
+	    long start = System.nanoTime();
+	    try {
+		ServerLink.checkResponse(_link.postApp(server, _app));
+		latencies[ServerLink.POST].add(System.nanoTime() - start);
+		return true;
+	    }
+	    catch(Exception e){
+		errors++;
+		return false;
+	    }
+	}
+
+	// Executes a command, returning true if the reply was OK
+	private boolean _exec(String command) {
+	    long start = System.nanoTime();
+	    try {
+		ServerLink.checkResponse(_link.execCommand(command));
+		latencies[ServerLink.EXEC].add(System.nanoTime() - start);
+		return true;
+	    }
+	    catch(Exception e){
+		errors++;
+		return false;
+	    }
+	}
+
+	// Polls the data server. A failure is counted and treated as an active
+	// run, as Udriver does.
+	private boolean _isRunActive() {
+	    long start = System.nanoTime();
+	    try {
+		boolean active = ServerLink.isRunActive(_link.status());
+		latencies[ServerLink.STATUS].add(System.nanoTime() - start);
+		return active;
+	    }
+	    catch(Exception e){
+		errors++;
+		return !_finished;
+	    }
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Growable store of latencies belonging to one thread */
+    private static class Latencies {
+
+	private long[] _values = new long[256];
+	private int    _n      = 0;
+
+	void add(long nanos) {
+	    if(_n == _values.length)
+		_values = Arrays.copyOf(_values, 2*_n);
+	    _values[_n++] = nanos;
+	}
+
+	void addTo(Latencies all) {
+	    for(int i=0; i<_n; i++)
+		all.add(_values[i]);
+	}
+
+	// Returns the p-th percentile in milliseconds, values must be sorted
+	double percentile(double p) {
+	    if(_n == 0) return 0.;
+	    int i = (int)Math.ceil(p/100.*_n) - 1;
+	    return _values[Math.max(0, Math.min(_n-1, i))]/1.e6;
+	}
+
+	void sort() {
+	    Arrays.sort(_values, 0, _n);
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    private void _report(List<Client> clients, double elapsed) {
+
+	System.out.println("\nElapsed time = " + _round(elapsed, 2) + " s\n");
+
+	// Per-type summary over all clients; a cycle makes two posts, one to each server
+	System.out.println(String.format("%-8s %9s %9s %8s %8s %8s %8s %8s", "exchange", "requests", "req/s", "errors",
+					 "p50 ms", "p90 ms", "p99 ms", "max ms"));
+	long totalRequests = 0, totalFailures = 0;
+	for(int type=0; type<ServerLink.EXCHANGE_NAMES.length; type++){
+	    long requests = 0, failures = 0;
+	    Latencies all = new Latencies();
+	    for(Client client : clients){
+		requests += client.traffic().getRequests(type);
+		failures += client.traffic().getFailures(type);
+		client.latencies[type].addTo(all);
+	    }
+	    if(requests == 0) continue;
+	    totalRequests += requests;
+	    totalFailures += failures;
+	    all.sort();
+	    System.out.println(String.format("%-8s %9d %9.1f %8d %8.2f %8.2f %8.2f %8.2f", ServerLink.EXCHANGE_NAMES[type],
+					     requests, requests/elapsed, failures, all.percentile(50), all.percentile(90),
+					     all.percentile(99), all.percentile(100)));
+	}
+
+	int errors = 0;
+	for(Client client : clients)
+	    errors += client.errors;
+	System.out.println("\nTotal = " + totalRequests + " requests, " + _round(totalRequests/elapsed, 1) + " requests/s, " +
+			   totalFailures + " failed requests, " + errors + " errors including bad replies (" +
+			   _round(totalRequests > 0 ? 100.*errors/totalRequests : 0., 2) + "%)");
+
+	// Traffic generated by each client's polling strategy
+	System.out.println("\nTraffic per client:");
+	System.out.println(String.format("%-12s %7s %8s %12s %12s %10s %9s", "client", "cycles", "polls", "polls/s",
+					 "requests/s", "bytes/s", "overruns"));
+	for(Client client : clients){
+	    ServerLink.Traffic traffic = client.traffic();
+	    long polls = traffic.getRequests(ServerLink.STATUS);
+	    System.out.println(String.format("%-12s %7d %8d %12.2f %12.2f %10.0f %9d", client.getName(), client.cycles, polls,
+					     polls/elapsed, traffic.getRequests()/elapsed, traffic.getBytes()/elapsed,
+					     client.overruns));
+	}
+    }
+
+    private static String _round(double f, int ndp) {
+	return String.format("%." + ndp + "f", f);
+    }
+
+}
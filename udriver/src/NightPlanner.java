@@ -0,0 +1,455 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Plans a night's runs: from a list of saved applications, each with a
+ * number of exposures or a length of time, it works out the cycle time,
+ * data volume and duration of every run from TimingModel and lays them
+ * end to end, with the disk space used so far, so that one can see in
+ * advance whether they fit on the disk and in the dark time. It needs no
+ * GUI. Application files are read in parallel and remembered, in memory
+ * and optionally in a cache file, until they change. Thread-safe.
+ */
+
+public class NightPlanner {
+
+    private final Templates                    _templates;
+    private final Map<String,AppFile>          _cache = new ConcurrentHashMap<String,AppFile>();
+    private double                             _overhead = 0.;
+    private int                                _nthreads = 0;
+
+    /** Constructor
+     * @param templates the templates which the applications are made from
+     */
+    public NightPlanner(Templates templates) {
+	_templates = templates;
+    }
+
+    /** Sets the seconds lost between runs, e.g. to post, start and stop */
+    public synchronized void setOverhead(double seconds) {
+	_overhead = Math.max(0., seconds);
+    }
+
+    /** Sets the number of threads reading application files, 0 or less for one per processor */
+    public synchronized void setThreads(int nthreads) {
+	_nthreads = nthreads;
+    }
+
+    /** A run asked for: an application and how long to run it */
+    public static final class Request {
+
+	public final File   file;
+	public final int    nexposures;
+	public final double seconds;
+
+	/** Constructor
+	 * @param file       the application file
+	 * @param nexposures number of exposures, 0 or less to use seconds, or the application's own number if both are
+	 * @param seconds    length of the run, seconds, 0 or less to use nexposures
+	 */
+	public Request(File file, int nexposures, double seconds) {
+	    this.file       = file;
+	    this.nexposures = nexposures;
+	    this.seconds    = seconds;
+	}
+    }
+
+    /** A run as planned. Times are seconds from the start of the plan. */
+    public static final class Step {
+
+	public final Request request;
+	public final AppFile app;
+	public final String  error;
+	public final double  cycleTime;
+	public final int     bytesPerImage;
+	public final long    nexposures;
+	public final double  start;
+	public final double  duration;
+	public final long    bytes;
+	public final long    totalBytes;
+
+	Step(Request request, AppFile app, String error, double cycleTime, int bytesPerImage, long nexposures,
+	     double start, double duration, long bytes, long totalBytes) {
+	    this.request       = request;
+	    this.app           = app;
+	    this.error         = error;
+	    this.cycleTime     = cycleTime;
+	    this.bytesPerImage = bytesPerImage;
+	    this.nexposures    = nexposures;
+	    this.start         = start;
+	    this.duration      = duration;
+	    this.bytes         = bytes;
+	    this.totalBytes    = totalBytes;
+	}
+
+	public double getEnd() {
+	    return start + duration;
+	}
+
+	/** Bytes per second while the run is exposing */
+	public double getRate() {
+	    return cycleTime > 0 ? bytesPerImage/cycleTime : 0.;
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Plans runs one after another
+     * @param requests  the runs, in order
+     * @param usedBytes bytes already on the disk at the start
+     */
+    public List<Step> plan(List<Request> requests, long usedBytes) throws IOException {
+
+	List<File> files = new ArrayList<File>();
+	for(Request request : requests)
+	    files.add(request.file);
+	Map<File,Object> apps = read(files);
+
+	double overhead;
+	synchronized(this){
+	    overhead = _overhead;
+	}
+
+	List<Step> steps = new ArrayList<Step>();
+	double time  = 0.;
+	long   total = usedBytes;
+	for(Request request : requests){
+	    Object result = apps.get(request.file);
+	    if(!(result instanceof AppFile)){
+		steps.add(new Step(request, null, String.valueOf(result), 0., 0, 0, time, 0., 0, total));
+		continue;
+	    }
+	    AppFile app = (AppFile)result;
+	    TimingModel.Timing timing;
+	    int bytesPerImage;
+	    try {
+		timing        = TimingModel.timing(app.getSetup());
+		bytesPerImage = TimingModel.nbytesPerImage(app.getSetup());
+	    }
+	    catch(Error e){
+		// TimingModel throws Errors for templates it does not know
+		steps.add(new Step(request, app, "timing could not be worked out: " + (e.getMessage() != null ? e.getMessage() : e.toString()),
+				   0., 0, 0, time, 0., 0, total));
+		continue;
+	    }
+
+	    long nexposures = AppBuilder.runLength(app, timing.cycleTime, request.nexposures, request.seconds);
+	    String error = null;
+	    if(nexposures <= 0)
+		error = "no run length given and the application has no limit to its exposures";
+	    else if(nexposures > AppBuilder.MAX_EXPOSURES)
+		error = "number of exposures = " + nexposures + " is more than the maximum of " + AppBuilder.MAX_EXPOSURES;
+	    if(error != null){
+		steps.add(new Step(request, app, error, timing.cycleTime, bytesPerImage, 0, time, 0., 0, total));
+		continue;
+	    }
+
+	    double duration = nexposures*timing.cycleTime + overhead;
+	    long   bytes    = nexposures*bytesPerImage;
+	    total += bytes;
+	    steps.add(new Step(request, app, null, timing.cycleTime, bytesPerImage, nexposures, time, duration, bytes, total));
+	    time  += duration;
+	}
+	return steps;
+    }
+
+    /** Reads application files in parallel, those unchanged since they were
+     * last read coming from the cache. Returns a map from each file to its
+     * AppFile, or to a String saying why it could not be read.
+     */
+    public Map<File,Object> read(List<File> files) throws IOException {
+
+	Map<File,Object> result = new LinkedHashMap<File,Object>();
+	Map<File,Future<AppFile>> pending = new LinkedHashMap<File,Future<AppFile>>();
+	ExecutorService executor = null;
+	try {
+	    for(final File file : files){
+		if(result.containsKey(file) || pending.containsKey(file)) continue;
+		AppFile app = _cache.get(_key(file));
+		if(app != null && app.isCurrent()){
+		    result.put(file, app);
+		    continue;
+		}
+		if(executor == null)
+		    executor = Executors.newFixedThreadPool(_threads());
+		pending.put(file, executor.submit(new Callable<AppFile>() {
+			public AppFile call() throws Exception {
+			    AppFile app = AppFile.read(file, _templates);
+			    _cache.put(_key(file), app);
+			    return app;
+			}
+		    }));
+	    }
+	    for(Map.Entry<File,Future<AppFile>> entry : pending.entrySet()){
+		try {
+		    result.put(entry.getKey(), entry.getValue().get());
+		}
+		catch(ExecutionException e){
+		    result.put(entry.getKey(), e.getCause().getMessage() != null ? e.getCause().getMessage() : e.getCause().toString());
+		}
+		catch(InterruptedException e){
+		    Thread.currentThread().interrupt();
+		    throw new IOException("Interrupted reading application files");
+		}
+	    }
+	}
+	finally {
+	    if(executor != null) executor.shutdownNow();
+	}
+	return result;
+    }
+
+    /** Loads the cache from a file written by saveCache(); a missing file is ignored */
+    public void loadCache(File file) throws IOException {
+	for(AppFile app : AppFile.readCache(file))
+	    _cache.put(_key(app.getFile()), app);
+    }
+
+    /** Saves the cache to a file. See AppFile.writeCache() */
+    public void saveCache(File file) throws IOException {
+	AppFile.writeCache(file, _cache.values());
+    }
+
+    // Files are cached under their absolute path
+    private static String _key(File file) {
+	return file.getAbsolutePath();
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Reads a plan: one run per line, the application file, relative to the
+     * plan's directory if not absolute, optionally followed by the number of
+     * exposures or a length of time ending in s, m or h. Blank lines and
+     * anything after # are ignored.
+     */
+    public static List<Request> readPlan(File plan) throws IOException {
+	List<Request> requests = new ArrayList<Request>();
+	BufferedReader reader = new BufferedReader(new FileReader(plan));
+	try {
+	    String line;
+	    int nline = 0;
+	    while((line = reader.readLine()) != null){
+		nline++;
+		int hash = line.indexOf('#');
+		if(hash >= 0) line = line.substring(0, hash);
+		String[] fields = line.trim().split("\\s+");
+		if(fields[0].length() == 0) continue;
+		if(fields.length > 2)
+		    throw new IOException(plan + ", line " + nline + ": expected an application file and at most one run length");
+
+		File file = new File(fields[0]);
+		if(!file.isAbsolute()) file = new File(plan.getAbsoluteFile().getParentFile(), fields[0]);
+
+		try {
+		    requests.add(request(file, fields.length == 2 ? fields[1] : null));
+		}
+		catch(IllegalArgumentException e){
+		    throw new IOException(plan + ", line " + nline + ": " + e.getMessage());
+		}
+	    }
+	}
+	finally {
+	    reader.close();
+	}
+	return requests;
+    }
+
+    /** A request for an application with a run length as written in a plan: a number of
+     * exposures, or a time in seconds, minutes or hours ending in s, m or h. Throws an
+     * IllegalArgumentException if the run length is not understood.
+     * @param file   the application file
+     * @param length the run length, null for the application's own number of exposures
+     */
+    public static Request request(File file, String length) {
+	int nexposures = 0;
+	double seconds = 0.;
+	if(length != null){
+	    String value = length.trim().toLowerCase();
+	    char unit = value.length() > 0 ? value.charAt(value.length()-1) : ' ';
+	    try {
+		if(value.length() > 1 && (unit == 's' || unit == 'm' || unit == 'h')){
+		    double number = Double.parseDouble(value.substring(0, value.length()-1));
+		    seconds = unit == 'h' ? 3600.*number : unit == 'm' ? 60.*number : number;
+		}else{
+		    nexposures = Integer.parseInt(value);
+		}
+	    }
+	    catch(NumberFormatException e){
+		throw new IllegalArgumentException("run length = \"" + length + "\" not understood");
+	    }
+	}
+	return new Request(file, nexposures, seconds);
+    }
+
+    /** Prints a plan as a timeline
+     * @param out       where to print
+     * @param steps     the plan
+     * @param start     clock time of the start, seconds after midnight
+     * @param end       clock time by which the runs must finish, seconds after midnight, or negative if none
+     * @param diskBytes capacity of the disk, or 0 or less if unknown
+     */
+    public static void print(PrintStream out, List<Step> steps, double start, double end, long diskBytes) {
+
+	if(end >= 0 && end <= start) end += 86400.;
+
+	out.printf("%-3s %-8s %-8s %-28s %-24s %8s %7s %8s %8s %9s %6s  %s%n",
+		   "#", "Start", "End", "Application", "Target", "Cycle(s)", "MB/s", "Frames", "MB", "Total MB", "Disk%", "Notes");
+
+	int n = 0;
+	boolean errors = false;
+	Step full = null;
+	double fullTime = -1;
+	for(Step step : steps){
+	    n++;
+	    String name   = step.request.file.getName();
+	    String target = step.app != null ? step.app.getTarget() : "";
+	    if(step.error != null){
+		errors = true;
+		out.printf("%-3d %-8s %-8s %-28s %-24s  ERROR: %s%n", n, _clock(start + step.start), "", _cut(name, 28), _cut(target, 24), step.error);
+		continue;
+	    }
+	    StringBuffer notes = new StringBuffer();
+	    if(diskBytes > 0 && step.totalBytes > diskBytes){
+		notes.append("DISK FULL ");
+		if(full == null){
+		    full = step;
+		    long before = step.totalBytes - step.bytes;
+		    fullTime = step.start + (before >= diskBytes ? 0. : (diskBytes - before)/step.getRate());
+		}
+	    }
+	    if(end >= 0 && start + step.getEnd() > end)
+		notes.append("AFTER END ");
+
+	    out.printf("%-3d %-8s %-8s %-28s %-24s %8.4f %7.3f %8d %8.1f %9.1f %6s  %s%n", n,
+		       _clock(start + step.start), _clock(start + step.getEnd()), _cut(name, 28), _cut(target, 24),
+		       step.cycleTime, step.getRate()/DataRateBudget.MEGABYTE, step.nexposures, step.bytes/DataRateBudget.MEGABYTE,
+		       step.totalBytes/DataRateBudget.MEGABYTE, diskBytes > 0 ? String.format("%.1f", 100.*step.totalBytes/diskBytes) : "",
+		       notes.toString().trim());
+	}
+
+	if(steps.isEmpty()) return;
+	Step last = steps.get(steps.size()-1);
+	double finish = last.getEnd();
+	long written  = last.totalBytes - (steps.get(0).totalBytes - steps.get(0).bytes);
+	out.println();
+	out.printf("Runs finish at %s after %s, writing %.1f MB%n", _clock(start + finish), _duration(finish), written/DataRateBudget.MEGABYTE);
+	if(end >= 0){
+	    double spare = end - start - finish;
+	    out.println(spare >= 0 ? "Time to spare before " + _clock(end) + ": " + _duration(spare) :
+			"Runs overrun " + _clock(end) + " by " + _duration(-spare));
+	}
+	if(diskBytes > 0){
+	    if(full != null)
+		out.println("Disk fills at " + _clock(start + fullTime) + ", during run " + (steps.indexOf(full)+1));
+	    else
+		out.printf("Disk %.1f%% full at the end, %.1f MB to spare%n", 100.*last.totalBytes/diskBytes,
+			   (diskBytes - last.totalBytes)/DataRateBudget.MEGABYTE);
+	}
+	if(errors)
+	    out.println("Some runs could not be planned; see ERROR above");
+    }
+
+    // Clock time from seconds after midnight
+    private static String _clock(double seconds) {
+	long s = Math.round(seconds) % 86400;
+	return String.format("%02d:%02d:%02d", s/3600, (s/60) % 60, s % 60);
+    }
+
+    // Length of time from seconds
+    private static String _duration(double seconds) {
+	long s = Math.round(seconds);
+	return String.format("%dh%02dm%02ds", s/3600, (s/60) % 60, s % 60);
+    }
+
+    private static String _cut(String value, int width) {
+	return value.length() > width ? value.substring(0, width-1) + "~" : value;
+    }
+
+    private synchronized int _threads() {
+	return _nthreads > 0 ? _nthreads : Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    // Seconds after midnight from HH:MM or HH:MM:SS
+    private static double _parseClock(String value) {
+	String[] fields = value.split(":");
+	if(fields.length < 2 || fields.length > 3)
+	    throw new IllegalArgumentException("time = \"" + value + "\" should be HH:MM or HH:MM:SS");
+	double seconds = 3600.*Integer.parseInt(fields[0]) + 60.*Integer.parseInt(fields[1]);
+	if(fields.length == 3) seconds += Double.parseDouble(fields[2]);
+	return seconds;
+    }
+
+    /** Prints the timeline of a plan, e.g.
+     * <pre>
+     * java warwick.marsh.ultracam.udriver.NightPlanner -start 20:30 -end 05:45 -disk 20000 tonight.plan
+     * </pre>
+     * Options: -config file (default udriver.conf, for the templates), -start HH:MM (default now),
+     * -end HH:MM, -disk MB (capacity), -used MB (already used), -overhead seconds (between runs,
+     * default 60), -cache file (application cache, kept between plans) and -threads n (to read
+     * applications, default one per processor).
+     */
+    public static void main(String[] args) {
+	try {
+	    CommandLine command = new CommandLine(args, 0, new String[] {"-cache", "-start", "-end", "-overhead", "-disk", "-used"}, new String[0]);
+	    if(command.arguments.size() != 1){
+		System.out.println("usage: NightPlanner [-config file] [-start HH:MM] [-end HH:MM] [-disk MB] [-used MB] [-overhead s] [-cache file] [-threads n] plan");
+		System.exit(1);
+	    }
+
+	    File   config   = new File(command.config);
+	    File   cache    = command.value("-cache") != null ? new File(command.value("-cache")) : null;
+	    double start    = (System.currentTimeMillis() % 86400000L)/1000. + java.util.TimeZone.getDefault().getOffset(System.currentTimeMillis())/1000.;
+	    double end      = -1.;
+	    double overhead = 60.;
+	    long   disk     = 0, used = 0;
+	    File   plan     = new File(command.arguments.get(0));
+
+	    if(command.value("-start") != null)
+		start = _parseClock(command.value("-start"));
+	    if(command.value("-end") != null)
+		end = _parseClock(command.value("-end"));
+	    if(command.value("-overhead") != null)
+		overhead = Double.parseDouble(command.value("-overhead"));
+	    if(command.value("-disk") != null)
+		disk = (long)(Double.parseDouble(command.value("-disk"))*DataRateBudget.MEGABYTE);
+	    if(command.value("-used") != null)
+		used = (long)(Double.parseDouble(command.value("-used"))*DataRateBudget.MEGABYTE);
+
+	    NightPlanner planner = new NightPlanner(Templates.load(config));
+	    planner.setOverhead(overhead);
+	    planner.setThreads(command.nthreads);
+	    if(cache != null) planner.loadCache(cache);
+
+	    long time = System.nanoTime();
+	    List<Step> steps = planner.plan(readPlan(plan), used);
+	    print(System.out, steps, start % 86400., end, disk);
+	    if(cache != null) planner.saveCache(cache);
+	    System.err.println(steps.size() + " runs planned in " + (System.nanoTime()-time)/1000000L + " ms");
+	}
+	catch(Exception e){
+	    System.out.println(e);
+	    System.exit(1);
+	}
+    }
+
+}
@@ -0,0 +1,649 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** A small HTTP/1.1 server built on a single NIO Selector running in its own
+ * thread. It serves many clients at once without a thread each, keeps
+ * connections alive between requests, and drops any client that does not
+ * take its reply within the write timeout, or that sits idle for too long,
+ * so that one stalled client cannot hold up the others. Requests are passed
+ * to a Handler on the server thread, which must therefore answer quickly and
+ * never block. A Handler that has nothing to say yet can instead park the
+ * request, with Request.park(), for a long poll; parked requests are put to
+ * the Handler again after wakeup() is called, and once more when they time
+ * out. Clients that end lines with LF alone, or send a bare "GET /" with
+ * no version, as simple rtplot clients may, are answered as HTTP/1.0.
+ *
+ * It is used for the rtplot server, which several rtplot displays poll at
+ * frame rate, and for the control interface, whose requests are parked
+ * while the GUI thread carries them out.
+ */
+
+public class NioHttpServer {
+
+    /** Answers requests. Called on the server thread. */
+    public interface Handler {
+
+	/** Returns the reply to a request, null for a 404, or the value of
+	 * request.park() to wait.
+	 */
+	public Response handle(Request request) throws Exception;
+    }
+
+    // Largest request head plus body accepted, bytes
+    public static final int MAX_REQUEST = 64*1024;
+
+    private final String  _name;
+    private final Handler _handler;
+    private final InetSocketAddress _address;
+    private final long    _writeTimeout;
+    private final long    _idleTimeout;
+
+    private Selector            _selector;
+    private ServerSocketChannel _serverChannel;
+    private Thread              _thread;
+    private volatile boolean    _running = false;
+    private final AtomicBoolean _woken   = new AtomicBoolean(false);
+
+    // Returned by Request.park()
+    private static final Response PARKED = new Response(0, null, new byte[0]);
+
+    /** Constructor
+     * @param name         name for the server thread and messages
+     * @param host         address to bind to; null or blank for all interfaces
+     * @param port         port to listen on; 0 to have the system choose one
+     * @param handler      answers requests
+     * @param writeTimeout milliseconds a client may take to accept a reply before it is dropped
+     * @param idleTimeout  milliseconds a kept-alive connection may be idle before it is closed
+     */
+    public NioHttpServer(String name, String host, int port, Handler handler, long writeTimeout, long idleTimeout) {
+	_name         = name;
+	_handler      = handler;
+	_address      = (host == null || host.trim().length() == 0) ? new InetSocketAddress(port) : new InetSocketAddress(host.trim(), port);
+	_writeTimeout = 1000000L*writeTimeout;
+	_idleTimeout  = 1000000L*idleTimeout;
+    }
+
+    /** Binds to the port and starts the server thread */
+    public synchronized void start() throws IOException {
+	if(_running)
+	    throw new IOException(_name + " is already running");
+
+	_selector      = Selector.open();
+	_serverChannel = ServerSocketChannel.open();
+	try {
+	    _serverChannel.socket().setReuseAddress(true);
+	    _serverChannel.socket().bind(_address, 50);
+	    _serverChannel.configureBlocking(false);
+	    _serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+	}
+	catch(IOException e){
+	    _serverChannel.close();
+	    _selector.close();
+	    throw new IOException(_name + " could not listen on " + _address + ": " + e.getMessage());
+	}
+
+	_running = true;
+	_thread  = new Thread(new Runnable() {
+		public void run() {
+		    _serve();
+		}
+	    }, _name);
+	_thread.setDaemon(true);
+	_thread.start();
+    }
+
+    /** Stops the server, closing all connections, and waits for its thread to finish */
+    public void stop() {
+	Thread thread;
+	synchronized(this){
+	    if(!_running) return;
+	    _running = false;
+	    thread   = _thread;
+	    _selector.wakeup();
+	}
+	try {
+	    thread.join(2000);
+	}
+	catch(InterruptedException e){
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    /** Returns true if the server is running */
+    public boolean isRunning() {
+	return _running;
+    }
+
+    /** The port listened on */
+    public int getPort() {
+	return _serverChannel.socket().getLocalPort();
+    }
+
+    /** Has parked requests put to the Handler again. Can be called from any thread. */
+    public void wakeup() {
+	_woken.set(true);
+	Selector selector = _selector;
+	if(selector != null) selector.wakeup();
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    // The selector loop
+    private void _serve() {
+
+	long tick = Math.max(10, Math.min(250, Math.min(_writeTimeout, _idleTimeout)/4000000L));
+	try {
+	    while(_running){
+		_selector.select(tick);
+
+		Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+		while(it.hasNext()){
+		    SelectionKey key = it.next();
+		    it.remove();
+		    try {
+			if(!key.isValid()) continue;
+
+			if(key.isAcceptable()){
+			    _accept();
+			}else{
+			    Connection connection = (Connection)key.attachment();
+			    if(key.isWritable())
+				connection.write();
+			    if(key.isValid() && key.isReadable())
+				connection.read();
+			}
+		    }
+		    catch(Exception e){
+			if(key.attachment() != null)
+			    ((Connection)key.attachment()).close();
+		    }
+		}
+
+		_resume(_woken.getAndSet(false), System.nanoTime());
+		_expire(System.nanoTime());
+	    }
+	}
+	catch(Exception e){
+	    System.out.println(_name + " stopped after error: " + e);
+	}
+	finally {
+	    _running = false;
+	    for(SelectionKey key : _selector.keys()){
+		if(key.attachment() != null)
+		    ((Connection)key.attachment()).close();
+	    }
+	    try { _serverChannel.close(); } catch(IOException e){}
+	    try { _selector.close();      } catch(IOException e){}
+	}
+    }
+
+    private void _accept() throws IOException {
+	SocketChannel channel = _serverChannel.accept();
+	if(channel == null) return;
+	channel.configureBlocking(false);
+	channel.socket().setTcpNoDelay(true);
+	Connection connection = new Connection(channel);
+	connection.key = channel.register(_selector, SelectionKey.OP_READ, connection);
+    }
+
+    // Puts parked requests to the handler again if woken or timed out
+    private void _resume(boolean woken, long now) {
+	for(SelectionKey key : _selector.keys()){
+	    Connection connection = (Connection)key.attachment();
+	    if(connection == null || connection.parked == null) continue;
+	    if(woken || now - connection.parked.deadline >= 0){
+		try {
+		    connection.resume();
+		}
+		catch(Exception e){
+		    connection.close();
+		}
+	    }
+	}
+    }
+
+    // Closes connections that have stalled on a write or been idle too long
+    private void _expire(long now) {
+	for(SelectionKey key : _selector.keys()){
+	    Connection connection = (Connection)key.attachment();
+	    if(connection == null) continue;
+	    if(connection.output != null){
+		if(now - connection.writeStart > _writeTimeout){
+		    System.out.println(_name + ": dropped client " + connection.remote() + " after write timeout");
+		    connection.close();
+		}
+	    }else if(connection.parked == null && now - connection.lastActive > _idleTimeout){
+		connection.close();
+	    }
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** The state of one client connection */
+    private final class Connection {
+
+	final SocketChannel channel;
+	SelectionKey key;
+
+	ByteBuffer   input = ByteBuffer.allocate(2048);
+	ByteBuffer[] output;
+	Request      parked;
+	boolean      closeAfterWrite;
+	long         writeStart;
+	long         lastActive = System.nanoTime();
+
+	Connection(SocketChannel channel) {
+	    this.channel = channel;
+	}
+
+	String remote() {
+	    try {
+		return String.valueOf(channel.getRemoteAddress());
+	    }
+	    catch(IOException e){
+		return "?";
+	    }
+	}
+
+	void read() throws IOException {
+	    if(!input.hasRemaining()){
+		if(input.capacity() >= MAX_REQUEST){
+		    _reply(_error(413, "Request too large"), true);
+		    return;
+		}
+		ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_REQUEST, 2*input.capacity()));
+		input.flip();
+		bigger.put(input);
+		input = bigger;
+	    }
+	    int n = channel.read(input);
+	    if(n < 0){
+		close();
+		return;
+	    }
+	    lastActive = System.nanoTime();
+	    _process();
+	}
+
+	void write() throws IOException {
+	    channel.write(output);
+	    if(output[output.length-1].hasRemaining()) return;
+
+	    output     = null;
+	    lastActive = System.nanoTime();
+	    if(closeAfterWrite){
+		close();
+	    }else{
+		key.interestOps(SelectionKey.OP_READ);
+		_process();
+	    }
+	}
+
+	// Answers a parked request if the handler is now ready
+	void resume() throws IOException {
+	    Request request = parked;
+	    Response response = _answer(request);
+	    if(response == PARKED){
+		if(!request.isTimedOut()) return;
+		response = _error(503, "Timed out waiting");
+	    }
+	    parked = null;
+	    _reply(response, !request.isKeepAlive());
+	    _process();
+	}
+
+	void close() {
+	    output = null;
+	    parked = null;
+	    if(key != null) key.cancel();
+	    try {
+		channel.close();
+	    }
+	    catch(IOException e){}
+	}
+
+	// Answers as many complete requests as are buffered, one at a time
+	private void _process() throws IOException {
+	    while(output == null && parked == null && channel.isOpen()){
+		int start = _bodyStart();
+		if(start < 0) return;
+
+		Request request;
+		try {
+		    request = new Request(new String(input.array(), 0, start, "ISO-8859-1"));
+		}
+		catch(IllegalArgumentException e){
+		    _reply(_error(400, e.getMessage()), true);
+		    return;
+		}
+
+		int length = 0;
+		String contentLength = request.getHeader("Content-Length");
+		if(contentLength != null){
+		    try {
+			length = Integer.parseInt(contentLength.trim());
+		    }
+		    catch(NumberFormatException e){
+			length = -1;
+		    }
+		    if(length < 0 || start + length > MAX_REQUEST){
+			_reply(_error(length < 0 ? 400 : 413, "Bad Content-Length"), true);
+			return;
+		    }
+		}
+		if(input.position() < start + length) return;
+
+		request.body = new byte[length];
+		System.arraycopy(input.array(), start, request.body, 0, length);
+		input.flip();
+		input.position(start + length);
+		input.compact();
+
+		Response response = _answer(request);
+		if(response == PARKED){
+		    parked = request;
+		    return;
+		}
+		_reply(response, !request.isKeepAlive());
+	    }
+	}
+
+	private Response _answer(Request request) {
+	    try {
+		Response response = _handler.handle(request);
+		return response != null ? response : _error(404, "Not found: " + request.getPath());
+	    }
+	    catch(Exception e){
+		System.out.println(_name + ": failed to answer " + request.getTarget() + ": " + e);
+		return _error(500, e.toString());
+	    }
+	}
+
+	// Position just after the blank line ending the request head, or -1 if not yet received.
+	// Lines may end in CRLF or LF alone; a request line with no HTTP version has no headers
+	// and so ends the head itself, as from the simple clients which the old server answered
+	private int _bodyStart() {
+	    byte[] buff = input.array();
+	    int lineStart = 0;
+	    for(int i=0; i<input.position(); i++){
+		if(buff[i] != '\n') continue;
+		int lineEnd = i > lineStart && buff[i-1] == '\r' ? i-1 : i;
+		if(lineStart == 0 && lineEnd > 0 && !new String(buff, 0, lineEnd).contains(" HTTP/"))
+		    return i+1;
+		if(lineEnd == lineStart && lineStart > 0)
+		    return i+1;
+		lineStart = i+1;
+	    }
+	    return -1;
+	}
+
+	private void _reply(Response response, boolean close) throws IOException {
+	    output          = response.buffers(close);
+	    closeAfterWrite = close;
+	    writeStart      = System.nanoTime();
+	    channel.write(output);
+	    if(output[output.length-1].hasRemaining()){
+		// Stop reading until the client has taken the reply
+		key.interestOps(SelectionKey.OP_WRITE);
+	    }else{
+		output = null;
+		if(close) close();
+	    }
+	}
+    }
+
+    private static Response _error(int status, String message) {
+	try {
+	    return new Response(status, "text/plain", (message + "\r\n").getBytes("UTF-8"));
+	}
+	catch(UnsupportedEncodingException e){
+	    return new Response(status, "text/plain", new byte[0]);
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** A request received by the server */
+    public static class Request {
+
+	private final String _method;
+	private final String _target;
+	private final String _version;
+	private final String _path;
+	private final String _query;
+	private final Map<String,String> _headers = new HashMap<String,String>();
+	private Map<String,String> _parameters = null;
+
+	byte[]  body;
+	long    deadline;
+	boolean waiting = false;
+	Object  attachment = null;
+
+	Request(String head) {
+	    String[] lines = head.split("\r?\n");
+	    String[] first = lines[0].trim().split(" +");
+	    if(first.length < 2 || first.length > 3 || (first.length == 3 && !first[2].startsWith("HTTP/")))
+		throw new IllegalArgumentException("Bad request line: " + lines[0]);
+	    _method  = first[0];
+	    _target  = first[1];
+
+	    // With no version, as from the oldest clients, the connection is closed after the reply
+	    _version = first.length == 3 ? first[2] : "HTTP/1.0";
+
+	    int q    = _target.indexOf('?');
+	    _path    = q < 0 ? _target : _target.substring(0, q);
+	    _query   = q < 0 ? null    : _target.substring(q+1);
+
+	    for(int i=1; i<lines.length; i++){
+		int colon = lines[i].indexOf(':');
+		if(colon > 0)
+		    _headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon+1).trim());
+	    }
+	}
+
+	public String getMethod() {
+	    return _method;
+	}
+
+	/** The request target, path plus query */
+	public String getTarget() {
+	    return _target;
+	}
+
+	public String getPath() {
+	    return _path;
+	}
+
+	/** The query string, or null if there is none */
+	public String getQuery() {
+	    return _query;
+	}
+
+	/** Returns a header value, or null if absent. Names are case-insensitive. */
+	public String getHeader(String name) {
+	    return _headers.get(name.toLowerCase());
+	}
+
+	/** Returns a parameter from the query string, or null if absent */
+	public String getParameter(String name) {
+	    if(_parameters == null){
+		_parameters = new HashMap<String,String>();
+		if(_query != null){
+		    for(String pair : _query.split("&")){
+			int eq = pair.indexOf('=');
+			try {
+			    if(eq < 0)
+				_parameters.put(URLDecoder.decode(pair, "UTF-8"), "");
+			    else
+				_parameters.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq+1), "UTF-8"));
+			}
+			catch(Exception e){}
+		    }
+		}
+	    }
+	    return _parameters.get(name);
+	}
+
+	/** The request body, empty if there was none */
+	public byte[] getBody() {
+	    return body;
+	}
+
+	/** Parks the request until the server is woken or 'timeout' milliseconds
+	 * have passed since it was first parked; return the value from a Handler.
+	 */
+	public Response park(long timeout) {
+	    if(!waiting){
+		waiting  = true;
+		deadline = System.nanoTime() + 1000000L*timeout;
+	    }
+	    return PARKED;
+	}
+
+	/** An object a Handler keeps with a request while it is parked, e.g. work
+	 * being done for it on another thread; null until set.
+	 */
+	public Object getAttachment() {
+	    return attachment;
+	}
+
+	public void setAttachment(Object attachment) {
+	    this.attachment = attachment;
+	}
+
+	/** True if the request was parked and its time is up */
+	public boolean isTimedOut() {
+	    return waiting && System.nanoTime() - deadline >= 0;
+	}
+
+	/** True if the connection should be kept open after the reply */
+	public boolean isKeepAlive() {
+	    String connection = getHeader("Connection");
+	    if(_version.equals("HTTP/1.0"))
+		return connection != null && connection.equalsIgnoreCase("keep-alive");
+	    return connection == null || !connection.equalsIgnoreCase("close");
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** A reply to a request. Either built from a status, content type and body,
+     * in which case the server adds the headers, or complete, headers and all,
+     * as made by render(). A complete reply can be sent any number of times,
+     * so it can be rendered once and shared.
+     */
+    public static class Response {
+
+	private final int    _status;
+	private final String _contentType;
+	private final byte[] _body;
+	private final Map<String,String> _headers = new LinkedHashMap<String,String>();
+	private final ByteBuffer _rendered;
+
+	public Response(int status, String contentType, byte[] body) {
+	    _status      = status;
+	    _contentType = contentType;
+	    _body        = body;
+	    _rendered    = null;
+	}
+
+	private Response(ByteBuffer rendered) {
+	    _status      = 0;
+	    _contentType = null;
+	    _body        = null;
+	    _rendered    = rendered.asReadOnlyBuffer();
+	}
+
+	/** Wraps a reply made by render() */
+	public static Response rendered(ByteBuffer rendered) {
+	    return new Response(rendered);
+	}
+
+	/** Adds a header */
+	public Response setHeader(String name, String value) {
+	    _headers.put(name, value);
+	    return this;
+	}
+
+	// The buffers to write to send the reply
+	ByteBuffer[] buffers(boolean close) {
+	    if(_rendered != null)
+		return new ByteBuffer[] {_rendered.duplicate()};
+	    return new ByteBuffer[] {_head(_status, _contentType, _headers, _body.length, close), ByteBuffer.wrap(_body)};
+	}
+
+	/** Renders a complete reply so that it can be sent many times without
+	 * further work. The connection is left open after it is sent unless the
+	 * client asked otherwise.
+	 */
+	public static ByteBuffer render(int status, String contentType, Map<String,String> headers, byte[] body) {
+	    ByteBuffer head   = _head(status, contentType, headers, body.length, false);
+	    ByteBuffer buffer = ByteBuffer.allocate(head.remaining() + body.length);
+	    buffer.put(head).put(body).flip();
+	    return buffer.asReadOnlyBuffer();
+	}
+
+	private static ByteBuffer _head(int status, String contentType, Map<String,String> headers, int length, boolean close) {
+	    StringBuilder head = new StringBuilder(128);
+	    head.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+	    if(contentType != null)
+		head.append("Content-Type: ").append(contentType).append("\r\n");
+	    if(status != 204 && status != 304)
+		head.append("Content-Length: ").append(length).append("\r\n");
+	    if(headers != null){
+		for(Map.Entry<String,String> header : headers.entrySet())
+		    head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+	    }
+	    if(close)
+		head.append("Connection: close\r\n");
+	    head.append("\r\n");
+	    try {
+		return ByteBuffer.wrap(head.toString().getBytes("ISO-8859-1"));
+	    }
+	    catch(UnsupportedEncodingException e){
+		throw new Error(e);
+	    }
+	}
+    }
+
+    /** The reason phrase for an HTTP status code */
+    public static String reason(int status) {
+	switch(status){
+	case 200: return "OK";
+	case 204: return "No Content";
+	case 304: return "Not Modified";
+	case 400: return "Bad Request";
+	case 403: return "Forbidden";
+	case 404: return "Not Found";
+	case 405: return "Method Not Allowed";
+	case 409: return "Conflict";
+	case 413: return "Request Entity Too Large";
+	case 415: return "Unsupported Media Type";
+	case 500: return "Internal Server Error";
+	case 503: return "Service Unavailable";
+	default:  return "Unknown";
+	}
+    }
+
+}
@@ -0,0 +1,35 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+/** The policy Udriver uses to poll the data server for the end of a run
+ * with a finite number of exposures. It estimates the length of the run
+ * to avoid polling the server more than necessary. Kept separate so that
+ * LoadTest can measure the traffic it generates.
+ */
+
+public final class PollPolicy {
+
+    private PollPolicy() {}
+
+    /** Interval between polls, milliseconds
+     * @param timePerImage cycle time, seconds
+     */
+    public static int interval(double timePerImage) {
+	return Math.max(1000, (int)(1000*timePerImage));
+    }
+
+    /** Delay before the first poll, milliseconds. Polling starts a minute before
+     * the run is expected to end.
+     * @param nexposures   number of exposures in the run
+     * @param timePerImage cycle time, seconds
+     */
+    public static int initialDelay(int nexposures, double timePerImage) {
+	return Math.max(2000, (int)(1000*(nexposures*timePerImage-60.)));
+    }
+
+}
@@ -0,0 +1,221 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.parsers.DocumentBuilder;
+
+/** Reads replies from the servers as bytes into a buffer that is kept from one
+ * reply to the next, and hands them straight to the XML parser, which works out
+ * the encoding itself, or decodes them with an explicit charset for plain
+ * text. The Content-Length header, if sent, is used to size the read and to
+ * detect truncated replies. Failures come back as ReplyExceptions rather than
+ * as text that later fails to parse.
+ *
+ * Each thread has its own ReplyReader, obtained with get(), as the buffer
+ * is only valid until the next reply is read.
+ */
+
+public class ReplyReader {
+
+    // Charset for text replies which do not declare one
+    public static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+    // Largest reply accepted, and largest buffer kept between replies
+    public static final int MAX_REPLY  = 16*1024*1024;
+    public static final int MAX_POOLED = 64*1024;
+
+    private static final ThreadLocal<ReplyReader> _readers = new ThreadLocal<ReplyReader>() {
+	protected ReplyReader initialValue() {
+	    return new ReplyReader();
+	}
+    };
+
+    private byte[] _buffer = new byte[8192];
+    private int    _length = 0;
+
+    private ReplyReader() {}
+
+    /** Returns the ReplyReader belonging to the current thread */
+    public static ReplyReader get() {
+	return _readers.get();
+    }
+
+    /** Number of bytes in the last reply read */
+    public int length() {
+	return _length;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Reads a reply and parses it as XML.
+     * @param connection the connection to read the reply from
+     * @param builder    the parser; it is used while synchronised on it
+     * @throws ReplyException if the reply could not be read
+     * @throws SAXException if it could not be parsed, in which case it is printed
+     * to System.out.
+     */
+    public Document readDocument(URLConnection connection, DocumentBuilder builder) throws IOException, SAXException {
+
+	Charset charset = _read(connection);
+
+	// Skip leading white space which upsets the parser
+	int offset = 0;
+	while(offset < _length && _buffer[offset] <= ' ')
+	    offset++;
+
+	InputSource source = new InputSource(new ByteArrayInputStream(_buffer, offset, _length-offset));
+	if(charset != null)
+	    source.setEncoding(charset.name());
+
+	try {
+	    synchronized(builder){
+		return builder.parse(source);
+	    }
+	}
+	catch(SAXParseException e){
+	    System.out.println("XML start\n" + _decode(charset) + "\nXML end");
+	    throw e;
+	}
+    }
+
+    /** Reads a reply as text.
+     * @param connection the connection to read the reply from
+     * @param charset    charset to use if the reply does not declare one
+     * @throws ReplyException if the reply could not be read
+     */
+    public String readText(URLConnection connection, Charset charset) throws IOException {
+	Charset declared = _read(connection);
+	return _decode(declared != null ? declared : charset);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    // Reads the reply into the buffer, returning the charset declared by the server, if any
+    private Charset _read(URLConnection connection) throws IOException {
+
+	String url = connection.getURL().toString();
+	_length = 0;
+
+	if(connection instanceof HttpURLConnection){
+	    int code = ((HttpURLConnection)connection).getResponseCode();
+	    if(code >= 400)
+		throw new ReplyException(ReplyException.STATUS, url, "server replied with HTTP status " + code + " " +
+					 ((HttpURLConnection)connection).getResponseMessage(), null);
+	}
+
+	int contentLength = connection.getContentLength();
+	if(contentLength > MAX_REPLY)
+	    throw new ReplyException(ReplyException.TOO_LARGE, url, "reply of " + contentLength + " bytes is too large", null);
+
+	// Keep the buffer between replies unless a large one has bloated it
+	if(_buffer.length > MAX_POOLED)
+	    _buffer = new byte[MAX_POOLED];
+	if(contentLength > _buffer.length)
+	    _buffer = new byte[contentLength];
+
+	InputStream inputStream = connection.getInputStream();
+	try {
+	    int len;
+	    while((len = inputStream.read(_buffer, _length, _buffer.length-_length)) != -1){
+		_length += len;
+		if(_length == _buffer.length){
+		    if(_length == contentLength) break;
+		    if(_length >= MAX_REPLY)
+			throw new ReplyException(ReplyException.TOO_LARGE, url, "reply exceeds " + MAX_REPLY + " bytes", null);
+		    byte[] bigger = new byte[Math.min(MAX_REPLY, 2*_buffer.length)];
+		    System.arraycopy(_buffer, 0, bigger, 0, _length);
+		    _buffer = bigger;
+		}
+	    }
+	}
+	catch(ReplyException e){
+	    throw e;
+	}
+	catch(IOException e){
+	    throw new ReplyException(ReplyException.READ, url, "failed reading reply after " + _length + " bytes", e);
+	}
+	finally {
+	    inputStream.close();
+	}
+
+	if(contentLength >= 0 && _length < contentLength)
+	    throw new ReplyException(ReplyException.TRUNCATED, url, "reply truncated at " + _length + " of " +
+				     contentLength + " bytes", null);
+
+	return _charset(connection.getContentType());
+    }
+
+    // Extracts the charset from a Content-Type header
+    private static Charset _charset(String contentType) {
+	if(contentType == null) return null;
+	int index = contentType.toLowerCase().indexOf("charset=");
+	if(index < 0) return null;
+	String name = contentType.substring(index+8).trim();
+	int end = name.indexOf(';');
+	if(end >= 0) name = name.substring(0, end).trim();
+	if(name.startsWith("\"") && name.endsWith("\"") && name.length() > 1)
+	    name = name.substring(1, name.length()-1);
+	try {
+	    return Charset.forName(name);
+	}
+	catch(Exception e){
+	    return null;
+	}
+    }
+
+    private String _decode(Charset charset) {
+	return new String(_buffer, 0, _length, charset != null ? charset : DEFAULT_CHARSET);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Thrown when a reply from a server could not be read. The kind of failure
+     * is one of STATUS, TOO_LARGE, READ or TRUNCATED.
+     */
+    public static class ReplyException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int STATUS    = 1;
+	public static final int TOO_LARGE = 2;
+	public static final int READ      = 3;
+	public static final int TRUNCATED = 4;
+
+	private final int    _kind;
+	private final String _url;
+
+	public ReplyException(int kind, String url, String message, Throwable cause) {
+	    super(url + ": " + message);
+	    _kind = kind;
+	    _url  = url;
+	    if(cause != null) initCause(cause);
+	}
+
+	/** The kind of failure */
+	public int getKind() {
+	    return _kind;
+	}
+
+	/** The URL whose reply failed */
+	public String getUrl() {
+	    return _url;
+	}
+    }
+
+}
@@ -0,0 +1,90 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Serves the current windows to rtplot. The windows are published as
+ * WindowSnapshots, normally from the GUI thread whenever they change, and
+ * each request is answered with the reply pre-rendered in the latest one,
+ * so the server thread never reads the GUI.
+ *
+ * Every reply carries the version of the windows as its ETag. A request
+ * with If-None-Match naming the current version is answered with 304 Not
+ * Modified, unless it also has a query parameter 'wait' (seconds, at most
+ * MAX_WAIT), in which case the reply is held back until the windows change
+ * or the wait expires, so that rtplot can see edits at once without
+ * downloading the windows on every poll:
+ * <pre>
+ * GET /?wait=20
+ * If-None-Match: "version"
+ * </pre>
+ */
+
+public class RtplotServer {
+
+    // Longest wait for a change allowed, seconds
+    public static final int MAX_WAIT = 30;
+
+    private final AtomicReference<WindowSnapshot> _snapshot = new AtomicReference<WindowSnapshot>(WindowSnapshot.NONE);
+    private final NioHttpServer _server;
+
+    /** Constructor
+     * @param host         address to bind to; null or blank for all interfaces
+     * @param port         port to listen on
+     * @param writeTimeout milliseconds a client may take to accept a reply before it is dropped
+     */
+    public RtplotServer(String host, int port, long writeTimeout) {
+	_server = new NioHttpServer("rtplot server", host, port, new NioHttpServer.Handler() {
+		public NioHttpServer.Response handle(NioHttpServer.Request request) {
+		    if(!request.getMethod().equals("GET"))
+			return null;
+		    WindowSnapshot snapshot = _snapshot.get();
+		    if(!snapshot.matches(request.getHeader("If-None-Match")))
+			return snapshot.getResponse();
+
+		    String wait = request.getParameter("wait");
+		    if(wait != null && !request.isTimedOut()){
+			try {
+			    double secs = Math.min(MAX_WAIT, Double.parseDouble(wait));
+			    if(secs > 0)
+				return request.park((long)(1000*secs));
+			}
+			catch(NumberFormatException e){}
+		    }
+		    return snapshot.getNotModified();
+		}
+	    }, writeTimeout, 60000);
+    }
+
+    public void start() throws IOException {
+	_server.start();
+    }
+
+    public void stop() {
+	_server.stop();
+    }
+
+    public int getPort() {
+	return _server.getPort();
+    }
+
+    /** Publishes new windows. Returns true if they differ from those already published */
+    public synchronized boolean publish(WindowSnapshot snapshot) {
+	if(_snapshot.get().sameAs(snapshot)) return false;
+	_snapshot.set(snapshot);
+	_server.wakeup();
+	return true;
+    }
+
+    /** The windows currently being served */
+    public WindowSnapshot getSnapshot() {
+	return _snapshot.get();
+    }
+
+}
@@ -0,0 +1,468 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import warwick.marsh.ultracam.LogWriter;
+
+/** An append-only journal of what Udriver does during a night: posts, run
+ * starts and stops, resets, commands, server replies and timing
+ * predictions, with the settings in force. It is written as JSON lines,
+ * one event per line, to a file per night named udriver-YYYY-MM-DD.jsonl
+ * after the date on which the night began (nights change at local noon).
+ * Journals of past nights are compressed with gzip. Writing is done by a
+ * LogWriter thread, so recording an event never waits for the disk.
+ *
+ * Each event has the fields
+ * <pre>
+ * time     ISO 8601 UTC time, derived from a monotonic clock so it never goes backwards in a session
+ * mono     nanoseconds since the session started, monotonic
+ * seq      sequence number within the session
+ * session  identifier of the session
+ * event    the kind of event
+ * </pre>
+ * followed by fields depending upon the event.
+ *
+ * The static methods read journals back; scan() reads a directory of them
+ * in parallel.
+ */
+
+public class RunJournal {
+
+    public static final String PREFIX = "udriver-";
+    public static final String SUFFIX = ".jsonl";
+    public static final String GZIP   = ".gz";
+
+    // Hour of local time at which one night's journal ends and the next begins
+    public static final int NIGHT_CHANGE = 12;
+
+    // Milliseconds a journal must have been left unwritten before it is compressed
+    public static final long SETTLE = 600000L;
+
+    private final File   _directory;
+    private final String _session;
+    private final long   _startMillis;
+    private final long   _startNanos;
+    private final LogWriter.Listener _listener;
+
+    private long      _seq     = 0;
+    private String    _night   = null;
+    private LogWriter _writer  = null;
+    private boolean   _closed  = false;
+
+    /** Starts a journal. Journals of earlier nights found in the directory
+     * that are not yet compressed are compressed in the background, but only
+     * once they have not been written since their night ended, nor for SETTLE
+     * milliseconds, so that a journal another session is still writing is left
+     * alone.
+     * @param directory directory for the journals
+     * @param listener  told of the opening of files and of failures to write or
+     *                  compress them; may be null, when failures to compress go to System.err
+     */
+    public RunJournal(File directory, LogWriter.Listener listener) {
+	_directory   = directory;
+	_listener    = listener;
+	_startMillis = System.currentTimeMillis();
+	_startNanos  = System.nanoTime();
+	_session     = Long.toString(_startMillis, 36);
+
+	final String tonight = night(_startMillis);
+	_background(new Runnable() {
+		public void run() {
+		    File[] files = _directory.listFiles(new FilenameFilter() {
+			    public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX) && !name.equals(PREFIX + tonight + SUFFIX);
+			    }
+			});
+		    if(files != null)
+			for(File file : files)
+			    if(_finished(file)) _compress(file);
+		}
+	    });
+    }
+
+    /** The directory of the journals */
+    public File getDirectory() {
+	return _directory;
+    }
+
+    /** Records an event
+     * @param event  the kind of event, e.g. "post"
+     * @param fields further fields, written in order; may be null
+     */
+    public void record(String event, Map<String,?> fields) {
+
+	long mono = System.nanoTime() - _startNanos;
+	long time = _startMillis + mono/1000000L;
+
+	StringBuilder line = new StringBuilder(256);
+	synchronized(this){
+	    if(_closed) return;
+
+	    // Change file when the night does
+	    String night = night(time);
+	    if(!night.equals(_night)){
+		if(_writer != null){
+		    final LogWriter old = _writer;
+		    old.close();
+		    _background(new Runnable() {
+			    public void run() {
+				if(!old.awaitClosed(60000)) return;
+				try {
+				    Thread.sleep(SETTLE);
+				}
+				catch(InterruptedException e){
+				    return;
+				}
+				if(_finished(old.getFile())) _compress(old.getFile());
+			    }
+			});
+		}
+		_night  = night;
+		_writer = new LogWriter(new File(_directory, PREFIX + night + SUFFIX), true, null, _listener);
+	    }
+
+	    line.append("{\"time\":\"").append(java.time.Instant.ofEpochMilli(time)).append('"');
+	    line.append(",\"mono\":").append(mono);
+	    line.append(",\"seq\":").append(++_seq);
+	    line.append(",\"session\":\"").append(_session).append('"');
+	    line.append(",\"event\":");
+	    Json.quote(line, event);
+	    if(fields != null){
+		for(Map.Entry<String,?> entry : fields.entrySet()){
+		    line.append(',');
+		    Json.quote(line, entry.getKey());
+		    line.append(':');
+		    Json.append(line, entry.getValue());
+		}
+	    }
+	    line.append("}\n");
+	    _writer.write(line.toString());
+	}
+    }
+
+    /** Records an event with fields given as name, value, name, value ... */
+    public void record(String event, Object... fields) {
+	Map<String,Object> map = new LinkedHashMap<String,Object>();
+	for(int i=0; i+1<fields.length; i+=2)
+	    map.put(String.valueOf(fields[i]), fields[i+1]);
+	record(event, map);
+    }
+
+    /** Number of events lost because the disk could not keep up */
+    public synchronized long getDropped() {
+	return _writer != null ? _writer.getDropped() : 0;
+    }
+
+    /** Closes the journal. Events already recorded are still written. */
+    public synchronized void close() {
+	_closed = true;
+	if(_writer != null) _writer.close();
+    }
+
+    /** The fields recorded with the settings of an application, as Udriver and
+     * Headless record posts and starts: those given as name, value pairs, then
+     * the target, run, template, binning, windows, exposure delay, number of
+     * exposures and readout speed
+     */
+    public static Map<String,Object> settings(String target, String run, String template, WindowSnapshot windows,
+					      int expose, int numExpose, String speed, Object... fields) {
+	Map<String,Object> map = new LinkedHashMap<String,Object>();
+	for(int i=0; i+1<fields.length; i+=2)
+	    map.put(String.valueOf(fields[i]), fields[i+1]);
+	map.put("target",    target);
+	map.put("run",       run);
+	map.put("template",  template);
+	map.put("xbin",      windows.isValid() ? windows.getXbin() : (Object)null);
+	map.put("ybin",      windows.isValid() ? windows.getYbin() : (Object)null);
+	List<int[]> list = new ArrayList<int[]>();
+	for(int i=0; i<windows.getNwin(); i++)
+	    list.add(windows.getWindow(i));
+	map.put("windows",   list);
+	map.put("expose",    expose);
+	map.put("numExpose", numExpose);
+	map.put("speed",     speed);
+	return map;
+    }
+
+    /** Returns the night, YYYY-MM-DD, to which a time belongs */
+    public static String night(long millis) {
+	SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+	return format.format(new Date(millis - NIGHT_CHANGE*3600000L));
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    private static void _background(Runnable task) {
+	Thread thread = new Thread(task, "journal compression");
+	thread.setDaemon(true);
+	thread.setPriority(Thread.MIN_PRIORITY);
+	thread.start();
+    }
+
+    // Whether a journal is done with: its night is over, it has not been written
+    // since (beyond a minute for writers to flush events recorded before the
+    // change), and nothing has written it for SETTLE milliseconds
+    private static boolean _finished(File file) {
+	String name = file.getName();
+	String night = name.substring(PREFIX.length(), name.length()-SUFFIX.length());
+	long end;
+	try {
+	    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+	    format.setLenient(false);
+	    Calendar cal = Calendar.getInstance();
+	    cal.setTime(format.parse(night));
+	    cal.add(Calendar.DAY_OF_MONTH, 1);
+	    cal.set(Calendar.HOUR_OF_DAY, NIGHT_CHANGE);
+	    end = cal.getTimeInMillis();
+	}
+	catch(java.text.ParseException e){
+	    return false;
+	}
+	long modified = file.lastModified();
+	long now      = System.currentTimeMillis();
+	return now >= end && modified != 0 && modified <= end + 60000L && now - modified >= SETTLE;
+    }
+
+    // Compresses a journal to a .gz file alongside, deleting the original once done
+    private void _compress(File file) {
+	File tmp = new File(file.getPath() + GZIP + ".tmp");
+	try {
+	    InputStream  in  = new FileInputStream(file);
+	    OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), 65536);
+	    try {
+		byte[] buff = new byte[65536];
+		int len;
+		while((len = in.read(buff)) != -1)
+		    out.write(buff, 0, len);
+	    }
+	    finally {
+		in.close();
+		out.close();
+	    }
+	    if(!tmp.renameTo(new File(file.getPath() + GZIP)))
+		throw new IOException("could not rename " + tmp);
+	    if(!file.delete())
+		throw new IOException("could not delete " + file);
+	}
+	catch(IOException e){
+	    tmp.delete();
+	    if(_listener != null)
+		_listener.failed(file, new IOException("failed to compress: " + e.getMessage(), e));
+	    else
+		System.err.println("Failed to compress journal " + file + ": " + e);
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** One event read back from a journal */
+    public static class Entry {
+
+	private final Map<String,Object> _fields;
+
+	Entry(Map<String,Object> fields) {
+	    _fields = fields;
+	}
+
+	/** The kind of event */
+	public String getEvent() {
+	    return getString("event");
+	}
+
+	/** The time of the event, milliseconds since 1970 */
+	public long getTime() {
+	    return java.time.Instant.parse(getString("time")).toEpochMilli();
+	}
+
+	/** Nanoseconds since the start of the session */
+	public long getMono() {
+	    return getLong("mono", 0);
+	}
+
+	public String getSession() {
+	    return getString("session");
+	}
+
+	/** Returns a field as a String, or null if absent */
+	public String getString(String name) {
+	    Object value = _fields.get(name);
+	    return value != null ? value.toString() : null;
+	}
+
+	/** Returns a numeric field, or 'def' if absent or not a number */
+	public long getLong(String name, long def) {
+	    Object value = _fields.get(name);
+	    if(value instanceof Number) return ((Number)value).longValue();
+	    try {
+		return value != null ? Long.parseLong(value.toString().trim()) : def;
+	    }
+	    catch(NumberFormatException e){
+		return def;
+	    }
+	}
+
+	/** All the fields, in the order written */
+	public Map<String,Object> getFields() {
+	    return _fields;
+	}
+
+	public String toString() {
+	    return Json.toString(_fields);
+	}
+    }
+
+    /** Receives events from scan() */
+    public interface Visitor {
+	public void visit(File file, Entry entry);
+    }
+
+    /** Returns the journals in a directory, compressed or not, oldest first */
+    public static File[] journals(File directory) {
+	File[] files = directory.listFiles(new FilenameFilter() {
+		public boolean accept(File dir, String name) {
+		    return name.startsWith(PREFIX) && (name.endsWith(SUFFIX) || name.endsWith(SUFFIX + GZIP));
+		}
+	    });
+	if(files == null) return new File[0];
+	Arrays.sort(files);
+	return files;
+    }
+
+    /** Reads the events in one journal
+     * @param file   the journal, compressed or not
+     * @param events the kinds of event wanted, or null for all. Other lines are skipped without being parsed.
+     */
+    public static List<Entry> read(File file, Set<String> events) throws IOException {
+	List<Entry> entries = new ArrayList<Entry>();
+	InputStream in = new FileInputStream(file);
+	if(file.getName().endsWith(GZIP)) in = new GZIPInputStream(in, 65536);
+	BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"), 65536);
+	try {
+	    String line;
+	    int nline = 0;
+	    while((line = reader.readLine()) != null){
+		nline++;
+		if(events != null && !events.contains(_event(line))) continue;
+		try {
+		    entries.add(new Entry(Json.parseObject(line)));
+		}
+		catch(IllegalArgumentException e){
+		    // A line cut short by a crash is skipped, noted where it cannot mix with events printed
+		    System.err.println(file.getName() + ", line " + nline + ": " + e.getMessage());
+		}
+	    }
+	}
+	finally {
+	    reader.close();
+	}
+	return entries;
+    }
+
+    // Picks out the event name without parsing the whole line
+    private static String _event(String line) {
+	int start = line.indexOf("\"event\":\"");
+	if(start < 0) return null;
+	start += 9;
+	int end = line.indexOf('"', start);
+	return end < 0 ? null : line.substring(start, end);
+    }
+
+    /** Reads all the journals in a directory, in parallel, and passes their
+     * events to a visitor in order, oldest first, on the calling thread.
+     * @param directory directory of journals
+     * @param events    the kinds of event wanted, or null for all
+     * @param visitor   receives the events
+     */
+    public static void scan(File directory, final Set<String> events, Visitor visitor) throws IOException {
+	File[] files = journals(directory);
+	ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+	try {
+	    List<Future<List<Entry>>> results = new ArrayList<Future<List<Entry>>>();
+	    for(final File file : files){
+		results.add(executor.submit(new java.util.concurrent.Callable<List<Entry>>() {
+			public List<Entry> call() throws IOException {
+			    return read(file, events);
+			}
+		    }));
+	    }
+	    for(int i=0; i<files.length; i++){
+		try {
+		    for(Entry entry : results.get(i).get())
+			visitor.visit(files[i], entry);
+		}
+		catch(java.util.concurrent.ExecutionException e){
+		    throw new IOException("Failed to read journal " + files[i] + ": " + e.getCause(), e.getCause());
+		}
+		catch(InterruptedException e){
+		    Thread.currentThread().interrupt();
+		    throw new IOException("Interrupted reading journals");
+		}
+	    }
+	}
+	finally {
+	    executor.shutdownNow();
+	}
+    }
+
+    /** Prints the events in a directory of journals, optionally only those of given kinds, e.g.
+     * <pre>
+     * java warwick.marsh.ultracam.udriver.RunJournal logs start stop
+     * </pre>
+     */
+    public static void main(String[] args) {
+	try {
+	    if(args.length < 1){
+		System.out.println("usage: RunJournal directory [event ...]");
+		System.exit(1);
+	    }
+	    Set<String> events = null;
+	    if(args.length > 1)
+		events = new HashSet<String>(Arrays.asList(args).subList(1, args.length));
+
+	    final long[] count = {0};
+	    long start = System.nanoTime();
+	    scan(new File(args[0]), events, new Visitor() {
+		    public void visit(File file, Entry entry) {
+			System.out.println(entry);
+			count[0]++;
+		    }
+		});
+	    System.err.println(count[0] + " events from " + journals(new File(args[0])).length + " journals in " +
+			       (System.nanoTime()-start)/1000000L + " ms");
+	}
+	catch(Exception e){
+	    System.out.println(e);
+	    System.exit(1);
+	}
+    }
+
+}
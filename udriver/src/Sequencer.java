@@ -0,0 +1,245 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/** Runs a queue of saved applications one after another with as little
+ * dead time between them as the servers allow. While a run is going the
+ * next application is built and checked in the background, so that the
+ * moment the data server reports IDLE it can be posted and started with
+ * no more than the round trips that cannot be avoided. The data server is
+ * only polled near the expected end of each run, as PollPolicy does for
+ * Udriver. Each application is given the user section Udriver posts,
+ * with the target and so on saved with it, and its data rate is checked
+ * against the budget first, as Udriver does. An application that cannot
+ * be built, or is over the budget when that blocks posting, is skipped; a
+ * failure to post or start stops the sequence, as does stop(). Listeners
+ * are called from the sequencer's own threads.
+ */
+
+public class Sequencer {
+
+    /** Told of the progress of a sequence */
+    public interface Listener {
+
+	/** An application has been built and checked, ahead of its turn */
+	void prepared(int index, AppBuilder.Prepared prepared);
+
+	/** An application has been posted to both servers */
+	void posted(int index, AppBuilder.Prepared prepared);
+
+	/** A run has been started */
+	void started(int index, AppBuilder.Prepared prepared);
+
+	/** A run has finished */
+	void finished(int index, AppBuilder.Prepared prepared);
+
+	/** An application was skipped, or the sequence stopped, for the reason given */
+	void failed(int index, String message, boolean stopping);
+
+	/** An application is to be posted despite the problem given, e.g. a data rate over budget */
+	void warned(int index, String message);
+
+	/** The sequence is over, whether complete or not */
+	void done(boolean complete);
+    }
+
+    // Milliseconds between polls while waiting for a run not started by the sequencer
+    public static final int IDLE_POLL = 1000;
+
+    // Consecutive failures to get the data server's state tolerated
+    public static final int MAX_STATUS_FAILURES = 5;
+
+    private final ServerLink                  _link;
+    private final AppBuilder                  _builder;
+    private final DataRateBudget              _budget;
+    private final boolean                     _block;
+    private final boolean                     _imedia;
+    private final List<NightPlanner.Request>  _requests;
+    private final Listener                    _listener;
+    private final ExecutorService             _stager = Executors.newSingleThreadExecutor();
+
+    private Thread           _thread  = null;
+    private volatile boolean _stopped = false;
+    private volatile int     _current = -1;
+
+    /** Constructor
+     * @param link     link to the servers
+     * @param builder  builds the applications
+     * @param budget   the data rate budget
+     * @param block    whether an application over the budget is skipped rather than posted with a warning
+     * @param imedia   whether to add the CCD temperatures and slide position to the user section
+     * @param requests the applications and their run lengths, in order
+     * @param listener told of progress
+     */
+    public Sequencer(ServerLink link, AppBuilder builder, DataRateBudget budget, boolean block, boolean imedia,
+		     List<NightPlanner.Request> requests, Listener listener) {
+	_link     = link;
+	_builder  = builder;
+	_budget   = budget;
+	_block    = block;
+	_imedia   = imedia;
+	_requests = new ArrayList<NightPlanner.Request>(requests);
+	_listener = listener;
+    }
+
+    /** Starts the sequence */
+    public synchronized void start() {
+	if(_thread != null) throw new IllegalStateException("sequence already started");
+	_thread = new Thread(new Runnable() {
+		public void run() {
+		    _run();
+		}
+	    }, "sequencer");
+	_thread.setDaemon(true);
+	_thread.start();
+    }
+
+    /** Stops the sequence. A run already started is left to finish or be
+     * stopped by other means; nothing more is posted or started. */
+    public synchronized void stop() {
+	_stopped = true;
+	if(_thread != null) _thread.interrupt();
+    }
+
+    public boolean isRunning() {
+	Thread thread;
+	synchronized(this){
+	    thread = _thread;
+	}
+	return thread != null && thread.isAlive();
+    }
+
+    /** Index of the application being run, -1 before the first */
+    public int getCurrent() {
+	return _current;
+    }
+
+    public int size() {
+	return _requests.size();
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    private void _run() {
+
+	boolean complete = false;
+	try {
+	    Future<AppBuilder.Prepared> next = _stage(0);
+	    int i;
+	    for(i=0; i<_requests.size() && !_stopped; i++){
+
+		_current = i;
+		AppBuilder.Prepared prepared;
+		try {
+		    prepared = next.get();
+		}
+		catch(ExecutionException e){
+		    _listener.failed(i, _message(e.getCause()), false);
+		    next = _stage(i+1);
+		    continue;
+		}
+
+		String overBudget = _overBudget(prepared);
+		if(overBudget != null && _block){
+		    _listener.failed(i, overBudget + "; application was not posted", false);
+		    next = _stage(i+1);
+		    continue;
+		}
+		if(overBudget != null)
+		    _listener.warned(i, overBudget);
+
+		// Usually idle already, having watched the last run end
+		if(!_waitIdle(IDLE_POLL)) break;
+
+		try {
+		    // Only now, as reading back the revision would stop a run going
+		    for(String warning : UserSection.add(prepared.document, UserSection.saved(prepared.document), _link, true, _imedia))
+			_listener.warned(i, warning);
+		    _link.post(prepared.document, null);
+		    _listener.posted(i, prepared);
+		    _link.command("GO", null);
+		}
+		catch(Exception e){
+		    if(_stopped) break;
+		    _listener.failed(i, _message(e), true);
+		    break;
+		}
+		_listener.started(i, prepared);
+
+		// Build the next while this one runs
+		next = _stage(i+1);
+
+		Thread.sleep(PollPolicy.initialDelay(prepared.nexposures, prepared.cycleTime));
+		if(!_waitIdle(PollPolicy.interval(prepared.cycleTime))) break;
+		_listener.finished(i, prepared);
+	    }
+	    complete = i == _requests.size() && !_stopped;
+	}
+	catch(InterruptedException e){
+	    // stopped
+	}
+	finally {
+	    _stager.shutdownNow();
+	    _listener.done(complete);
+	}
+    }
+
+    // Builds an application in the background; null result beyond the end of the queue
+    private Future<AppBuilder.Prepared> _stage(final int index) {
+	return _stager.submit(new Callable<AppBuilder.Prepared>() {
+		public AppBuilder.Prepared call() throws Exception {
+		    if(index >= _requests.size()) return null;
+		    NightPlanner.Request request = _requests.get(index);
+		    AppBuilder.Prepared prepared = _builder.build(request.file, request.nexposures, request.seconds);
+		    _listener.prepared(index, prepared);
+		    return prepared;
+		}
+	    });
+    }
+
+    // Polls the data server until it is idle. Returns false if the sequence was stopped or the server could not be asked.
+    private boolean _waitIdle(int interval) throws InterruptedException {
+	int failures = 0;
+	while(!_stopped){
+	    try {
+		if(!ServerLink.isRunActive(_link.status())) return true;
+		failures = 0;
+	    }
+	    catch(Exception e){
+		if(++failures >= MAX_STATUS_FAILURES){
+		    _listener.failed(_current, "Could not get the state of the data server: " + _message(e), true);
+		    return false;
+		}
+	    }
+	    Thread.sleep(interval);
+	}
+	return false;
+    }
+
+    // What is wrong if an application is over the data rate budget, else null
+    private String _overBudget(AppBuilder.Prepared prepared) {
+	TimingModel.Setup setup = prepared.app.getSetup();
+	double budget = _budget.getBudget();
+	if(budget <= 0 || _budget.fits(setup)) return null;
+	return "data rate " + DataRateBudget.format(TimingModel.dataRate(setup)) + " MB/s is over the budget of " +
+	    DataRateBudget.format(budget) + " MB/s";
+    }
+
+    private static String _message(Throwable e) {
+	return e.getMessage() != null ? e.getMessage() : e.toString();
+    }
+
+}
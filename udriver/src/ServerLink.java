@@ -0,0 +1,465 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.w3c.dom.*;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+/** ServerLink carries out the HTTP exchanges between Udriver and the ULTRACAM
+ * camera and data servers: posting applications, executing commands and
+ * polling the data server for its state. It holds no GUI state so that it
+ * can be used from Udriver itself or from headless programs such as
+ * LoadTest. Each exchange is counted so that the traffic a client puts
+ * on the servers can be measured.
+ *
+ * A ServerLink is safe to share between threads, although exchanges are
+ * not serialised against each other.
+ */
+
+public class ServerLink {
+
+    // Classes of exchange that are counted separately
+    public static final int POST    = 0;
+    public static final int CONFIG  = 1;
+    public static final int EXEC    = 2;
+    public static final int GET     = 3;
+    public static final int STATUS  = 4;
+    public static final int FSTATUS = 5;
+
+    public static final String[] EXCHANGE_NAMES = {"post", "config", "exec", "get", "status", "fstatus"};
+
+    // Timeout applied to application posts to the camera server, milliseconds.
+    // Prevents the client hanging from a camera bug (RDGH 26/03/2010)
+    public static final int POST_TIMEOUT = 5000;
+
+    private final String _cameraServer;
+    private final String _dataServer;
+    private final String _pathGet;
+    private final String _pathExec;
+    private final String _pathConfig;
+    private final String _searchAttrName;
+
+    private final DocumentBuilder _documentBuilder;
+    private final Transformer     _transformer;
+
+    private final Traffic _traffic = new Traffic();
+
+    /** Constructor
+     * @param cameraServer   URL of the camera server, ending in '/'
+     * @param dataServer     URL of the data server, ending in '/'
+     * @param pathGet        path for fetching applications
+     * @param pathExec       path for executing commands
+     * @param pathConfig     path for posting and executing applications
+     * @param searchAttrName CGI attribute naming the application to fetch
+     */
+    public ServerLink(String cameraServer, String dataServer, String pathGet, String pathExec,
+		      String pathConfig, String searchAttrName) throws Exception {
+	_cameraServer   = cameraServer;
+	_dataServer     = dataServer;
+	_pathGet        = pathGet;
+	_pathExec       = pathExec;
+	_pathConfig     = pathConfig;
+	_searchAttrName = searchAttrName;
+
+	DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+	dbf.setValidating(false);
+	_documentBuilder = dbf.newDocumentBuilder();
+	_transformer     = TransformerFactory.newInstance().newTransformer();
+    }
+
+    public String getCameraServer() {
+	return _cameraServer;
+    }
+
+    public String getDataServer() {
+	return _dataServer;
+    }
+
+    /** The traffic counters for this link */
+    public Traffic getTraffic() {
+	return _traffic;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Posts an application to a server and returns its reply
+     * @param server   the server URL, either the camera or the data server
+     * @param document the application
+     */
+    public Document postApp(String server, Document document) throws Exception {
+
+	long start = System.nanoTime();
+	boolean ok = false;
+	try {
+
+	    // Render first so that the length of the post is known
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+	    synchronized(_transformer){
+		_transformer.transform(new DOMSource(document), new StreamResult(bytes));
+	    }
+
+	    HttpURLConnection httpConnection = (HttpURLConnection)(new URL(server + _pathConfig).openConnection());
+	    httpConnection.setRequestMethod("POST");
+	    httpConnection.setRequestProperty("Content-Type", "text/xml");
+	    httpConnection.setDoOutput(true);
+	    if(server.equals(_cameraServer)){
+		httpConnection.setConnectTimeout(POST_TIMEOUT);
+		httpConnection.setReadTimeout(POST_TIMEOUT);
+	    }
+	    httpConnection.connect();
+
+	    OutputStream outputStream = httpConnection.getOutputStream();
+	    bytes.writeTo(outputStream);
+	    outputStream.close();
+	    _traffic.sent(POST, bytes.size());
+
+	    Document reply = _read(POST, httpConnection);
+	    ok = true;
+	    return reply;
+	}
+	finally {
+	    _traffic.done(POST, System.nanoTime() - start, ok);
+	}
+    }
+
+    /** Fetches an application from the camera server */
+    public Document fetchApp(String name) throws Exception {
+	return _get(GET, _cameraServer + _pathGet + "?" + _searchAttrName + "=" + name);
+    }
+
+    /** Executes a remote application on a server */
+    public Document execRemoteApp(String server, String application) throws Exception {
+	return _get(CONFIG, server + _pathConfig + "?" + application);
+    }
+
+    /** Executes a command such as "GO" on the camera server */
+    public Document execCommand(String command) throws Exception {
+	return _get(EXEC, _cameraServer + _pathExec + "?" + command);
+    }
+
+    /** Asks the data server for its state */
+    public Document status() throws Exception {
+	return _get(STATUS, _dataServer + "status");
+    }
+
+    /** Asks the data server for its file status */
+    public Document fileStatus() throws Exception {
+	return _get(FSTATUS, _dataServer + "fstatus");
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Interprets the reply to a status request, returning true if the data server is BUSY */
+    public static boolean isRunActive(Document document) throws Exception {
+	NodeList nlist    = document.getElementsByTagName("state");
+	if(nlist.getLength() == 0)
+	    throw new Exception("Could not find 'state' element in XML returned from the server");
+
+	Element element   = (Element)nlist.item(0);
+	if(element.hasAttribute("server")){
+	    if(element.getAttribute("server").equals("IDLE")){
+		return false;
+	    }else if(element.getAttribute("server").equals("BUSY")){
+		return true;
+	    }else{
+		throw new Exception("Failed to interpret 'state' value from server = " + element.getAttribute("server"));
+	    }
+	}else{
+	    throw new Exception("'state' element in XML from server did not have 'server' attribute");
+	}
+    }
+
+    /** Interprets the reply to an fstatus request, returning the number of the last run */
+    public static int lastRunNumber(Document document) throws Exception {
+	NodeList nlist    = document.getElementsByTagName("lastfile");
+	if(nlist.getLength() == 0)
+	    throw new Exception("Could not find 'lastfile' element in XML returned from the server");
+
+	Element element   = (Element)nlist.item(0);
+	if(element.hasAttribute("path")){
+	    String path   = element.getAttribute("path").trim();
+	    if(path.length() > 2){
+		String numString = path.substring(path.length()-3);
+		return Integer.parseInt(numString);
+	    }else{
+		throw new Exception("Path = " + path + " not long enough for 3 digit run number");
+	    }
+	}else{
+	    throw new Exception("'lastfile' element in XML from server does not have 'path' attribute");
+	}
+    }
+
+    /** Interprets the reply to an fstatus request, returning the bytes written to the
+     * current run, or -1 if the server does not say. The 'lastfile' element is read
+     * for a size in bytes ('nbytes' or 'size') or, failing that, a number of frames
+     * ('nframe' or 'nframes'), converted with the bytes per image given.
+     */
+    public static long fileBytes(Document document, long bytesPerImage) {
+	NodeList nlist = document.getElementsByTagName("lastfile");
+	if(nlist.getLength() == 0) return -1;
+	Element element = (Element)nlist.item(0);
+	try {
+	    for(String name : new String[] {"nbytes", "size"})
+		if(element.hasAttribute(name)) return Long.parseLong(element.getAttribute(name).trim());
+	    for(String name : new String[] {"nframe", "nframes"})
+		if(element.hasAttribute(name)) return Long.parseLong(element.getAttribute(name).trim())*bytesPerImage;
+	}
+	catch(NumberFormatException e){}
+	return -1;
+    }
+
+    /** Interprets the reply to an fstatus request, returning the frames written to
+     * the current run ('nframe' or 'nframes' of the 'lastfile' element), or -1 if
+     * the server does not say.
+     */
+    public static long fileFrames(Document document) {
+	NodeList nlist = document.getElementsByTagName("lastfile");
+	if(nlist.getLength() == 0) return -1;
+	Element element = (Element)nlist.item(0);
+	try {
+	    for(String name : new String[] {"nframe", "nframes"})
+		if(element.hasAttribute(name)) return Long.parseLong(element.getAttribute(name).trim());
+	}
+	catch(NumberFormatException e){}
+	return -1;
+    }
+
+    /** Interprets the reply to an fstatus request, returning the path of the last
+     * file, or null if the server does not say.
+     */
+    public static String lastFilePath(Document document) {
+	NodeList nlist = document.getElementsByTagName("lastfile");
+	if(nlist.getLength() == 0) return null;
+	Element element = (Element)nlist.item(0);
+	return element.hasAttribute("path") ? element.getAttribute("path").trim() : null;
+    }
+
+    /** Tests whether XML response from server is OK or not, throwing an Exception
+     * that describes the problem if not. It does so by looking for an element of the form
+     * <status> and then looking for 'software' and possibly 'camera' attributes depending
+     * upon the source.
+     */
+    public static void checkResponse(Document document) throws Exception {
+
+	NodeList nlist = document.getElementsByTagName("source");
+	if(nlist.getLength() == 0)
+	    throw new Exception("Could not find 'source' element in XML returned from the server");
+	Node node = nlist.item(0).getFirstChild();
+	if(node == null)
+	    throw new Exception("'source' had no children in XML returned from the server");
+
+	String source = node.getNodeValue().trim();
+	if(source == null)
+	    throw new Exception("'source' value was null in XML returned from the server");
+
+	// Need software="OK" in <status> tag
+	nlist    = document.getElementsByTagName("status");
+	if(nlist.getLength() == 0)
+	    throw new Exception("Could not find 'status' element in XML returned from the server");
+	Element element   = (Element)nlist.item(0);
+	if(element.hasAttribute("software")){
+	    if(!element.getAttribute("software").equals("OK"))
+		throw new Exception("'software' attribute of 'status' element = " + element.getAttribute("software") + " not = OK from source = " + source);
+	}else{
+	    throw new Exception("Could not find 'software' attribute of 'status' element from source = " + source);
+	}
+
+	if(source.equals("Camera server")){
+
+	    // Need camera="OK" in <status> tag
+	    if(element.hasAttribute("camera")){
+		if(!element.getAttribute("camera").equals("OK"))
+		    throw new Exception("'camera' attribute of 'status' element = " + element.getAttribute("camera") + " not = OK from source = " + source);
+	    }else{
+		throw new Exception("Could not find 'camera' attribute of 'status' element from source = " + source);
+	    }
+
+	}else if(!source.equals("Filesave data handler")){
+
+	    throw new Exception("source = " + source + " not recognised. Expected either 'Camera server' or 'Filesave data handler'");
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Told of each reply as the sequences of exchanges below go, e.g. to show it */
+    public interface ReplyListener {
+
+	/** A reply, before it is checked
+	 * @param reply       the reply
+	 * @param description what it answers
+	 * @param first       whether it is the first reply of the sequence
+	 */
+	public void replied(Document reply, String description, boolean first);
+    }
+
+    /** Posts an application to the camera server and then the data server, as
+     * Udriver, Headless and Sequencer all do, throwing an Exception at the
+     * first reply that is not OK
+     * @param document the application
+     * @param listener told of each reply; may be null
+     */
+    public void post(Document document, ReplyListener listener) throws Exception {
+	_check(postApp(_cameraServer, document), _cameraServer, "camera server = " + _cameraServer, listener, true);
+	_check(postApp(_dataServer, document),   _dataServer,   "data server = " + _dataServer,     listener, false);
+    }
+
+    /** Initialises the servers: a telescope's application and then the generic
+     * one on the camera server, then the same on the data server
+     * @param application the telescope's application
+     * @param generic     the generic application
+     * @param listener    told of each reply; may be null
+     */
+    public void setupServers(String application, String generic, ReplyListener listener) throws Exception {
+	String[] servers      = {_cameraServer, _cameraServer, _dataServer, _dataServer};
+	String[] applications = {application, generic, application, generic};
+	for(int i=0; i<servers.length; i++)
+	    _check(execRemoteApp(servers[i], applications[i]), "Response to " + applications[i],
+		   "server = " + servers[i] + " to application " + applications[i], listener, i == 0);
+    }
+
+    /** Executes an application on the camera server and then the data server, as powering on and off does
+     * @param application the application
+     * @param listener    told of each reply; may be null
+     */
+    public void execApp(String application, ReplyListener listener) throws Exception {
+	_check(execRemoteApp(_cameraServer, application), "Response to executing application = " + application + " on camera server",
+	       "camera server = " + _cameraServer, listener, true);
+	_check(execRemoteApp(_dataServer, application), "Response to executing application = " + application + " on data server",
+	       "data server = " + _dataServer, listener, false);
+    }
+
+    /** Executes a command such as "GO" on the camera server, throwing an Exception if the reply is not OK
+     * @param command  the command
+     * @param listener told of the reply; may be null
+     */
+    public void command(String command, ReplyListener listener) throws Exception {
+	_check(execCommand(command), "Response to command = " + command, "camera server " + _cameraServer, listener, true);
+    }
+
+    // Tells the listener of a reply then checks it, saying which server failed
+    private static void _check(Document reply, String description, String from, ReplyListener listener, boolean first) throws Exception {
+	if(listener != null)
+	    listener.replied(reply, description, first);
+	try {
+	    checkResponse(reply);
+	}
+	catch(Exception e){
+	    throw new Exception("XML response from " + from + " was not OK: " + e.getMessage());
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    // Carries out a GET request, counting it under 'type'
+    private Document _get(int type, String address) throws Exception {
+	long start = System.nanoTime();
+	boolean ok = false;
+	try {
+	    Document reply = _read(type, new URL(address).openConnection());
+	    ok = true;
+	    return reply;
+	}
+	finally {
+	    _traffic.done(type, System.nanoTime() - start, ok);
+	}
+    }
+
+    // Reads and parses a reply, counting the bytes received
+    private Document _read(int type, URLConnection connection) throws Exception {
+	ReplyReader reader = ReplyReader.get();
+	try {
+	    return reader.readDocument(connection, _documentBuilder);
+	}
+	finally {
+	    _traffic.received(type, reader.length());
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Counts of the exchanges carried out by a ServerLink, broken down by
+     * the class of exchange (POST, CONFIG, EXEC, GET, STATUS, FSTATUS).
+     */
+    public static class Traffic {
+
+	private static final int N = EXCHANGE_NAMES.length;
+
+	private final AtomicLongArray _requests = new AtomicLongArray(N);
+	private final AtomicLongArray _failures = new AtomicLongArray(N);
+	private final AtomicLongArray _sent     = new AtomicLongArray(N);
+	private final AtomicLongArray _received = new AtomicLongArray(N);
+	private final AtomicLongArray _nanos    = new AtomicLongArray(N);
+
+	void sent(int type, long nbytes){
+	    _sent.addAndGet(type, nbytes);
+	}
+
+	void received(int type, long nbytes){
+	    _received.addAndGet(type, nbytes);
+	}
+
+	void done(int type, long nanos, boolean ok){
+	    _requests.incrementAndGet(type);
+	    _nanos.addAndGet(type, nanos);
+	    if(!ok) _failures.incrementAndGet(type);
+	}
+
+	/** Number of requests of a given type */
+	public long getRequests(int type) {
+	    return _requests.get(type);
+	}
+
+	/** Number of requests of a given type that failed */
+	public long getFailures(int type) {
+	    return _failures.get(type);
+	}
+
+	/** Bytes sent in requests of a given type */
+	public long getBytesSent(int type) {
+	    return _sent.get(type);
+	}
+
+	/** Bytes received in replies to requests of a given type */
+	public long getBytesReceived(int type) {
+	    return _received.get(type);
+	}
+
+	/** Total time spent on requests of a given type, nanoseconds */
+	public long getNanos(int type) {
+	    return _nanos.get(type);
+	}
+
+	/** Total number of requests of all types */
+	public long getRequests() {
+	    long n = 0;
+	    for(int i=0; i<N; i++)
+		n += _requests.get(i);
+	    return n;
+	}
+
+	/** Total bytes sent and received in all types of request */
+	public long getBytes() {
+	    long n = 0;
+	    for(int i=0; i<N; i++)
+		n += _sent.get(i) + _received.get(i);
+	    return n;
+	}
+    }
+}
@@ -0,0 +1,197 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/** A local stand-in for the ULTRACAM camera and data servers for testing
+ * Udriver without the camera. It answers the requests that Udriver makes
+ * with replies of the same form as the real servers. A "GO" command makes
+ * the data server BUSY for a fixed run length, or until "EX,0" is received.
+ * Both servers share one state, as the real pair effectively do.
+ *
+ * It can be run on its own, e.g. on ports 9980 and 9981 as in the default
+ * configuration file, with
+ * <pre>
+ * java warwick.marsh.ultracam.udriver.StandInServer 9980 9981 [run length, secs]
+ * </pre>
+ */
+
+public class StandInServer {
+
+    private static final String CAMERA_SOURCE = "Camera server";
+    private static final String DATA_SOURCE   = "Filesave data handler";
+
+    private final HttpServer      _camera;
+    private final HttpServer      _data;
+    private final ExecutorService _executor;
+
+    // Length of a run and simulated processing time of a request, milliseconds
+    private final long _runLength;
+    private volatile long _latency = 0;
+
+    // Time at which the current run ends, System.nanoTime(). Guarded by 'this'
+    private long _runEnd = 0;
+    private final AtomicInteger _runNumber = new AtomicInteger(0);
+
+    /** Constructor. Use port numbers of 0 to have the system choose them.
+     * @param cameraPort port for the camera server
+     * @param dataPort   port for the data server
+     * @param runLength  length of a run started by GO, milliseconds
+     * @param nthreads   number of threads serving requests
+     */
+    public StandInServer(int cameraPort, int dataPort, long runLength, int nthreads) throws IOException {
+	_runLength = runLength;
+	_executor  = Executors.newFixedThreadPool(nthreads);
+
+	_camera = HttpServer.create(new InetSocketAddress("localhost", cameraPort), 50);
+	_camera.createContext("/", new Handler(CAMERA_SOURCE));
+	_camera.setExecutor(_executor);
+
+	_data = HttpServer.create(new InetSocketAddress("localhost", dataPort), 50);
+	_data.createContext("/", new Handler(DATA_SOURCE));
+	_data.setExecutor(_executor);
+    }
+
+    public void start() {
+	_camera.start();
+	_data.start();
+    }
+
+    public void stop() {
+	_camera.stop(0);
+	_data.stop(0);
+	_executor.shutdownNow();
+    }
+
+    /** Sets a delay added to every reply to mimic a slow server, milliseconds */
+    public void setLatency(long latency) {
+	_latency = latency;
+    }
+
+    /** URL of the camera server, ending in '/' */
+    public String getCameraServer() {
+	return "http://localhost:" + _camera.getAddress().getPort() + "/";
+    }
+
+    /** URL of the data server, ending in '/' */
+    public String getDataServer() {
+	return "http://localhost:" + _data.getAddress().getPort() + "/";
+    }
+
+    private synchronized void _go() {
+	_runEnd = System.nanoTime() + 1000000L*_runLength;
+	_runNumber.incrementAndGet();
+    }
+
+    private synchronized void _halt() {
+	_runEnd = System.nanoTime();
+    }
+
+    private synchronized boolean _busy() {
+	return System.nanoTime() - _runEnd < 0;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Answers requests to one of the servers */
+    private class Handler implements HttpHandler {
+
+	private final String _source;
+
+	Handler(String source) {
+	    _source = source;
+	}
+
+	public void handle(HttpExchange exchange) throws IOException {
+	    try {
+
+		// Consume any posted application
+		InputStream in = exchange.getRequestBody();
+		byte[] buff = new byte[4096];
+		while(in.read(buff) != -1);
+		in.close();
+
+		if(_latency > 0)
+		    Thread.sleep(_latency);
+
+		URI    uri   = exchange.getRequestURI();
+		String path  = uri.getPath();
+		String query = uri.getRawQuery();
+
+		String body;
+		if(path.endsWith("/status")){
+		    body = "<state server=\"" + (_busy() ? "BUSY" : "IDLE") + "\"/>";
+
+		}else if(path.endsWith("/fstatus")){
+		    body = "<lastfile path=\"run" + _threeDigits(_runNumber.get()) + "\"/>";
+
+		}else if(path.endsWith("/exec") && query != null){
+		    if(query.equals("GO")){
+			_go();
+		    }else if(query.startsWith("EX") || query.equals("ST")){
+			_halt();
+		    }
+		    body = "<command_status readback=\"0x1\"/>";
+
+		}else{
+		    body = "";
+		}
+
+		String message = "<?xml version=\"1.0\"?>\n<response><source>" + _source + "</source>" +
+		    "<status software=\"OK\"" + (_source.equals(CAMERA_SOURCE) ? " camera=\"OK\"" : "") + "/>" +
+		    body + "</response>\n";
+		byte[] bytes = message.getBytes("UTF-8");
+
+		exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+		exchange.sendResponseHeaders(200, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	    }
+	    catch(InterruptedException e){
+		exchange.close();
+	    }
+	}
+    }
+
+    private static String _threeDigits(int n) {
+	String s = "00" + (n % 1000);
+	return s.substring(s.length()-3);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Runs the stand-in servers until killed */
+    public static void main(String[] args) {
+	try {
+	    if(args.length < 2){
+		System.out.println("usage: StandInServer cameraPort dataPort [run length, secs]");
+		System.exit(1);
+	    }
+	    long runLength = args.length > 2 ? (long)(1000*Double.parseDouble(args[2])) : 10000;
+	    StandInServer server = new StandInServer(Integer.parseInt(args[0]), Integer.parseInt(args[1]), runLength, 4);
+	    server.start();
+	    System.out.println("Stand-in camera server = " + server.getCameraServer());
+	    System.out.println("Stand-in data server   = " + server.getDataServer());
+	}
+	catch(Exception e){
+	    System.out.println(e);
+	    System.exit(1);
+	}
+    }
+
+}
@@ -0,0 +1,692 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/** Looks up target names, as typed into udriver or saved in applications,
+ * to catch a misspelt target before the run rather than after. Each name is
+ * looked up in a list of sources in turn, e.g. the UAC database and then
+ * SIMBAD, on the resolver's own threads, so that nothing waits on the
+ * network. Names found are kept, with the object's position, in memory and
+ * in a cache file between sessions, so that they are answered at once
+ * thereafter; names not found are remembered for MISS_LIFETIME, and names
+ * that could not be looked up at all not remembered. A night's targets can
+ * be looked up together, in parallel, ahead of time. Thread-safe; listeners
+ * are called from the resolver's threads.
+ */
+
+public class TargetResolver {
+
+    /** Somewhere names can be looked up */
+    public interface Source {
+
+	/** Name for messages, e.g. "SIMBAD" */
+	String getName();
+
+	/** Looks up a name, returning null if it is not known; throws if the source cannot be asked */
+	Target find(String name) throws Exception;
+    }
+
+    /** Told the outcome of a lookup. Called from the resolver's threads. */
+    public interface Listener {
+
+	/** The name has been looked up
+	 * @param name   the name as asked for
+	 * @param target the object, or NONE if no source knows the name
+	 */
+	void resolved(String name, Target target);
+
+	/** The name could not be looked up, for the reason given */
+	void failed(String name, String message);
+    }
+
+    /** An object found */
+    public static final class Target {
+
+	/** The object's main identifier in the source */
+	public final String id;
+
+	/** Position as given by the source, "" if it gives none */
+	public final String ra;
+	public final String dec;
+
+	/** Name of the source */
+	public final String source;
+
+	public Target(String id, String ra, String dec, String source) {
+	    this.id     = id;
+	    this.ra     = ra;
+	    this.dec    = dec;
+	    this.source = source;
+	}
+
+	public String toString() {
+	    return id + (ra.length() > 0 ? " at " + ra + " " + dec : "") + " (" + source + ")";
+	}
+    }
+
+    /** What a name no source knows resolves to */
+    public static final Target NONE = new Target("", "", "", "");
+
+    // Milliseconds for which a name not found is taken as unknown before it is looked up again
+    public static final long MISS_LIFETIME = 10*60*1000L;
+
+    // Milliseconds to wait for SIMBAD, as udriver always has
+    public static final int SIMBAD_TIMEOUT = 2000;
+
+    private static final Pattern BLANKS = Pattern.compile("\\s+");
+
+    private final List<Source>    _sources;
+    private final File            _cache;
+    private final ExecutorService _executor;
+
+    private final Map<String,Entry>              _entries = new ConcurrentHashMap<String,Entry>();
+    private final Map<String,FutureTask<Target>> _pending = new ConcurrentHashMap<String,FutureTask<Target>>();
+    private final AtomicBoolean                  _saving  = new AtomicBoolean(false);
+
+    private Future<?>       _loaded  = null;
+    private volatile String _problem = null;
+
+    /** Constructor
+     * @param sources  where to look names up, in order
+     * @param cache    file in which names found are kept between sessions; null for none
+     * @param nthreads number of lookups at once
+     */
+    public TargetResolver(List<Source> sources, File cache, int nthreads) {
+	if(sources.isEmpty())
+	    throw new IllegalArgumentException("TargetResolver: no sources to look names up in");
+	_sources  = new ArrayList<Source>(sources);
+	_cache    = cache;
+	_executor = Executors.newFixedThreadPool(Math.max(1, nthreads), new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+		    Thread thread = new Thread(runnable, "target resolver");
+		    thread.setDaemon(true);
+		    return thread;
+		}
+	    });
+    }
+
+    /** Starts reading the cache in the background. Lookups wait for it; getCached does not. */
+    public synchronized void start() {
+	if(_loaded != null) throw new IllegalStateException("already started");
+	_loaded = _executor.submit(new Runnable() {
+		public void run() {
+		    _load();
+		}
+	    });
+    }
+
+    /** Stops looking names up; lookups under way are abandoned */
+    public void stop() {
+	_executor.shutdownNow();
+    }
+
+    /** The names of the sources, for messages, e.g. "UAC database or SIMBAD" */
+    public String getSourceNames() {
+	StringBuilder names = new StringBuilder();
+	for(int i=0; i<_sources.size(); i++){
+	    if(i > 0) names.append(i == _sources.size()-1 ? " or " : ", ");
+	    names.append(_sources.get(i).getName());
+	}
+	return names.toString();
+    }
+
+    /** Why the cache could not be read or saved, if it could not; null otherwise */
+    public String getProblem() {
+	return _problem;
+    }
+
+    /** Returns what a name resolves to if it is already known, without waiting:
+     * the object, NONE if it was not found lately, or null if it must be looked up.
+     */
+    public Target getCached(String name) {
+	Entry entry = _fresh(key(name));
+	return entry != null ? entry.target : null;
+    }
+
+    /** Looks up a name in the background, from the cache if it can be
+     * @param name     the name
+     * @param listener told the outcome, or null for none
+     * @return the outcome, the object or NONE
+     */
+    public Future<Target> resolve(final String name, final Listener listener) {
+	return _executor.submit(new Callable<Target>() {
+		public Target call() throws Exception {
+		    try {
+			Target target = _lookup(name);
+			if(listener != null) listener.resolved(name, target);
+			return target;
+		    }
+		    catch(Exception e){
+			if(listener != null) listener.failed(name, e.getMessage() != null ? e.getMessage() : e.toString());
+			throw e;
+		    }
+		}
+	    });
+    }
+
+    /** Looks up in parallel, in the background, those of a list of names not already known.
+     * Blank names and repeats are skipped. Returns the number to be looked up.
+     */
+    public int prefetch(Collection<String> names) {
+	Set<String> keys = new LinkedHashSet<String>();
+	int count = 0;
+	for(String name : names){
+	    String key = key(name);
+	    if(key.length() == 0 || !keys.add(key) || _fresh(key) != null || _pending.containsKey(key)) continue;
+	    resolve(name, null);
+	    count++;
+	}
+	return count;
+    }
+
+    /** Looks up the targets of the applications of a plan, as read by NightPlanner,
+     * in the background. Applications that cannot be read are skipped.
+     */
+    public void prefetchPlan(final List<NightPlanner.Request> requests, final Templates templates) {
+	_executor.submit(new Runnable() {
+		public void run() {
+		    prefetch(targets(requests, templates));
+		}
+	    });
+    }
+
+    /** The targets of the applications of a plan, in order, without repeats or blanks. Applications that cannot be read are skipped. */
+    public static List<String> targets(List<NightPlanner.Request> requests, Templates templates) {
+	Set<String> targets = new LinkedHashSet<String>();
+	for(NightPlanner.Request request : requests){
+	    try {
+		String target = AppFile.read(request.file, templates).getTarget().trim();
+		if(target.length() > 0) targets.add(target);
+	    }
+	    catch(Exception e){
+		// skipped
+	    }
+	}
+	return new ArrayList<String>(targets);
+    }
+
+    /** The form of a name used as a key: trimmed, with runs of blanks as one space, in lower case */
+    public static String key(String name) {
+	return BLANKS.matcher(name.trim()).replaceAll(" ").toLowerCase();
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    // Looks up a name, from the cache if known, or else by asking the sources. A name already being looked up is waited for rather than asked again
+    private Target _lookup(final String name) throws Exception {
+
+	String key = key(name);
+	if(key.length() == 0) return NONE;
+
+	try {
+	    if(_loaded != null) _loaded.get();
+	}
+	catch(ExecutionException e){
+	    // the cache is left empty, with the reason in _problem
+	}
+
+	Entry entry = _fresh(key);
+	if(entry != null) return entry.target;
+
+	FutureTask<Target> task = new FutureTask<Target>(new Callable<Target>() {
+		public Target call() throws Exception {
+		    return _ask(name);
+		}
+	    });
+	FutureTask<Target> running = _pending.putIfAbsent(key, task);
+	if(running == null){
+	    try {
+		task.run();
+	    }
+	    finally {
+		_pending.remove(key, task);
+	    }
+	    running = task;
+	}
+
+	try {
+	    Target target = running.get();
+	    if(running == task){
+		_entries.put(key, new Entry(target, System.currentTimeMillis()));
+		if(target != NONE) _saveLater();
+	    }
+	    return target;
+	}
+	catch(ExecutionException e){
+	    throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+	}
+    }
+
+    // Asks each source in turn; a name is only taken as unknown if at least one source could be asked
+    private Target _ask(String name) throws Exception {
+	String failure = null;
+	boolean asked  = false;
+	for(Source source : _sources){
+	    try {
+		Target target = source.find(name.trim());
+		asked = true;
+		if(target != null) return target;
+	    }
+	    catch(Exception e){
+		if(failure == null) failure = source.getName() + ": " + (e.getMessage() != null ? e.getMessage() : e.toString());
+	    }
+	}
+	if(!asked) throw new IOException(failure);
+	return NONE;
+    }
+
+    // The entry for a key if it is still to be trusted, else null
+    private Entry _fresh(String key) {
+	Entry entry = _entries.get(key);
+	if(entry == null || (entry.target == NONE && System.currentTimeMillis() - entry.time > MISS_LIFETIME)) return null;
+	return entry;
+    }
+
+    // Saves the cache soon, once however many objects are found meanwhile
+    private void _saveLater() {
+	if(_cache == null || !_saving.compareAndSet(false, true)) return;
+	try {
+	    _executor.submit(new Runnable() {
+		    public void run() {
+			_saving.set(false);
+			_save();
+		    }
+		});
+	}
+	catch(RejectedExecutionException e){
+	    // stopped, so saved at the next session
+	}
+    }
+
+    // Reads the cache: one object per line, key, id, ra, dec and source separated by tabs
+    private void _load() {
+	if(_cache == null || !_cache.exists()) return;
+	try {
+	    BufferedReader reader = new BufferedReader(new FileReader(_cache));
+	    try {
+		String line;
+		while((line = reader.readLine()) != null){
+		    String[] fields = line.split("\t", -1);
+		    if(fields.length != 5 || fields[0].length() == 0 || fields[1].length() == 0) continue;
+		    _entries.put(fields[0], new Entry(new Target(fields[1], fields[2], fields[3], fields[4]), _cache.lastModified()));
+		}
+	    }
+	    finally {
+		reader.close();
+	    }
+	}
+	catch(IOException e){
+	    _problem = "Failed to read the cache " + _cache + ": " + e;
+	}
+    }
+
+    // Writes the objects found, by way of a temporary file so that it is never left half-written
+    private synchronized void _save() {
+	if(_cache == null) return;
+	Map<String,Target> found = new TreeMap<String,Target>();
+	for(Map.Entry<String,Entry> entry : _entries.entrySet())
+	    if(entry.getValue().target != NONE) found.put(entry.getKey(), entry.getValue().target);
+
+	try {
+	    File temp = new File(_cache.getPath() + ".tmp");
+	    PrintWriter writer = new PrintWriter(new FileWriter(temp));
+	    try {
+		for(Map.Entry<String,Target> entry : found.entrySet()){
+		    Target target = entry.getValue();
+		    writer.println(entry.getKey() + "\t" + _field(target.id) + "\t" + _field(target.ra) + "\t" + _field(target.dec) + "\t" + _field(target.source));
+		}
+	    }
+	    finally {
+		writer.close();
+	    }
+	    if(writer.checkError())
+		throw new IOException("Failed to write " + temp);
+	    if(!temp.renameTo(_cache)){
+		_cache.delete();
+		if(!temp.renameTo(_cache))
+		    throw new IOException("Failed to rename " + temp + " to " + _cache);
+	    }
+	    _problem = null;
+	}
+	catch(IOException e){
+	    _problem = "Failed to save the cache " + _cache + ": " + e;
+	}
+    }
+
+    // A value as written to the cache, without the tabs and line breaks that separate values
+    private static String _field(String value) {
+	return value.replaceAll("[\t\r\n]+", " ");
+    }
+
+    // What a key resolves to, with the time it was found
+    private static final class Entry {
+
+	final Target target;
+	final long   time;
+
+	Entry(Target target, long time) {
+	    this.target = target;
+	    this.time   = time;
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Looks names up in SIMBAD with its script interface */
+    public static final class Simbad implements Source {
+
+	public static final String URL = "http://simbad.u-strasbg.fr/simbad/sim-script";
+
+	private final String _url;
+	private final int    _timeout;
+
+	/** Constructor
+	 * @param url     the script interface, normally URL
+	 * @param timeout milliseconds to wait to connect and for the reply
+	 */
+	public Simbad(String url, int timeout) {
+	    _url     = url;
+	    _timeout = timeout;
+	}
+
+	public String getName() {
+	    return "SIMBAD";
+	}
+
+	public Target find(String name) throws IOException {
+
+	    String script = "set limit 1\n";
+	    script += "format object form1 \"%IDLIST(1) : %COO(A) : %COO(D)\"\n";
+	    script += "echodata ** UDRIVER QUERY\n";
+	    script += "query id " + name + "\n";
+
+	    URLConnection connection = new URL(_url + "?submit=submit+script&script=" + URLEncoder.encode(script, "ISO-8859-1")).openConnection();
+	    connection.setConnectTimeout(_timeout);
+	    connection.setReadTimeout(_timeout);
+	    String[] lines = ReplyReader.get().readText(connection, Charset.forName("ISO-8859-1")).split("\n");
+
+	    // SIMBAD answers with an error if it does not know the name
+	    int start = 0;
+	    for(int i=0; i<lines.length; i++){
+		if(lines[i].indexOf("::error::") > -1) return null;
+		if(lines[i].indexOf("::data::") > -1) start = i;
+	    }
+	    for(int i=start; i<lines.length-1; i++){
+		if(lines[i].indexOf("** UDRIVER QUERY") > -1){
+		    String[] fields = lines[i+1].split(":");
+		    if(fields.length != 3) return null;
+		    return new Target(fields[0].trim(), fields[1].trim(), fields[2].trim(), getName());
+		}
+	    }
+	    return null;
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Looks names up in the UAC database of objects observed. Each lookup
+     * going at once has a connection of its own, taken from a small pool of
+     * those kept open between lookups, so that lookups in parallel are not
+     * made one at a time. */
+    public static final class UacDatabase implements Source {
+
+	/** Most connections kept open between lookups */
+	public static final int MAX_IDLE = 8;
+
+	private final String _host;
+	private final String _user;
+	private final String _password;
+
+	private final ConcurrentLinkedQueue<Connection> _idle   = new ConcurrentLinkedQueue<Connection>();
+	private final AtomicInteger                     _nidle  = new AtomicInteger(0);
+	private volatile boolean                        _closed = false;
+
+	/** Constructor
+	 * @param host     UAC_DATABASE_HOST
+	 * @param user     UAC_DATABASE_USER
+	 * @param password UAC_DATABASE_PASSWORD
+	 */
+	public UacDatabase(String host, String user, String password) {
+	    _host     = host;
+	    _user     = user;
+	    _password = password;
+	}
+
+	public String getName() {
+	    return "UAC database";
+	}
+
+	// A connection lost since its last lookup is made again, once
+	public Target find(String name) throws SQLException {
+	    for(int attempt=0; ; attempt++){
+		Connection connection = null;
+		try {
+		    connection = _take();
+		    Target target;
+		    PreparedStatement statement = connection.prepareStatement("SELECT id FROM objects WHERE names LIKE ? LIMIT 1");
+		    try {
+			statement.setString(1, "%" + name + "%");
+			ResultSet result = statement.executeQuery();
+			target = result.next() ? new Target(result.getString("id"), "", "", getName()) : null;
+		    }
+		    finally {
+			statement.close();
+		    }
+		    _give(connection);
+		    return target;
+		}
+		catch(SQLException e){
+		    if(connection != null) _close(connection);
+		    if(attempt > 0) throw e;
+		}
+	    }
+	}
+
+	/** Closes the connections kept open; those in use are closed when their lookups end */
+	public void close() {
+	    _closed = true;
+	    Connection connection;
+	    while((connection = _idle.poll()) != null){
+		_nidle.decrementAndGet();
+		_close(connection);
+	    }
+	}
+
+	// An idle connection, or a new one if there is none
+	private Connection _take() throws SQLException {
+	    Connection connection = _idle.poll();
+	    if(connection != null){
+		_nidle.decrementAndGet();
+		return connection;
+	    }
+	    return DriverManager.getConnection("jdbc:mysql://" + _host + "/uac", _user, _password);
+	}
+
+	// Keeps a connection for the next lookup, unless enough are kept already
+	private void _give(Connection connection) {
+	    if(_closed || _nidle.incrementAndGet() > MAX_IDLE){
+		_nidle.decrementAndGet();
+		_close(connection);
+		return;
+	    }
+	    _idle.offer(connection);
+	    if(_closed) close();
+	}
+
+	private static void _close(Connection connection) {
+	    try {
+		connection.close();
+	    }
+	    catch(SQLException e){
+		// closing anyway
+	    }
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Looks names up in a local file, standing in for SIMBAD and the UAC
+     * database when testing without the network. The file has one object per
+     * line, as SIMBAD gives them: name : ra : dec. Blank lines and anything
+     * after # are ignored.
+     */
+    public static final class StandIn implements Source {
+
+	private final Map<String,Target> _targets = new ConcurrentHashMap<String,Target>();
+
+	public StandIn(File file) throws IOException {
+	    BufferedReader reader = new BufferedReader(new FileReader(file));
+	    try {
+		String line;
+		int nline = 0;
+		while((line = reader.readLine()) != null){
+		    nline++;
+		    int hash = line.indexOf('#');
+		    if(hash >= 0) line = line.substring(0, hash);
+		    if(line.trim().length() == 0) continue;
+		    String[] fields = line.split(":");
+		    if(fields.length != 3 || fields[0].trim().length() == 0)
+			throw new IOException(file + ", line " + nline + ": expected name : ra : dec");
+		    _targets.put(key(fields[0]), new Target(fields[0].trim(), fields[1].trim(), fields[2].trim(), getName()));
+		}
+	    }
+	    finally {
+		reader.close();
+	    }
+	}
+
+	public String getName() {
+	    return "stand-in";
+	}
+
+	public Target find(String name) {
+	    return _targets.get(key(name));
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Looks up the targets of plans, or target names, ahead of a night so
+     * that the cache has them, printing each with what it resolves to, e.g.
+     * <pre>
+     * java warwick.marsh.ultracam.udriver.TargetResolver tonight.plan
+     * </pre>
+     * Arguments ending .plan are plan files as read by NightPlanner; others
+     * are names. Options: -config file (default udriver.conf, for the
+     * templates, TARGET_CACHE, TARGET_STAND_IN and the UAC_DATABASE_ keys) and
+     * -threads n (default 8). Exits with 0 if all are found, 1 if any is
+     * not and 2 if they could not be looked up.
+     */
+    public static void main(String[] args) {
+	try {
+	    CommandLine  command = new CommandLine(args, 8);
+	    List<String> names   = new ArrayList<String>();
+	    List<File>   plans   = new ArrayList<File>();
+	    for(String arg : command.arguments){
+		if(arg.endsWith(".plan"))
+		    plans.add(new File(arg));
+		else
+		    names.add(arg);
+	    }
+	    if(names.isEmpty() && plans.isEmpty()){
+		System.out.println("usage: TargetResolver [-config file] [-threads n] plan.plan|name ...");
+		System.exit(2);
+	    }
+
+	    Config settings = Config.load(command.config);
+	    for(File plan : plans)
+		names.addAll(targets(NightPlanner.readPlan(plan), settings.getTemplates()));
+
+	    long start = System.currentTimeMillis();
+	    TargetResolver resolver = new TargetResolver(_sources(settings), settings.targetCache.length() > 0 ? new File(settings.targetCache) : null, command.nthreads);
+	    resolver.start();
+
+	    List<Future<Target>> pending = new ArrayList<Future<Target>>();
+	    for(String name : names)
+		pending.add(resolver.resolve(name, null));
+
+	    int missing = 0, failed = 0;
+	    for(int i=0; i<names.size(); i++){
+		try {
+		    Target target = pending.get(i).get();
+		    if(target == NONE) missing++;
+		    System.out.println(names.get(i) + "\t" + (target == NONE ? "not found" : target.toString()));
+		}
+		catch(ExecutionException e){
+		    failed++;
+		    System.out.println(names.get(i) + "\tfailed: " + e.getCause().getMessage());
+		}
+	    }
+	    resolver._save();
+
+	    System.err.println("Looked up " + names.size() + " targets in " + (System.currentTimeMillis()-start)/1000. + " s: " +
+			       missing + " not found, " + failed + " failed");
+	    if(resolver.getProblem() != null) System.err.println(resolver.getProblem());
+	    System.exit(missing > 0 ? 1 : failed > 0 ? 2 : 0);
+	}
+	catch(Exception e){
+	    System.err.println(e.getMessage() != null ? e.getMessage() : e.toString());
+	    System.exit(2);
+	}
+    }
+
+    // The sources a configuration asks for: TARGET_STAND_IN alone if set, otherwise the UAC database, if its driver can be loaded, and SIMBAD
+    private static List<Source> _sources(Config config) throws IOException {
+	List<Source> sources = new ArrayList<Source>();
+	if(config.targetStandIn.length() > 0){
+	    sources.add(new StandIn(new File(config.targetStandIn)));
+	    return sources;
+	}
+	try {
+	    Class.forName("com.mysql.jdbc.Driver");
+	    if(config.uacDatabaseUser.length() > 0)
+		sources.add(new UacDatabase(config.uacDatabaseHost.trim(), config.uacDatabaseUser, config.uacDatabasePassword));
+	}
+	catch(ClassNotFoundException e){
+	    // no driver, so no database
+	}
+	sources.add(new Simbad(Simbad.URL, SIMBAD_TIMEOUT));
+	return sources;
+    }
+
+}
@@ -0,0 +1,125 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+
+/** The template applications in TEMPLATE_DIRECTORY which Udriver fills in to
+ * make each application it posts or saves. They can be read in the background
+ * at start, so that the first post does not wait on the disk. Each is handed
+ * out as a copy, since Udriver changes the document it is given; a file
+ * changed since it was read is read again. Thread-safe.
+ */
+
+public class TemplateDocuments {
+
+    private final String   _directory;
+    private final String[] _apps;
+
+    // One entry per template, each locked on its own so that reading one never waits for another
+    private final Map<String,Entry> _entries = new HashMap<String,Entry>();
+
+    // DocumentBuilders are not thread-safe
+    private final ThreadLocal<DocumentBuilder> _builder = new ThreadLocal<DocumentBuilder>() {
+	    protected DocumentBuilder initialValue() {
+		try {
+		    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		    dbf.setValidating(false);
+		    return dbf.newDocumentBuilder();
+		}
+		catch(Exception e){
+		    throw new RuntimeException(e);
+		}
+	    }
+	};
+
+    /** Constructor
+     * @param directory TEMPLATE_DIRECTORY, to which the names are appended
+     * @param apps      TEMPLATE_APP, the names of the template files
+     */
+    public TemplateDocuments(String directory, String[] apps) {
+	_directory = directory;
+	_apps      = apps.clone();
+    }
+
+    /** Starts reading all the templates on a background thread. Files that
+     * cannot be read are left alone, to be reported when they are asked for.
+     */
+    public void prefetch() {
+	Thread thread = new Thread(new Runnable() {
+		public void run() {
+		    Set<String> apps = new LinkedHashSet<String>();
+		    for(String app : _apps) apps.add(app);
+		    for(String app : apps){
+			try {
+			    _entry(app).read();
+			}
+			catch(Exception e){
+			    // reported by get
+			}
+		    }
+		}
+	    }, "template prefetch");
+	thread.setDaemon(true);
+	thread.setPriority(Thread.MIN_PRIORITY);
+	thread.start();
+    }
+
+    /** Returns a copy of a template, reading it if it has not been read or has
+     * changed since. Only a read of the same template is waited for.
+     * @param app the name of the template file, a TEMPLATE_APP value
+     */
+    public Document get(String app) throws Exception {
+	Entry entry = _entry(app);
+	synchronized(entry){
+	    return (Document)entry.read().cloneNode(true);
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    private synchronized Entry _entry(String app) {
+	Entry entry = _entries.get(app);
+	if(entry == null){
+	    entry = new Entry(new File(_directory + app));
+	    _entries.put(app, entry);
+	}
+	return entry;
+    }
+
+    // A template file, with the document last read from it and the time of the file then
+    private final class Entry {
+
+	private final File file;
+	private long       modified = 0L;
+	private Document   document = null;
+
+	Entry(File file) {
+	    this.file = file;
+	}
+
+	// The document, read again if the file has changed
+	synchronized Document read() throws Exception {
+	    long time = file.lastModified();
+	    if(document == null || time != modified || time == 0L){
+		document = _builder.get().parse(file);
+		modified = time;
+	    }
+	    return document;
+	}
+    }
+
+}
@@ -0,0 +1,103 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.StringTokenizer;
+
+/** The application templates listed in the configuration file: for each,
+ * its label, the number of window pairs it has and the id which identifies
+ * applications made from it, the value of the xlink:href attribute of their
+ * executablecode element.
+ */
+
+public class Templates {
+
+    private final String[] _label;
+    private final int[]    _npair;
+    private final String[] _id;
+
+    /** Constructor
+     * @param label TEMPLATE_LABEL values
+     * @param pair  TEMPLATE_PAIR values
+     * @param id    TEMPLATE_ID values
+     */
+    public Templates(String[] label, String[] pair, String[] id) throws Exception {
+	if(pair.length != label.length || id.length != label.length)
+	    throw new Exception("TEMPLATE_LABEL, TEMPLATE_PAIR and TEMPLATE_ID must have the same number of values");
+	_label = label.clone();
+	_id    = id.clone();
+	_npair = new int[pair.length];
+	for(int i=0; i<pair.length; i++){
+	    try {
+		_npair[i] = Integer.parseInt(pair[i].trim());
+	    }
+	    catch(NumberFormatException e){
+		throw new Exception("TEMPLATE_PAIR value = \"" + pair[i] + "\" is not an integer");
+	    }
+	}
+    }
+
+    /** Reads the templates from configuration file properties */
+    public Templates(Properties properties) throws Exception {
+	this(_split(properties, "TEMPLATE_LABEL"), _split(properties, "TEMPLATE_PAIR"), _split(properties, "TEMPLATE_ID"));
+    }
+
+    /** Reads the templates from a configuration file */
+    public static Templates load(File file) throws Exception {
+	Properties properties = new Properties();
+	InputStream in = new FileInputStream(file);
+	try {
+	    properties.load(in);
+	}
+	finally {
+	    in.close();
+	}
+	return new Templates(properties);
+    }
+
+    /** Number of templates */
+    public int size() {
+	return _label.length;
+    }
+
+    /** The index of the template with a given id, -1 if there is none */
+    public int indexOfId(String id) {
+	for(int i=0; i<_id.length; i++)
+	    if(_id[i].equals(id)) return i;
+	return -1;
+    }
+
+    public String getLabel(int i) {
+	return _label[i];
+    }
+
+    public int getNpair(int i) {
+	return _npair[i];
+    }
+
+    public String getId(int i) {
+	return _id[i];
+    }
+
+    // Splits a property at semi-colons, as Udriver does
+    private static String[] _split(Properties properties, String key) throws Exception {
+	String value = properties.getProperty(key);
+	if(value == null)
+	    throw new Exception("Could not find " + key + " in configuration file");
+	StringTokenizer stringTokenizer = new StringTokenizer(value, ";\n");
+	String[] values = new String[stringTokenizer.countTokens()];
+	int i = 0;
+	while(stringTokenizer.hasMoreTokens())
+	    values[i++] = stringTokenizer.nextToken().trim();
+	return values;
+    }
+
+}
@@ -0,0 +1,120 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+/** Measures the frames and bytes per second a run actually achieves from
+ * samples of what the data server has written, and compares the frame rate
+ * with that predicted from the setup. Rates between samples are smoothed
+ * with an exponentially weighted moving average whose weight depends on
+ * the time between samples, so irregular sampling does not bias it. The
+ * run is flagged as slow or fast once the smoothed rate is more than a
+ * tolerance away from the prediction. Not thread-safe: use from one thread,
+ * normally the GUI thread.
+ */
+
+public class ThroughputMonitor {
+
+    /** States: too few samples yet, within tolerance, too slow, too fast */
+    public static final int UNKNOWN = 0;
+    public static final int OK      = 1;
+    public static final int SLOW    = 2;
+    public static final int FAST    = 3;
+
+    /** Rates measured before the state is judged */
+    public static final int MIN_RATES = 2;
+
+    private final double _predictedFrameRate;
+    private final long   _bytesPerImage;
+    private final long   _maxFrames;
+    private final double _tolerance;
+    private final double _timeConstant;
+
+    private long   _lastTime   = 0;
+    private long   _lastFrames = -1;
+    private long   _lastBytes  = -1;
+    private double _frameRate  = 0.;
+    private double _byteRate   = 0.;
+    private int    _nrates     = 0;
+    private int    _state      = UNKNOWN;
+
+    /** Constructor
+     * @param predictedFrameRate frames per second predicted
+     * @param bytesPerImage      bytes per frame
+     * @param nexposures         number of frames in the run, 0 or less if unlimited
+     * @param tolerance          fractional difference from the prediction tolerated, e.g. 0.1
+     * @param timeConstant       seconds over which rates are averaged
+     */
+    public ThroughputMonitor(double predictedFrameRate, long bytesPerImage, int nexposures, double tolerance, double timeConstant) {
+	_predictedFrameRate = predictedFrameRate;
+	_bytesPerImage      = bytesPerImage;
+	_maxFrames          = nexposures > 0 ? nexposures : Long.MAX_VALUE;
+	_tolerance          = tolerance;
+	_timeConstant       = timeConstant;
+    }
+
+    /** Adds a sample of what has been written; either may be unknown, and is then worked out from the other
+     * @param frames frames written, -1 if unknown
+     * @param bytes  bytes written, -1 if unknown
+     * @param when   System.nanoTime() at which they were written
+     */
+    public void sample(long frames, long bytes, long when) {
+
+	if(frames < 0 && bytes >= 0 && _bytesPerImage > 0) frames = bytes/_bytesPerImage;
+	if(bytes < 0 && frames >= 0) bytes = frames*_bytesPerImage;
+	if(frames < 0) return;
+
+	// A run that finished since the last sample would look as if it had slowed down
+	if(_lastFrames >= 0 && frames >= _lastFrames && bytes >= _lastBytes && frames < _maxFrames){
+	    double dt = (when - _lastTime)/1.e9;
+	    if(dt < 1.) return;
+	    double frameRate = (frames - _lastFrames)/dt;
+	    double byteRate  = (bytes  - _lastBytes)/dt;
+	    if(_nrates == 0){
+		_frameRate = frameRate;
+		_byteRate  = byteRate;
+	    }else{
+		double weight = 1. - Math.exp(-dt/_timeConstant);
+		_frameRate += weight*(frameRate - _frameRate);
+		_byteRate  += weight*(byteRate  - _byteRate);
+	    }
+	    _nrates++;
+	    if(_nrates >= MIN_RATES && _predictedFrameRate > 0){
+		double ratio = _frameRate/_predictedFrameRate;
+		_state = ratio < 1. - _tolerance ? SLOW : ratio > 1. + _tolerance ? FAST : OK;
+	    }
+	}
+	// Otherwise the first sample, a new file or the end of the run; start again from here
+	_lastFrames = frames;
+	_lastBytes  = bytes;
+	_lastTime   = when;
+    }
+
+    /** Smoothed frames per second, 0 until measured */
+    public double getFrameRate() {
+	return _frameRate;
+    }
+
+    /** Smoothed bytes per second, 0 until measured */
+    public double getByteRate() {
+	return _byteRate;
+    }
+
+    public double getPredictedFrameRate() {
+	return _predictedFrameRate;
+    }
+
+    /** Whether any rate has been measured */
+    public boolean isMeasured() {
+	return _nrates > 0;
+    }
+
+    /** One of UNKNOWN, OK, SLOW or FAST */
+    public int getState() {
+	return _state;
+    }
+
+}
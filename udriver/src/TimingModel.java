@@ -0,0 +1,312 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+/** The timing and data volume of ULTRACAM setups. These used to be worked
+ * out inside Udriver from the values in the GUI; here they depend only on
+ * a Setup, so that setups other than the one on screen can be evaluated,
+ * e.g. to find one that fits the data rate budget.
+ */
+
+public final class TimingModel {
+
+    private TimingModel() {}
+
+    // Timing parameters from Vik
+    public static final double INVERSION_DELAY = 110.;   // microseconds
+    public static final double VCLOCK_FRAME    = 23.3;   // microseconds
+    public static final double VCLOCK_STORAGE  = 23.3;   // microseconds
+    public static final double HCLOCK          = 0.48;   // microseconds
+    //EDIT
+    public static final double CDS_TIME_FDD    = 1.84;    // microseconds
+    public static final double CDS_TIME_FBB    = 4.40;    // microseconds
+    public static final double CDS_TIME_CDD    = 9.76;    // microseconds
+    public static final double SWITCH_TIME     = 0.56;    // microseconds
+
+    /** The parameters of a setup which affect its timing */
+    public static final class Setup {
+
+	private final String _template;
+	private final String _readSpeed;
+	private final int    _xbin;
+	private final int    _ybin;
+	private final int    _expose;
+	private final int[]  _pairs;
+
+	/** Constructor
+	 * @param template  the application template, e.g. "2 windows"
+	 * @param readSpeed "Slow", "Fast" or "Turbo"
+	 * @param xbin      X binning factor
+	 * @param ybin      Y binning factor
+	 * @param expose    exposure delay, units of 0.1 milliseconds
+	 * @param pairs     ystart, xleft, xright, nx, ny of each window pair in use, in turn
+	 */
+	public Setup(String template, String readSpeed, int xbin, int ybin, int expose, int[] pairs) {
+	    this(pairs.clone(), template, readSpeed, xbin, ybin, expose);
+	}
+
+	/** Constructor taking the window pairs from a model
+	 * @param windows the window pairs
+	 * @param npair   the number of pairs in use, 0 for full frames
+	 * @throws IllegalStateException if a value of a pair in use could not be read, saying which
+	 */
+	public Setup(String template, String readSpeed, int xbin, int ybin, int expose, WindowModel windows, int npair) {
+	    this(windows.toArray(npair), template, readSpeed, xbin, ybin, expose);
+	}
+
+	// Takes the array of pairs as it is, which must not be changed afterwards
+	private Setup(int[] pairs, String template, String readSpeed, int xbin, int ybin, int expose) {
+	    _template  = template;
+	    _readSpeed = readSpeed;
+	    _xbin      = xbin;
+	    _ybin      = ybin;
+	    _expose    = expose;
+	    _pairs     = pairs;
+	}
+
+	public String getTemplate()  { return _template; }
+	public String getReadSpeed() { return _readSpeed; }
+	public int    getXbin()      { return _xbin; }
+	public int    getYbin()      { return _ybin; }
+	public int    getExpose()    { return _expose; }
+	public int    getNpair()     { return _pairs.length/5; }
+	public int    getYstart(int i) { return _pairs[5*i]; }
+	public int    getXleft(int i)  { return _pairs[5*i+1]; }
+	public int    getXright(int i) { return _pairs[5*i+2]; }
+	public int    getNx(int i)     { return _pairs[5*i+3]; }
+	public int    getNy(int i)     { return _pairs[5*i+4]; }
+
+	/** Whether the setup reads full frames rather than windows */
+	public boolean isFullFrame() {
+	    return _template.startsWith("Fullframe");
+	}
+
+	/** The same setup with other binning factors */
+	public Setup withBinning(int xbin, int ybin) {
+	    return new Setup(_pairs, _template, _readSpeed, xbin, ybin, _expose);
+	}
+
+	/** The same setup with another exposure delay */
+	public Setup withExpose(int expose) {
+	    return new Setup(_pairs, _template, _readSpeed, _xbin, _ybin, expose);
+	}
+
+	/** Whether the binning factors divide the window dimensions, as the windows require */
+	public boolean binningFits() {
+	    if(isFullFrame()) return true;
+	    for(int i=0; i<getNpair(); i++)
+		if(getNx(i) % _xbin != 0 || getNy(i) % _ybin != 0) return false;
+	    return true;
+	}
+    }
+
+    /** The timing of a setup, all in seconds */
+    public static final class Timing {
+
+	public final double cycleTime;
+	public final double exposureTime;
+	public final double frameTransfer;
+	public final double readout;
+
+	// Pipe shift and number of windows in the storage area, drift mode only
+	public final int pshift;
+	public final int nwins;
+
+	Timing(double cycleTime, double exposureTime, double frameTransfer, double readout, int pshift, int nwins) {
+	    this.cycleTime     = cycleTime;
+	    this.exposureTime  = exposureTime;
+	    this.frameTransfer = frameTransfer;
+	    this.readout       = readout;
+	    this.pshift        = pshift;
+	    this.nwins         = nwins;
+	}
+
+	public double getDeadTime() {
+	    return cycleTime - exposureTime;
+	}
+    }
+
+    /** Computes the timing of a setup */
+    public static Timing timing(Setup setup) {
+
+	String readSpeed           = setup.getReadSpeed();
+	String applicationTemplate = setup.getTemplate();
+	int    xbin                = setup.getXbin();
+	int    ybin                = setup.getYbin();
+	int    expose              = setup.getExpose();
+
+	double cdsTime, clearTime, frameTransfer, readout, video;
+	double cycleTime, exposureTime;
+	int nwins = 0, pshift = 0;
+
+	if(readSpeed.equals("Fast")){
+	    cdsTime = CDS_TIME_FBB;
+	}else if(readSpeed.equals("Turbo")){
+	    cdsTime = CDS_TIME_FDD;
+	}else if(readSpeed.equals("Slow")){
+	    cdsTime = CDS_TIME_CDD;
+	}else{
+	    throw new Error("readSpeed = \"" + readSpeed + "\" is unrecognised. Programming error");
+	}
+	video = cdsTime + SWITCH_TIME;
+
+	if(applicationTemplate.equals("Fullframe + clear") || applicationTemplate.equals("Fullframe, no clear")){
+
+	    frameTransfer = 1033*VCLOCK_FRAME;
+	    readout       = (VCLOCK_STORAGE*ybin + 536.*HCLOCK + (512./xbin+2)*video)*(1024./ybin);
+	    if(applicationTemplate.equals("Fullframe + clear")){
+		clearTime    = (1033 + 1027)*VCLOCK_FRAME;
+		cycleTime    = (INVERSION_DELAY + 100*expose + clearTime + frameTransfer + readout)/1.e6;
+		exposureTime = expose/10000.;
+	    }else{
+		cycleTime    = (INVERSION_DELAY + 100*expose + frameTransfer + readout)/1.e6;
+		exposureTime = cycleTime - frameTransfer/1.e6;
+	    }
+	    readout      /= 1.e6;
+
+	}else if(applicationTemplate.equals("Fullframe with overscan") || applicationTemplate.equals("Fullframe, overscan, no clear")){
+
+	    frameTransfer = 1033.*VCLOCK_FRAME;
+	    readout       = (VCLOCK_STORAGE*ybin + 540.*HCLOCK + ((540./xbin)+2.)*video)*(1032/ybin);
+	    if(applicationTemplate.equals("Fullframe with overscan")){
+		clearTime     = (1033. + 1032.) * VCLOCK_FRAME;
+		cycleTime     = (INVERSION_DELAY + 100*expose + clearTime + frameTransfer + readout)/1.e6;
+		exposureTime  = expose/10000.;
+	    }else{
+		cycleTime     = (INVERSION_DELAY + 100*expose + frameTransfer + readout)/1.e6;
+		exposureTime  = cycleTime - frameTransfer/1.e6;
+	    }
+	    readout      /= 1.e6;
+
+	}else if(applicationTemplate.equals("2 windows") || applicationTemplate.equals("4 windows") ||
+		 applicationTemplate.equals("6 windows") || applicationTemplate.equals("2 windows + clear") ){
+
+	    if(applicationTemplate.equals("2 windows + clear") ){
+		clearTime     = (1033 + 1027)*VCLOCK_FRAME;
+	    }else{
+		clearTime = 0.;
+	    }
+	    frameTransfer = 1033.*VCLOCK_FRAME;
+	    cycleTime     = INVERSION_DELAY + 100*expose + frameTransfer + clearTime;
+	    readout       = 0.;
+
+	    for(int i=0; i<setup.getNpair(); i++){
+
+		int ystart = setup.getYstart(i);
+		int xleft  = setup.getXleft(i);
+		int xright = setup.getXright(i);
+		int nx     = setup.getNx(i);
+		int ny     = setup.getNy(i);
+
+		int ystart_m = i > 0 ? setup.getYstart(i-1) : 1;
+		int ny_m     = i > 0 ? setup.getNy(i-1)     : 0;
+
+		// Time taken to shift the window next to the storage area
+		double yShift = i > 0 ? (ystart-ystart_m-ny_m)*VCLOCK_STORAGE : (ystart-1)*VCLOCK_STORAGE;
+
+		// Number of columns to shift whichever window is further from the edge of the readout
+		// to get ready for simultaneous readout.
+		int diffShift = Math.abs(xleft - 1 - (1024 - xright - nx + 1) );
+
+		// Time taken to dump any pixels in a row that come after the ones we want.
+		// The '8' is the number of HCLOCKs needed to open the serial register dump gates
+		// If the left window is further from the left edge than the right window is from the
+		// right edge, then the diffshift will move it to be the same as the right window, and
+		// so we use the right window parameters to determine the number of hclocks needed, and
+		// vice versa.
+		int numHclocks   = (xleft - 1 > 1024-xright-nx+1) ?
+		    nx + diffShift + (1024 - xright - nx + 1) + 8 :
+		    nx + diffShift + (xleft - 1) + 8;
+
+		// Time taken to read one line. The extra 2 is required to fill the video pipeline buffer
+		double lineRead = VCLOCK_STORAGE*ybin + numHclocks*HCLOCK + (nx/xbin+2)*video;
+
+		// Time taken to read window
+		double read     = (ny/ybin)*lineRead;
+
+		cycleTime += yShift + read;
+		readout   += yShift + read;
+	    }
+
+	    // Convert to microseconds
+	    if(applicationTemplate.equals("2 windows + clear") ){
+		exposureTime = expose/10000.;
+	    }else{
+		exposureTime = (cycleTime - frameTransfer)/1.e6;
+	    }
+
+	    cycleTime   /= 1.e6;
+	    readout     /= 1.e6;
+
+	}else if(applicationTemplate.equals("Drift mode") || applicationTemplate.equals("Timing test")){
+
+	    // Timing test is the same as drift mode except no compensating delays are added, so on average
+	    // there is only one pipe shift per nwin frames
+	    boolean drift = applicationTemplate.equals("Drift mode");
+
+	    int ystart = setup.getYstart(0);
+	    int xleft  = setup.getXleft(0);
+	    int xright = setup.getXright(0);
+	    int nx     = setup.getNx(0);
+	    int ny     = setup.getNy(0);
+
+	    // Drift mode
+	    nwins  = (int)(((1033. / ny ) + 1.)/2.);
+	    pshift = (int)(1033.-(((2.*nwins)-1.)*ny));
+
+	    frameTransfer = (ny + ystart - 1.)*VCLOCK_FRAME;
+	    int diffShift   = Math.abs(xleft - 1 - (1024-xright-nx+1));
+	    int numHclocks  = (xleft - 1 > 1024-xright-nx+1) ?
+		nx + diffShift + (1024-xright-nx+1) + 8 :
+		nx + diffShift + (xleft-1) + 8;
+	    double lineRead = VCLOCK_STORAGE*ybin + numHclocks*HCLOCK + (nx/xbin+2)*video;
+	    double read     = (ny/ybin)*lineRead;
+
+	    double shift  = drift ? pshift*VCLOCK_STORAGE : (pshift*VCLOCK_STORAGE)/nwins;
+	    cycleTime    = (INVERSION_DELAY + shift + 100*expose + frameTransfer + read)/1.e6;
+	    exposureTime = cycleTime - frameTransfer/1.e6;
+	    readout      = (read + shift)/1.e6;
+
+	}else{
+	    throw new Error("Application = \"" + applicationTemplate + "\" is unrecognised. Programming error in speed");
+	}
+
+	return new Timing(cycleTime, exposureTime, frameTransfer/1.e6, readout, pshift, nwins);
+    }
+
+    /** Number of bytes in each image of a setup */
+    public static int nbytesPerImage(Setup setup) {
+
+	int xbin = setup.getXbin();
+	int ybin = setup.getYbin();
+
+	// time bytes
+	int n = 24;
+
+	if(setup.getTemplate().equals("Fullframe + clear") || setup.getTemplate().equals("Fullframe, no clear")){
+
+	    n += 12*(512/xbin)*(1024/ybin);
+
+	}else if(setup.getTemplate().equals("Fullframe with overscan") || setup.getTemplate().equals("Fullframe, overscan, no clear")){
+
+	    n += 12*(540/xbin)*(1032/ybin);
+
+	}else{
+
+	    for(int i=0; i<setup.getNpair(); i++)
+		n += 12*(setup.getNx(i) / xbin ) * (setup.getNy(i) / ybin );
+
+	}
+	return n;
+    }
+
+    /** Sustained rate at which a setup produces data, bytes per second */
+    public static double dataRate(Setup setup) {
+	return nbytesPerImage(setup)/timing(setup).cycleTime;
+    }
+
+}
@@ -13,33 +13,41 @@ package warwick.marsh.ultracam.udriver;
 import java.io.*;
 import javax.swing.*;
 import javax.swing.border.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.table.AbstractTableModel;
 import javax.swing.JOptionPane;
 import java.lang.Integer;
-import java.util.StringTokenizer;
-import java.util.Properties;
 import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.TreeSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import java.awt.*;
 import java.awt.event.*;
 
 import java.net.URL;
-import java.net.URLConnection;
-import java.net.URLEncoder;
-import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
 import java.net.HttpURLConnection;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
-import java.net.Socket;
-import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 import java.text.DecimalFormat;
 
+import java.lang.management.ManagementFactory;
+
 import org.w3c.dom.*;
 import org.xml.sax.*;
 
@@ -50,15 +58,10 @@ import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.stream.StreamResult;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
-
 import warwick.marsh.util.*;
 import warwick.marsh.ultracam.LogPanel;
+import warwick.marsh.ultracam.LogSearch;
+import warwick.marsh.ultracam.LogWriter;
 import warwick.marsh.ultracam.ReplyPanel;
 import warwick.marsh.ultracam.Telescope;
 import warwick.marsh.ultracam.Telescope;
@@ -87,14 +90,10 @@ import warwick.marsh.ultracam.Telescope;
 public class Udriver extends JFrame {
 
     // Telescope data. See the class for a full description of the fields
-    private static final Telescope[] TELESCOPE_DATA = {
-	new Telescope("VLT", new double[] {26.54, 28.35, 27.69, 27.55, 26.71}, 0.15, "vlt.xml"),
-	new Telescope("WHT", new double[] {25.11, 26.92, 26.26, 26.12, 25.28}, 0.30, "wht.xml"),
-	new Telescope("NTT", new double[] {24.47, 26.28, 25.92, 25.48, 24.64}, 0.35, "ntt.xml"),
-    };
+    private static final Telescope[] TELESCOPE_DATA = Config.TELESCOPES;
 
     // Generic application to initialise servers
-    private static final String   GENERIC_APP  = "ultracam.xml";
+    private static final String   GENERIC_APP  = Config.GENERIC_APP;
 
     // The following is used to pass the telescope data around
     private Telescope _telescope = null;
@@ -129,17 +128,6 @@ public class Udriver extends JFrame {
     // Dark count rate, counts/sec/pixel
     private static final double DARK_COUNT = 0.1;
 
-    // Timing parameters from Vik
-    public static final double INVERSION_DELAY = 110.;   // microseconds
-    public static final double VCLOCK_FRAME    = 23.3;   // microseconds
-    public static final double VCLOCK_STORAGE  = 23.3;   // microseconds
-    public static final double HCLOCK          = 0.48;   // microseconds
-    //EDIT
-    public static final double CDS_TIME_FDD    = 1.84;    // microseconds
-    public static final double CDS_TIME_FBB    = 4.40;    // microseconds
-    public static final double CDS_TIME_CDD    = 9.76;    // microseconds
-    public static final double SWITCH_TIME     = 0.56;    // microseconds
-
     // Special values of NY when pipe shift hits a minimum
     public static final int[] specialNy = {8, 10, 13, 18, 21, 24, 31, 38, 41, 49, 54, 60, 68, 79, 93, 114, 147, 206, 344};
   
@@ -173,12 +161,48 @@ public class Udriver extends JFrame {
     private Timer      _runActive     = null;
     private JTextField _exposureTime  = new JTextField("0", 7);
     private JTextField _spaceUsed     = new JTextField("0", 7);
+    private JTextField _diskEta       = new JTextField("", 7);
     private JTextField _runNumber     = new JTextField("", 7);
     private ActionListener _checkRun  = null;
+
+    // Elapsed time and data volume of the current run; the display timer just reads it
+    private ExposureMeter _meter            = null;
+    private long          _lastCorrection   = 0;
+    private boolean       _correcting       = false;
+    private boolean       _progressReported = true;
+
+    // The one thread on which the data server is asked for its file status, for the meter and the throughput
+    private final ExecutorService _fileStatus = Executors.newSingleThreadExecutor(new ThreadFactory() {
+	    public Thread newThread(Runnable task) {
+		Thread thread = new Thread(task, "file status");
+		thread.setDaemon(true);
+		return thread;
+	    }
+	});
+
+    // Frames and bytes per second actually achieved by the current run
+    private ThroughputMonitor _throughput     = null;
+    private JTextField        _measuredFrames = new JTextField("", 7);
+    private JTextField        _measuredData   = new JTextField("", 7);
+    private int               _throughputState = ThroughputMonitor.UNKNOWN;
     
-    // Thresholds for changing colour of disk space 
+    // Thresholds for changing colour of disk space, MB
     public static final int DISK_SPACE_WARN   = 1500;
     public static final int DISK_SPACE_DANGER = 1800;
+
+    // Seconds between asking the data server how much it has written during a run: default and least
+    public static final int FSTATUS_INTERVAL     = Config.FSTATUS_INTERVAL;
+    public static final int MIN_FSTATUS_INTERVAL = Config.MIN_FSTATUS_INTERVAL;
+
+    // Rate at which the data server can write, configured or measured
+    private DataRateBudget _dataRateBudget = null;
+    // Warning for _postApp to log once the setup _checkDataRate let through over budget is posted
+    private String         _overBudget     = null;
+
+    // Queue of applications being run one after another, if any
+    private Sequencer  _sequencer    = null;
+    private JMenuItem  _sequenceRun  = null;
+    private JMenuItem  _sequenceStop = null;
     
     // These are used to store values from last posted application
     private int _nbytesPerImage  = 0;
@@ -196,6 +220,25 @@ public class Udriver extends JFrame {
 
     // Configurable values
     public static boolean RTPLOT_SERVER_ON;
+    public static String  RTPLOT_SERVER_HOST    = null;
+    public static int     RTPLOT_SERVER_PORT    = 5100;
+    public static int     RTPLOT_WRITE_TIMEOUT  = 5000;
+    public static String  RTPLOT_WINDOW_FILE    = null;
+    public static boolean CONTROL_SERVER_ON     = false;
+    public static String  CONTROL_SERVER_HOST   = "localhost";
+    public static int     CONTROL_SERVER_PORT   = 5110;
+    public static boolean JOURNAL_ON            = false;
+    public static String  JOURNAL_DIRECTORY     = null;
+    public static boolean APP_LIBRARY_ON        = false;
+    public static String  APP_LIBRARY_CACHE     = "";
+    public static String  TARGET_CACHE          = "";
+    public static String  TARGET_STAND_IN       = "";
+    public static boolean CONFIG_RELOAD         = false;
+    public static double  DATA_RATE_BUDGET      = 0.;
+    public static boolean DATA_RATE_BLOCK       = false;
+    public static int     THROUGHPUT_INTERVAL   = FSTATUS_INTERVAL;
+    public static double  THROUGHPUT_TOLERANCE  = 10.;
+    public static String  DATA_FILE_DIRECTORY   = "";
     public static boolean ULTRACAM_SERVERS_ON;
     public static boolean OBSERVING_MODE;
     public static boolean DEBUG;
@@ -218,8 +261,9 @@ public class Udriver extends JFrame {
     public static boolean DATA_FROM_IMEDIA1     = true;
     public static boolean CHECK_FOR_MASK;
 	public static boolean USE_UAC_DB			= true;
-	public static int SERVER_READBACK_VERSION	= 0;
 	public static String  UAC_DATABASE_HOST;
+	public static String  UAC_DATABASE_USER;
+	public static String  UAC_DATABASE_PASSWORD;
 
     public static String   WINDOW_NAME          = new String("window pair");
     public static String[] TEMPLATE_LABEL       = null;
@@ -239,7 +283,7 @@ public class Udriver extends JFrame {
     private int nblue = 1;
     private IntegerTextField nblueText = new IntegerTextField(nblue, 1, 1000, 1, "u-band cycle factor", true, DEFAULT_COLOUR, ERROR_COLOUR, 4);
 
-    private JComboBox templateChoice;
+    private JComboBox<String> templateChoice;
     private int numEnable;
     
     private String applicationTemplate    = new String("Fullframe + clear");
@@ -315,8 +359,9 @@ public class Udriver extends JFrame {
     // ULTRACAM windows come in pairs
     private static WindowPairs  _windowPairs;
 
-    private static JFileChooser _rtplotFileChooser;
-    private static JFileChooser _xmlFileChooser;
+    // File choosers are slow to make, so are made on first use; see _rtplotFileChooser() and _xmlFileChooser()
+    private static JFileChooser _rtplotFileChooser = null;
+    private static JFileChooser _xmlFileChooser    = null;
     private static File        _rtplotFile = null;
     private static File        _xmlFile    = null;
     private static ReplyPanel  _replyPanel = null;
@@ -324,6 +369,34 @@ public class Udriver extends JFrame {
 
     private DocumentBuilder _documentBuilder;
     private Transformer     _transformer;
+
+    // Template applications, read from TEMPLATE_DIRECTORY in the background
+    private TemplateDocuments _templateDocuments;
+
+    // HTTP exchanges with the camera and data servers
+    private ServerLink      _serverLink;
+
+    // Server which rtplot polls for the current windows, and the file local rtplots can map instead
+    private RtplotServer    _rtplotServer   = null;
+    private WindowChannel   _windowChannel  = null;
+    private boolean         _publishPending = false;
+
+    // Local interface through which scripts drive the GUI, whether one is doing so now and why it failed
+    private ControlServer   _controlServer  = null;
+    private boolean         _remote         = false;
+    private Exception       _remoteError    = null;
+
+    // Index of the saved applications in APP_DIRECTORY
+    private AppLibrary      _appLibrary     = null;
+    private TargetResolver  _targetResolver = null;
+    private JButton         _lookupButton   = null;
+
+    // The configuration in use, and the watcher which reloads it when the file changes
+    private Config          _config         = null;
+    private ConfigWatcher   _configWatcher  = null;
+
+    // Machine-readable record of the night's posts, runs and commands
+    private RunJournal      _journal        = null;
     
     // Use this a fair bit, so just make one
     private static GridBagLayout gbLayout = new GridBagLayout();
@@ -370,6 +443,7 @@ public class Udriver extends JFrame {
     private JTextField _frameRate        = new JTextField("", 7);
     private JTextField _cycleTime        = new JTextField("", 7);
     private JTextField _dutyCycle        = new JTextField("", 7);
+    private JTextField _dataRate         = new JTextField("", 7);
     private JTextField _totalCounts      = new JTextField("", 7);
     private JTextField _peakCounts       = new JTextField("", 7);
     private JTextField _signalToNoise    = new JTextField("", 7);
@@ -377,6 +451,7 @@ public class Udriver extends JFrame {
 
     // Settings menu items
     private JCheckBoxMenuItem _setExpert;
+    private JRadioButtonMenuItem[] _telescopeMenuItem;
     private JCheckBoxMenuItem _templatesFromServer;
     private JCheckBoxMenuItem _ucamServersOn;
     private JCheckBoxMenuItem _fileLogging;
@@ -408,8 +483,37 @@ public class Udriver extends JFrame {
      */
     public Udriver () {
 
+	final long constructed = System.currentTimeMillis();
 	try {
 
+	    // Read the configuration and make the XML parser and transformer on
+	    // other threads while the look of the GUI is set up
+	    ExecutorService startup = Executors.newFixedThreadPool(3, new ThreadFactory() {
+		    public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "startup");
+			thread.setDaemon(true);
+			return thread;
+		    }
+		});
+	    Future<Config> config = startup.submit(new Callable<Config>() {
+		    public Config call() throws Exception {
+			return Config.load(CONFIG_FILE);
+		    }
+		});
+	    Future<DocumentBuilder> documentBuilder = startup.submit(new Callable<DocumentBuilder>() {
+		    public DocumentBuilder call() throws Exception {
+			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+			dbf.setValidating(false);
+			return dbf.newDocumentBuilder();
+		    }
+		});
+	    Future<Transformer> transformer = startup.submit(new Callable<Transformer>() {
+		    public Transformer call() throws Exception {
+			return TransformerFactory.newInstance().newTransformer();
+		    }
+		});
+	    startup.shutdown();
+
 	    // Set the colours & fonts
 
 	    UIManager.put("OptionPane.background",         DEFAULT_COLOUR);
@@ -441,34 +545,28 @@ public class Udriver extends JFrame {
 	    UIManager.put("RadioButtonMenuItem.font",      DEFAULT_FONT);
 	    UIManager.put("RadioButton.font",              DEFAULT_FONT);
 
-	    // Load configuration file
-	    loadConfig();
+	    // Configuration file
+	    _config = _await(config);
+	    _setConfig(_config);
+	    _dataRateBudget = new DataRateBudget(DATA_RATE_BUDGET);
+
+	    // Start reading the template applications
+	    _templateDocuments = new TemplateDocuments(TEMPLATE_DIRECTORY, TEMPLATE_APP);
+	    if(!TEMPLATE_FROM_SERVER)
+		_templateDocuments.prefetch();
 
 	    //-----------------------------------------------------------------------------------------------------
-	    // Information panels setup
+	    // Information panels setup. The log file is chosen once the window is up; see _ready.
 	    _replyPanel = new ReplyPanel();
 	    logPanel    = new LogPanel(LOG_FILE_DIRECTORY);
-	    if(FILE_LOGGING_ON)
-		logPanel.startLog();
 
 	    //-----------------------------------------------------------------------------------------------------
-	    // Define the rtplot and XML file choosers
-
-	    _rtplotFileChooser = new JFileChooser();
-	    _rtplotFileChooser.setFileFilter(new FileFilterDat());
-
-	    _xmlFileChooser    = new JFileChooser();
-	    _xmlFileChooser.setFileFilter(new FileFilterXML());
-	    _xmlFileChooser.setCurrentDirectory(new File(APP_DIRECTORY));
+	    // XML document builder & transformer
+	    _documentBuilder = _await(documentBuilder);
+	    _transformer     = _await(transformer);
 
-	    //-----------------------------------------------------------------------------------------------------
-	    // Create an XML document builder & transformer
-	    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-	    dbf.setValidating(false);
-	    _documentBuilder = dbf.newDocumentBuilder();
-	    
-	    TransformerFactory factory = TransformerFactory.newInstance();
-	    _transformer = factory.newTransformer();
+	    _serverLink = new ServerLink(HTTP_CAMERA_SERVER, HTTP_DATA_SERVER, HTTP_PATH_GET, HTTP_PATH_EXEC,
+					 HTTP_PATH_CONFIG, HTTP_SEARCH_ATTR_NAME);
 
 
 	    //-----------------------------------------------------------------------------------------------------
@@ -485,6 +583,9 @@ public class Udriver extends JFrame {
 						   FileWriter fwriter = new FileWriter(path + "/.udriver.xml");
 						   _transformer.transform(new DOMSource(document), new StreamResult(fwriter));
 					   } catch (Exception ex) {System.out.println(ex);}
+					   stopRtplotServer();
+					   stopControlServer();
+					   closeJournal();
 					   System.exit(0);
 				       }
 
@@ -578,6 +679,11 @@ public class Udriver extends JFrame {
 	    // Make the whole GUI visible
 	    pack();
 	    setVisible(true);
+	    SwingUtilities.invokeLater(new Runnable() {
+		    public void run() {
+			_ready(constructed);
+		    }
+		});
 
 	    // Define timer to provide regular updating of timing information
 	    // and to check whether windows are synchronised
@@ -585,6 +691,7 @@ public class Udriver extends JFrame {
 	    ActionListener taskPerformer = new ActionListener() {
 		    public void actionPerformed(ActionEvent event) {
 			speed(TIMING_UPDATE);
+			_publishWindows();
 			if(_areSynchronised()){
 			    syncWindows.setEnabled(false);
 			    syncWindows.setBackground(DEFAULT_COLOUR);
@@ -614,6 +721,49 @@ public class Udriver extends JFrame {
 
     // End of constructor
 
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    // Waits for a task started by the constructor, passing on what it threw
+    private static <T> T _await(Future<T> task) throws Exception {
+	try {
+	    return task.get();
+	}
+	catch(ExecutionException e){
+	    if(e.getCause() instanceof Exception) throw (Exception)e.getCause();
+	    throw e;
+	}
+    }
+
+    // Called once the window is up and can be used. Logs how long that took, then asks for the log file.
+    private void _ready(long constructed) {
+	long now    = System.currentTimeMillis();
+	long launch = ManagementFactory.getRuntimeMXBean().getStartTime();
+	String ready = "Ready " + round((now-launch)/1000.,2) + " s after launch (" + round((now-constructed)/1000.,2) + " s building the window)";
+	System.out.println(ready);
+	if(FILE_LOGGING_ON)
+	    logPanel.startLog();
+	logPanel.add(ready, LogPanel.OK, true);
+    }
+
+    // The file chooser for rtplot windows files, made on first use
+    private static JFileChooser _rtplotFileChooser() {
+	if(_rtplotFileChooser == null){
+	    _rtplotFileChooser = new JFileChooser();
+	    _rtplotFileChooser.setFileFilter(new FileFilterDat());
+	}
+	return _rtplotFileChooser;
+    }
+
+    // The file chooser for applications, made on first use
+    private static JFileChooser _xmlFileChooser() {
+	if(_xmlFileChooser == null){
+	    _xmlFileChooser = new JFileChooser();
+	    _xmlFileChooser.setFileFilter(new FileFilterXML());
+	    _xmlFileChooser.setCurrentDirectory(new File(APP_DIRECTORY));
+	}
+	return _xmlFileChooser;
+    }
+
     //------------------------------------------------------------------------------------------------------------------------------------------------
 
     // Series of commands which define the enabled/disabled states of buttons following various commands
@@ -742,7 +892,9 @@ public class Udriver extends JFrame {
 	_nexposures     = numExpose;
 	
 	_postedTarget = _objectText.getText().trim();
-	logPanel.add("Posted <strong>" + _postedTarget + "</strong> to servers", LogPanel.OK, true);
+	logPanel.setContext(_nextRunNumber(), _postedTarget);
+	logPanel.add("Posted <strong>" + _postedTarget + "</strong> to servers", LogPanel.OK, true, "post");
+	_verifyTarget(_postedTarget, true);
 	_setEnabledActions();
     }
 
@@ -751,7 +903,8 @@ public class Udriver extends JFrame {
     // Carries out operations needed when a run is started
     private void onStartRun(){
 
-	logPanel.add("Started exposing on <strong>" + _postedTarget + "</strong>", LogPanel.OK, true);
+	logPanel.setContext(_nextRunNumber(), _postedTarget);
+	logPanel.add("Started exposing on <strong>" + _postedTarget + "</strong>", LogPanel.OK, true, "start");
 
 	if(_dataFormat.hasChanged()) _unsavedSettings = true;
 	if(_unsavedSettings && !EXPERT_MODE) _disableAll();
@@ -779,7 +932,17 @@ public class Udriver extends JFrame {
 	    _timePerImage   = speed(CYCLE_TIME_ONLY);						       
 	    _nexposures     = numExpose;
 	}
+
+	_journalSetup("start", "cycleTime", _timePerImage, "bytesPerImage", _nbytesPerImage, "nexposures", _nexposures);
 	
+	// Time the run from the acknowledgement of the GO
+	_meter = new ExposureMeter(_timePerImage, _nbytesPerImage, _nexposures);
+	_meter.start(System.nanoTime());
+	_lastCorrection   = System.nanoTime();
+	_progressReported = true;
+	_throughput = new ThroughputMonitor(1./_timePerImage, _nbytesPerImage, _nexposures, THROUGHPUT_TOLERANCE/100.,
+					    3.*THROUGHPUT_INTERVAL);
+	_showThroughput();
 	_exposureMeter.restart();
 	
 	if(_nexposures > 0){
@@ -789,8 +952,8 @@ public class Udriver extends JFrame {
 	    // polling the server more than necessary
 	    // Timer is activated once per second
 	    
-	    int pollInterval = Math.max(1000, (int)(1000*_timePerImage));
-	    int initialDelay = Math.max(2000, (int)(1000*(_nexposures*_timePerImage-60.)));
+	    int pollInterval = PollPolicy.interval(_timePerImage);
+	    int initialDelay = PollPolicy.initialDelay(_nexposures, _timePerImage);
 	    if(DEBUG){
 		System.out.println("Run polling Interval = " + pollInterval + " millseconds");
 		System.out.println("Initial delay        = " + initialDelay + " milliseconds");
@@ -819,8 +982,15 @@ public class Udriver extends JFrame {
 	powerOn_enabled         = false;
 	powerOff_enabled        = true;
 	_exposureMeter.stop();
+	if(_meter != null){
+	    _meter.stop(System.nanoTime());
+	    _showMeter(System.nanoTime());
+	    if(_meter.isMeasured()) _dataRateBudget.observe(_meter.getPredictedRate(), _meter.getRate());
+	}
 	if(_runActive != null) _runActive.stop();
-	logPanel.add("Stopped exposing on <strong>" + _postedTarget + "</strong>", LogPanel.OK, true);
+	logPanel.add("Stopped exposing on <strong>" + _postedTarget + "</strong>", LogPanel.OK, true, "stop");
+	_journal("stop", "target", _postedTarget, "run", _runNumber.getText().trim(), "exposureTime", _exposureTime.getText().trim(),
+		 "spaceUsed", _spaceUsed.getText().trim());
 	_setEnabledActions();
 	_ucamServersOn.setEnabled(true);
     }
@@ -909,6 +1079,9 @@ public class Udriver extends JFrame {
     /** Retrieves the values from the various fields and checks whether the currently 
      *  selected values represent a valid set of windows and sets. This should always
      *  be called by any routine that needs the most up-to-date values of the window parameters.
+     *  It is called often, several times a tick of the timers, so the fields other than the
+     *  windows are only read again once edited, and WindowPairs only checks again the pairs
+     *  that have changed; with nothing edited, the last verdict is returned.
      */
     public boolean isValid(boolean loud) {
 
@@ -916,11 +1089,29 @@ public class Udriver extends JFrame {
 
 	try{
 
-	    xbin      = xbinText.getValue();	
-	    ybin      = ybinText.getValue();	
-	    nblue     = nblueText.getValue();	
-	    expose    = _getExpose();
-	    numExpose = numExposeText.getValue();
+	    if(_settingsEdited || _settingsExpert != EXPERT_MODE){
+		_settingsEdited = false;
+		_settingsExpert = EXPERT_MODE;
+		_settingsError  = null;
+		try{
+		    _settings[0] = xbinText.getValue();	
+		    _settings[1] = ybinText.getValue();	
+		    _settings[2] = nblueText.getValue();	
+		    _settings[3] = _getExpose();
+		    _settings[4] = numExposeText.getValue();
+		}
+		catch(Exception e){
+		    _settingsError = e;
+		}
+	    }
+	    if(_settingsError != null)
+		throw _settingsError;
+
+	    xbin      = _settings[0];
+	    ybin      = _settings[1];
+	    nblue     = _settings[2];
+	    expose    = _settings[3];
+	    numExpose = _settings[4];
 
 	    setNumEnable();
 
@@ -935,6 +1126,12 @@ public class Udriver extends JFrame {
 	return _validStatus;
     }
 
+    // What isValid last read from the fields other than the windows: xbin, ybin, nblue, expose, numExpose
+    private final int[] _settings       = new int[5];
+    private boolean     _settingsEdited = true;
+    private boolean     _settingsExpert = false;
+    private Exception   _settingsError  = null;
+
     //------------------------------------------------------------------------------------------------------------------------------------------
 
     /** Get the exposure time from the two fields, one which gives the millsecond part, the other the 0.1 millsecond part
@@ -959,7 +1156,8 @@ public class Udriver extends JFrame {
     /** Writes out a file which can be loaded into rtplot in order to define
      * windows. 'rtplot' can be set to load a file every new frame. This routine
      * writes one out in the correct format. It is rather superceded by the server
-     * option which allows rtplot to interrogate this client directly.
+     * option which allows rtplot to interrogate this client directly, and by the
+     * memory-mapped window file (see WindowChannel), but is kept as an export.
      */
     public void saveToRtplot() {
 	try{
@@ -967,7 +1165,8 @@ public class Udriver extends JFrame {
 		throw new Exception("_rtplotFile is null in saveToRtplot");
 
 	    if(isValid(true)){
-		FileWriter fwriter = new FileWriter(_rtplotFile);
+		File tmpFile = new File(_rtplotFile.getPath() + ".tmp");
+		FileWriter fwriter = new FileWriter(tmpFile);
 		fwriter.write("#\n# File written by Udriver\n#\n\n");
 		fwriter.write("# xbin ybin\n" + xbin + " " + ybin + "\n");
 
@@ -983,6 +1182,9 @@ public class Udriver extends JFrame {
 
 		fwriter.close();
 
+		// Replace the old file in one step so that rtplot never reads a partial one
+		Files.move(tmpFile.toPath(), _rtplotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
 		logPanel.add("Written rtplot windows to " + _rtplotFile.getName(), LogPanel.OK, false);
 
 	    }else{
@@ -1088,11 +1290,7 @@ public class Udriver extends JFrame {
 	    boolean found_speed = false, found_nblue = false;
 	    boolean found_expose = false;
 	    boolean found_num_expose = false;
-	    boolean[] found_ystart = {false, false, false};
-	    boolean[] found_xleft  = {false, false, false};
-	    boolean[] found_xright = {false, false, false};
-	    boolean[] found_nx     = {false, false, false};
-	    boolean[] found_ny     = {false, false, false};
+	    boolean[] found_window = new boolean[WindowModel.NVALUE*numEnable];
 
 	    // Needed to pick up null windows
 	    int[] l3nx     = new int[2];
@@ -1148,23 +1346,10 @@ public class Udriver extends JFrame {
 
 		    }else{
 
-			for(int np=0; np<numEnable; np++){
-			    if(elem.getAttribute("ref").equals("Y" + (np+1) + "_START")){
-				_windowPairs.setYstartText(np,elem.getAttribute("value"));
-				found_ystart[np] = true;
-			    }else if(elem.getAttribute("ref").equals("X" + (np+1) + "L_START")){
-				_windowPairs.setXleftText(np,elem.getAttribute("value"));
-				found_xleft[np] = true;
-			    }else if(elem.getAttribute("ref").equals("X" + (np+1) + "R_START")){
-				_windowPairs.setXrightText(np,elem.getAttribute("value"));
-				found_xright[np] = true;
-			    }else if(elem.getAttribute("ref").equals("X" + (np+1) + "_SIZE")){
-				_windowPairs.setNxText(np,elem.getAttribute("value"));
-				found_nx[np]     = true;
-			    }else if(elem.getAttribute("ref").equals("Y" + (np+1) + "_SIZE")){
-				_windowPairs.setNyText(np,elem.getAttribute("value"));
-				found_ny[np]     = true;
-			    }
+			int index = WindowModel.index(elem.getAttribute("ref"));
+			if(index >= 0 && index < found_window.length){
+			    _windowPairs.setText(index / WindowModel.NVALUE, index % WindowModel.NVALUE, elem.getAttribute("value"));
+			    found_window[index] = true;
 			}
 		    }
 		}
@@ -1184,17 +1369,10 @@ public class Udriver extends JFrame {
 	    if(!found_num_expose)
 		throw new Exception("Failed to find NO_EXPOSURES in " + _xmlFile.getAbsolutePath());
 
-	    for(int i=0; i<numEnable; i++){
-		if(!found_ystart[i]) 
-		    throw new Exception("Failed to find ystart of " + WINDOW_NAME + " " + (i+1) + " in " + _xmlFile.getAbsolutePath());
-		if(!found_xleft[i]) 
-		    throw new Exception("Failed to find xleft of " + WINDOW_NAME + " " + (i+1) + " in " + _xmlFile.getAbsolutePath());
-		if(!found_xright[i]) 
-		    throw new Exception("Failed to find xright of " + WINDOW_NAME + " " + (i+1) + " in " + _xmlFile.getAbsolutePath());
-		if(!found_nx[i]) 
-		    throw new Exception("Failed to find nx of " + WINDOW_NAME + " " + (i+1) + " in " + _xmlFile.getAbsolutePath());
-		if(!found_ny[i]) 
-		    throw new Exception("Failed to find ny of " + WINDOW_NAME + " " + (i+1) + " in " + _xmlFile.getAbsolutePath());
+	    for(int i=0; i<found_window.length; i++){
+		if(!found_window[i]) 
+		    throw new Exception("Failed to find " + WindowModel.NAMES[i % WindowModel.NVALUE] + " of " + WINDOW_NAME + " " + 
+					(i / WindowModel.NVALUE + 1) + " in " + _xmlFile.getAbsolutePath());
 	    }
 	    
 	    // Load user defined stuff
@@ -1207,6 +1385,7 @@ public class Udriver extends JFrame {
 	    _setFromUser(document, "ID",        _progidText);
 	    _setFromUser(document, "PI",        _piText);
 	    _setFromUser(document, "Observers", _observerText);
+	    if(_targetResolver != null) _targetResolver.prefetch(Arrays.asList(_objectText.getText()));
 
 	    logPanel.add("Loaded <strong>" + _xmlFile.getName() + "</strong>", LogPanel.OK, true);
 	    _dataFormat.update();
@@ -1321,64 +1500,26 @@ public class Udriver extends JFrame {
      * application.
      */
     private boolean _postApp() {
-	
+
+	String overBudget = _overBudget;
+	_overBudget = null;
 	try{
 	    if(isValid(true)){
 		
-		Document document = _createXML(true);
-
-		// First to the camera server
-		HttpURLConnection httpConnection = (HttpURLConnection)(new URL(HTTP_CAMERA_SERVER + HTTP_PATH_CONFIG).openConnection());
-		httpConnection.setRequestMethod("POST");
-		httpConnection.setRequestProperty("Content-Type", "text/xml");
-		httpConnection.setDoOutput(true);
-		httpConnection.connect();
-		
-		OutputStream outputStream = httpConnection.getOutputStream();
-		_transformer.transform(new DOMSource(document), new StreamResult(outputStream));
-		
-		// RDGH 26/03/2010 : Add a timeout for this connection
-		// Prevents client hanging from camera bug
-		httpConnection.setConnectTimeout(5000);
-		httpConnection.setReadTimeout(5000);
-		// Get reply back from server
-		InputStream  inputStream  = httpConnection.getInputStream();
-		String       xmlString    = _readText(inputStream).trim();
-		
-		Document xmlDoc = _documentBuilder.parse(new InputSource(new StringReader(xmlString)));
-		_replyPanel.showReply(xmlDoc, HTTP_CAMERA_SERVER, true, EXPERT_MODE);
-
-		if(!isResponseOK(xmlDoc))
-		    throw new Exception("XML response from camera server = " + HTTP_CAMERA_SERVER + " was not OK");
-
-
-		// Now to the data server
-		httpConnection = (HttpURLConnection)(new URL(HTTP_DATA_SERVER + HTTP_PATH_CONFIG).openConnection());
-		httpConnection.setRequestMethod("POST");
-		httpConnection.setRequestProperty("Content-Type", "text/xml");
-		httpConnection.setDoOutput(true);
-		httpConnection.connect();
-			
-		outputStream = httpConnection.getOutputStream();
-		_transformer.transform(new DOMSource(document), new StreamResult(outputStream));
-		
-		// Get reply back from server
-		inputStream  = httpConnection.getInputStream();
-		xmlString    = _readText(inputStream).trim();
-		
-		xmlDoc = _documentBuilder.parse(new InputSource(new StringReader(xmlString)));
-		_replyPanel.showReply(xmlDoc, HTTP_DATA_SERVER, false, EXPERT_MODE);
-
-		if(!isResponseOK(xmlDoc))
-		    throw new Exception("XML response from data server = " + HTTP_DATA_SERVER + " was not OK");
+		// First to the camera server, then to the data server
+		_serverLink.post(_createXML(true), _replies(true));
 
 	    }else{
 		throw new Exception("Windows invalid; application was not posted to the servers");
 	    }	
+	    _journalSetup("post", "ok", true);
+	    if(overBudget != null)
+		logPanel.add(overBudget, LogPanel.WARNING, true);
 	    return true;
 	}
 	catch(Exception e) {
 	    logPanel.add(e.toString(), LogPanel.ERROR, false);
+	    _journalSetup("post", "ok", false, "error", e.toString());
 	    _showExceptionDialog(e);
 	    return false;
 	}
@@ -1392,14 +1533,8 @@ public class Udriver extends JFrame {
      */
     private Document _fetchApp(String name) {
 
-	String xmlString = null;
-
 	try {
-	    URL url = new URL(HTTP_CAMERA_SERVER + HTTP_PATH_GET + "?" + HTTP_SEARCH_ATTR_NAME + "=" + name);
-
-	    xmlString = _readText(url.openStream()).trim();
-
-	    Document document = _documentBuilder.parse(new InputSource(new StringReader((xmlString))));
+	    Document document = _serverLink.fetchApp(name);
 	    
 	    logPanel.add("Application = <strong>" + name + "</strong> fetched from server.", LogPanel.OK, true);
 
@@ -1416,7 +1551,6 @@ public class Udriver extends JFrame {
 	}
 	catch(SAXParseException e) {
 	    if(DEBUG) e.printStackTrace();
-	    System.out.println("XML start\n" + xmlString + "\nXML end");
 	    JOptionPane.showMessageDialog(this, e + "\nTry again.", e.getClass().getName(), JOptionPane.WARNING_MESSAGE);
 	}
 	catch(Exception e) {
@@ -1429,27 +1563,6 @@ public class Udriver extends JFrame {
 
     //------------------------------------------------------------------------------------------------------------------------------------------
 
-    /** Read from an InputStream into a string. Go via an InputStreamReader to translate bytes
-     * to chars */
-    private static String _readText(InputStream inputStream) {
-	try{
-	    InputStreamReader inputStreamReader = new InputStreamReader(inputStream);
-	    char[]       cbuff = new char[2048];
-	    StringBuffer sbuff = new StringBuffer();
-	    int len;
-		while((len = inputStreamReader.read(cbuff)) != -1){
-			sbuff.append(cbuff, 0, len);
-	    }
-	    return sbuff.toString();
-	}
-	catch(Exception e){
-	    logPanel.add(e.toString(), LogPanel.ERROR, false);
-	    return "_readText failed";
-	}
-    }
-
-    //------------------------------------------------------------------------------------------------------------------------------------------
-
     /** This loads an XML template file and updates it according to the 
      *  values of the settings of the window panel. The template file
      * must match the current application.
@@ -1467,9 +1580,8 @@ public class Udriver extends JFrame {
 		    
 		} else {
 		    
-		    // Read & parse example file
-		    File templateFile = new File(TEMPLATE_DIRECTORY + TEMPLATE_APP[_whichTemplate()]);
-		    document = _documentBuilder.parse(templateFile);
+		    // Read & parse example file, or a copy of it read earlier
+		    document = _templateDocuments.get(TEMPLATE_APP[_whichTemplate()]);
 
 		}
 		if(document == null)
@@ -1502,11 +1614,8 @@ public class Udriver extends JFrame {
 		boolean found_speed      = false, found_nblue = false;
 		boolean found_expose     = false;
 		boolean found_num_expose = false;
-		boolean[] found_ystart   = {false, false, false};
-		boolean[] found_xleft    = {false, false, false};
-		boolean[] found_xright   = {false, false, false};
-		boolean[] found_nx       = {false, false, false};
-		boolean[] found_ny       = {false, false, false};
+		boolean[] found_window   = new boolean[WindowModel.NVALUE*numEnable];
+		WindowModel windows      = _windowPairs.getModel();
 		
 		NodeList inst = document.getElementsByTagName("set_parameter");
 		for(int i=0; i<inst.getLength(); i++){
@@ -1549,23 +1658,10 @@ public class Udriver extends JFrame {
 
 			}else{
 			    
-			    for(int np=0; np<numEnable; np++){
-				if(elem.getAttribute("ref").equals("Y" + (np+1) + "_START")){
-				    elem.setAttribute("value",  _windowPairs.getYstartText(np));
-				    found_ystart[np] = true;
-				}else if(elem.getAttribute("ref").equals("X" + (np+1) + "L_START")){
-				    elem.setAttribute("value",  _windowPairs.getXleftText(np));
-				    found_xleft[np] = true;
-				}else if(elem.getAttribute("ref").equals("X" + (np+1) + "R_START")){
-				    elem.setAttribute("value",  _windowPairs.getXrightText(np));
-				    found_xright[np] = true;
-				}else if(elem.getAttribute("ref").equals("X" + (np+1) + "_SIZE")){
-				    elem.setAttribute("value",  _windowPairs.getNxText(np));
-				    found_nx[np]     = true;
-				}else if(elem.getAttribute("ref").equals("Y" + (np+1) + "_SIZE")){
-				    elem.setAttribute("value",  _windowPairs.getNyText(np));
-				    found_ny[np]     = true;
-				}
+			    int index = WindowModel.index(elem.getAttribute("ref"));
+			    if(index >= 0 && index < found_window.length){
+				elem.setAttribute("value", String.valueOf(windows.get(index / WindowModel.NVALUE, index % WindowModel.NVALUE)));
+				found_window[index] = true;
 			    }
 
 			}
@@ -1586,24 +1682,13 @@ public class Udriver extends JFrame {
 		if(!found_num_expose)
 		    throw new Exception("failed to find NO_EXPOSURES");
 		
-		for(int i=0; i<numEnable; i++){
-		    if(!found_ystart[i]) 
-			throw new Exception("failed to find & modify ystart of " + WINDOW_NAME + " " + (i+1));
-		    if(!found_xleft[i]) 
-			throw new Exception("failed to find & modify xleft of " + WINDOW_NAME + " " + (i+1));
-		    if(!found_xright[i]) 
-			throw new Exception("failed to find & modify xright of " + WINDOW_NAME + " " + (i+1));
-		    if(!found_nx[i]) 
-			throw new Exception("failed to find & modify nx of " + WINDOW_NAME + " " + (i+1));
-		    if(!found_ny[i]) 
-			throw new Exception("failed to find & modify ny of " + WINDOW_NAME + " " + (i+1));
+		for(int i=0; i<found_window.length; i++){
+		    if(!found_window[i]) 
+			throw new Exception("failed to find & modify " + WindowModel.NAMES[i % WindowModel.NVALUE] + " of " + WINDOW_NAME + " " + 
+					    (i / WindowModel.NVALUE + 1));
 		}
 		
 		// Now add user stuff
-		Element rootElement = document.getDocumentElement();
-		Element userElement = document.createElement("user");
-		rootElement.appendChild(userElement);
-
 		String target = "";
 		String progid = "";
 		String pi = "";
@@ -1617,95 +1702,23 @@ public class Udriver extends JFrame {
 			}
 			progid = pi = "Calib";
 		}
-
-		_addToUser(document, userElement, "target",    target);
-		//_addToUser(document, userElement, "filters",   _filterText.getText());
-		_addToUser(document, userElement, "filters", _filter1.getSelectedItem() + " " + _filter2.getSelectedItem() + " " + _filter3.getSelectedItem());
-		_addToUser(document, userElement, "ID",        progid);
-	    _addToUser(document, userElement, "PI",        pi);
-		_addToUser(document, userElement, "Observers", _observerText.getText());
 		String flags = _runType;
 		if (_acquisitionState) {
 			flags = flags + " " + "caution";
 		}
-		_addToUser(document, userElement, "flags", flags);
-
-		// now use readback to try and get the current VERSION/REVISION
-		// only do this if we don't have a version yet
-		// this gets around limitation in the camera server which will
-		// STOP a run if it receives another command while running (!)
-		if (ULTRACAM_SERVERS_ON && posting && SERVER_READBACK_VERSION == 0) {
-			int verDecimal = -1;
-			String verReadback = "";
-			try {
-				URL url = new URL(HTTP_CAMERA_SERVER + HTTP_PATH_EXEC + "?RM,X,0x80");
-				// readback is an xml attribute of command_status
-				String xmlString = _readText(url.openStream()).trim();
-				Document xmlDoc = _documentBuilder.parse(new InputSource(new StringReader(xmlString)));
-				Node commandNode = xmlDoc.getElementsByTagName("command_status").item(0);
-				NamedNodeMap commandAttributes = commandNode.getAttributes();
-				for (int i = 0; i < commandAttributes.getLength(); i++) {
-						String nodeName = commandAttributes.item(i).getNodeName().trim();
-						String nodeValue = commandAttributes.item(i).getNodeValue();
-						if (nodeName.equalsIgnoreCase("readback")) {
-							verReadback = nodeValue;
-							break;
-						}
-				}
-				if (verReadback.equals(""))
-					System.out.println("Didn't find readback in camera XML?");
-			} catch (Exception e) { System.out.println("Couldn't interrogate camera server for version readback.");}
 
-			// readback is in hex ie. "0xFF", convert to decimal
-			try {
-				if (verReadback.substring(0,2).equals("0x"))
-					verReadback = verReadback.substring(2);
-				SERVER_READBACK_VERSION = Integer.parseInt(verReadback,16);
-			} catch (Exception e) { System.out.println("Couldn't convert readback version to decimal."); }
-		}
+		List<String[]> items = new ArrayList<String[]>();
+		items.add(new String[] {"target",    target});
+		items.add(new String[] {"filters",   _filter1.getSelectedItem() + " " + _filter2.getSelectedItem() + " " + _filter3.getSelectedItem()});
+		items.add(new String[] {"ID",        progid});
+		items.add(new String[] {"PI",        pi});
+		items.add(new String[] {"Observers", _observerText.getText()});
+		items.add(new String[] {"flags",     flags});
+
+		// The revision, temperatures and slide position are added as Headless and Sequencer add them
+		for(String warning : UserSection.add(document, items, ULTRACAM_SERVERS_ON ? _serverLink : null, posting, DATA_FROM_IMEDIA1))
+		    JOptionPane.showMessageDialog(this, warning, "Udriver Warning", JOptionPane.WARNING_MESSAGE);
 
-		if (posting)
-			_addToUser(document,userElement,"revision",Integer.toString(SERVER_READBACK_VERSION));
-
-
-		// Grab temperature data from Andy's Server
-		if(DATA_FROM_IMEDIA1){
-		    try{
-			URL tempURL = new URL("http://192.168.1.3/temperature/latest_temperature.txt");
-			String tempString = _readText(tempURL.openStream()).trim();
-			int greenStart = tempString.indexOf("Green");
-			int greenEnd   = tempString.indexOf("\n",greenStart);
-			int blueStart = tempString.indexOf("Blue");
-			int blueEnd   = tempString.indexOf("\n",blueStart);
-			int redStart = tempString.indexOf("Red");
-			int redEnd   = tempString.indexOf("\n",redStart);
-			_addToUser(document, userElement, "RedTempData", tempString.substring(redStart+16, redEnd));
-			_addToUser(document, userElement, "GreenTempData", tempString.substring(greenStart+18, greenEnd));
-			_addToUser(document, userElement, "BlueTempData", tempString.substring(blueStart+17, blueEnd));
-		    }catch(Exception e){
-			// warn
-			JOptionPane.showMessageDialog(this,
-						      "Failed to get CCD temperatures from imedia PC",
-						      "Udriver Warning",
-						      JOptionPane.WARNING_MESSAGE);
-		    }
-		    // Grab slide position info from Slide CGI script
-		    try{
-			URL slideURL = new URL("http://192.168.1.3/slide/slide.cgi?position");
-			String slideString = _readText(slideURL.openStream()).trim();
-			int slideStart = slideString.lastIndexOf(",");
-			int slideEnd   = slideString.indexOf("\n",slideStart);
-			_addToUser(document, userElement, "SlidePos", slideString.substring(slideStart+2, slideEnd));
-			_addBlankLine(document, userElement);
-			_addBlankLine(document, rootElement);
-		    }catch(Exception e){
-			// warn
-			JOptionPane.showMessageDialog(this,
-						      "Failed to get slide position from imedia PC",
-						      "Udriver Warning",
-						      JOptionPane.WARNING_MESSAGE);
-		    }
-		}
 		return document;
 		
 	    }else{
@@ -1717,21 +1730,6 @@ public class Udriver extends JFrame {
 	}
     }
 
-    //------------------------------------------------------------------------------------------------------------------------------------------
-
-    /* Adds another XML tag of form <item>value</item> below element in the
-     * XML document document. A blank line is inserted before each item */
-    private void _addToUser(Document document, Element element, String item, String value){
-
-	_addBlankLine(document, element);
-
-	_addSpace(document, element, 4);
-	Element newElement = document.createElement(item);
-	Text elementText   = document.createTextNode(value);
-	newElement.appendChild(elementText);
-	element.appendChild(newElement);
-    }
-
     //------------------------------------------------------------------------------------------------------------------------------------------
 	//
 	private void _checkEnabledFields() {
@@ -1753,48 +1751,14 @@ public class Udriver extends JFrame {
 
     //------------------------------------------------------------------------------------------------------------------------------------------
 
-    /* Adds a blank line to an element to give a nicer looking format */
-    private void _addBlankLine(Document document, Element element) {
-	Text blankLine = document.createTextNode("\n\n");
-	element.appendChild(blankLine);
-    }
-
-    //------------------------------------------------------------------------------------------------------------------------------------------
-
-    /* Adds nspace spaces an element to give a nicer looking format */
-    private void _addSpace(Document document, Element element, int nspace) {
-	StringBuffer buff = new StringBuffer();
-	for(int i=0; i<nspace; i++)
-	    buff.append(" ");
-	Text spaces = document.createTextNode(buff.toString());
-	element.appendChild(spaces);
-    }
-
-    //------------------------------------------------------------------------------------------------------------------------------------------
-
     /** Execute a remote application */
     private boolean _execRemoteApp(String application, boolean reset) {
 
-	String xmlString = null;
-
 	try {
-	    URL url = new URL(HTTP_CAMERA_SERVER + HTTP_PATH_CONFIG + "?" + application);
-	    xmlString = _readText(url.openStream()).trim();
-	    Document document = _documentBuilder.parse(new InputSource(new StringReader(xmlString)));
-	    _replyPanel.showReply(document, "Response to executing application = " + application + " on camera server", reset, EXPERT_MODE);
-
-	    if(!isResponseOK(document))
-		throw new Exception("XML response from camera server = " + HTTP_CAMERA_SERVER + " was not OK");
+	    _serverLink.execApp(application, _replies(reset));
 
-	    url = new URL(HTTP_DATA_SERVER + HTTP_PATH_CONFIG + "?" + application);
-	    xmlString = _readText(url.openStream()).trim();
-	    document = _documentBuilder.parse(new InputSource(new StringReader(xmlString)));
-	    _replyPanel.showReply(document, "Response to executing application = " + application + " on data server", false, EXPERT_MODE);
-
-	    if(!isResponseOK(document))
-		throw new Exception("XML response from data server = " + HTTP_DATA_SERVER + " was not OK");
-
-	    logPanel.add("Executed <strong>" + application + "</strong> on both servers", LogPanel.OK, true);
+	    logPanel.add("Executed <strong>" + application + "</strong> on both servers", LogPanel.OK, true, "exec");
+	    _journal("exec", "application", application, "ok", true);
 
 	    return true;
 	}
@@ -1809,133 +1773,64 @@ public class Udriver extends JFrame {
 	}
 	catch(SAXParseException e) {
        	    if(DEBUG) e.printStackTrace();
-	    System.out.println("XML start\n" + xmlString + "\nXML end");
 	    JOptionPane.showMessageDialog(this, e + "\nTry again.", e.getClass().getName(), JOptionPane.WARNING_MESSAGE);
 	}
 	catch(Exception e) {
 	    if(DEBUG) e.printStackTrace();
 	    JOptionPane.showMessageDialog(this, e + "\nTry again.", e.getClass().getName(), JOptionPane.WARNING_MESSAGE);
 	}
-	logPanel.add("Failed to execute <strong>" + application + "</strong>", LogPanel.ERROR, false);
+	logPanel.add("Failed to execute <strong>" + application + "</strong>", LogPanel.ERROR, false, "exec");
+	_journal("exec", "application", application, "ok", false);
 	return false;
 	
     }
 
-	private boolean _verifyTarget(String target) {
-		boolean exists = false;
-        /*
-		if (USE_UAC_DB) {
-			exists = _uacExists(target);
-		}
-		if (!exists) {
-			exists = _simbadExists(target);
-		}
-		if (!exists) {
-			if (USE_UAC_DB) {
-				logPanel.add("Could not find target in UAC database or SIMBAD.",LogPanel.ERROR,false);
-			} else {
-				logPanel.add("SIMBAD lookup <strong>failed.</strong>",LogPanel.ERROR,false);
-                }
-		}
-        */
-        logPanel.add("SIMBAD lookup disabled",LogPanel.ERROR,false);
-		return exists;
+    /** Looks up a target name, colouring the Verify button by the outcome. Names
+     * looked up before are answered at once and others in the background, so that
+     * this never waits on the network.
+     * @param target the name
+     * @param quiet  only report names that cannot be found, as after posting
+     */
+    private void _verifyTarget(String target, final boolean quiet) {
+	if(_targetResolver == null || target.trim().length() == 0) return;
+	TargetResolver.Target cached = _targetResolver.getCached(target);
+	if(cached != null){
+	    _showTarget(target, cached, quiet);
+	    return;
 	}
-
-	private boolean _uacExists(String target) {
-		Connection conn = null;
-		int count = 0;
-		try {
-			//Class.forName("com.mysql.jdbc.Driver").newInstance();
-			String usern = "ultracam";
-			String passw = "nogales";
-			String url = "jdbc:mysql://" + UAC_DATABASE_HOST + "/uac";
-			conn = DriverManager.getConnection(url,usern,passw);
-			Statement s = conn.createStatement();
-			s.executeQuery("SELECT id FROM objects WHERE names LIKE '%" + target + "%' LIMIT 1;");
-			ResultSet rs = s.getResultSet();
-			while (rs.next()) {
-				++count;
-				logPanel.add("Found UAC id <strong>" + rs.getString("id") + ".</strong>",LogPanel.OK,true);
-			}
-		} catch (SQLException e) { System.out.println(e);}
-		finally {
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (Exception e) {}
-			}
+	if(!quiet)
+	    logPanel.add("Looking up <strong>" + target.trim() + "</strong> in " + _targetResolver.getSourceNames(), LogPanel.OK, false);
+	_targetResolver.resolve(target, new TargetResolver.Listener() {
+		public void resolved(final String name, final TargetResolver.Target found) {
+		    SwingUtilities.invokeLater(new Runnable() {
+			    public void run() {
+				_showTarget(name, found, quiet);
+			    }
+			});
 		}
-		if (count > 0) {
-			return true;
-		} else {
-			return false;
+		public void failed(final String name, final String message) {
+		    SwingUtilities.invokeLater(new Runnable() {
+			    public void run() {
+				logPanel.add("Could not look up <strong>" + name.trim() + "</strong>: " + message, LogPanel.WARNING, false);
+				if(_lookupButton != null && name.trim().equals(_objectText.getText().trim()))
+				    _lookupButton.setBackground(WARNING_COLOUR);
+			    }
+			});
 		}
-	}
-    //------------------------------------------------------------------------------------------------------------------------------------------
-	//
-	private boolean _simbadExists(String target) {
-        int TIMEOUT = 2000; // timeout in millisecs
-        String script = null;
-        String result = null;
-        script = "set limit 1\n";
-        script = script + "format object form1 \"%IDLIST(1) : %COO(A) : %COO(D)\"\n";
-        script = script + "echodata ** UDRIVER QUERY\n";
-        script = script + "query id " + target + "\n";
-        try{
-			script = URLEncoder.encode(script,"ISO-8859-1");
-			URL simbadurl = new
-            URL("http://simbad.u-strasbg.fr/simbad/sim-script?submit=submit+script&script="
-                + script);
-            URLConnection simbadcon = simbadurl.openConnection();
-            simbadcon.setConnectTimeout(TIMEOUT);
-            simbadcon.setReadTimeout(TIMEOUT);
-            result = _readText(simbadcon.getInputStream());
-            //System.out.println(result);
-
-            String [] simbad = result.split("\n");
-            int startline = 0;
-            for (int i = 0 ; i < simbad.length ; i++) {
-                if (simbad[i].indexOf("::data::") > -1) {
-                    startline = i;
-                }
-                if (simbad[i].indexOf("::error::") > -1) {
-                    System.out.println("Encountered simbad error");
-                    return false;
-                }
-            }
-            for (int i = startline ; i < simbad.length ; i++) {
-                if (simbad[i].indexOf("** UDRIVER QUERY") > -1) {
-                    if (simbad.length > (i+1)) {
-                        if (simbad[i+1].split(":").length == 3) {
-                            logPanel.add(
-                                         "SIMBAD lookup <strong>success.</strong>",
-                                         LogPanel.OK,true);
-                        } else {
-                            return false;
-                        }
-                    } else {
-                        return false;
-                    }
-                }
-            }
-            return true;
-
-        } catch(SocketTimeoutException ste) {
-            System.out.println("simbad request timed out (>" + TIMEOUT +
-                               " milliseconds)");
-        } catch(UnknownHostException uhe) {
-            System.out.println(uhe);
-        } catch(UnsupportedEncodingException uee) {
-            System.out.println(uee);
-        } catch(MalformedURLException mue) {
-            System.out.println(mue);
-        } catch(IOException ioe) {
-            System.out.println(ioe);
-        }
-        return false;
-	}	
-	//
+	    });
+    }
+
+    // Reports the outcome of looking up a target, colouring the Verify button if the name is still the one shown
+    private void _showTarget(String name, TargetResolver.Target target, boolean quiet) {
+	if(target == TargetResolver.NONE)
+	    logPanel.add("Could not find target <strong>" + name.trim() + "</strong>" +
+			 (_targetResolver != null ? " in " + _targetResolver.getSourceNames() : ""), LogPanel.ERROR, false);
+	else if(!quiet)
+	    logPanel.add("Found <strong>" + name.trim() + "</strong>: " + target, LogPanel.OK, true);
+	if(_lookupButton != null && name.trim().equals(_objectText.getText().trim()))
+	    _lookupButton.setBackground(target == TargetResolver.NONE ? ERROR_COLOUR : GO_COLOUR);
+    }
+
     //------------------------------------------------------------------------------------------------------------------------------------------
 
     /** Execute a command. This is method that sends the requests to start and stop
@@ -1946,73 +1841,66 @@ public class Udriver extends JFrame {
 
     private boolean _execCommand(String command, boolean reset) {
 
-	logPanel.add("Sent command <strong>" + command + "</strong>", LogPanel.OK, true);
-
-	String xmlString = null;
+	logPanel.add("Sent command <strong>" + command + "</strong>", LogPanel.OK, true, _commandEvent(command));
 
 	try {
 
-	    URL url = new URL(HTTP_CAMERA_SERVER + HTTP_PATH_EXEC + "?" + command);
+	    _serverLink.command(command, _replies(reset));
 
-	    xmlString = _readText(url.openStream()).trim();
-
-	    Document xmlDoc = _documentBuilder.parse(new InputSource(new StringReader(xmlString)));
-
-	    _replyPanel.showReply(xmlDoc, "Response to command = " + command, reset, EXPERT_MODE);
-	    if(!isResponseOK(xmlDoc))
-		throw new Exception("XML response from camera server " + HTTP_CAMERA_SERVER + " was not OK");
-
-	    logPanel.add("Executed command <strong>" + command + "</strong>", LogPanel.OK, true);
+	    logPanel.add("Executed command <strong>" + command + "</strong>", LogPanel.OK, true, _commandEvent(command));
+	    _journal(_commandEvent(command), "command", command, "ok", true);
 
 	    return true;
 
 	}
 	catch(SocketException e) {
 	    if(DEBUG) e.printStackTrace();
-	    JOptionPane.showMessageDialog(this, "Check that the server = " + HTTP_CAMERA_SERVER + " is active", "SocketException", JOptionPane.WARNING_MESSAGE);
+	    _showWarningDialog("Check that the server = " + HTTP_CAMERA_SERVER + " is active", "SocketException");
 	}
 	catch(SAXParseException e) {
 	    if(DEBUG) e.printStackTrace();
-	    System.out.println("XML start\n" + xmlString + "\nXML end");
-	    JOptionPane.showMessageDialog(this, e + "\nTry again.", e.getClass().getName(), JOptionPane.WARNING_MESSAGE);
+	    _showWarningDialog(e + "\nTry again.", e.getClass().getName());
 	}
 	catch(Exception e) {
 	    if(DEBUG) e.printStackTrace();
-	    JOptionPane.showMessageDialog(this, e + "\nTry again.", e.getClass().getName(), JOptionPane.WARNING_MESSAGE);
+	    _showWarningDialog(e + "\nTry again.", e.getClass().getName());
 	}
-	logPanel.add("Failed to execute command <strong>" + command + "</strong>", LogPanel.ERROR, false);
+	logPanel.add("Failed to execute command <strong>" + command + "</strong>", LogPanel.ERROR, false, _commandEvent(command));
+	_journal(_commandEvent(command), "command", command, "ok", false);
 	return false;
     }
 
+    // The journal event for a command: resets are picked out from other commands
+    private static String _commandEvent(String command) {
+	return command.equals("RCO") || command.equals("RS") || command.equals("RST") || command.equals("SRS") ? "reset" : "command";
+    }
+
     //------------------------------------------------------------------------------------------------------------------------------------------
 
-    /** Sends an application to a server **/
-    void _initServer(String server, String application, boolean reset) throws Exception {
-	URL      url       =  new URL(server + HTTP_PATH_CONFIG + "?" + application);
-	String   xmlString = _readText(url.openStream()).trim();
-	Document document  = _documentBuilder.parse(new InputSource(new StringReader(xmlString)));
-	_replyPanel.showReply(document, "Response to " + application, reset, EXPERT_MODE);
-	if(!isResponseOK(document))
-	    throw new Exception("XML response from camera server = " + server + " to application " + application + " was not OK");
+    /** Shows each reply from the servers in the reply panel, the first clearing it if
+     * reset, and logs and journals any that is not OK */
+    private ServerLink.ReplyListener _replies(final boolean reset) {
+	return new ServerLink.ReplyListener() {
+		public void replied(Document reply, String description, boolean first) {
+		    _replyPanel.showReply(reply, description, reset && first, EXPERT_MODE);
+		    isResponseOK(reply);
+		}
+	    };
     }
 
     /** Initialise the servers */
     private boolean _setupServers(boolean reset) {
 	try {
 	    
-	    _initServer(HTTP_CAMERA_SERVER, _telescope.application, reset);
-
-	    _initServer(HTTP_CAMERA_SERVER, GENERIC_APP, false);
-
-	    _initServer(HTTP_DATA_SERVER, _telescope.application, false);
-
-	    _initServer(HTTP_DATA_SERVER, GENERIC_APP, false);
+	    _serverLink.setupServers(_telescope.application, GENERIC_APP, _replies(reset));
 
+	    _journal("setup", "application", _telescope.application, "ok", true);
 	    return true;
 	}
 	catch(Exception e) {
 	    logPanel.add(e.toString(), LogPanel.ERROR, false);
-	    logPanel.add("Failed to setup servers", LogPanel.ERROR, false);
+	    logPanel.add("Failed to setup servers", LogPanel.ERROR, false, "setup");
+	    _journal("setup", "application", _telescope.application, "ok", false, "error", e.toString());
 	    _showExceptionDialog(e);
 	    return false;
 	}
@@ -2023,25 +1911,7 @@ public class Udriver extends JFrame {
     /** Polls the data server to see if a run is active */
     public boolean isRunActive(boolean quiet) {
 	try { 
-	    URL url           = new URL(HTTP_DATA_SERVER + "status");
-	    String reply      = _readText(url.openStream()).trim();
-	    Document document = _documentBuilder.parse(new InputSource(new StringReader(reply)));
-	    NodeList nlist    = document.getElementsByTagName("state");
-	    if(nlist.getLength() == 0)
-		throw new Exception("Could not find 'state' element in XML returned from the server");
-	    
-	    Element element   = (Element)nlist.item(0);
-	    if(element.hasAttribute("server")){
-		if(element.getAttribute("server").equals("IDLE")){
-		    return false;
-		}else if(element.getAttribute("server").equals("BUSY")){
-		    return true;
-		}else{
-		    throw new Exception("Failed to interpret 'state' value from server = " + element.getAttribute("server"));
-		}
-	    }else{
-		throw new Exception("'state' element in XML from server did not have 'server' attribute");
-	    }
+	    return ServerLink.isRunActive(_serverLink.status());
 	}
 	catch(Exception e){
 	    if(!quiet){
@@ -2054,29 +1924,281 @@ public class Udriver extends JFrame {
 
     //------------------------------------------------------------------------------------------------------------------------------------------
 
+    // Shows the exposure time, disk space used and time to the disk space thresholds
+    private void _showMeter(long now) {
+
+	_exposureTime.setText(String.valueOf((long)_meter.getElapsed(now)));
+
+	long bytes = _meter.getBytes(now);
+	int nmeg   = (int)(bytes/1024./1024. + 0.5);
+	_spaceUsed.setText(String.valueOf(nmeg));
+	if(nmeg > DISK_SPACE_DANGER){
+	    _spaceUsed.setBackground(ERROR_COLOUR);
+	}else if(nmeg > DISK_SPACE_WARN){
+	    _spaceUsed.setBackground(WARNING_COLOUR);
+	}else{
+	    _spaceUsed.setBackground(DEFAULT_COLOUR);
+	}
+
+	double eta = _meter.getEta(1024L*1024L*(nmeg > DISK_SPACE_WARN ? DISK_SPACE_DANGER : DISK_SPACE_WARN), now);
+	if(eta > 0){
+	    long secs = (long)eta;
+	    _diskEta.setText(String.format("%d:%02d:%02d", secs/3600, (secs/60) % 60, secs % 60));
+	}else{
+	    _diskEta.setText(eta == 0 ? "passed" : "-");
+	}
+	_diskEta.setBackground(nmeg > DISK_SPACE_WARN ? _spaceUsed.getBackground() : DEFAULT_COLOUR);
+    }
+
+    // Asks the data server, every THROUGHPUT_INTERVAL seconds and away from the GUI thread, how much
+    // it has written, to correct the meter and measure the throughput. Only the data server is asked,
+    // never the camera server. If DATA_FILE_DIRECTORY is set and the server does not give the size of
+    // the file, its size on disk is used. Stops asking for the run if neither says.
+    private void _correctMeter(long now) {
+
+	if(!_meter.isRunning() || _correcting || !_progressReported || now - _lastCorrection < THROUGHPUT_INTERVAL*1000000000L)
+	    return;
+
+	_correcting     = true;
+	_lastCorrection = now;
+	final ExposureMeter     meter      = _meter;
+	final ThroughputMonitor throughput = _throughput;
+	final long bytesPerImage  = _nbytesPerImage;
+	_fileStatus.execute(new Runnable() {
+		public void run() {
+		    // -1 if the server does not say, -2 if it could not be asked, to try again later
+		    long sent   = System.nanoTime();
+		    long bytes  = -2, frames = -2;
+		    try {
+			Document document = _serverLink.fileStatus();
+			frames = ServerLink.fileFrames(document);
+			bytes  = ServerLink.fileBytes(document, bytesPerImage);
+			String path = ServerLink.lastFilePath(document);
+			if(bytes < 0 && DATA_FILE_DIRECTORY.length() > 0 && path != null){
+			    File file = new File(DATA_FILE_DIRECTORY, new File(path).getName() + ".dat");
+			    if(file.exists()) bytes = file.length();
+			}
+		    }
+		    catch(Exception e){
+			if(DEBUG) System.out.println("Failed to get file status: " + e);
+		    }
+		    final long written = bytes;
+		    final long nframes = frames;
+		    final long when    = (sent + System.nanoTime())/2;
+		    SwingUtilities.invokeLater(new Runnable() {
+			    public void run() {
+				_correcting = false;
+				if(written >= 0){
+				    meter.correct(written, when);
+				    throughput.sample(nframes, written, when);
+				    if(throughput == _throughput) _showThroughput();
+				}else if(written == -1 && meter == _meter){
+				    _progressReported = false;
+				}
+			    }
+			});
+		}
+	    });
+    }
+
+    // Shows the measured frame and data rates, coloured and with an alarm when the frame rate strays from the prediction
+    private void _showThroughput() {
+
+	if(!_throughput.isMeasured()){
+	    _measuredFrames.setText("-");
+	    _measuredData.setText("-");
+	    _measuredFrames.setBackground(DEFAULT_COLOUR);
+	    _throughputState = ThroughputMonitor.UNKNOWN;
+	    return;
+	}
+	_measuredFrames.setText(round(_throughput.getFrameRate(), 3));
+	_measuredData.setText(DataRateBudget.format(_throughput.getByteRate()));
+
+	int state = _throughput.getState();
+	_measuredFrames.setBackground(state == ThroughputMonitor.SLOW || state == ThroughputMonitor.FAST ? ERROR_COLOUR : DEFAULT_COLOUR);
+	if(state == _throughputState) return;
+
+	String rates = round(_throughput.getFrameRate(), 3) + " frames/s measured against " + round(_throughput.getPredictedFrameRate(), 3) + " predicted";
+	if(state == ThroughputMonitor.SLOW || state == ThroughputMonitor.FAST){
+	    Toolkit.getDefaultToolkit().beep();
+	    logPanel.add("Run " + _runNumber.getText().trim() + " is " + (state == ThroughputMonitor.SLOW ? "slower" : "faster") +
+			 " than predicted: " + rates, LogPanel.WARNING, true, "throughput");
+	}else if(state == ThroughputMonitor.OK && _throughputState != ThroughputMonitor.UNKNOWN){
+	    logPanel.add("Run " + _runNumber.getText().trim() + " back within " + THROUGHPUT_TOLERANCE + "% of the predicted frame rate: " + rates,
+			 LogPanel.OK, true, "throughput");
+	}
+	if(state != ThroughputMonitor.UNKNOWN)
+	    _journal("throughput", "run", _runNumber.getText().trim(), "state", state == ThroughputMonitor.OK ? "ok" : state == ThroughputMonitor.SLOW ? "slow" : "fast",
+		     "frameRate", _throughput.getFrameRate(), "predicted", _throughput.getPredictedFrameRate(), "byteRate", _throughput.getByteRate());
+	_throughputState = state;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Looks up the targets of the applications listed in a plan file, as read
+     * by NightPlanner, in the background, so that verifying them during the
+     * night costs nothing.
+     */
+    private void _lookupPlanTargets() {
+
+	if(_targetResolver == null){
+	    logPanel.add("Targets cannot be looked up; see the log for why", LogPanel.WARNING, false);
+	    return;
+	}
+
+	JFileChooser chooser = new JFileChooser(_xmlFileChooser().getCurrentDirectory());
+	chooser.setDialogTitle("Choose a plan file");
+	if(chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+	File plan = chooser.getSelectedFile();
+
+	try {
+	    List<NightPlanner.Request> requests = NightPlanner.readPlan(plan);
+	    _targetResolver.prefetchPlan(requests, new Templates(TEMPLATE_LABEL, TEMPLATE_PAIR, TEMPLATE_ID));
+	    logPanel.add("Looking up the targets of the " + requests.size() + " applications in <strong>" + plan.getName() + "</strong>", LogPanel.OK, false);
+	}
+	catch(Exception e){
+	    _showExceptionDialog(e);
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Runs a sequence of applications listed in a plan file, as read by
+     * NightPlanner: each is loaded into the GUI as it is posted, so that the
+     * display, the meters and the journal follow the sequence.
+     */
+    private void _runSequence() {
+
+	if(_sequencer != null && _sequencer.isRunning()){
+	    logPanel.add("A sequence is already running", LogPanel.ERROR, false);
+	    return;
+	}
+	if(!ULTRACAM_SERVERS_ON){
+	    logPanel.add("Sequences need the ULTRACAM servers to be on", LogPanel.ERROR, false);
+	    return;
+	}
+
+	JFileChooser chooser = new JFileChooser(_xmlFileChooser().getCurrentDirectory());
+	chooser.setDialogTitle("Choose a sequence (plan) file");
+	if(chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+	File plan = chooser.getSelectedFile();
+
+	final List<NightPlanner.Request> requests;
+	try {
+	    requests = NightPlanner.readPlan(plan);
+	    if(requests.isEmpty())
+		throw new Exception("No applications listed in " + plan.getName());
+	}
+	catch(Exception e){
+	    _showExceptionDialog(e);
+	    return;
+	}
+
+	int result = JOptionPane.showConfirmDialog(this, "Run the " + requests.size() + " applications listed in " + plan.getName() +
+						   " one after another?\nThe first is posted as soon as the data server is idle.",
+						   "Confirm sequence", JOptionPane.YES_NO_OPTION);
+	if(result != JOptionPane.YES_OPTION) return;
+
+	AppBuilder builder;
+	try {
+	    Templates templates = new Templates(TEMPLATE_LABEL, TEMPLATE_PAIR, TEMPLATE_ID);
+	    builder = new AppBuilder(templates);
+	    if(_targetResolver != null) _targetResolver.prefetchPlan(requests, templates);
+	}
+	catch(Exception e){
+	    _showExceptionDialog(e);
+	    return;
+	}
+
+	final int total = requests.size();
+	_sequencer = new Sequencer(_serverLink, builder, _dataRateBudget, DATA_RATE_BLOCK, DATA_FROM_IMEDIA1, requests, new Sequencer.Listener() {
+
+		public void prepared(final int index, final AppBuilder.Prepared prepared) {
+		    SwingUtilities.invokeLater(new Runnable() {
+			    public void run() {
+				logPanel.add("Sequence " + (index+1) + "/" + total + ": prepared <strong>" + prepared.app.getFile().getName() +
+					     "</strong>, " + prepared.nexposures + " exposures, about " + Math.round(prepared.getDuration()) + " seconds",
+					     LogPanel.OK, false, "sequence");
+			    }
+			});
+		}
+
+		public void posted(final int index, final AppBuilder.Prepared prepared) {
+		    SwingUtilities.invokeLater(new Runnable() {
+			    public void run() {
+				_xmlFile = prepared.app.getFile();
+				_loadApp(true);
+				numExposeText.setText(String.valueOf(prepared.nexposures));
+				isValid(false);
+				_journalSetup("post", "ok", true, "sequence", index+1, "file", prepared.app.getFile().getPath());
+				onPostApp();
+			    }
+			});
+		}
+
+		public void started(final int index, final AppBuilder.Prepared prepared) {
+		    SwingUtilities.invokeLater(new Runnable() {
+			    public void run() {
+				onStartRun();
+				// The sequencer watches for the end of the run
+				if(_runActive != null) _runActive.stop();
+			    }
+			});
+		}
+
+		public void finished(final int index, final AppBuilder.Prepared prepared) {
+		    SwingUtilities.invokeLater(new Runnable() {
+			    public void run() {
+				onStopRun();
+			    }
+			});
+		}
+
+		public void failed(final int index, final String message, final boolean stopping) {
+		    SwingUtilities.invokeLater(new Runnable() {
+			    public void run() {
+				logPanel.add("Sequence " + (index+1) + "/" + total + (stopping ? ": stopping the sequence: " : ": skipped: ") + message,
+					     LogPanel.ERROR, true, "sequence");
+				_journal("sequence", "index", index+1, "error", message, "stopping", stopping);
+			    }
+			});
+		}
+
+		public void warned(final int index, final String message) {
+		    SwingUtilities.invokeLater(new Runnable() {
+			    public void run() {
+				logPanel.add("Sequence " + (index+1) + "/" + total + ": warning: " + message, LogPanel.WARNING, true, "sequence");
+				_journal("sequence", "index", index+1, "warning", message);
+			    }
+			});
+		}
+
+		public void done(final boolean complete) {
+		    SwingUtilities.invokeLater(new Runnable() {
+			    public void run() {
+				logPanel.add(complete ? "Sequence complete" : "Sequence ended before completion",
+					     complete ? LogPanel.OK : LogPanel.WARNING, true, "sequence");
+				_sequenceRun.setEnabled(true);
+				_sequenceStop.setEnabled(false);
+			    }
+			});
+		}
+	    });
+
+	logPanel.add("Started a sequence of " + total + " applications from <strong>" + plan.getName() + "</strong>", LogPanel.OK, true, "sequence");
+	_journal("sequence", "plan", plan.getPath(), "applications", total);
+	_sequenceRun.setEnabled(false);
+	_sequenceStop.setEnabled(true);
+	_sequencer.start();
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
     /** Gets the run number */
     public void getRunNumber() {
 	try {
-	    URL url           = new URL(HTTP_DATA_SERVER + "fstatus");
-	    String reply      = _readText(url.openStream()).trim();
-	    Document document = _documentBuilder.parse(new InputSource(new StringReader(reply)));
-	    NodeList nlist    = document.getElementsByTagName("lastfile");
-	    if(nlist.getLength() == 0)
-		throw new Exception("Could not find 'lastfile' element in XML returned from the server");
-	    
-	    Element element   = (Element)nlist.item(0);
-	    if(element.hasAttribute("path")){
-		String path   = element.getAttribute("path").trim();
-		if(path.length() > 2){
-		    String numString = path.substring(path.length()-3);
-		    int number = Integer.parseInt(numString);
-		    _runNumber.setText(String.valueOf(number));
-		}else{
-		    throw new Exception("Path = " + path + " not long enough for 3 digit run number");
-		}
-	    }else{
-		throw new Exception("'lastfile' element in XML from server does not have 'path' attribute");
-	    }
+	    int number = ServerLink.lastRunNumber(_serverLink.fileStatus());
+	    _runNumber.setText(String.valueOf(number));
 	}
 	catch(Exception e) {
 	    logPanel.add("Failed to determine run number; will be set blank", LogPanel.ERROR, false);
@@ -2087,6 +2209,18 @@ public class Udriver extends JFrame {
 
     //------------------------------------------------------------------------------------------------------------------------------------------
 
+    // The run number a run started now would have, or null if not known
+    private String _nextRunNumber(){
+	try {
+	    return String.valueOf(Integer.parseInt(_runNumber.getText().trim()) + 1);
+	}
+	catch(NumberFormatException e){
+	    return null;
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
     /** Increment run number */
     public void incrementRunNumber(){	
 	try {
@@ -2113,49 +2247,12 @@ public class Udriver extends JFrame {
     public boolean isResponseOK(Document document){
 	
 	try{
-
-	    NodeList nlist = document.getElementsByTagName("source");
-	    if(nlist.getLength() == 0)
-		throw new Exception("Could not find 'source' element in XML returned from the server");   
-	    Node node = nlist.item(0).getFirstChild();
-	    if(node == null)
-		throw new Exception("'source' had no children in XML returned from the server");   
-
-	    String source = node.getNodeValue().trim();
-	    if(source == null)
-		throw new Exception("'source' value was null in XML returned from the server");   
-
-	    // Need software="OK" in <status> tag
-	    nlist    = document.getElementsByTagName("status");
-	    if(nlist.getLength() == 0)
-		throw new Exception("Could not find 'status' element in XML returned from the server");
-	    Element element   = (Element)nlist.item(0);
-	    if(element.hasAttribute("software")){
-		if(!element.getAttribute("software").equals("OK"))
-		    throw new Exception("'software' attribute of 'status' element = " + element.getAttribute("software") + " not = OK from source = " + source);
-	    }else{
-		throw new Exception("Could not find 'software' attribute of 'status' element from source = " + source);
-	    }
-
-	    if(source.equals("Camera server")){
-
-		// Need camera="OK" in <status> tag
-		if(element.hasAttribute("camera")){
-		    if(!element.getAttribute("camera").equals("OK"))
-			throw new Exception("'camera' attribute of 'status' element = " + element.getAttribute("camera") + " not = OK from source = " + source);
-		}else{
-		    throw new Exception("Could not find 'camera' attribute of 'status' element from source = " + source);
-		}
-
-	    }else if(!source.equals("Filesave data handler")){
-
-		   throw new Exception("source = " + source + " not recognised. Expected either 'Camera server' or 'Filesave data handler'");
-	    }
-	    
+	    ServerLink.checkResponse(document);
 	    return true;
 	}
 	catch(Exception e){
 	    logPanel.add(e.toString(), LogPanel.ERROR, false);
+	    _journal("reply", "ok", false, "error", e.toString());
 	    return false;
 	}
     }
@@ -2180,6 +2277,14 @@ public class Udriver extends JFrame {
     //------------------------------------------------------------------------------------------------------------------------------------------
 		
     /** Sets the number of windows/window pairs in use */
+    // The most window pairs any template uses, and so the number shown
+    private static int _maxPairs() {
+	int max = 0;
+	for(String pair : TEMPLATE_PAIR)
+	    max = Math.max(max, Integer.parseInt(pair.trim()));
+	return max;
+    }
+
     public void setNumEnable(){
 	try{
 	    numEnable = Integer.parseInt(TEMPLATE_PAIR[_whichTemplate()]);
@@ -2211,162 +2316,15 @@ public class Udriver extends JFrame {
 		
 		// Set the readout speed
 		readSpeed = (String) speedChoice.getSelectedItem();
-		double cdsTime, clearTime, frameTransfer, readout, video;
-		double cycleTime, frameRate, exposureTime, deadTime;
-		int nwins = 0, pshift = 0;
-		    
-		if(readSpeed.equals("Fast")){
-		    cdsTime = CDS_TIME_FBB;
-		}else if(readSpeed.equals("Turbo")){
-		    cdsTime = CDS_TIME_FDD;
-		}else if(readSpeed.equals("Slow")){
-		    cdsTime = CDS_TIME_CDD;
-		}else{
-		    throw new Error("readSpeed = \"" + readSpeed + "\" is unrecognised. Programming error");
-		}
-		video = cdsTime + SWITCH_TIME;
-		
-		if(applicationTemplate.equals("Fullframe + clear") || applicationTemplate.equals("Fullframe, no clear")){
-		    
-		    frameTransfer = 1033*VCLOCK_FRAME;
-		    readout       = (VCLOCK_STORAGE*ybin + 536.*HCLOCK + (512./xbin+2)*video)*(1024./ybin);		
-		    if(applicationTemplate.equals("Fullframe + clear")){
-			clearTime    = (1033 + 1027)*VCLOCK_FRAME;
-			cycleTime    = (INVERSION_DELAY + 100*expose + clearTime + frameTransfer + readout)/1.e6;
-			exposureTime = expose/10000.;
-		    }else{
-			cycleTime    = (INVERSION_DELAY + 100*expose + frameTransfer + readout)/1.e6;
-			exposureTime = cycleTime - frameTransfer/1.e6;
-		    }
-		    readout      /= 1.e6;
-		    
-		}else if(applicationTemplate.equals("Fullframe with overscan") || applicationTemplate.equals("Fullframe, overscan, no clear")){
-		    
-		    frameTransfer = 1033.*VCLOCK_FRAME;
-		    readout       = (VCLOCK_STORAGE*ybin + 540.*HCLOCK + ((540./xbin)+2.)*video)*(1032/ybin);
-		    if(applicationTemplate.equals("Fullframe with overscan")){
-			clearTime     = (1033. + 1032.) * VCLOCK_FRAME;
-			cycleTime     = (INVERSION_DELAY + 100*expose + clearTime + frameTransfer + readout)/1.e6;
-			exposureTime  = expose/10000.;
-		    }else{
-			cycleTime     = (INVERSION_DELAY + 100*expose + frameTransfer + readout)/1.e6;
-			exposureTime  = cycleTime - frameTransfer/1.e6;
-		    }
-		    readout      /= 1.e6;
-		    
-		}else if(applicationTemplate.equals("2 windows") || applicationTemplate.equals("4 windows") || 
-			 applicationTemplate.equals("6 windows") || applicationTemplate.equals("2 windows + clear") ){
-		    
-		    if(applicationTemplate.equals("2 windows + clear") ){
-			clearTime     = (1033 + 1027)*VCLOCK_FRAME;
-		    }else{
-			clearTime = 0.;
-		    }
-		    frameTransfer = 1033.*VCLOCK_FRAME;
-		    cycleTime     = INVERSION_DELAY + 100*expose + frameTransfer + clearTime;
-		    readout       = 0.;
-		    
-		    for(int i=0; i<numEnable; i++){
-			
-			int ystart = _windowPairs.getYstart(i);
-			int xleft  = _windowPairs.getXleft(i);
-			int xright = _windowPairs.getXright(i);
-			int nx     = _windowPairs.getNx(i);
-			int ny     = _windowPairs.getNy(i);
-			
-			int ystart_m = i > 0 ? _windowPairs.getYstart(i-1) : 1;
-			int ny_m     = i > 0 ? _windowPairs.getNy(i-1)     : 0;
-			
-			// Time taken to shift the window next to the storage area
-			double yShift = i > 0 ? (ystart-ystart_m-ny_m)*VCLOCK_STORAGE : (ystart-1)*VCLOCK_STORAGE;
-			
-			// Number of columns to shift whichever window is further from the edge of the readout
-			// to get ready for simultaneous readout.
-			int diffShift = Math.abs(xleft - 1 - (1024 - xright - nx + 1) );
-			
-			// Time taken to dump any pixels in a row that come after the ones we want.
-			// The '8' is the number of HCLOCKs needed to open the serial register dump gates
-			// If the left window is further from the left edge than the right window is from the
-			// right edge, then the diffshift will move it to be the same as the right window, and
-			// so we use the right window parameters to determine the number of hclocks needed, and
-			// vice versa.
-			int numHclocks   = (xleft - 1 > 1024-xright-nx+1) ?
-			    nx + diffShift + (1024 - xright - nx + 1) + 8 :
-			    nx + diffShift + (xleft - 1) + 8;
-			
-			// Time taken to read one line. The extra 2 is required to fill the video pipeline buffer
-			double lineRead = VCLOCK_STORAGE*ybin + numHclocks*HCLOCK + (nx/xbin+2)*video;
-			
-			// Time taken to read window
-			double read     = (ny/ybin)*lineRead;
-			
-			cycleTime += yShift + read;
-			readout   += yShift + read;
-		    }
-		    
-		    // Convert to microseconds
-		    if(applicationTemplate.equals("2 windows + clear") ){
-			exposureTime = expose/10000.;
-		    }else{
-			exposureTime = (cycleTime - frameTransfer)/1.e6;
-		    }
-		    
-		    cycleTime   /= 1.e6;
-		    readout     /= 1.e6;
-		    
-		}else if(applicationTemplate.equals("Drift mode")){		
-		    
-		    int ystart = _windowPairs.getYstart(0);
-		    int xleft  = _windowPairs.getXleft(0);
-		    int xright = _windowPairs.getXright(0);
-		    int nx     = _windowPairs.getNx(0);
-		    int ny     = _windowPairs.getNy(0);
-		    
-		    // Drift mode
-		    nwins  = (int)(((1033. / ny ) + 1.)/2.);
-		    pshift = (int)(1033.-(((2.*nwins)-1.)*ny));
-		    
-		    frameTransfer = (ny + ystart - 1.)*VCLOCK_FRAME;
-		    int diffShift   = Math.abs(xleft - 1 - (1024-xright-nx+1));
-		    int numHclocks  = (xleft - 1 > 1024-xright-nx+1) ?
-			nx + diffShift + (1024-xright-nx+1) + 8 :
-			nx + diffShift + (xleft-1) + 8;
-		    double lineRead = VCLOCK_STORAGE*ybin + numHclocks*HCLOCK + (nx/xbin+2)*video;
-		    double read     = (ny/ybin)*lineRead;
-		    
-		    cycleTime    = (INVERSION_DELAY + pshift*VCLOCK_STORAGE + 100*expose + frameTransfer + read)/1.e6;
-		    exposureTime = cycleTime - frameTransfer/1.e6;
-		    readout      = (read + pshift*VCLOCK_STORAGE)/1.e6;
-		    
-		}else if(applicationTemplate.equals("Timing test")){		
-		    
-		    // Same as drift mode except no compensating delays are added, so on average
-		    // there is only one pipe shift per nwin frames
-		    int ystart = _windowPairs.getYstart(0);
-		    int xleft  = _windowPairs.getXleft(0);
-		    int xright = _windowPairs.getXright(0);
-		    int nx     = _windowPairs.getNx(0);
-		    int ny     = _windowPairs.getNy(0);
-		    
-		    // Drift mode
-		    nwins  = (int)(((1033. / ny ) + 1.)/2.);
-		    pshift = (int)(1033.-(((2.*nwins)-1.)*ny));
-		    
-		    frameTransfer = (ny + ystart - 1.)*VCLOCK_FRAME;
-		    int diffShift   = Math.abs(xleft - 1 - (1024-xright-nx+1));
-		    int numHclocks  = (xleft - 1 > 1024-xright-nx+1) ?
-			nx + diffShift + (1024-xright-nx+1) + 8 :
-			nx + diffShift + (xleft-1) + 8;
-		    double lineRead = VCLOCK_STORAGE*ybin + numHclocks*HCLOCK + (nx/xbin+2)*video;
-		    double read     = (ny/ybin)*lineRead;
-		    
-		    cycleTime    = (INVERSION_DELAY + (pshift*VCLOCK_STORAGE)/nwins + 100*expose + frameTransfer + read)/1.e6;
-		    exposureTime = cycleTime - frameTransfer/1.e6;
-		    readout      = (read + (pshift*VCLOCK_STORAGE)/nwins)/1.e6;
-		    
-		}else{
-		    throw new Error("Application = \"" + applicationTemplate + "\" is unrecognised. Programming error in speed");
-		}
+		TimingModel.Timing timing = TimingModel.timing(_timingSetup());
+		double cycleTime     = timing.cycleTime;
+		double exposureTime  = timing.exposureTime;
+		double frameTransfer = timing.frameTransfer;
+		double readout       = timing.readout;
+		int    nwins         = timing.nwins;
+		int    pshift        = timing.pshift;
+		double frameRate, deadTime;
+
 		deadTime  = cycleTime - exposureTime;
 		frameRate = 1./cycleTime;
 		
@@ -2468,12 +2426,12 @@ public class Udriver extends JFrame {
 		}
 		
 		double dutyCycle = 100.*exposureTime/cycleTime;
-		frameTransfer   /= 1.e6;
 		
 		// Update standard timing data fields
 		_frameRate.setText(round(frameRate,3));
 		_cycleTime.setText(round(cycleTime,4));
 		_dutyCycle.setText(round(dutyCycle,2));
+		_showDataRate(nbytesPerImage()/cycleTime);
 		
 		if(method == DETAILED_TIMING){
 		    
@@ -2525,12 +2483,16 @@ public class Udriver extends JFrame {
 		_frameRate.setText("UNDEFINED");
 		_cycleTime.setText("UNDEFINED");
 		_dutyCycle.setText("UNDEFINED");
+		_dataRate.setText("UNDEFINED");
+		_dataRate.setBackground(DEFAULT_COLOUR);
 	    }
 	}
 	catch(Exception e){
 	    _frameRate.setText("UNDEFINED");
 	    _cycleTime.setText("UNDEFINED");
 	    _dutyCycle.setText("UNDEFINED");
+	    _dataRate.setText("UNDEFINED");
+	    _dataRate.setBackground(DEFAULT_COLOUR);
 	    logPanel.add(e.toString(), LogPanel.ERROR, false);
 	}
 	return 0.;
@@ -2545,111 +2507,175 @@ public class Udriver extends JFrame {
 
 	    if(isValid(_validStatus)){
 
-		// time bytes
-		int n = 24;
+		return TimingModel.nbytesPerImage(_timingSetup());
 
-		if(applicationTemplate.equals("Fullframe + clear") || applicationTemplate.equals("Fullframe, no clear")){
+	    }
+	}
+	catch(Exception e){
+	    logPanel.add(e.toString(), LogPanel.ERROR, false);
+	}
+	return 1;
+    }
 
-		    n += 12*(512/xbin)*(1024/ybin);
-		    
-		}else if(applicationTemplate.equals("Fullframe with overscan") || applicationTemplate.equals("Fullframe, overscan, no clear")){
+    //------------------------------------------------------------------------------------------------------------------------------------------
 
-		    n += 12*(540/xbin)*(1032/ybin);
-		    
-		}else{
-		    
-		    for(int i=0; i<numEnable; i++)
-			n += 12*(_windowPairs.getNx(i) / xbin ) * (_windowPairs.getNy(i) / ybin );
+    // The current settings as needed by the timing model
+    private TimingModel.Setup _timingSetup() throws Exception {
+	int npair = applicationTemplate.startsWith("Fullframe") ? 0 : numEnable;
+	return new TimingModel.Setup(applicationTemplate, (String) speedChoice.getSelectedItem(), xbin, ybin, expose, _windowPairs.getModel(), npair);
+    }
 
-		}
-		
-		return n;
-		    
-	    }
+    // Shows the rate at which the current settings produce data, coloured if over the budget
+    private void _showDataRate(double bytesPerSecond) {
+	_dataRate.setText(DataRateBudget.format(bytesPerSecond));
+	double budget = _dataRateBudget.getBudget();
+	if(budget > 0 && bytesPerSecond > budget){
+	    _dataRate.setBackground(DATA_RATE_BLOCK ? ERROR_COLOUR : WARNING_COLOUR);
+	}else if(budget > 0 && bytesPerSecond > DataRateBudget.SHORTFALL*budget){
+	    _dataRate.setBackground(WARNING_COLOUR);
+	}else{
+	    _dataRate.setBackground(DEFAULT_COLOUR);
+	}
+    }
+
+    /** Checks the rate at which the current settings produce data against the
+     * rate the data server can write it. If over, the nearest settings that fit
+     * are suggested and, according to DATA_RATE_BLOCK, either the user is asked
+     * whether to post anyway or posting is refused. Returns true to go ahead;
+     * the warning is then logged by _postApp once the post has succeeded.
+     */
+    private boolean _checkDataRate() {
+
+	_overBudget = null;
+
+	// Invalid windows are reported when posting
+	double budget = _dataRateBudget.getBudget();
+	if(budget <= 0 || !isValid(false)) return true;
+
+	TimingModel.Setup setup;
+	try {
+	    setup = _timingSetup();
 	}
 	catch(Exception e){
 	    logPanel.add(e.toString(), LogPanel.ERROR, false);
+	    return true;
 	}
-	return 1;
+	if(_dataRateBudget.fits(setup)) return true;
+
+	double rate = TimingModel.dataRate(setup);
+	String message = "These settings produce " + DataRateBudget.format(rate) + " MB/s, more than the " +
+	    DataRateBudget.format(budget) + " MB/s the data server " +
+	    (_dataRateBudget.isMeasured() ? "managed in a recent run" : "is expected to sustain") + ".";
+	List<String> suggestions = _dataRateBudget.suggest(setup);
+	if(!suggestions.isEmpty()){
+	    message += "\nNearest settings that fit:";
+	    for(String suggestion : suggestions)
+		message += "\n   " + suggestion;
+	}
+	_journalSetup("dataRate", "rate", rate, "budget", budget, "measured", _dataRateBudget.isMeasured(), "blocked", DATA_RATE_BLOCK);
+
+	if(DATA_RATE_BLOCK){
+	    logPanel.add("Data rate " + DataRateBudget.format(rate) + " MB/s is over the budget of " + DataRateBudget.format(budget) +
+			 " MB/s; application was not posted to the servers", LogPanel.ERROR, false);
+	    if(_remote)
+		_remoteError = new Exception(message.replace('\n', ' '));
+	    else
+		JOptionPane.showMessageDialog(this, message, "Data rate too high", JOptionPane.ERROR_MESSAGE);
+	    return false;
+	}
+	// A script has no one to ask, and a warning is what was configured
+	if(!_remote){
+	    int result = JOptionPane.showConfirmDialog(this, message + "\n\nPost anyway?", "Data rate too high", JOptionPane.YES_NO_OPTION);
+	    if(result != JOptionPane.YES_OPTION){
+		logPanel.add("Application was not posted to the servers", LogPanel.WARNING, false);
+		return false;
+	    }
+	}
+	_overBudget = "Posted with data rate " + DataRateBudget.format(rate) + " MB/s over the budget of " + DataRateBudget.format(budget) + " MB/s";
+	return true;
     }
 
 
     //------------------------------------------------------------------------------------------------------------------------------------------
 
-    /** This routine sets up a server for rtplot so that rtplot can grab the current window values.
+    /** This routine starts a server for rtplot so that rtplot can grab the current window values.
      *  It attempts to sends the current values over whether they are OK or not, and leaves rtplot to check them.
-     *  Note that the port number used here must match the one used in rtplot.
+     *  The server runs in its own thread and can serve several rtplots at once. Note that the port number
+     *  used here must match the one used in rtplot.
      */
     public void runRtplotServer() {
 
 	try {
+	    _rtplotServer = new RtplotServer(RTPLOT_SERVER_HOST, RTPLOT_SERVER_PORT, RTPLOT_WRITE_TIMEOUT);
+	    _rtplotServer.start();
+	    logPanel.add("rtplot server listening on port " + _rtplotServer.getPort(), LogPanel.OK, false);
+
+	    // The windows are read on the GUI thread
+	    SwingUtilities.invokeLater(new Runnable() {
+		    public void run() {
+			_publishWindows();
+		    }
+		});
+	}
+	catch(Exception e) {
+	    if(DEBUG) e.printStackTrace();
+	    System.err.println(e);
+	    _showExceptionDialog(e);
+	}
+    }
 
-	    ServerSocket ss = new ServerSocket(5100);
-	    
-	    for(;;){
-		Socket     client = ss.accept();
-		BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-		PrintWriter   out = new PrintWriter(client.getOutputStream());
-		
-		out.print("HTTP/1.0 200 OK\r\n");
-		out.print("Content-Type: text/plain\r\n");
-
-		// OK, now we send the windows information if we can get it	
-		try {
-
-		    // Get everything first before attempting to respond
-		    xbin = xbinText.getValue();
-		    ybin = ybinText.getValue();	
-		    setNumEnable();
-		    String binFactors  = new String(xbin + " " + ybin + " " + Math.max(2, 2*numEnable) + "\r\n");
-		    int content_length = binFactors.length();
-		    String[] window    = new String[Math.max(2,2*numEnable)];
-		    if(numEnable > 0){
-
-			int xleft, xright, ystart, nx, ny;
-			for(int i=0; i<numEnable; i++){
-			    xleft  = _windowPairs.getXleft(i);
-			    xright = _windowPairs.getXright(i);
-			    ystart = _windowPairs.getYstart(i);
-			    nx     = _windowPairs.getNx(i);
-			    ny     = _windowPairs.getNy(i);
-			    window[2*i]     = new String(xleft + " "  + ystart + " " + nx + " " + ny + "\r\n");
-			    content_length += window[2*i].length();
-			    window[2*i+1]   = new String(xright + " " + ystart + " " + nx + " " + ny + "\r\n");
-			    content_length += window[2*i+1].length();
-			}
-
-		    }else if(applicationTemplate.equals("Fullframe + clear") || applicationTemplate.equals("Fullframe, no clear")){
-			window[0] = new String("1   1 512 1024\r\n");
-			content_length += window[0].length();
-			window[1] = new String("513 1 512 1024\r\n");
-			content_length += window[1].length();
-		    }else if(applicationTemplate.equals("Fullframe with overscan") || applicationTemplate.equals("Fullframe, overscan, no clear")){
-			window[0] = new String("1   1 520 1032\r\n");
-			content_length += window[0].length();
-			window[1] = new String("513 1 520 1032\r\n");
-			content_length += window[1].length();
+    /** Opens the memory-mapped window file RTPLOT_WINDOW_FILE, which is then kept
+     * up to date with the windows for local rtplots to read.
+     */
+    public void openWindowChannel() {
+	try {
+	    _windowChannel = new WindowChannel(new File(RTPLOT_WINDOW_FILE), true);
+	    logPanel.add("Sharing windows through " + RTPLOT_WINDOW_FILE, LogPanel.OK, false);
+	    SwingUtilities.invokeLater(new Runnable() {
+		    public void run() {
+			_publishWindows();
 		    }
-		    out.print("Content-Length: " + content_length + "\r\n\r\n");
+		});
+	}
+	catch(Exception e) {
+	    if(DEBUG) e.printStackTrace();
+	    System.err.println(e);
+	    _showExceptionDialog(e);
+	}
+    }
 
-		    // Now the content
-		    out.print(binFactors);
-		    for(int i=0; i<Math.max(2,2*numEnable); i++)
-			out.print(window[i]);
+    /** Stops the rtplot server if it is running */
+    public void stopRtplotServer() {
+	if(_rtplotServer != null)
+	    _rtplotServer.stop();
+    }
 
-		    if(DEBUG) System.out.println("Have just responded to a request from rtplot");
-		}
-		catch(Exception e){
-		    out.print("Content-Length: 26\r\n\r\n");
-		    out.print("No valid data available\r\n");
-		    System.out.println(e);
-		    System.out.println("Failed to respond to a request from rtplot");
-		    _showExceptionDialog(e);
-		}
-		out.close();
-		in.close();
-		client.close();
-	    }	    
+    /** Starts the local control interface through which scripts can read and change the
+     * settings and post, start and stop runs. See ControlServer.java
+     */
+    public void runControlServer() {
+	try {
+	    ControlServer server = new ControlServer(CONTROL_SERVER_HOST, CONTROL_SERVER_PORT, RTPLOT_WRITE_TIMEOUT,
+						     new ControlServer.Controller() {
+							 public Object execute(String action, Map<String,Object> arguments) throws Exception {
+							     return _control(action, arguments);
+							 }
+						     },
+						     new Executor() {
+							 public void execute(Runnable runnable) {
+							     SwingUtilities.invokeLater(runnable);
+							 }
+						     });
+	    server.start();
+	    _controlServer = server;
+	    logPanel.add("Control server listening on port " + server.getPort(), LogPanel.OK, false);
+
+	    // The settings are read on the GUI thread
+	    SwingUtilities.invokeLater(new Runnable() {
+		    public void run() {
+			_publishWindows();
+		    }
+		});
 	}
 	catch(Exception e) {
 	    if(DEBUG) e.printStackTrace();
@@ -2658,16 +2684,452 @@ public class Udriver extends JFrame {
 	}
     }
 
+    /** Stops the control server if it is running */
+    public void stopControlServer() {
+	if(_controlServer != null)
+	    _controlServer.stop();
+    }
+
+    // Names of the settings the control interface can change
+    private static final String[] CONTROL_SETTINGS = {"template", "speed", "xbin", "ybin", "expose", "numExpose", "target", "windows"};
+
+    // Carries out a request from the control interface. Called on the GUI thread.
+    private Object _control(String action, Map<String,Object> arguments) throws Exception {
+	_remote      = true;
+	_remoteError = null;
+	try {
+	    if(action.equals("settings")){
+		_controlChange(arguments);
+	    }else if(action.equals("post")){
+		_controlPost(_flag(arguments, "confirm"));
+	    }else if(action.equals("start")){
+		_controlStart(_flag(arguments, "force"));
+	    }else if(action.equals("stop")){
+		_controlStop();
+	    }else{
+		throw new IllegalArgumentException("Action = \"" + action + "\" not recognised");
+	    }
+	    _publishWindows();
+	    return _controlSettings();
+	}
+	finally {
+	    _remote = false;
+	}
+    }
+
+    // Posts the application as the Post button does, with the confirmations given in advance
+    private void _controlPost(boolean confirm) throws Exception {
+
+	if(!ULTRACAM_SERVERS_ON || !(EXPERT_MODE || postApp_enabled))
+	    throw new Exception("An application cannot be posted at the moment");
+	if(_sequencer != null && _sequencer.isRunning())
+	    throw new Exception("A sequence is running");
+
+	if(CONFIRM_ON_CHANGE && (_objectText.getText().equals(""))){
+	    if(!confirm)
+		throw new Exception("Target field is blank; post with \"confirm\": true to proceed");
+	}else if(CONFIRM_ON_CHANGE && _format.hasChanged() && _runType.equals("data")){
+	    if(!confirm)
+		throw new Exception("Format has changed with no target name change; post with \"confirm\": true if the current target (" +
+				    _objectText.getText() + ") is correct");
+	    _format.update();
+	}
+
+	if(!_checkDataRate())
+	    _remoteFailed("Application was not posted to the servers");
+	if(!_postApp())
+	    _remoteFailed("Failed to post application to servers");
+	onPostApp();
+    }
+
+    // Starts a run as the Start button does
+    private void _controlStart(boolean force) throws Exception {
+
+	if(!ULTRACAM_SERVERS_ON || !(EXPERT_MODE || startRun_enabled))
+	    throw new Exception("A run cannot be started at the moment");
+	if(_sequencer != null && _sequencer.isRunning())
+	    throw new Exception("A sequence is running");
+
+	if(isRunActive(true)){
+	    if(!force)
+		throw new Exception("A run may already be active; start with \"force\": true to try to start another");
+	}else{
+	    getRunNumber();
+	}
+	if(!_execCommand("GO", true))
+	    _remoteFailed("Failed to start the run");
+	onStartRun();
+    }
+
+    // Stops a run as the Stop button does
+    private void _controlStop() throws Exception {
+
+	if(!ULTRACAM_SERVERS_ON || !(EXPERT_MODE || stopRun_enabled))
+	    throw new Exception("There is no run to stop");
+
+	if(_sequencer != null && _sequencer.isRunning()){
+	    _sequencer.stop();
+	    logPanel.add("Stopped the sequence", LogPanel.WARNING, true, "sequence");
+	}
+	if(_execCommand("EX,0", true)){
+	    onStopRun();
+	}else{
+	    if(_runActive != null) _runActive.stop();
+	    _exposureMeter.stop();
+	    _remoteFailed("Failed to stop the run");
+	}
+    }
+
+    // Fails, with the reason the GUI would have shown in a dialog if there was one
+    private void _remoteFailed(String message) throws Exception {
+	if(_remoteError == null)
+	    throw new Exception(message);
+	String reason = _remoteError.getMessage() != null ? _remoteError.getMessage() : _remoteError.toString();
+	throw new Exception(message + ": " + reason.replace('\n', ' '));
+    }
+
+    // Changes the settings as the control interface asks. They are checked as when posting
+    // before any is changed, so that a bad request leaves the GUI as it was.
+    private void _controlChange(Map<String,Object> arguments) throws Exception {
+
+	List<String> known = Arrays.asList(CONTROL_SETTINGS);
+	for(String key : arguments.keySet())
+	    if(!known.contains(key))
+		throw new IllegalArgumentException("Setting = \"" + key + "\" not recognised; can set " + known);
+
+	String template = applicationTemplate;
+	if(arguments.containsKey("template")){
+	    template = _string(arguments, "template");
+	    if(!Arrays.asList(TEMPLATE_LABEL).contains(template))
+		throw new IllegalArgumentException("template = \"" + template + "\" is not one of " + Arrays.asList(TEMPLATE_LABEL));
+	}
+	int npair = Integer.parseInt(TEMPLATE_PAIR[Arrays.asList(TEMPLATE_LABEL).indexOf(template)].trim());
+
+	String speed = (String)speedChoice.getSelectedItem();
+	if(arguments.containsKey("speed")){
+	    String value = _string(arguments, "speed");
+	    speed = null;
+	    for(String label : SPEED_LABELS)
+		if(label.equalsIgnoreCase(value)) speed = label;
+	    if(speed == null)
+		throw new IllegalArgumentException("speed = \"" + value + "\" is not one of " + Arrays.asList(SPEED_LABELS));
+	}
+
+	int xbin    = arguments.containsKey("xbin")      ? _integer(arguments, "xbin")      : xbinText.getValue();
+	int ybin    = arguments.containsKey("ybin")      ? _integer(arguments, "ybin")      : ybinText.getValue();
+	int exp     = arguments.containsKey("expose")    ? _integer(arguments, "expose")    : _getExpose();
+	int nexpose = arguments.containsKey("numExpose") ? _integer(arguments, "numExpose") : numExposeText.getValue();
+	String target = arguments.containsKey("target")  ? _string(arguments, "target")     : _objectText.getText();
+	if(exp > 10*100000)
+	    throw new IllegalArgumentException("expose = " + exp + " is more than the maximum of " + 10*100000);
+	if(nexpose < 0 || nexpose > AppBuilder.MAX_EXPOSURES)
+	    throw new IllegalArgumentException("numExpose = " + nexpose + " is out of range 0 to " + AppBuilder.MAX_EXPOSURES);
+
+	int[] pairs = new int[WindowModel.NVALUE*npair];
+	if(arguments.containsKey("windows")){
+	    if(!(arguments.get("windows") instanceof List))
+		throw new IllegalArgumentException("windows must be a list of window pairs");
+	    List<?> windows = (List<?>)arguments.get("windows");
+	    if(windows.size() != npair)
+		throw new IllegalArgumentException(template + " needs " + npair + " window pairs, not " + windows.size());
+	    String[] names = WindowModel.NAMES;
+	    for(int i=0; i<npair; i++){
+		if(!(windows.get(i) instanceof Map))
+		    throw new IllegalArgumentException("window pair " + (i+1) + " must be an object with " + Arrays.asList(names));
+		@SuppressWarnings("unchecked")
+		Map<String,Object> pair = (Map<String,Object>)windows.get(i);
+		for(int j=0; j<names.length; j++){
+		    if(!pair.containsKey(names[j]))
+			throw new IllegalArgumentException("window pair " + (i+1) + " has no " + names[j]);
+		    pairs[WindowModel.NVALUE*i+j] = _integer(pair, names[j]);
+		}
+	    }
+	}else{
+	    pairs = _windowPairs.getModel().toArray(npair);
+	}
+
+	try {
+	    AppBuilder.validate(new TimingModel.Setup(template, speed, xbin, ybin, exp, pairs));
+	}
+	catch(Exception e){
+	    throw new IllegalArgumentException(e.getMessage());
+	}
+
+	// As _loadApp sets them
+	if(!template.equals(applicationTemplate)){
+	    applicationTemplate = template;
+	    templateChoice.setSelectedItem(applicationTemplate);
+	    setNumEnable();
+	    _windowPairs.setNpair(numEnable);
+	    _setWinLabels(numEnable > 0);
+	}
+	speedChoice.setSelectedItem(speed);
+	xbinText.setText(String.valueOf(xbin));
+	ybinText.setText(String.valueOf(ybin));
+	exposeText.setText(String.valueOf(exp/10));
+	tinyExposeText.setText(String.valueOf(exp % 10));
+	numExposeText.setText(String.valueOf(nexpose));
+	_objectText.setText(target);
+	for(int i=0; i<pairs.length; i++)
+	    _windowPairs.setText(i / WindowModel.NVALUE, i % WindowModel.NVALUE, String.valueOf(pairs[i]));
+	speed(TIMING_UPDATE);
+	logPanel.add("Settings changed by script: " + arguments.keySet(), LogPanel.OK, true);
+    }
+
+    // The settings, timing predictions and state given to the control interface
+    private Map<String,Object> _controlSettings() {
+
+	Map<String,Object> map = new LinkedHashMap<String,Object>();
+	boolean valid = isValid(false);
+	map.put("template",  applicationTemplate);
+	map.put("speed",     speedChoice.getSelectedItem());
+	map.put("xbin",      xbin);
+	map.put("ybin",      ybin);
+	map.put("expose",    expose);
+	map.put("numExpose", numExpose);
+	List<Map<String,Object>> windows = new ArrayList<Map<String,Object>>();
+	for(int i=0; i<numEnable; i++){
+	    Map<String,Object> pair = new LinkedHashMap<String,Object>();
+	    for(int j=0; j<WindowModel.NVALUE; j++)
+		pair.put(WindowModel.NAMES[j], _integerText(_windowPairs.getText(i, j)));
+	    windows.add(pair);
+	}
+	map.put("windows",   windows);
+	map.put("target",    _objectText.getText().trim());
+	map.put("valid",     valid);
+
+	Map<String,Object> timing = null;
+	if(valid){
+	    try {
+		TimingModel.Setup setup = _timingSetup();
+		TimingModel.Timing times = TimingModel.timing(setup);
+		timing = new LinkedHashMap<String,Object>();
+		timing.put("cycleTime",     times.cycleTime);
+		timing.put("frameRate",     1./times.cycleTime);
+		timing.put("exposureTime",  times.exposureTime);
+		timing.put("deadTime",      times.getDeadTime());
+		timing.put("bytesPerImage", TimingModel.nbytesPerImage(setup));
+		timing.put("dataRate",      TimingModel.dataRate(setup));
+	    }
+	    catch(Exception e){
+		timing = null;
+	    }
+	}
+	map.put("timing",    timing);
+
+	map.put("state",     stopRun_enabled ? "running" : startRun_enabled ? "posted" : "idle");
+	map.put("run",       _runNumber.getText().trim());
+	map.put("sequence",  _sequencer != null && _sequencer.isRunning());
+	return map;
+    }
+
+    private static boolean _flag(Map<String,Object> arguments, String name) {
+	Object value = arguments.get(name);
+	if(value != null && !(value instanceof Boolean))
+	    throw new IllegalArgumentException(name + " must be true or false");
+	return Boolean.TRUE.equals(value);
+    }
+
+    private static String _string(Map<String,Object> arguments, String name) {
+	Object value = arguments.get(name);
+	if(!(value instanceof String))
+	    throw new IllegalArgumentException(name + " must be a string");
+	return (String)value;
+    }
+
+    private static int _integer(Map<String,Object> arguments, String name) {
+	Object value = arguments.get(name);
+	if(!(value instanceof Long) || (Long)value < Integer.MIN_VALUE || (Long)value > Integer.MAX_VALUE)
+	    throw new IllegalArgumentException(name + " must be an integer");
+	return ((Long)value).intValue();
+    }
+
+    // An integer field's value, null if it is not an integer
+    private static Integer _integerText(String text) {
+	try {
+	    return Integer.valueOf(text.trim());
+	}
+	catch(NumberFormatException e){
+	    return null;
+	}
+    }
+
+    /** Starts the run journal in JOURNAL_DIRECTORY. See RunJournal.java */
+    public void openJournal() {
+	File directory = new File(JOURNAL_DIRECTORY);
+	if(!directory.isDirectory()){
+	    logPanel.add("Journal directory " + JOURNAL_DIRECTORY + " does not exist; no journal will be kept", LogPanel.WARNING, false);
+	    return;
+	}
+	_journal = new RunJournal(directory, new LogWriter.Listener() {
+		public void opened(final File file, boolean appended) {
+		    SwingUtilities.invokeLater(new Runnable() {
+			    public void run() {
+				logPanel.add("Journal written to " + file, LogPanel.OK, false);
+			    }
+			});
+		}
+		public void failed(final File file, final IOException e) {
+		    SwingUtilities.invokeLater(new Runnable() {
+			    public void run() {
+				logPanel.add("Failed to write journal " + file + ": " + e, LogPanel.ERROR, false);
+			    }
+			});
+		}
+	    });
+	_journal("session", "config", CONFIG_FILE, "telescope", TELESCOPE, "camera", HTTP_CAMERA_SERVER, "data", HTTP_DATA_SERVER);
+    }
+
+    /** Starts indexing the applications in APP_DIRECTORY in the background. See AppLibrary.java */
+    public void openAppLibrary() {
+	File directory = new File(APP_DIRECTORY);
+	if(!directory.isDirectory()){
+	    logPanel.add("Application directory " + APP_DIRECTORY + " does not exist; the application library is off", LogPanel.WARNING, false);
+	    return;
+	}
+	File cache = APP_LIBRARY_CACHE.length() > 0 ? new File(APP_LIBRARY_CACHE) : null;
+	try {
+	    _appLibrary = new AppLibrary(directory, new Templates(TEMPLATE_LABEL, TEMPLATE_PAIR, TEMPLATE_ID), cache);
+	    _appLibrary.start();
+	}
+	catch(Exception e){
+	    logPanel.add("Failed to start the application library: " + e, LogPanel.ERROR, false);
+	}
+    }
+
+    /** Starts looking up target names, from TARGET_STAND_IN if set, or else
+     * the UAC database, while USE_UAC_DB and if UAC_DATABASE_USER is set,
+     * and SIMBAD. See TargetResolver.java
+     */
+    public void openTargetResolver() {
+	List<TargetResolver.Source> sources = new ArrayList<TargetResolver.Source>();
+	try {
+	    if(TARGET_STAND_IN.length() > 0){
+		sources.add(new TargetResolver.StandIn(new File(TARGET_STAND_IN)));
+	    }else{
+		if(UAC_DATABASE_USER.length() > 0){
+		    final TargetResolver.UacDatabase uac = new TargetResolver.UacDatabase(UAC_DATABASE_HOST.trim(), UAC_DATABASE_USER, UAC_DATABASE_PASSWORD);
+		    sources.add(new TargetResolver.Source() {
+			    public String getName() {
+				return uac.getName();
+			    }
+			    public TargetResolver.Target find(String name) throws Exception {
+				return USE_UAC_DB ? uac.find(name) : null;
+			    }
+			});
+		}
+		sources.add(new TargetResolver.Simbad(TargetResolver.Simbad.URL, TargetResolver.SIMBAD_TIMEOUT));
+	    }
+	    File cache = TARGET_CACHE.length() > 0 ? new File(TARGET_CACHE) : null;
+	    _targetResolver = new TargetResolver(sources, cache, 4);
+	    _targetResolver.start();
+	}
+	catch(Exception e){
+	    logPanel.add("Failed to start looking up targets: " + e, LogPanel.ERROR, false);
+	}
+    }
+
+    /** Closes the run journal, if open */
+    public void closeJournal() {
+	if(_journal != null){
+	    _journal("exit");
+	    _journal.close();
+	}
+    }
+
+    // Records an event in the journal, with fields as name, value pairs
+    private void _journal(String event, Object... fields) {
+	if(_journal != null)
+	    _journal.record(event, fields);
+	if(_controlServer != null)
+	    _controlServer.event(event, fields);
+    }
+
+    // Records an event in the journal along with the current settings
+    private void _journalSetup(String event, Object... fields) {
+	if(_journal == null && _controlServer == null) return;
+	Map<String,Object> map = RunJournal.settings(_objectText.getText().trim(), _runNumber.getText().trim(), applicationTemplate,
+						     _windowSnapshot(), expose, numExpose, readSpeed, fields);
+	if(_journal != null)
+	    _journal.record(event, map);
+	if(_controlServer != null)
+	    _controlServer.event(event, map);
+    }
+
+    /** Publishes the current windows to the rtplot server, and the settings to the
+     * control server. Call on the GUI thread whenever the windows may have changed;
+     * nothing happens if they have not.
+     */
+    private void _publishWindows() {
+	if(_controlServer != null)
+	    _controlServer.publish(_controlSettings());
+	if(_rtplotServer == null && _windowChannel == null) return;
+	WindowSnapshot snapshot = _windowSnapshot();
+	if(_rtplotServer != null && _rtplotServer.publish(snapshot) && DEBUG)
+	    System.out.println("Published new windows to rtplot server");
+	if(_windowChannel != null){
+	    // The file has room for MAX_WIN windows; with more, rtplots are told there are none rather than left with old ones
+	    boolean overflow = snapshot.getNwin() > WindowChannel.MAX_WIN;
+	    if(overflow && !_channelOverflow)
+		logPanel.add(snapshot.getNwin() + " windows are more than the " + WindowChannel.MAX_WIN + " that " + RTPLOT_WINDOW_FILE +
+			     " can hold; local rtplots are shown none until there are fewer", LogPanel.WARNING, false);
+	    _channelOverflow = overflow;
+	    _windowChannel.write(overflow ? WindowSnapshot.NONE : snapshot);
+	}
+    }
+
+    // Whether there were too many windows for the WindowChannel when last published
+    private boolean _channelOverflow = false;
+
+    // Publishes the windows once pending edits have been made
+    private void _publishWindowsLater() {
+	if((_rtplotServer == null && _windowChannel == null && _controlServer == null) || _publishPending) return;
+	_publishPending = true;
+	SwingUtilities.invokeLater(new Runnable() {
+		public void run() {
+		    _publishPending = false;
+		    _publishWindows();
+		}
+	    });
+    }
+
+    // Reads the windows from the GUI into a snapshot for rtplot
+    private WindowSnapshot _windowSnapshot() {
+
+	try {
+	    int xbinValue = xbinText.getValue();
+	    int ybinValue = ybinText.getValue();	
+	    setNumEnable();
+	    return WindowSnapshot.of(_timingSetup().withBinning(xbinValue, ybinValue));
+	}
+	catch(Exception e){
+	    if(DEBUG) System.out.println("No valid windows for rtplot: " + e);
+	}
+	return WindowSnapshot.NONE;
+    }
+
     //------------------------------------------------------------------------------------------------------------------------------------------
 
     /** Main program. Calls constructor and starts rtplot server */
 
     public static void main(String[] args) {
 	Udriver cw = new Udriver();
+	if(JOURNAL_ON)
+	    cw.openJournal();
+	if(APP_LIBRARY_ON)
+	    cw.openAppLibrary();
+	if(OBSERVING_MODE)
+	    cw.openTargetResolver();
+	if(RTPLOT_WINDOW_FILE.length() > 0)
+	    cw.openWindowChannel();
 	if(RTPLOT_SERVER_ON){
 	    logPanel.add("Starting rtplot server", LogPanel.WARNING, false);
 	    cw.runRtplotServer();
 	}
+	if(CONTROL_SERVER_ON)
+	    cw.runControlServer();
+	if(CONFIG_RELOAD)
+	    cw.watchConfig();
     }
 
     //------------------------------------------------------------------------------------------------------------------------------------------
@@ -2675,9 +3137,9 @@ public class Udriver extends JFrame {
     /* Choose an XML file name for saving an application */
     private boolean _chooseSaveApp() {
 	try {
-	    int result = _xmlFileChooser.showSaveDialog(null);
+	    int result = _xmlFileChooser().showSaveDialog(null);
 	    if(result == JFileChooser.APPROVE_OPTION){
-		_xmlFile = _xmlFileChooser.getSelectedFile();
+		_xmlFile = _xmlFileChooser().getSelectedFile();
 		if (_xmlFile.getPath().indexOf(".xml") != _xmlFile.getPath().length() - 4 ){
 		    String newFilePath = _xmlFile.getPath() + ".xml";
 		    _xmlFile = new File(newFilePath);
@@ -2698,9 +3160,9 @@ public class Udriver extends JFrame {
     /* Choose an XML file name for loading an application */
     private boolean _chooseLoadApp() {
 	try {
-	    int result = _xmlFileChooser.showOpenDialog(null);
+	    int result = _xmlFileChooser().showOpenDialog(null);
 	    if(result == JFileChooser.APPROVE_OPTION){
-		_xmlFile = _xmlFileChooser.getSelectedFile();
+		_xmlFile = _xmlFileChooser().getSelectedFile();
 		return true;
 	    }else{
 		throw new Exception("No XML file name chosen for loading application");
@@ -2748,50 +3210,24 @@ public class Udriver extends JFrame {
 
     //------------------------------------------------------------------------------------------------------------------------------------------
 
-    /** Splits up multiple arguments from configuration file */
-    private String[] _loadSplitProperty(Properties properties, String key) throws Exception {
-	String propString = _loadProperty(properties, key);
-	StringTokenizer stringTokenizer = new StringTokenizer(propString, ";\n");
-	String[] multiString = new String[stringTokenizer.countTokens()];
-	int i = 0;
-	while(stringTokenizer.hasMoreTokens())
-	    multiString[i++] = stringTokenizer.nextToken().trim();
-	return multiString;
-    }
-
-    private String _loadProperty(Properties properties, String key) throws Exception {
-	String value = properties.getProperty(key);
-	if(value == null)
-	    throw new Exception("Could not find " + key + " in configration file " + CONFIG_FILE);
-	return value;
-    }
-
-    //------------------------------------------------------------------------------------------------------------------------------------------
-
-    /** Checks that a property has value YES or NO and returns true if yes. It throws an exception
-     * if it neither yes nor no
-     */
-    private boolean _loadBooleanProperty(Properties properties, String key) throws Exception {
-	String value = properties.getProperty(key);
-	if(value == null)
-	    throw new Exception("Could not find " + key + " in configration file " + CONFIG_FILE);
-
-	if(value.equalsIgnoreCase("YES") || value.equalsIgnoreCase("TRUE")){
-	    return true;
-	}else if(value.equalsIgnoreCase("NO") || value.equalsIgnoreCase("FALSE")){
-	    return false;
-	}else{
-	    throw new Exception("Key " + key + " has value = " + value + " which does not match yes/no/true/false");
-	}
-    }
-
-    //------------------------------------------------------------------------------------------------------------------------------------------
-
     /** Handles display of exception messages which require acknowledgement from user */
     private void _showExceptionDialog(Exception e) {
+	if(_remote){
+	    _remoteError = e;
+	    return;
+	}
 	JOptionPane.showMessageDialog(this, "" + e, e.getMessage(), JOptionPane.ERROR_MESSAGE);
     }
 
+    /** Handles display of warnings which require acknowledgement from user */
+    private void _showWarningDialog(String message, String title) {
+	if(_remote){
+	    _remoteError = new Exception(message);
+	    return;
+	}
+	JOptionPane.showMessageDialog(this, message, title, JOptionPane.WARNING_MESSAGE);
+    }
+
     //------------------------------------------------------------------------------------------------------------------------------------------
 
     /** Member class for checking whether setup has changed. This is needed to see whether
@@ -2845,11 +3281,7 @@ public class Udriver extends JFrame {
 	private int    numEnable;
 	private String readSpeed;
 	private int    nTemplate;
-	private int[]  ystart = new int [3];
-	private int[]  xleft  = new int [3];
-	private int[]  xright = new int [3];
-	private int[]  nx     = new int [3];
-	private int[]  ny     = new int [3];
+	private int[]  pairs  = new int[WindowModel.NVALUE*_windowPairs.getCapacity()];
 
 	// Constructor, stores current values, with no attempt at
 	// checking validity.
@@ -2867,13 +3299,8 @@ public class Udriver extends JFrame {
 	    if(nblue     != getCurrentNblue())         return true;
 	    if(expose    != getCurrentExpose())        return true;
 	    if(numEnable != getCurrentNumEnable())     return true;
-	    for(int i=0; i<numEnable; i++){
-		if(ystart[i] != getCurrentYstart(i))   return true;
-		if(xleft[i]  != getCurrentXleft(i))    return true;
-		if(xright[i] != getCurrentXright(i))   return true;
-		if(nx[i]     != getCurrentNx(i))       return true;
-		if(ny[i]     != getCurrentNy(i))       return true;
-	    }
+	    for(int i=0; i<WindowModel.NVALUE*numEnable; i++)
+		if(pairs[i] != getCurrentWindow(i / WindowModel.NVALUE, i % WindowModel.NVALUE)) return true;
 	    if(nTemplate != _whichTemplate()) return true;
 	    if(!readSpeed.equals((String) speedChoice.getSelectedItem())) return true;
 
@@ -2890,13 +3317,8 @@ public class Udriver extends JFrame {
 	    nblue     = getCurrentNblue();
 	    expose    = getCurrentExpose();
 	    numEnable = getCurrentNumEnable();
-	    for(int i=0; i<numEnable; i++){
-		ystart[i] = getCurrentYstart(i);
-		xleft[i]  = getCurrentXleft(i);
-		xright[i] = getCurrentXright(i);
-		nx[i]     = getCurrentNx(i);
-		ny[i]     = getCurrentNy(i);
-	    }
+	    for(int i=0; i<WindowModel.NVALUE*numEnable; i++)
+		pairs[i] = getCurrentWindow(i / WindowModel.NVALUE, i % WindowModel.NVALUE);
 	    nTemplate  = _whichTemplate();
 	    readSpeed  = (String) speedChoice.getSelectedItem();
 	}
@@ -2947,49 +3369,12 @@ public class Udriver extends JFrame {
 	    }
 	}
 
-	public int getCurrentYstart(int nwin){
-	    try{
-		return _windowPairs.getYstart(nwin);
-	    }
-	    catch(Exception e){
-		return 1;
-	    }
-	}
-
-	public int getCurrentXleft(int nwin){
-	    try{
-		return _windowPairs.getXleft(nwin);
-	    }
-	    catch(Exception e){
-		return 1;
-	    }
-	}
-
-	public int getCurrentXright(int nwin){
-	    try{
-		return _windowPairs.getXright(nwin);
-	    }
-	    catch(Exception e){
-		return 513;
-	    }
-	}
-
-	public int getCurrentNx(int nwin){
-	    try{
-		return _windowPairs.getNx(nwin);
-	    }
-	    catch(Exception e){
-		return 1;
-	    }
-	}
-
-	public int getCurrentNy(int nwin){
-	    try{
-		return _windowPairs.getNy(nwin);
-	    }
-	    catch(Exception e){
-		return 1;
-	    }
+	// Value of a window pair, or the lowest allowed if the field is not valid
+	public int getCurrentWindow(int nwin, int value){
+	    WindowModel windows = _windowPairs.getModel();
+	    if(windows.getError(nwin, value) == null)
+		return windows.get(nwin, value);
+	    return value == WindowModel.XRIGHT ? 513 : 1;
 	}
 
     }    
@@ -3067,9 +3452,9 @@ public class Udriver extends JFrame {
 		}else{ 
 		    
 		    for(int i=0; i<numEnable; i++){
-			_windowPairs.setYstartText(i, Integer.toString(_syncStart(_windowPairs.getYstart(i), ybin, 1,   1024, 512)) );
-			_windowPairs.setXleftText(i,  Integer.toString(_syncStart(_windowPairs.getXleft(i),  xbin, 1,   512, 512)) );
-			_windowPairs.setXrightText(i, Integer.toString(_syncStart(_windowPairs.getXright(i), xbin, 513, 1024, 512)) );
+			_windowPairs.setYstartText(i, Integer.toString(_syncStart(_windowPairs.getYstart(i), ybin, WindowValidator.MIN[WindowModel.YSTART], WindowValidator.MAX[WindowModel.YSTART], 512)) );
+			_windowPairs.setXleftText(i,  Integer.toString(_syncStart(_windowPairs.getXleft(i), xbin, WindowValidator.MIN[WindowModel.XLEFT], WindowValidator.MAX[WindowModel.XLEFT], 512)) );
+			_windowPairs.setXrightText(i, Integer.toString(_syncStart(_windowPairs.getXright(i), xbin, WindowValidator.MIN[WindowModel.XRIGHT], WindowValidator.MAX[WindowModel.XRIGHT], 512)) );
 		    }
 
 		}
@@ -3096,24 +3481,9 @@ public class Udriver extends JFrame {
     private boolean _areSynchronised(){
 	if(isValid(false)){
 	    try{ 
-		if(applicationTemplate.equals("Fullframe + clear") || applicationTemplate.equals("Fullframe, no clear")){
-		    
-		    if(512 % xbin != 0 || 1024 % ybin != 0) return false;
-		    
-		}else if(applicationTemplate.equals("Fullframe with overscan") || applicationTemplate.equals("Fullframe, overscan, no clear")){
-		    
-		    if(540 % xbin != 0 || 1032 % ybin != 0) return false;
-
-		}else{
-
-		    for(int i=0; i<numEnable; i++){
-			if((513 - _windowPairs.getYstart(i)) % ybin != 0) return false;
-			if((513 - _windowPairs.getXleft(i))  % xbin != 0) return false;
-			if((513 - _windowPairs.getXright(i)) % xbin != 0) return false;
-		    }
-
-		}
-		return true;
+		if(WindowValidator.isFullFrame(applicationTemplate))
+		    return WindowValidator.frameSync(applicationTemplate, xbin, ybin) == null;
+		return _windowPairs.isSynchronised(xbin, ybin, numEnable);
 	    }
 	    catch(Exception e){
 		logPanel.add(e.toString(), LogPanel.ERROR, false);
@@ -3159,83 +3529,237 @@ public class Udriver extends JFrame {
     // Load the configuration file
 
     public void loadConfig() throws Exception {
+	_config = Config.load(CONFIG_FILE);
+	_setConfig(_config);
+    }
 
-	Properties properties = new Properties();
-	properties.load(new FileInputStream(CONFIG_FILE));
+    // Copies a configuration into the static fields
+    private void _setConfig(Config config) {
+
+	RTPLOT_SERVER_ON      = config.rtplotServerOn;
+	RTPLOT_SERVER_HOST    = config.rtplotServerHost;
+	RTPLOT_SERVER_PORT    = config.rtplotServerPort;
+	RTPLOT_WRITE_TIMEOUT  = config.rtplotWriteTimeout;
+	RTPLOT_WINDOW_FILE    = config.rtplotWindowFile;
+	CONTROL_SERVER_ON     = config.controlServerOn;
+	CONTROL_SERVER_HOST   = config.controlServerHost;
+	CONTROL_SERVER_PORT   = config.controlServerPort;
+	FILE_LOGGING_ON       = config.fileLoggingOn;
+	ULTRACAM_SERVERS_ON   = config.ultracamServersOn;
+	OBSERVING_MODE        = config.observingMode;
+	DEBUG                 = config.debug;
+	TELESCOPE             = config.telescope.name;
+	_telescope            = config.telescope;
+	UAC_DATABASE_HOST     = config.uacDatabaseHost;
+	UAC_DATABASE_USER     = config.uacDatabaseUser;
+	UAC_DATABASE_PASSWORD = config.uacDatabasePassword;
+	HTTP_CAMERA_SERVER    = config.httpCameraServer;
+	HTTP_DATA_SERVER      = config.httpDataServer;
+	HTTP_PATH_GET         = config.httpPathGet;
+	HTTP_PATH_EXEC        = config.httpPathExec;
+	HTTP_PATH_CONFIG      = config.httpPathConfig;
+	HTTP_SEARCH_ATTR_NAME = config.httpSearchAttrName;
+	APP_DIRECTORY         = config.appDirectory;
+	XML_TREE_VIEW         = config.xmlTreeView;
+	TEMPLATE_FROM_SERVER  = config.templateFromServer;
+	TEMPLATE_DIRECTORY    = config.templateDirectory;
+	EXPERT_MODE           = config.expertMode;
+	LOG_FILE_DIRECTORY    = config.logFileDirectory;
+	JOURNAL_ON            = config.journalOn;
+	JOURNAL_DIRECTORY     = config.journalDirectory;
+	APP_LIBRARY_ON        = config.appLibraryOn;
+	APP_LIBRARY_CACHE     = config.appLibraryCache;
+	TARGET_CACHE          = config.targetCache;
+	TARGET_STAND_IN       = config.targetStandIn;
+	CONFIG_RELOAD         = config.configReload;
+	DATA_RATE_BUDGET      = config.dataRateBudget;
+	DATA_RATE_BLOCK       = config.dataRateBlock;
+	THROUGHPUT_INTERVAL   = config.throughputInterval;
+	THROUGHPUT_TOLERANCE  = config.throughputTolerance;
+	DATA_FILE_DIRECTORY   = config.dataFileDirectory;
+	CONFIRM_ON_CHANGE     = config.confirmOnChange;
+	CHECK_FOR_MASK        = config.checkForMask;
+	TEMPLATE_LABEL        = config.templateLabel;
+	TEMPLATE_PAIR         = config.templatePair;
+	TEMPLATE_APP          = config.templateApp;
+	TEMPLATE_ID           = config.templateId;
+	POWER_ON              = config.powerOn;
+	POWER_OFF             = config.powerOff;
+	
+    }
 
-	RTPLOT_SERVER_ON     = _loadBooleanProperty(properties, "RTPLOT_SERVER_ON");
-	FILE_LOGGING_ON      = _loadBooleanProperty(properties, "FILE_LOGGING_ON");
-	ULTRACAM_SERVERS_ON  = _loadBooleanProperty(properties, "ULTRACAM_SERVERS_ON");
-	OBSERVING_MODE       = _loadBooleanProperty(properties, "OBSERVING_MODE");
-	DEBUG                = _loadBooleanProperty(properties, "DEBUG");
-	TELESCOPE            = _loadProperty(properties,        "TELESCOPE");
-	UAC_DATABASE_HOST	 = _loadProperty(properties, "UAC_DATABASE_HOST");
+    /** Watches the configuration file, reconfiguring whenever it changes. See ConfigWatcher.java */
+    public void watchConfig() {
+	try {
+	    _configWatcher = new ConfigWatcher(_config, new ConfigWatcher.Listener() {
+		    public void reloaded(final Config config, final Set<String> changed, final ServerLink link) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+				    _reconfigure(config, changed, link);
+				}
+			    });
+		    }
+		    public void failed(final String message) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+				    logPanel.add("Changes to " + CONFIG_FILE + " ignored: " + message, LogPanel.ERROR, false);
+				}
+			    });
+		    }
+		});
+	    _configWatcher.start();
+	}
+	catch(Exception e){
+	    _configWatcher = null;
+	    logPanel.add("Cannot watch " + CONFIG_FILE + " for changes: " + e, LogPanel.WARNING, false);
+	}
+    }
 
-	// Set the current telescope 
-	for(int i=0; i<TELESCOPE_DATA.length; i++){
-	    if(TELESCOPE_DATA[i].name.equals(TELESCOPE)){
-		_telescope = TELESCOPE_DATA[i];
-		break;
-	    }
+    // Keys which only take effect on restarting
+    private static final String[] RESTART_KEYS = {"OBSERVING_MODE", "LOG_FILE_DIRECTORY", "RTPLOT_WINDOW_FILE", "INSTRUMENT", "CONFIG_RELOAD"};
+
+    // Puts a configuration read again, and checked, into effect. The file was read and the
+    // server link made on the watcher's thread, so nothing here waits on the disk or network.
+    private void _reconfigure(Config config, Set<String> changed, ServerLink link) {
+
+	// Choices which the Settings menu can also make are left alone unless the file changes them
+	boolean expert = EXPERT_MODE, fromServer = TEMPLATE_FROM_SERVER, servers = ULTRACAM_SERVERS_ON;
+	boolean confirm = CONFIRM_ON_CHANGE, mask = CHECK_FOR_MASK, logging = FILE_LOGGING_ON;
+	String  telescope = TELESCOPE;
+	Telescope telescopeData = _telescope;
+	boolean observing = OBSERVING_MODE;
+	String  journalDirectory = JOURNAL_DIRECTORY;
+	String[] label = TEMPLATE_LABEL, pair = TEMPLATE_PAIR, id = TEMPLATE_ID, app = TEMPLATE_APP;
+
+	_config = config;
+	_setConfig(config);
+
+	// The window panel cannot grow, so templates needing more pairs than it shows wait for a restart
+	if(_maxPairs() > _windowPairs.getCapacity()){
+	    logPanel.add("Templates in " + CONFIG_FILE + " need " + _maxPairs() + " window pairs, more than the " + _windowPairs.getCapacity() +
+			 " shown; the templates are unchanged until udriver is restarted", LogPanel.WARNING, false);
+	    TEMPLATE_LABEL = label;
+	    TEMPLATE_PAIR  = pair;
+	    TEMPLATE_ID    = id;
+	    TEMPLATE_APP   = app;
+	    changed = new TreeSet<String>(changed);
+	    changed.removeAll(Arrays.asList("TEMPLATE_LABEL", "TEMPLATE_PAIR", "TEMPLATE_ID", "TEMPLATE_APP"));
 	}
 
-	if(_telescope == null){
-	    String MESSAGE = "TELESCOPE = " + TELESCOPE + " was not found amongst the list of supported telescopes:\n";
-	    for(int i=0; i<TELESCOPE_DATA.length-1; i++)
-		MESSAGE += TELESCOPE_DATA[i].name + ", ";
-	    MESSAGE += TELESCOPE_DATA[TELESCOPE_DATA.length-1].name;
-	    throw new Exception(MESSAGE);
+	EXPERT_MODE          = expert;
+	TEMPLATE_FROM_SERVER = fromServer;
+	ULTRACAM_SERVERS_ON  = servers;
+	CONFIRM_ON_CHANGE    = confirm;
+	CHECK_FOR_MASK       = mask;
+	FILE_LOGGING_ON      = logging;
+	TELESCOPE            = telescope;
+	_telescope           = telescopeData;
+	OBSERVING_MODE       = observing;
+
+	if(changed.contains("EXPERT_MODE") && !_setMenuItem(_setExpert, config.expertMode))
+	    EXPERT_MODE = config.expertMode;
+	if(changed.contains("TEMPLATE_FROM_SERVER") && !_setMenuItem(_templatesFromServer, config.templateFromServer))
+	    TEMPLATE_FROM_SERVER = config.templateFromServer;
+	if(changed.contains("ULTRACAM_SERVERS_ON") && !_setMenuItem(_ucamServersOn, config.ultracamServersOn))
+	    ULTRACAM_SERVERS_ON = config.ultracamServersOn;
+	if(changed.contains("CONFIRM_ON_CHANGE") && !_setMenuItem(_confirmOnChange, config.confirmOnChange))
+	    CONFIRM_ON_CHANGE = config.confirmOnChange;
+	if(changed.contains("CHECK_FOR_MASK") && !_setMenuItem(_checkForMask, config.checkForMask))
+	    CHECK_FOR_MASK = config.checkForMask;
+	if(changed.contains("FILE_LOGGING_ON") && !_setMenuItem(_fileLogging, config.fileLoggingOn))
+	    FILE_LOGGING_ON = config.fileLoggingOn;
+	if(changed.contains("TELESCOPE")){
+	    TELESCOPE  = config.telescope.name;
+	    _telescope = config.telescope;
+	    for(int i=0; _telescopeMenuItem != null && i<_telescopeMenuItem.length; i++)
+		if(TELESCOPE_DATA[i].name.equals(TELESCOPE)) _telescopeMenuItem[i].setSelected(true);
 	}
 
-	HTTP_CAMERA_SERVER   = _loadProperty(properties, "HTTP_CAMERA_SERVER");
-	if(!HTTP_CAMERA_SERVER.trim().endsWith("/"))
-	    HTTP_CAMERA_SERVER = HTTP_CAMERA_SERVER.trim() + "/";
-	
-	HTTP_DATA_SERVER    = _loadProperty(properties, "HTTP_DATA_SERVER");
-	if(!HTTP_DATA_SERVER.trim().endsWith("/"))
-	    HTTP_DATA_SERVER = HTTP_DATA_SERVER.trim() + "/";
-	
-	HTTP_PATH_GET         = _loadProperty(properties,        "HTTP_PATH_GET");
-	HTTP_PATH_EXEC        = _loadProperty(properties,        "HTTP_PATH_EXEC");
-	HTTP_PATH_CONFIG      = _loadProperty(properties,        "HTTP_PATH_CONFIG");
-	HTTP_SEARCH_ATTR_NAME = _loadProperty(properties,        "HTTP_SEARCH_ATTR_NAME");
-	APP_DIRECTORY         = _loadProperty(properties,        "APP_DIRECTORY");
-	XML_TREE_VIEW         = _loadBooleanProperty(properties, "XML_TREE_VIEW");
-	
-	TEMPLATE_FROM_SERVER  = OBSERVING_MODE && _loadBooleanProperty(properties, "TEMPLATE_FROM_SERVER");
-	String dsep = System.getProperty("file.separator");
-	
-	TEMPLATE_DIRECTORY   = _loadProperty(properties, "TEMPLATE_DIRECTORY");
-	if(!TEMPLATE_DIRECTORY.trim().endsWith(dsep))
-	    TEMPLATE_DIRECTORY = TEMPLATE_DIRECTORY.trim() + dsep;
-	
-	EXPERT_MODE        = _loadBooleanProperty(properties, "EXPERT_MODE");
-	LOG_FILE_DIRECTORY = _loadProperty(properties, "LOG_FILE_DIRECTORY");
-	CONFIRM_ON_CHANGE  =  OBSERVING_MODE && _loadBooleanProperty(properties, "CONFIRM_ON_CHANGE");
-	CHECK_FOR_MASK     =  OBSERVING_MODE && _loadBooleanProperty(properties, "CHECK_FOR_MASK");
+	if(changed.contains("HTTP_CAMERA_SERVER") || changed.contains("HTTP_DATA_SERVER") || changed.contains("HTTP_PATH_GET") ||
+	   changed.contains("HTTP_PATH_EXEC") || changed.contains("HTTP_PATH_CONFIG") || changed.contains("HTTP_SEARCH_ATTR_NAME"))
+	    _serverLink = link;
 
+	if(changed.contains("TEMPLATE_LABEL") || changed.contains("TEMPLATE_PAIR") || changed.contains("TEMPLATE_ID") || changed.contains("TEMPLATE_APP"))
+	    _updateTemplates();
 
-	TEMPLATE_LABEL     = _loadSplitProperty(properties, "TEMPLATE_LABEL");
-	
-	TEMPLATE_PAIR      = _loadSplitProperty(properties, "TEMPLATE_PAIR");
-	if(TEMPLATE_PAIR.length != TEMPLATE_LABEL.length)
-	    throw new Exception("Number of TEMPLATE_PAIR = " + TEMPLATE_PAIR.length + 
-				" does not equal the number of TEMPLATE_LABEL = " + TEMPLATE_LABEL.length);
-	
-	TEMPLATE_APP       = _loadSplitProperty(properties, "TEMPLATE_APP");
-	if(TEMPLATE_APP.length != TEMPLATE_LABEL.length)
-	    throw new Exception("Number of TEMPLATE_APP = " + TEMPLATE_APP.length + 
-				" does not equal the number of TEMPLATE_LABEL = " + TEMPLATE_LABEL.length);
-	
-	TEMPLATE_ID        = _loadSplitProperty(properties, "TEMPLATE_ID");
-	if(TEMPLATE_ID.length != TEMPLATE_LABEL.length)
-	    throw new Exception("Number of TEMPLATE_ID = " + TEMPLATE_ID.length + 
-				" does not equal the number of TEMPLATE_LABEL = " + TEMPLATE_LABEL.length);
-	
-	POWER_ON  = _loadProperty(properties, "POWER_ON");
+	if(changed.contains("TEMPLATE_APP") || changed.contains("TEMPLATE_DIRECTORY")){
+	    _templateDocuments = new TemplateDocuments(TEMPLATE_DIRECTORY, TEMPLATE_APP);
+	    if(!TEMPLATE_FROM_SERVER)
+		_templateDocuments.prefetch();
+	}
 
-	POWER_OFF = _loadProperty(properties, "POWER_OFF");
-	
+	if(changed.contains("DATA_RATE_BUDGET"))
+	    _dataRateBudget = new DataRateBudget(DATA_RATE_BUDGET);
+
+	if(changed.contains("APP_DIRECTORY") && _xmlFileChooser != null)
+	    _xmlFileChooser.setCurrentDirectory(new File(APP_DIRECTORY));
+
+	if(changed.contains("APP_DIRECTORY") || changed.contains("APP_LIBRARY_ON") || changed.contains("APP_LIBRARY_CACHE") ||
+	   changed.contains("TEMPLATE_LABEL") || changed.contains("TEMPLATE_PAIR") || changed.contains("TEMPLATE_ID")){
+	    if(_appLibrary != null) _appLibrary.stop();
+	    _appLibrary = null;
+	    if(APP_LIBRARY_ON) openAppLibrary();
+	}
+
+	if(OBSERVING_MODE && (changed.contains("TARGET_CACHE") || changed.contains("TARGET_STAND_IN") || changed.contains("UAC_DATABASE_HOST") ||
+			   changed.contains("UAC_DATABASE_USER") || changed.contains("UAC_DATABASE_PASSWORD"))){
+	    if(_targetResolver != null) _targetResolver.stop();
+	    _targetResolver = null;
+	    openTargetResolver();
+	}
+
+	if(changed.contains("JOURNAL_ON") || (JOURNAL_ON && !JOURNAL_DIRECTORY.equals(journalDirectory))){
+	    closeJournal();
+	    _journal = null;
+	    if(JOURNAL_ON) openJournal();
+	}
+
+	if(changed.contains("RTPLOT_SERVER_ON") || changed.contains("RTPLOT_SERVER_HOST") || changed.contains("RTPLOT_SERVER_PORT") ||
+	   changed.contains("RTPLOT_WRITE_TIMEOUT")){
+	    stopRtplotServer();
+	    _rtplotServer = null;
+	    if(RTPLOT_SERVER_ON) runRtplotServer();
+	}
+
+	if(changed.contains("CONTROL_SERVER_ON") || changed.contains("CONTROL_SERVER_HOST") || changed.contains("CONTROL_SERVER_PORT") ||
+	   (_controlServer != null && changed.contains("RTPLOT_WRITE_TIMEOUT"))){
+	    stopControlServer();
+	    _controlServer = null;
+	    if(CONTROL_SERVER_ON) runControlServer();
+	}
+
+	List<String> restart = new ArrayList<String>();
+	for(String key : RESTART_KEYS)
+	    if(changed.contains(key)) restart.add(key);
+
+	logPanel.add("Reloaded " + CONFIG_FILE + "; changed " + changed, LogPanel.OK, true);
+	if(!restart.isEmpty())
+	    logPanel.add("Changes to " + restart + " take effect when udriver is restarted", LogPanel.WARNING, false);
+	_journal("config", "file", CONFIG_FILE, "changed", new ArrayList<String>(changed));
+	speed(TIMING_UPDATE);
+    }
+
+    // Sets a Settings menu item as if the user had chosen it; false if there is no such item
+    private static boolean _setMenuItem(JCheckBoxMenuItem item, boolean state) {
+	if(item == null) return false;
+	if(item.getState() != state)
+	    item.doClick();
+	return true;
+    }
+
+    // Fills the template choice from TEMPLATE_LABEL, keeping the current template if it is still there
+    private void _updateTemplates() {
+	String current = applicationTemplate;
+	templateChoice.setModel(new DefaultComboBoxModel<String>(TEMPLATE_LABEL));
+	templateChoice.setMaximumRowCount(TEMPLATE_LABEL.length);
+	applicationTemplate = Arrays.asList(TEMPLATE_LABEL).contains(current) ? current : TEMPLATE_LABEL[0];
+	templateChoice.setSelectedItem(applicationTemplate);
+	setNumEnable();
+	_windowPairs.setNpair(numEnable);
+	_setWinLabels(numEnable > 0);
+	_publishWindows();
+	if(!applicationTemplate.equals(current))
+	    logPanel.add("Template " + current + " is no longer configured; changed to " + applicationTemplate, LogPanel.WARNING, false);
     }
 
     //------------------------------------------------------------------------------------------------------------------------------------------
@@ -3252,9 +3776,9 @@ public class Udriver extends JFrame {
 	_rtplotSave.addActionListener(
 				      new ActionListener(){
 					  public void actionPerformed(ActionEvent e){
-					      int result = _rtplotFileChooser.showSaveDialog(null);
+					      int result = _rtplotFileChooser().showSaveDialog(null);
 					      if(result == JFileChooser.APPROVE_OPTION){
-						  _rtplotFile = _rtplotFileChooser.getSelectedFile();
+						  _rtplotFile = _rtplotFileChooser().getSelectedFile();
 						  if (_rtplotFile.getPath().indexOf(".dat") != _rtplotFile.getPath().length() - 4 ){
 						      String newFilePath = _rtplotFile.getPath() + ".dat";
 						      _rtplotFile = new File(newFilePath);
@@ -3273,11 +3797,76 @@ public class Udriver extends JFrame {
 				    public void actionPerformed(ActionEvent e){
 					if(logPanel.loggingEnabled())
 					    logPanel.stopLog();
+					stopRtplotServer();
+					stopControlServer();
+					closeJournal();
 					System.exit(0);
 				    }
 				});
 	
+	// Search all of this session's log
+	JMenuItem _logSearch = new JMenuItem("Search log");
+	_logSearch.addActionListener(
+				     new ActionListener(){
+					 public void actionPerformed(ActionEvent e){
+					     new LogSearch(logPanel.getIndex());
+					 }
+				     });
+
+	// Find saved applications
+	JMenuItem _appSearch = new JMenuItem("Application library");
+	_appSearch.addActionListener(
+				     new ActionListener(){
+					 public void actionPerformed(ActionEvent e){
+					     if(_appLibrary == null){
+						 logPanel.add("The application library is off; set APP_LIBRARY_ON and APP_DIRECTORY", LogPanel.WARNING, false);
+						 return;
+					     }
+					     new LibrarySearch(_appLibrary, new LibrarySearch.Loader() {
+						     public void load(File file) {
+							 _xmlFile = file;
+							 _loadApp(false);
+						     }
+						 });
+					 }
+				     });
+
+	// Run a queue of applications one after another
+	_sequenceRun = new JMenuItem("Run sequence");
+	_sequenceRun.addActionListener(
+				       new ActionListener(){
+					   public void actionPerformed(ActionEvent e){
+					       _runSequence();
+					   }
+				       });
+
+	// Look up the targets of a night's plan ahead of time
+	JMenuItem _lookupPlan = new JMenuItem("Look up plan targets");
+	_lookupPlan.addActionListener(
+				      new ActionListener(){
+					  public void actionPerformed(ActionEvent e){
+					      _lookupPlanTargets();
+					  }
+				      });
+
+	_sequenceStop = new JMenuItem("Stop sequence");
+	_sequenceStop.setEnabled(false);
+	_sequenceStop.addActionListener(
+					new ActionListener(){
+					    public void actionPerformed(ActionEvent e){
+						if(_sequencer != null){
+						    _sequencer.stop();
+						    logPanel.add("Stopped the sequence; the current run, if any, carries on", LogPanel.WARNING, true, "sequence");
+						}
+					    }
+					});
+
 	fileMenu.add(_rtplotSave);
+	fileMenu.add(_logSearch);
+	fileMenu.add(_appSearch);
+	if(OBSERVING_MODE) fileMenu.add(_lookupPlan);
+	fileMenu.add(_sequenceRun);
+	fileMenu.add(_sequenceStop);
 	fileMenu.add(_quit);
 	return fileMenu;
     }
@@ -3410,12 +3999,12 @@ public class Udriver extends JFrame {
 	}
 	
 	// Telescope choices
-	JRadioButtonMenuItem[] telescopeMenuItem = new JRadioButtonMenuItem[TELESCOPE_DATA.length];
+	_telescopeMenuItem = new JRadioButtonMenuItem[TELESCOPE_DATA.length];
 	ButtonGroup telescopeGroup = new ButtonGroup();
 	for(int ntel=0; ntel<TELESCOPE_DATA.length; ntel++){
-	    telescopeMenuItem[ntel] = new JRadioButtonMenuItem(TELESCOPE_DATA[ntel].name);
+	    _telescopeMenuItem[ntel] = new JRadioButtonMenuItem(TELESCOPE_DATA[ntel].name);
 	    
-	    telescopeMenuItem[ntel].addActionListener(
+	    _telescopeMenuItem[ntel].addActionListener(
 						      new ActionListener(){
 							  public void actionPerformed(ActionEvent e){
 							      TELESCOPE = ((JRadioButtonMenuItem)e.getSource()).getText();
@@ -3427,14 +4016,14 @@ public class Udriver extends JFrame {
 								  }
 							      }
 							  }});
-	    telescopeGroup.add(telescopeMenuItem[ntel]);
-	    settingsMenu.add(telescopeMenuItem[ntel]);
+	    telescopeGroup.add(_telescopeMenuItem[ntel]);
+	    settingsMenu.add(_telescopeMenuItem[ntel]);
 	}
 
 	// Select the current telescope 
 	for(int i=0; i<TELESCOPE_DATA.length; i++){
 	    if(TELESCOPE_DATA[i].name.equals(TELESCOPE)){
-		telescopeMenuItem[i].setSelected(true);
+		_telescopeMenuItem[i].setSelected(true);
 		break;
 	    }
 	}
@@ -3717,6 +4306,8 @@ public class Udriver extends JFrame {
 			    }
 			    _format.update();
 			}
+
+			if(!_checkDataRate()) return;
 			
 			if(_postApp()){
 			    onPostApp();
@@ -3756,6 +4347,11 @@ public class Udriver extends JFrame {
 	    stopRun.addActionListener(
 		new ActionListener(){
 		    public void actionPerformed(ActionEvent e){
+				// Stopping a run stops any sequence it belongs to
+				if(_sequencer != null && _sequencer.isRunning()){
+					_sequencer.stop();
+					logPanel.add("Stopped the sequence", LogPanel.WARNING, true, "sequence");
+				}
 				// 23/03/2010 RDGH -- Changed "ST" to "EX,0"
 				if(_execCommand("EX,0", true)){
 					onStopRun();
@@ -3806,6 +4402,12 @@ public class Udriver extends JFrame {
 	addComponent( _timingPanel, duty, 0, ypos,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
 	_dutyCycle.setEditable(false);
 	addComponent( _timingPanel, _dutyCycle, 1, ypos++,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
+
+	JLabel rate = new JLabel("Data rate (MB/s)");
+	rate.setToolTipText("Rate at which data are written to disk; compared to DATA_RATE_BUDGET if set");
+	addComponent( _timingPanel, rate, 0, ypos,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
+	_dataRate.setEditable(false);
+	addComponent( _timingPanel, _dataRate, 1, ypos++,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
 	
 	addComponent( _timingPanel, Box.createVerticalStrut(10), 0, ypos++,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
 	
@@ -3857,23 +4459,34 @@ public class Udriver extends JFrame {
 	    _runNumber.setEditable(false);
 	    addComponent( _timingPanel, _runNumber, 1, ypos++,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
 	    
+	    JLabel diskEta = new JLabel("Time to disk limit");
+	    diskEta.setToolTipText("Estimated time until the disk space used passes " + DISK_SPACE_WARN + " MB, then " + DISK_SPACE_DANGER + " MB");
+	    addComponent( _timingPanel, diskEta, 0, ypos,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
+	    _diskEta.setEditable(false);
+	    addComponent( _timingPanel, _diskEta, 1, ypos++,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
+
+	    JLabel measuredFrames = new JLabel("Measured rate (Hz)");
+	    measuredFrames.setToolTipText("Frames per second the data server is writing, averaged; red if more than " +
+					  THROUGHPUT_TOLERANCE + "% from the frame rate predicted");
+	    addComponent( _timingPanel, measuredFrames, 0, ypos,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
+	    _measuredFrames.setEditable(false);
+	    addComponent( _timingPanel, _measuredFrames, 1, ypos++,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
+
+	    JLabel measuredData = new JLabel("Measured rate (MB/s)");
+	    measuredData.setToolTipText("Megabytes per second the data server is writing, averaged");
+	    addComponent( _timingPanel, measuredData, 0, ypos,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
+	    _measuredData.setEditable(false);
+	    addComponent( _timingPanel, _measuredData, 1, ypos++,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
+
 	    // Define timer to provide an exposure meter
 	    
-	    // Add to the seconds and the amount of space fields
+	    // Refresh the seconds and the amount of space fields from the meter. Missed or
+	    // late ticks do not matter as the meter works from the clock.
 	    ActionListener addSecond = new ActionListener() {
 		    public void actionPerformed(ActionEvent event) {
-			int nexpose = Integer.parseInt(Udriver.this._exposureTime.getText());
-			nexpose++;
-			Udriver.this._exposureTime.setText(String.valueOf(nexpose));
-			int nmeg = (int)(((nexpose/_timePerImage)*_nbytesPerImage)/1024/1024 + 0.5);
-			Udriver.this._spaceUsed.setText(String.valueOf(nmeg));
-			if(nmeg > DISK_SPACE_DANGER){
-			    Udriver.this._spaceUsed.setBackground(ERROR_COLOUR);
-			}else if(nmeg > DISK_SPACE_WARN){
-			    Udriver.this._spaceUsed.setBackground(WARNING_COLOUR);
-			}else{
-			    Udriver.this._spaceUsed.setBackground(DEFAULT_COLOUR);
-			}
+			long now = System.nanoTime();
+			_showMeter(now);
+			_correctMeter(now);
 		    }
 		};	
 	    
@@ -3922,7 +4535,7 @@ public class Udriver extends JFrame {
 
 	}
 
-	templateChoice = new JComboBox(TEMPLATE_LABEL);
+	templateChoice = new JComboBox<String>(TEMPLATE_LABEL);
 	templateChoice.setSelectedItem(applicationTemplate);
 	templateChoice.setMaximumRowCount(TEMPLATE_LABEL.length);
 
@@ -3937,6 +4550,7 @@ public class Udriver extends JFrame {
 			applicationTemplate = (String) templateChoice.getSelectedItem();
 			setNumEnable();
 			_windowPairs.setNpair(numEnable);
+			_publishWindows();
 
 			if(numEnable == 0)
 			    _setWinLabels(false);
@@ -4034,9 +4648,29 @@ public class Udriver extends JFrame {
 	ypos++;
 	
 	// Then the row labels and fields for integer input
-	_windowPairs = new WindowPairs(gbLayout, _windowPanel, ypos, xbin, ybin, DEFAULT_COLOUR, ERROR_COLOUR, specialNy);
+	_windowPairs = new WindowPairs(gbLayout, _windowPanel, ypos, _maxPairs(), xbin, ybin, DEFAULT_COLOUR, ERROR_COLOUR, specialNy);
 	_windowPairs.setNpair(numEnable);
-	ypos += 3;
+	ypos += _windowPairs.getCapacity();
+
+	// Tell rtplot of any edits to the windows
+	DocumentListener windowEdits = new DocumentListener() {
+		public void insertUpdate(DocumentEvent e)  { _publishWindowsLater(); }
+		public void removeUpdate(DocumentEvent e)  { _publishWindowsLater(); }
+		public void changedUpdate(DocumentEvent e) { _publishWindowsLater(); }
+	    };
+	_windowPairs.addDocumentListener(windowEdits);
+	xbinText.getDocument().addDocumentListener(windowEdits);
+	ybinText.getDocument().addDocumentListener(windowEdits);
+
+	// Have isValid read the other settings again once edited
+	DocumentListener settingsEdits = new DocumentListener() {
+		public void insertUpdate(DocumentEvent e)  { _settingsEdited = true; }
+		public void removeUpdate(DocumentEvent e)  { _settingsEdited = true; }
+		public void changedUpdate(DocumentEvent e) { _settingsEdited = true; }
+	    };
+	for(IntegerTextField field : new IntegerTextField[] {xbinText, ybinText, nblueText, exposeText, tinyExposeText, numExposeText})
+	    field.getDocument().addDocumentListener(settingsEdits);
+	_settingsEdited = true;
 	
 	// Add some space between window definitions and the user-defined stuff
 	addComponent( _windowPanel, Box.createVerticalStrut(20), 0, ypos++,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
@@ -4048,26 +4682,19 @@ public class Udriver extends JFrame {
 	    addComponent( _windowPanel, _objectText,     1, ypos,  5, 1,
                       GridBagConstraints.NONE, GridBagConstraints.WEST);
 
-        /* comment out simbad verification as its flaky */
-        /*
-		final JButton lookupButton = new JButton("Verify");
-		addComponent( _windowPanel, lookupButton, 5, ypos++, 5, 1,
-                      GridBagConstraints.NONE, GridBagConstraints.WEST);
-		lookupButton.addActionListener(new ActionListener(){
-                public void actionPerformed(ActionEvent e){
-                    if (_verifyTarget(_objectText.getText())) {
-                        lookupButton.setBackground(GO_COLOUR); 
-                    } else {
-                        lookupButton.setBackground(ERROR_COLOUR); 
-                    } 
-                }
-            });
-		_objectText.addKeyListener(new KeyListener(){
-			public void keyPressed(KeyEvent e){ lookupButton.setBackground(DEFAULT_COLOUR); }
-			public void keyReleased(KeyEvent e) {}
-			public void keyTyped(KeyEvent e) {}
+	    _lookupButton = new JButton("Verify");
+	    addComponent( _windowPanel, _lookupButton, 5, ypos, 5, 1,
+			  GridBagConstraints.NONE, GridBagConstraints.WEST);
+	    _lookupButton.addActionListener(new ActionListener(){
+		    public void actionPerformed(ActionEvent e){
+			_verifyTarget(_objectText.getText(), false);
+		    }
+		});
+	    _objectText.addKeyListener(new KeyListener(){
+		    public void keyPressed(KeyEvent e){ _lookupButton.setBackground(DEFAULT_COLOUR); }
+		    public void keyReleased(KeyEvent e) {}
+		    public void keyTyped(KeyEvent e) {}
 		});
-        */
         ypos++;
 
 		addComponent(
@@ -0,0 +1,183 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
+
+/** The user section of an application: the target, filters, programme ID,
+ * PI, observers and flags of the run, then, when it is posted, the revision
+ * of the camera server and, at the telescope, the CCD temperatures and
+ * slide position from the imedia PC. Udriver makes the first items from
+ * the GUI; Headless and Sequencer take them from the section saved with
+ * the application. All three then add the rest here, so that every
+ * application posted carries the same.
+ */
+
+public final class UserSection {
+
+    /** The items saved with an application, in order */
+    public static final String[] ITEMS = {"target", "filters", "ID", "PI", "Observers", "flags"};
+
+    public static final String TEMPERATURE_URL = "http://192.168.1.3/temperature/latest_temperature.txt";
+    public static final String SLIDE_URL       = "http://192.168.1.3/slide/slide.cgi?position";
+
+    // Timeout on reading from the imedia PC, milliseconds
+    public static final int IMEDIA_TIMEOUT = 5000;
+
+    // The camera server's revision, read back once only, as the camera server
+    // will STOP a run if it receives another command while running (!)
+    private static int _revision = 0;
+
+    private UserSection() {}
+
+    /** The revision of the camera server, 0 until it has been read back */
+    public static synchronized int getRevision() {
+	return _revision;
+    }
+
+    /** The items of the user section saved with an application, as name and
+     * value pairs in the order of ITEMS; blank for any that are missing */
+    public static List<String[]> saved(Document document) {
+	List<String[]> items = new ArrayList<String[]>();
+	NodeList users = document.getElementsByTagName("user");
+	Element user = users.getLength() > 0 ? (Element)users.item(0) : null;
+	for(String item : ITEMS){
+	    String value = "";
+	    if(user != null){
+		NodeList nlist = user.getElementsByTagName(item);
+		if(nlist.getLength() > 0) value = nlist.item(0).getTextContent().trim();
+	    }
+	    items.add(new String[] {item, value});
+	}
+	return items;
+    }
+
+    /** Replaces the user section of an application with one holding the items
+     * given, followed by the camera server's revision if posting and by the
+     * CCD temperatures and slide position if asked for.
+     * @param document the application
+     * @param items    name and value pairs
+     * @param link     the servers to read the revision back from if posting, null if they are off
+     * @param posting  whether the application is to be posted
+     * @param imedia   whether to add the temperatures and slide position
+     * @return warnings of data that could not be had; empty if none
+     */
+    public static List<String> add(Document document, List<String[]> items, ServerLink link, boolean posting, boolean imedia) {
+
+	List<String> warnings = new ArrayList<String>();
+
+	Element rootElement = document.getDocumentElement();
+	NodeList users = document.getElementsByTagName("user");
+	for(int i=users.getLength()-1; i>=0; i--)
+	    users.item(i).getParentNode().removeChild(users.item(i));
+
+	Element userElement = document.createElement("user");
+	rootElement.appendChild(userElement);
+
+	for(String[] item : items)
+	    _addToUser(document, userElement, item[0], item[1]);
+
+	if(posting){
+	    if(link != null) _readRevision(link);
+	    _addToUser(document, userElement, "revision", Integer.toString(getRevision()));
+	}
+
+	if(imedia){
+	    // Grab temperature data from Andy's Server
+	    try{
+		String tempString = _readText(TEMPERATURE_URL);
+		int greenStart = tempString.indexOf("Green");
+		int greenEnd   = tempString.indexOf("\n",greenStart);
+		int blueStart  = tempString.indexOf("Blue");
+		int blueEnd    = tempString.indexOf("\n",blueStart);
+		int redStart   = tempString.indexOf("Red");
+		int redEnd     = tempString.indexOf("\n",redStart);
+		_addToUser(document, userElement, "RedTempData", tempString.substring(redStart+16, redEnd));
+		_addToUser(document, userElement, "GreenTempData", tempString.substring(greenStart+18, greenEnd));
+		_addToUser(document, userElement, "BlueTempData", tempString.substring(blueStart+17, blueEnd));
+	    }catch(Exception e){
+		warnings.add("Failed to get CCD temperatures from imedia PC");
+	    }
+	    // Grab slide position info from Slide CGI script
+	    try{
+		String slideString = _readText(SLIDE_URL);
+		int slideStart = slideString.lastIndexOf(",");
+		int slideEnd   = slideString.indexOf("\n",slideStart);
+		_addToUser(document, userElement, "SlidePos", slideString.substring(slideStart+2, slideEnd));
+		_addBlankLine(document, userElement);
+		_addBlankLine(document, rootElement);
+	    }catch(Exception e){
+		warnings.add("Failed to get slide position from imedia PC");
+	    }
+	}
+	return warnings;
+    }
+
+    // Uses readback to try and get the current VERSION/REVISION, if not had already
+    private static synchronized void _readRevision(ServerLink link) {
+
+	if(_revision != 0) return;
+
+	String verReadback = "";
+	try {
+	    // readback is an xml attribute of command_status
+	    Document xmlDoc = link.execCommand("RM,X,0x80");
+	    Node commandNode = xmlDoc.getElementsByTagName("command_status").item(0);
+	    NamedNodeMap commandAttributes = commandNode.getAttributes();
+	    for (int i = 0; i < commandAttributes.getLength(); i++) {
+		String nodeName = commandAttributes.item(i).getNodeName().trim();
+		if (nodeName.equalsIgnoreCase("readback")) {
+		    verReadback = commandAttributes.item(i).getNodeValue();
+		    break;
+		}
+	    }
+	    if (verReadback.equals(""))
+		System.out.println("Didn't find readback in camera XML?");
+	} catch (Exception e) { System.out.println("Couldn't interrogate camera server for version readback."); }
+
+	// readback is in hex ie. "0xFF", convert to decimal
+	try {
+	    if (verReadback.substring(0,2).equals("0x"))
+		verReadback = verReadback.substring(2);
+	    _revision = Integer.parseInt(verReadback,16);
+	} catch (Exception e) { System.out.println("Couldn't convert readback version to decimal."); }
+    }
+
+    private static String _readText(String url) throws Exception {
+	URLConnection connection = new URL(url).openConnection();
+	connection.setConnectTimeout(IMEDIA_TIMEOUT);
+	connection.setReadTimeout(IMEDIA_TIMEOUT);
+	return ReplyReader.get().readText(connection, ReplyReader.DEFAULT_CHARSET).trim();
+    }
+
+    /* Adds another XML tag of form <item>value</item> below element in the
+     * XML document document. A blank line is inserted before each item */
+    private static void _addToUser(Document document, Element element, String item, String value){
+	_addBlankLine(document, element);
+	element.appendChild(document.createTextNode("    "));
+	Element newElement = document.createElement(item);
+	Text elementText   = document.createTextNode(value);
+	newElement.appendChild(elementText);
+	element.appendChild(newElement);
+    }
+
+    /* Adds a blank line to an element to give a nicer looking format */
+    private static void _addBlankLine(Document document, Element element) {
+	element.appendChild(document.createTextNode("\n\n"));
+    }
+
+}
@@ -0,0 +1,185 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** A memory-mapped file holding the current windows in a fixed binary
+ * layout, which Udriver updates in place whenever the windows change. A
+ * program on the same machine, such as rtplot, can map the file and read the
+ * windows with no system calls at all. Updates are guarded by a sequence
+ * counter (a seqlock) so that a reader never acts on a half-written update.
+ *
+ * The layout, all little-endian, is
+ * <pre>
+ * offset  type     contents
+ *      0  int32    MAGIC, 0x4e574455 ("UDWN")
+ *      4  int32    LAYOUT, the version of this layout, 1
+ *      8  int64    sequence counter; odd while an update is in progress
+ *     16  int32    valid, 1 if windows are defined, else 0
+ *     20  int32    xbin
+ *     24  int32    ybin
+ *     28  int32    nwin, number of windows, at most MAX_WIN
+ *     32  int64    version of the windows; the ETag served by the rtplot server, as a number
+ *     40  int32[]  llx, lly, nx, ny of each window in turn
+ * </pre>
+ * To read: load the counter; if it is odd try again; copy the fields; load
+ * the counter again; if it has changed, try again. The counter loads must
+ * have acquire semantics and the copy must not be reordered past the second
+ * load, as read() does here.
+ */
+
+public class WindowChannel {
+
+    public static final int MAGIC     = 0x4e574455;
+    public static final int LAYOUT    = 1;
+    public static final int MAX_WIN   = 8;
+    public static final int FILE_SIZE = 40 + 16*MAX_WIN;
+
+    private static final int SEQUENCE = 8;
+    private static final int VALID    = 16;
+    private static final int XBIN     = 20;
+    private static final int YBIN     = 24;
+    private static final int NWIN     = 28;
+    private static final int VERSION  = 32;
+    private static final int WINDOWS  = 40;
+
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final File             _file;
+    private final MappedByteBuffer _buffer;
+    private WindowSnapshot         _written = null;
+
+    /** Opens a window file for reading, or, if 'writer', creates it, or takes over an existing one
+     * @param file   the file
+     * @param writer true to write to the file, false to read from it
+     */
+    public WindowChannel(File file, boolean writer) throws IOException {
+	_file = file;
+	RandomAccessFile raf = new RandomAccessFile(file, writer ? "rw" : "r");
+	try {
+	    if(writer){
+		raf.setLength(FILE_SIZE);
+	    }else if(raf.length() < FILE_SIZE){
+		throw new IOException("Window file " + file + " is too short, " + raf.length() + " bytes");
+	    }
+	    _buffer = raf.getChannel().map(writer ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, FILE_SIZE);
+	}
+	finally {
+	    // The mapping outlives the file handle
+	    raf.close();
+	}
+	_buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+	if(writer){
+	    long sequence = (long)LONG.getAcquire(_buffer, SEQUENCE);
+	    if(_buffer.getInt(0) != MAGIC || _buffer.getInt(4) != LAYOUT || (sequence & 1) != 0){
+		_buffer.putInt(0, MAGIC);
+		_buffer.putInt(4, LAYOUT);
+		LONG.setRelease(_buffer, SEQUENCE, 0L);
+		_write(WindowSnapshot.NONE);
+	    }
+	}else if(_buffer.getInt(0) != MAGIC || _buffer.getInt(4) != LAYOUT){
+	    throw new IOException("Window file " + file + " does not have the expected layout");
+	}
+    }
+
+    public File getFile() {
+	return _file;
+    }
+
+    /** Writes windows to the file, unless they are the same as those last written.
+     * Only one thread, and one process, should write to a file.
+     */
+    public synchronized void write(WindowSnapshot snapshot) {
+	if(snapshot.sameAs(_written)) return;
+	if(snapshot.getNwin() > MAX_WIN)
+	    throw new IllegalArgumentException("WindowChannel: " + snapshot.getNwin() + " windows, more than " + MAX_WIN);
+	_write(snapshot);
+    }
+
+    private void _write(WindowSnapshot snapshot) {
+
+	// Mark an update in progress, and keep it ahead of the data
+	long sequence = (long)LONG.get(_buffer, SEQUENCE);
+	LONG.setOpaque(_buffer, SEQUENCE, sequence+1);
+	VarHandle.storeStoreFence();
+
+	_buffer.putInt(VALID, snapshot.isValid() ? 1 : 0);
+	_buffer.putInt(XBIN,  snapshot.getXbin());
+	_buffer.putInt(YBIN,  snapshot.getYbin());
+	_buffer.putInt(NWIN,  snapshot.getNwin());
+	_buffer.putLong(VERSION, Long.parseUnsignedLong(snapshot.getVersion(), 16));
+	for(int i=0; i<snapshot.getNwin(); i++){
+	    int[] window = snapshot.getWindow(i);
+	    for(int j=0; j<4; j++)
+		_buffer.putInt(WINDOWS + 16*i + 4*j, window[j]);
+	}
+
+	// Release the data with the even count
+	LONG.setRelease(_buffer, SEQUENCE, sequence+2);
+	_written = snapshot;
+    }
+
+    /** Reads the windows, waiting out any update in progress. Returns
+     * WindowSnapshot.NONE if no windows are defined.
+     */
+    public WindowSnapshot read() {
+	for(;;){
+	    long before = (long)LONG.getAcquire(_buffer, SEQUENCE);
+	    if((before & 1) != 0){
+		Thread.onSpinWait();
+		continue;
+	    }
+
+	    boolean valid = _buffer.getInt(VALID) == 1;
+	    int xbin      = _buffer.getInt(XBIN);
+	    int ybin      = _buffer.getInt(YBIN);
+	    int nwin      = _buffer.getInt(NWIN);
+	    int[] windows = null;
+	    if(nwin >= 0 && nwin <= MAX_WIN){
+		windows = new int[4*nwin];
+		for(int i=0; i<windows.length; i++)
+		    windows[i] = _buffer.getInt(WINDOWS + 4*i);
+	    }
+
+	    VarHandle.loadLoadFence();
+	    if((long)LONG.getAcquire(_buffer, SEQUENCE) != before) continue;
+
+	    return valid && windows != null ? new WindowSnapshot(xbin, ybin, windows) : WindowSnapshot.NONE;
+	}
+    }
+
+    /** Returns the sequence counter, which changes whenever the windows are updated */
+    public long getSequence() {
+	return (long)LONG.getAcquire(_buffer, SEQUENCE);
+    }
+
+    /** Prints the windows in a window file */
+    public static void main(String[] args) {
+	try {
+	    if(args.length != 1){
+		System.out.println("usage: WindowChannel file");
+		System.exit(1);
+	    }
+	    WindowSnapshot snapshot = new WindowChannel(new File(args[0]), false).read();
+	    System.out.print(new String(snapshot.getContent(), "UTF-8"));
+	}
+	catch(Exception e){
+	    System.out.println(e);
+	    System.exit(1);
+	}
+    }
+
+}
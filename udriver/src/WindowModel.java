@@ -0,0 +1,167 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+/** The values of any number of window pairs, held apart from the fields
+ * which show them so that the timing model, XML generation and rtplot can
+ * use them without going through Swing. The values are packed into one int
+ * array, ystart, xleft, xright, nx, ny of each pair in turn as
+ * TimingModel.Setup takes them, so reading or copying them allocates nothing
+ * per window. A value which could not be read from its field is marked with
+ * the reason instead. Each pair has a version, which goes up whenever it is
+ * set, so that WindowValidator can tell which pairs have changed. Not
+ * thread-safe; WindowPairs keeps one up to date on the GUI thread.
+ */
+
+public final class WindowModel {
+
+    // Positions of the values of a pair, in the order of TimingModel.Setup
+    public static final int YSTART = 0;
+    public static final int XLEFT  = 1;
+    public static final int XRIGHT = 2;
+    public static final int NX     = 3;
+    public static final int NY     = 4;
+
+    /** Number of values per pair */
+    public static final int NVALUE = 5;
+
+    /** Names of the values, as used in messages */
+    public static final String[] NAMES = {"ystart", "xleft", "xright", "nx", "ny"};
+
+    private final int[]    _values;
+    private final String[] _errors;
+    private final int[]    _versions;
+    private int            _version = 0;
+    private int            _npair   = 0;
+
+    /** Constructor
+     * @param capacity the largest number of pairs that can be held
+     */
+    public WindowModel(int capacity) {
+	if(capacity < 0)
+	    throw new IllegalArgumentException("WindowModel: capacity = " + capacity + " is negative");
+	_values   = new int[NVALUE*capacity];
+	_errors   = new String[NVALUE*capacity];
+	_versions = new int[capacity];
+    }
+
+    /** The largest number of pairs that can be held */
+    public int getCapacity() {
+	return _values.length/NVALUE;
+    }
+
+    /** Number of pairs in use */
+    public int getNpair() {
+	return _npair;
+    }
+
+    public void setNpair(int npair) {
+	if(npair < 0 || npair > getCapacity())
+	    throw new IllegalArgumentException("WindowModel: " + npair + " pairs is out of range 0 to " + getCapacity());
+	_npair = npair;
+    }
+
+    /** Returns a value, whether or not it could be read
+     * @param pair  the pair, counting from 0
+     * @param value YSTART, XLEFT, XRIGHT, NX or NY
+     */
+    public int get(int pair, int value) {
+	return _values[NVALUE*pair+value];
+    }
+
+    /** Sets a value, clearing any error */
+    public void set(int pair, int value, int number) {
+	_values[NVALUE*pair+value] = number;
+	_errors[NVALUE*pair+value] = null;
+	_versions[pair]++;
+	_version++;
+    }
+
+    /** Marks a value as not read, keeping the last good one */
+    public void setError(int pair, int value, String message) {
+	_errors[NVALUE*pair+value] = message;
+	_versions[pair]++;
+	_version++;
+    }
+
+    /** Why a value could not be read; null if it was */
+    public String getError(int pair, int value) {
+	return _errors[NVALUE*pair+value];
+    }
+
+    /** The version of a pair, which changes whenever any of its values is set */
+    public int getVersion(int pair) {
+	return _versions[pair];
+    }
+
+    /** The version of all the pairs, which changes whenever any value is set */
+    public int getVersion() {
+	return _version;
+    }
+
+    /** Returns a value, throwing an Exception which says why if it could not be read */
+    public int getValue(int pair, int value) throws Exception {
+	String error = _errors[NVALUE*pair+value];
+	if(error != null) throw new Exception(error);
+	return _values[NVALUE*pair+value];
+    }
+
+    /** Copies the values of the first npair pairs into a new array, as TimingModel.Setup takes them
+     * @throws IllegalStateException if any could not be read, with the reason
+     */
+    public int[] toArray(int npair) {
+	for(int i=0; i<NVALUE*npair; i++)
+	    if(_errors[i] != null) throw new IllegalStateException(_errors[i]);
+	int[] pairs = new int[NVALUE*npair];
+	System.arraycopy(_values, 0, pairs, 0, pairs.length);
+	return pairs;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** The name of the set_parameter which holds a value in an application, e.g. "X2L_START" */
+    public static String parameter(int pair, int value) {
+	int n = pair+1;
+	switch(value){
+	case YSTART: return "Y" + n + "_START";
+	case XLEFT:  return "X" + n + "L_START";
+	case XRIGHT: return "X" + n + "R_START";
+	case NX:     return "X" + n + "_SIZE";
+	case NY:     return "Y" + n + "_SIZE";
+	default:     throw new IllegalArgumentException("WindowModel: no value " + value);
+	}
+    }
+
+    /** Where the value a set_parameter holds goes, NVALUE*pair + value, or -1
+     * if it is not a window parameter. The inverse of parameter(), without
+     * making a name for each pair to compare with.
+     */
+    public static int index(String ref) {
+	int length = ref.length();
+	if(length < 3 || (ref.charAt(0) != 'X' && ref.charAt(0) != 'Y')) return -1;
+	boolean x = ref.charAt(0) == 'X';
+	int n = 0, pos = 1;
+	while(pos < length && ref.charAt(pos) >= '0' && ref.charAt(pos) <= '9' && n < 100000)
+	    n = 10*n + (ref.charAt(pos++) - '0');
+	if(pos == 1 || n < 1) return -1;
+
+	int value;
+	if(ref.startsWith("_START", pos) && pos+6 == length && !x){
+	    value = YSTART;
+	}else if(ref.startsWith("L_START", pos) && pos+7 == length && x){
+	    value = XLEFT;
+	}else if(ref.startsWith("R_START", pos) && pos+7 == length && x){
+	    value = XRIGHT;
+	}else if(ref.startsWith("_SIZE", pos) && pos+5 == length){
+	    value = x ? NX : NY;
+	}else{
+	    return -1;
+	}
+	return NVALUE*(n-1) + value;
+    }
+
+}
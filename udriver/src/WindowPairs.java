@@ -13,48 +13,81 @@ import java.awt.GridBagLayout;
 import java.awt.GridBagConstraints;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import warwick.marsh.util.*;
 
 /** Class to handle the windows. Makes a GUI with all the necessary values
- * propmpted
+ * propmpted, for as many window pairs as are needed. The values are kept
+ * in a WindowModel as they are edited, which is what the getters read.
  */
 
 public class WindowPairs {
 
     // Initial values
-    private static final int[] YSTART  = {  1, 201, 401};
     private static final int[] XLEFT   = {100, 100, 100};
     private static final int[] XRIGHT  = {600, 600, 600};
-    private static final int[] NX      = { 50,  50,  50};
-    private static final int[] NY      = { 50,  50,  50};
-
-    private JLabel[]           pairLabel   = new JLabel[3];
-    private IntegerTextField[] ystartText  = new IntegerTextField[3];
-    private IntegerTextField[] xleftText   = new IntegerTextField[3];
-    private IntegerTextField[] xrightText  = new IntegerTextField[3];
-    private IntegerTextField[] nxText      = new IntegerTextField[3];
-    private IntegerTextField[] nyText      = new IntegerTextField[3];
+    private static final int   NX      = 50;
+    private static final int   NY      = 50;
+
+    private final WindowModel        _model;
+    private final WindowValidator    _validator;
+    private final JLabel[]           pairLabel;
+    private final IntegerTextField[] ystartText;
+    private final IntegerTextField[] xleftText;
+    private final IntegerTextField[] xrightText;
+    private final IntegerTextField[] nxText;
+    private final IntegerTextField[] nyText;
+
+    // Told of edits once the model has them
+    private final List<DocumentListener> _listeners = new ArrayList<DocumentListener>();
+
+    // Binning the increments are set for, the value of each pair coloured as at fault, -1 for none,
+    // and the validator's count of checks when the colours were last set
+    private int   _xbin     = 0;
+    private int   _ybin     = 0;
+    private long  _coloured = -1;
+    private final int[] _shown;
 
     /** Main constructor 
      * @param gbLayout    layout to use
      * @param panel       panel to contain the window parameters
      * @param ypos        the yposition to add in the components
+     * @param npair       the number of pairs to show, the most any template uses
      * @param xbin        the X binning factor, needed to increment NX properly
      * @param ybin        the Y binning factor, needed to increment NY properly
      * @param backColour  background colour
      * @param errorColour colour when there is an error in a parameter.  
      * @param specialNY   colour when there is an error in a parameter.  
     */
-    public WindowPairs (GridBagLayout gbLayout, JPanel panel, int ypos, int xbin, int ybin, Color backColour, Color errorColour, int[] specialNy) {
-	for(int i=0; i<3; i++){
+    public WindowPairs (GridBagLayout gbLayout, JPanel panel, int ypos, int npair, int xbin, int ybin, Color backColour, Color errorColour, int[] specialNy) {
+
+	_model     = new WindowModel(npair);
+	_validator = new WindowValidator(_model);
+	_shown     = new int[npair];
+	Arrays.fill(_shown, -1);
+	pairLabel  = new JLabel[npair];
+	ystartText = new IntegerTextField[npair];
+	xleftText  = new IntegerTextField[npair];
+	xrightText = new IntegerTextField[npair];
+	nxText     = new IntegerTextField[npair];
+	nyText     = new IntegerTextField[npair];
+
+	// The first three pairs are 200 rows apart; more are spread evenly up the chip
+	int step = Math.min(200, 1024/Math.max(1, npair));
+
+	for(int i=0; i<npair; i++){
 	    pairLabel[i]   = new JLabel("Pair " + (i+1));
 	    pairLabel[i].setBackground(backColour);
-	    ystartText[i]  = new IntegerTextField(YSTART[i],   1, 1024, 1,    "ystart, window pair " + (i+1), true, backColour, errorColour, 4);
-	    xleftText[i]   = new IntegerTextField(XLEFT[i],    1,  512, 1,    "xleft, window pair "  + (i+1), true, backColour, errorColour, 4);
-	    xrightText[i]  = new IntegerTextField(XRIGHT[i], 513, 1024, 1,    "xright, window pair " + (i+1), true, backColour, errorColour, 4);
-	    nxText[i]      = new IntegerTextField(NX[i],       1,  512, xbin, "nx, window pair "     + (i+1), true, backColour, errorColour, 4);
-	    nyText[i]      = new IntegerTextField(NY[i],       1, 1024, ybin, "ny, window pair "     + (i+1), true, backColour, errorColour, 4);
+	    ystartText[i]  = new IntegerTextField(1+step*i,               WindowValidator.MIN[WindowModel.YSTART], WindowValidator.MAX[WindowModel.YSTART], 1,    "ystart, window pair " + (i+1), true, backColour, errorColour, 4);
+	    xleftText[i]   = new IntegerTextField(XLEFT[Math.min(i, 2)],  WindowValidator.MIN[WindowModel.XLEFT],  WindowValidator.MAX[WindowModel.XLEFT],  1,    "xleft, window pair "  + (i+1), true, backColour, errorColour, 4);
+	    xrightText[i]  = new IntegerTextField(XRIGHT[Math.min(i, 2)], WindowValidator.MIN[WindowModel.XRIGHT], WindowValidator.MAX[WindowModel.XRIGHT], 1,    "xright, window pair " + (i+1), true, backColour, errorColour, 4);
+	    nxText[i]      = new IntegerTextField(NX,                     WindowValidator.MIN[WindowModel.NX],     WindowValidator.MAX[WindowModel.NX],     xbin, "nx, window pair "     + (i+1), true, backColour, errorColour, 4);
+	    nyText[i]      = new IntegerTextField(Math.min(NY, step),     WindowValidator.MIN[WindowModel.NY],     WindowValidator.MAX[WindowModel.NY],     ybin, "ny, window pair "     + (i+1), true, backColour, errorColour, 4);
 
 	    int xpos = 0;
 	    _addComponent( gbLayout, panel, pairLabel[i],  xpos++, ypos,  GridBagConstraints.WEST);
@@ -64,22 +97,42 @@ public class WindowPairs {
 	    _addComponent( gbLayout, panel, nxText[i],     xpos++, ypos,  GridBagConstraints.CENTER);
 	    _addComponent( gbLayout, panel, nyText[i],     xpos++, ypos,  GridBagConstraints.CENTER);
 	    ypos++;
+
+	    for(int value=0; value<WindowModel.NVALUE; value++){
+		_read(i, value);
+		_field(i, value).getDocument().addDocumentListener(new Edits(i, value));
+	    }
 	}
-	nyText[0].setSpecial(specialNy);
+	if(npair > 0)
+	    nyText[0].setSpecial(specialNy);
+	_model.setNpair(npair);
+    }
+
+    /** The values of the windows, kept up to date as they are edited */
+    public WindowModel getModel() {
+	return _model;
+    }
+
+    /** The number of pairs shown, the most that can be used */
+    public int getCapacity() {
+	return _model.getCapacity();
     }
 	
+    /** Adds a listener to be told of edits to any of the fields, after the model has them */
+    public void addDocumentListener(DocumentListener listener){
+	_listeners.add(listener);
+    }
+
     /** Disable paste operations in all fields */
     public void disablePaste(){
-	for(int i=0; i<3; i++){
-	    ystartText[i].setTransferHandler(null);
-	    xleftText[i].setTransferHandler(null);
-	    xrightText[i].setTransferHandler(null);
-	    nxText[i].setTransferHandler(null);
-	    nyText[i].setTransferHandler(null);
-	}
+	for(int i=0; i<getCapacity(); i++)
+	    for(int value=0; value<WindowModel.NVALUE; value++)
+		_field(i, value).setTransferHandler(null);
     }
 
-    /** Checks validity of windows given X and Y binning factors
+    /** Checks validity of windows given X and Y binning factors. Only what
+     * has changed since the last call is checked again; see WindowValidator.
+     * The field at fault in each pair is coloured.
      * @param xbin  X binning factor
      * @param ybin  Y binning factor
      * @param npair number of active pairs
@@ -87,77 +140,68 @@ public class WindowPairs {
      */
     public boolean isValid(int xbin, int ybin, int npair, boolean loud) {
 
-	boolean ok = true;
-
-	try{
-
-	    for(int i=0; i<3; i++){
+	if(xbin != _xbin || ybin != _ybin){
+	    for(int i=0; i<getCapacity(); i++){
 		nxText[i].setIncrement(xbin);
 		nyText[i].setIncrement(ybin);
 	    }
+	    _xbin = xbin;
+	    _ybin = ybin;
+	}
 
+	WindowValidator.Problem problem = _validator.check(xbin, ybin, npair);
+	if(_validator.getChecks() != _coloured){
+	    _coloured = _validator.getChecks();
 	    for(int i=0; i<npair; i++){
-
-		int ystart  = ystartText[i].getValue();
-		int xleft   = xleftText[i].getValue();
-		int xright  = xrightText[i].getValue();
-		int nx      = nxText[i].getValue();
-		int ny      = nyText[i].getValue();
-
-		// If we get here, the values are at least within
-		// range assuming that there are no windows and not accounting
-		// for window size. Now we check further ...
-
-		if(nx % xbin != 0){
-		    nxText[i].setError();
-		    throw new Exception("nx of window " + (i+1) + " is not a multiple of xbin = " + xbin);
-		}
-
-		if(ny % ybin != 0){
-		    nyText[i].setError();
-		    throw new Exception("ny of window " + (i+1) + " is not a multiple of ybin = " + ybin);
-		}
-
-		if(ystart + ny > 1025){
-		    nyText[i].setError();
-		    throw new Exception("ny of window pair " + (i+1) + " is too large given the ystart value");
-		}
-
-		if(xleft + nx > 513){
-		    nxText[i].setError();
-		    throw new Exception("nx of window pair " + (i+1) + " is too large given the xleft value");
-		}
-
-		if(xright + nx > 1025){
-		    nxText[i].setError();
-		    throw new Exception("nx of window pair " + (i+1) + " is too large given the xright value");
-		}
-
-		// Test for window overlap
-		for(int j=0; j<i; j++){ 
-		    
-		    int ystart_p  = ystartText[j].getValue();
-		    int xleft_p   = xleftText[j].getValue();
-		    int xright_p  = xrightText[j].getValue();
-		    int nx_p      = nxText[j].getValue();
-		    int ny_p      = nyText[j].getValue();
-
-		    if(ystart < ystart_p + ny_p && ystart + ny > ystart_p){
-			ystartText[i].setError();
-			throw new Exception("ystart of window pair " + (i+1) + " overlaps with window pair " + (j+1));
-		    }
-		}
+		int fault = _validator.getFault(i);
+		if(fault == _shown[i]) continue;
+		if(_shown[i] >= 0 && _model.getError(i, _shown[i]) == null)
+		    _field(i, _shown[i]).setNormal();
+		if(fault >= 0)
+		    _field(i, fault).setError();
+		_shown[i] = fault;
 	    }
 	}
-	catch(Exception e){
-	    if(loud) System.out.println(e.toString());
-	    ok = false;
-	}
-	return ok;
+	if(problem != null && loud) System.out.println(problem.message);
+	return problem == null;
+    }
+
+    /** What is wrong with the first pair at fault amongst the first npair, as isValid finds; null if nothing */
+    public WindowValidator.Problem getProblem(int xbin, int ybin, int npair) {
+	return _validator.check(xbin, ybin, npair);
+    }
+
+    /** Whether the first npair pairs are synchronised with the binning, as needed for biases */
+    public boolean isSynchronised(int xbin, int ybin, int npair) {
+	return _validator.isSynchronised(xbin, ybin, npair);
+    }
+
+    /** Returns a value of a pair, throwing an Exception if its field does not
+     * hold a valid one. As IntegerTextField.getValue, the field is coloured to
+     * show which.
+     * @param nwin  the pair, counting from 0
+     * @param value WindowModel.YSTART, XLEFT, XRIGHT, NX or NY
+     */
+    public int getValue(int nwin, int value) throws Exception {
+	if(_model.getError(nwin, value) != null)
+	    _field(nwin, value).setError();
+	else
+	    _field(nwin, value).setNormal();
+	return _model.getValue(nwin, value);
+    }
+
+    /** Returns the text of a value of a pair */
+    public String getText(int nwin, int value) {
+	return _field(nwin, value).getText();
+    }
+
+    /** Sets the text of a value of a pair, which the model then reads */
+    public void setText(int nwin, int value, String text) {
+	_field(nwin, value).setText(text);
     }
 
     public int getYstart(int nwin) throws Exception {
-	return ystartText[nwin].getValue();
+	return getValue(nwin, WindowModel.YSTART);
     }
 
     public String getYstartText(int nwin) {
@@ -169,7 +213,7 @@ public class WindowPairs {
     }
 
     public int getXleft(int nwin) throws Exception {
-	return xleftText[nwin].getValue();
+	return getValue(nwin, WindowModel.XLEFT);
     }
 
     public String getXleftText(int nwin) {
@@ -181,7 +225,7 @@ public class WindowPairs {
     }
     
     public int getXright(int nwin) throws Exception {
-	return xrightText[nwin].getValue();
+	return getValue(nwin, WindowModel.XRIGHT);
     }
 
     public String getXrightText(int nwin) {
@@ -193,7 +237,7 @@ public class WindowPairs {
     }
 
     public int getNx(int nwin) throws Exception {
-	return nxText[nwin].getValue();
+	return getValue(nwin, WindowModel.NX);
     }
 
     public String getNxText(int nwin) {
@@ -205,7 +249,7 @@ public class WindowPairs {
     }
 
     public int getNy(int nwin) throws Exception {
-	return nyText[nwin].getValue();
+	return getValue(nwin, WindowModel.NY);
     }
 
     public String getNyText(int nwin) {
@@ -216,23 +260,70 @@ public class WindowPairs {
 	nyText[nwin].setText(value);
     }
 
+    /** Enables the first npair pairs and disables the rest
+     * @throws IllegalArgumentException if npair is more than the number shown
+     */
     public void setNpair(int npair) {
-	for(int i=0; i<npair; i++){
-	    ystartText[i].setEnabled(true);
-	    xleftText[i].setEnabled(true);
-	    xrightText[i].setEnabled(true);
-	    nxText[i].setEnabled(true);
-	    nyText[i].setEnabled(true);
-	}
-	for(int i=npair; i<3; i++){
-	    ystartText[i].setEnabled(false);
-	    xleftText[i].setEnabled(false);
-	    xrightText[i].setEnabled(false);
-	    nxText[i].setEnabled(false);
-	    nyText[i].setEnabled(false);
+	_model.setNpair(npair);
+	for(int i=0; i<getCapacity(); i++){
+	    for(int value=0; value<WindowModel.NVALUE; value++)
+		_field(i, value).setEnabled(i < npair);
 	}
     }	
 
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    private IntegerTextField _field(int nwin, int value) {
+	switch(value){
+	case WindowModel.YSTART: return ystartText[nwin];
+	case WindowModel.XLEFT:  return xleftText[nwin];
+	case WindowModel.XRIGHT: return xrightText[nwin];
+	case WindowModel.NX:     return nxText[nwin];
+	default:                 return nyText[nwin];
+	}
+    }
+
+    // Reads a field into the model, which colours it according to whether it holds a valid value
+    private void _read(int nwin, int value) {
+	IntegerTextField field = _field(nwin, value);
+	if(_shown[nwin] == value) _shown[nwin] = -1;
+	try {
+	    _model.set(nwin, value, field.getValue());
+	}
+	catch(NumberFormatException e){
+	    _model.setError(nwin, value, WindowModel.NAMES[value] + ", window pair " + (nwin+1) + " = \"" + field.getText() + "\" is not an integer");
+	}
+	catch(Exception e){
+	    _model.setError(nwin, value, e.getMessage());
+	}
+    }
+
+    // Keeps the model up to date with a field, then passes the edit on
+    private class Edits implements DocumentListener {
+
+	private final int _nwin;
+	private final int _value;
+
+	Edits(int nwin, int value) {
+	    _nwin  = nwin;
+	    _value = value;
+	}
+
+	public void insertUpdate(DocumentEvent e) {
+	    _read(_nwin, _value);
+	    for(DocumentListener listener : _listeners) listener.insertUpdate(e);
+	}
+
+	public void removeUpdate(DocumentEvent e) {
+	    _read(_nwin, _value);
+	    for(DocumentListener listener : _listeners) listener.removeUpdate(e);
+	}
+
+	public void changedUpdate(DocumentEvent e) {
+	    _read(_nwin, _value);
+	    for(DocumentListener listener : _listeners) listener.changedUpdate(e);
+	}
+    }
 
     // Method for adding components to GridBagLayout
     private static void _addComponent (GridBagLayout gbl, Container cont, Component comp, int gridx, int gridy, int anchor){
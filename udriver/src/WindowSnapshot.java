@@ -0,0 +1,185 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Arrays;
+
+/** An immutable copy of the window definition as sent to rtplot: binning
+ * factors plus the lower-left corner and size of each window. The HTTP reply
+ * to rtplot is rendered once, when the snapshot is made, so that it can be
+ * served from any thread without touching the GUI or encoding anything.
+ * Each snapshot carries a version, used as its HTTP ETag, which is a digest
+ * of the reply and so is the same for any two snapshots with the same
+ * windows.
+ */
+
+public final class WindowSnapshot {
+
+    /** Snapshot to serve when no valid windows are available */
+    public static final WindowSnapshot NONE = new WindowSnapshot();
+
+    private final boolean _valid;
+    private final int     _xbin;
+    private final int     _ybin;
+    private final int[]   _windows;
+    private final byte[]  _content;
+    private final String  _version;
+    private final NioHttpServer.Response _response;
+    private final NioHttpServer.Response _notModified;
+
+    /** Constructor
+     * @param xbin    X binning factor
+     * @param ybin    Y binning factor
+     * @param windows llx, lly, nx, ny of each window in turn. It is copied.
+     */
+    public WindowSnapshot(int xbin, int ybin, int[] windows) {
+	if(windows.length % 4 != 0)
+	    throw new IllegalArgumentException("WindowSnapshot: need 4 values per window, got " + windows.length);
+	_valid    = true;
+	_xbin     = xbin;
+	_ybin     = ybin;
+	_windows  = windows.clone();
+
+	StringBuffer content = new StringBuffer(xbin + " " + ybin + " " + getNwin() + "\r\n");
+	for(int i=0; i<_windows.length; i+=4)
+	    content.append(_windows[i] + " " + _windows[i+1] + " " + _windows[i+2] + " " + _windows[i+3] + "\r\n");
+	_content     = _encode(content.toString());
+	_version     = _digest(_content);
+	_response    = _render(200, _version, _content);
+	_notModified = _render(304, _version, new byte[0]);
+    }
+
+    private WindowSnapshot() {
+	_valid    = false;
+	_xbin     = 0;
+	_ybin     = 0;
+	_windows  = new int[0];
+	_content     = _encode("No valid data available\r\n");
+	_version     = _digest(_content);
+	_response    = _render(200, _version, _content);
+	_notModified = _render(304, _version, new byte[0]);
+    }
+
+    /** The windows of a setup as rtplot is sent them, both windows of each pair in turn; NONE if it has none */
+    public static WindowSnapshot of(TimingModel.Setup setup) {
+	int xbin = setup.getXbin(), ybin = setup.getYbin();
+	String template = setup.getTemplate();
+	if(setup.getNpair() > 0){
+	    int[] windows = new int[8*setup.getNpair()];
+	    for(int i=0; i<setup.getNpair(); i++){
+		windows[8*i]   = setup.getXleft(i);
+		windows[8*i+1] = setup.getYstart(i);
+		windows[8*i+2] = setup.getNx(i);
+		windows[8*i+3] = setup.getNy(i);
+		windows[8*i+4] = setup.getXright(i);
+		windows[8*i+5] = setup.getYstart(i);
+		windows[8*i+6] = setup.getNx(i);
+		windows[8*i+7] = setup.getNy(i);
+	    }
+	    return new WindowSnapshot(xbin, ybin, windows);
+	}else if(template.equals("Fullframe + clear") || template.equals("Fullframe, no clear")){
+	    return new WindowSnapshot(xbin, ybin, new int[] {1, 1, 512, 1024, 513, 1, 512, 1024});
+	}else if(template.equals("Fullframe with overscan") || template.equals("Fullframe, overscan, no clear")){
+	    return new WindowSnapshot(xbin, ybin, new int[] {1, 1, 520, 1032, 513, 1, 520, 1032});
+	}
+	return NONE;
+    }
+
+    /** False for the snapshot NONE */
+    public boolean isValid() {
+	return _valid;
+    }
+
+    public int getXbin() {
+	return _xbin;
+    }
+
+    public int getYbin() {
+	return _ybin;
+    }
+
+    /** Number of windows */
+    public int getNwin() {
+	return _windows.length/4;
+    }
+
+    /** Returns llx, lly, nx, ny of window 'nwin', counting from 0 */
+    public int[] getWindow(int nwin) {
+	return Arrays.copyOfRange(_windows, 4*nwin, 4*nwin+4);
+    }
+
+    /** The text sent to rtplot, encoded as bytes. Do not modify. */
+    byte[] getContent() {
+	return _content;
+    }
+
+    /** The version of the windows, a short string of hex digits */
+    public String getVersion() {
+	return _version;
+    }
+
+    /** Returns true if an If-None-Match header value names this version */
+    public boolean matches(String ifNoneMatch) {
+	if(ifNoneMatch == null) return false;
+	for(String tag : ifNoneMatch.split(",")){
+	    tag = tag.trim();
+	    if(tag.startsWith("W/")) tag = tag.substring(2);
+	    if(tag.equals("*") || tag.equals("\"" + _version + "\"")) return true;
+	}
+	return false;
+    }
+
+    /** The complete HTTP reply to rtplot, rendered once and shared by all requests */
+    public NioHttpServer.Response getResponse() {
+	return _response;
+    }
+
+    /** The 304 reply for a client that already has this version */
+    public NioHttpServer.Response getNotModified() {
+	return _notModified;
+    }
+
+    /** Returns true if the two snapshots define the same windows */
+    public boolean sameAs(WindowSnapshot other) {
+	return other != null && _valid == other._valid && _xbin == other._xbin &&
+	    _ybin == other._ybin && Arrays.equals(_windows, other._windows);
+    }
+
+    private static NioHttpServer.Response _render(int status, String version, byte[] content) {
+	Map<String,String> headers = new HashMap<String,String>();
+	headers.put("ETag", "\"" + version + "\"");
+	headers.put("Cache-Control", "no-cache");
+	return NioHttpServer.Response.rendered(NioHttpServer.Response.render(status, status == 304 ? null : "text/plain", headers, content));
+    }
+
+    private static String _digest(byte[] content) {
+	try {
+	    byte[] digest = MessageDigest.getInstance("MD5").digest(content);
+	    StringBuffer hex = new StringBuffer(16);
+	    for(int i=0; i<8; i++)
+		hex.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+	    return hex.toString();
+	}
+	catch(Exception e){
+	    throw new Error(e);
+	}
+    }
+
+    private static byte[] _encode(String text) {
+	try {
+	    return text.getBytes("UTF-8");
+	}
+	catch(UnsupportedEncodingException e){
+	    throw new Error(e);
+	}
+    }
+
+}
@@ -0,0 +1,249 @@
+/*=====================================================*/
+/*                                                     */
+/* Copyright (c) University of Warwick 2005            */
+/*                                                     */
+/*=====================================================*/
+
+package warwick.marsh.ultracam.udriver;
+
+/** Checks the window pairs of a WindowModel as WindowPairs.isValid always
+ * has: every value read, nx and ny multiples of the binning, windows on the
+ * chip and pairs not overlapping in Y. Rather than checking everything each
+ * time it is asked, it remembers the outcome for each pair and which pair,
+ * if any, each overlaps, and checks again only the pairs whose version in
+ * the model has changed, and those whose overlaps that might alter. The
+ * verdict is cached, so asking again with nothing changed costs nothing.
+ * Whether the pairs are synchronised with the binning is kept in the same
+ * way. Not thread-safe.
+ *
+ * The rules themselves are static methods, which AppBuilder, AppValidator,
+ * WindowPairs and Udriver use too, so that there is one copy of each.
+ */
+
+public class WindowValidator {
+
+    /** What is wrong with the windows */
+    public static final class Problem {
+
+	/** The pair at fault, counting from 0 */
+	public final int pair;
+
+	/** The value at fault, WindowModel.YSTART etc */
+	public final int value;
+
+	public final String message;
+
+	Problem(int pair, int value, String message) {
+	    this.pair    = pair;
+	    this.value   = value;
+	    this.message = message;
+	}
+
+	public String toString() {
+	    return message;
+	}
+    }
+
+    /** Least and greatest values allowed, indexed by WindowModel.YSTART etc */
+    public static final int[] MIN = {1,    1,   513,  1,   1};
+    public static final int[] MAX = {1024, 512, 1024, 512, 1024};
+
+    private final WindowModel _model;
+
+    // Model version of each pair when last checked, and whether it has been checked at all
+    private final int[]     _seen;
+    private final boolean[] _checked;
+
+    // Outcome for each pair on its own, null if fine; the earlier pair each overlaps, -1 for none
+    private final Problem[] _local;
+    private final int[]     _overlap;
+    private final boolean[] _sync;
+
+    // What the cached verdict was worked out for
+    private int     _version = -1;
+    private int     _xbin    = 0;
+    private int     _ybin    = 0;
+    private int     _npair   = 0;
+    private Problem _problem = null;
+    private int     _nsync   = 0;
+
+    // Pairs checked, for seeing how much work is done
+    private long    _checks  = 0;
+
+    public WindowValidator(WindowModel model) {
+	_model   = model;
+	int n    = model.getCapacity();
+	_seen    = new int[n];
+	_checked = new boolean[n];
+	_local   = new Problem[n];
+	_overlap = new int[n];
+	_sync    = new boolean[n];
+    }
+
+    /** Checks the first npair pairs, returning what is wrong with the first pair at fault, or null if all are fine
+     * @param xbin  X binning factor
+     * @param ybin  Y binning factor
+     * @param npair number of pairs in use
+     */
+    public Problem check(int xbin, int ybin, int npair) {
+	_update(xbin, ybin, npair);
+	return _problem;
+    }
+
+    /** Whether the first npair pairs start on binned pixel boundaries that match across the chip, as needed for biases */
+    public boolean isSynchronised(int xbin, int ybin, int npair) {
+	_update(xbin, ybin, npair);
+	return _nsync == npair;
+    }
+
+    /** The value of a pair at fault, WindowModel.YSTART etc, or -1 if it is fine; as of the last check */
+    public int getFault(int pair) {
+	if(_local[pair] != null) return _local[pair].value;
+	return _overlap[pair] >= 0 ? WindowModel.YSTART : -1;
+    }
+
+    /** The number of single pairs checked so far */
+    public long getChecks() {
+	return _checks;
+    }
+
+    /** Says how a value is out of range, or null if it is not
+     * @param pair   the pair, counting from 0
+     * @param value  WindowModel.YSTART etc
+     * @param number the value
+     */
+    public static Problem range(int pair, int value, int number) {
+	if(number >= MIN[value] && number <= MAX[value]) return null;
+	return new Problem(pair, value, WindowModel.NAMES[value] + " of window pair " + (pair+1) + " = " + number +
+			   " is out of range " + MIN[value] + " to " + MAX[value]);
+    }
+
+    /** Checks a pair whose values are in range against the binning and the edges of the chip, returning what is wrong, or null */
+    public static Problem check(int pair, int ystart, int xleft, int xright, int nx, int ny, int xbin, int ybin) {
+	if(nx % xbin != 0)
+	    return new Problem(pair, WindowModel.NX, "nx of window " + (pair+1) + " is not a multiple of xbin = " + xbin);
+	if(ny % ybin != 0)
+	    return new Problem(pair, WindowModel.NY, "ny of window " + (pair+1) + " is not a multiple of ybin = " + ybin);
+	if(ystart + ny > MAX[WindowModel.YSTART] + 1)
+	    return new Problem(pair, WindowModel.NY, "ny of window pair " + (pair+1) + " is too large given the ystart value");
+	if(xleft + nx > MAX[WindowModel.XLEFT] + 1)
+	    return new Problem(pair, WindowModel.NX, "nx of window pair " + (pair+1) + " is too large given the xleft value");
+	if(xright + nx > MAX[WindowModel.XRIGHT] + 1)
+	    return new Problem(pair, WindowModel.NX, "nx of window pair " + (pair+1) + " is too large given the xright value");
+	return null;
+    }
+
+    /** Whether two pairs, given by ystart and ny, overlap in Y */
+    public static boolean overlaps(int ystart, int ny, int ystart_p, int ny_p) {
+	return ystart < ystart_p + ny_p && ystart + ny > ystart_p;
+    }
+
+    /** Whether a pair starts on binned pixel boundaries that match across the chip */
+    public static boolean synchronised(int ystart, int xleft, int xright, int xbin, int ybin) {
+	return (513 - ystart) % ybin == 0 && (513 - xleft) % xbin == 0 && (513 - xright) % xbin == 0;
+    }
+
+    /** Whether a template reads out the full frame rather than window pairs */
+    public static boolean isFullFrame(String template) {
+	return template.equals("Fullframe + clear") || template.equals("Fullframe, no clear") ||
+	    template.equals("Fullframe with overscan") || template.equals("Fullframe, overscan, no clear");
+    }
+
+    /** For a full frame template, says how the binning does not divide into the frame, or null if it does */
+    public static String frameSync(String template, int xbin, int ybin) {
+	if(template.equals("Fullframe with overscan") || template.equals("Fullframe, overscan, no clear")){
+	    if(540 % xbin != 0 || 1032 % ybin != 0)
+		return "binning " + xbin + "x" + ybin + " does not divide into 540x1032";
+	}else if(512 % xbin != 0 || 1024 % ybin != 0){
+	    return "binning " + xbin + "x" + ybin + " does not divide into 512x1024";
+	}
+	return null;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    private void _update(int xbin, int ybin, int npair) {
+
+	if(npair > _model.getCapacity())
+	    throw new IllegalArgumentException("WindowValidator: " + npair + " pairs, more than the " + _model.getCapacity() + " held");
+	if(_model.getVersion() == _version && xbin == _xbin && ybin == _ybin && npair == _npair) return;
+
+	// Pairs no longer in use are not kept up to date, so must be checked afresh if used again
+	for(int i=npair; i<_npair; i++)
+	    _checked[i] = false;
+
+	// New binning changes the outcome of every pair on its own, but not the overlaps
+	boolean binning = xbin != _xbin || ybin != _ybin;
+	for(int i=0; i<npair; i++){
+
+	    boolean changed = !_checked[i] || _seen[i] != _model.getVersion(i);
+	    if(changed || binning){
+		_local[i] = _local(i, xbin, ybin);
+		_sync[i]  = _synchronised(i, xbin, ybin);
+		_checks++;
+	    }
+	    if(!changed) continue;
+
+	    _seen[i]    = _model.getVersion(i);
+	    _checked[i] = true;
+
+	    // The first earlier pair this one overlaps
+	    _overlap[i] = -1;
+	    for(int j=0; j<i && _overlap[i] < 0; j++)
+		if(_overlaps(i, j)) _overlap[i] = j;
+
+	    // Later pairs which overlapped this one may no longer; others may now
+	    for(int k=i+1; k<npair; k++){
+		if(!_checked[k] || _seen[k] != _model.getVersion(k)) continue;
+		if(_overlap[k] == i){
+		    _overlap[k] = -1;
+		    for(int j=0; j<k && _overlap[k] < 0; j++)
+			if(_overlaps(k, j)) _overlap[k] = j;
+		}else if((_overlap[k] < 0 || _overlap[k] > i) && _overlaps(k, i)){
+		    _overlap[k] = i;
+		}
+	    }
+	}
+
+	_problem = null;
+	_nsync   = 0;
+	for(int i=0; i<npair; i++){
+	    if(_problem == null){
+		if(_local[i] != null)
+		    _problem = _local[i];
+		else if(_overlap[i] >= 0)
+		    _problem = new Problem(i, WindowModel.YSTART, "ystart of window pair " + (i+1) + " overlaps with window pair " + (_overlap[i]+1));
+	    }
+	    if(_sync[i]) _nsync++;
+	}
+
+	_version = _model.getVersion();
+	_xbin    = xbin;
+	_ybin    = ybin;
+	_npair   = npair;
+    }
+
+    // Checks a pair on its own, in the order WindowPairs always has
+    private Problem _local(int i, int xbin, int ybin) {
+
+	for(int value=0; value<WindowModel.NVALUE; value++){
+	    String error = _model.getError(i, value);
+	    if(error != null) return new Problem(i, value, error);
+	}
+
+	return check(i, _model.get(i, WindowModel.YSTART), _model.get(i, WindowModel.XLEFT), _model.get(i, WindowModel.XRIGHT),
+		     _model.get(i, WindowModel.NX), _model.get(i, WindowModel.NY), xbin, ybin);
+    }
+
+    // Whether two pairs overlap in Y
+    private boolean _overlaps(int i, int j) {
+	return overlaps(_model.get(i, WindowModel.YSTART), _model.get(i, WindowModel.NY),
+			_model.get(j, WindowModel.YSTART), _model.get(j, WindowModel.NY));
+    }
+
+    // Whether a pair is synchronised with the binning
+    private boolean _synchronised(int i, int xbin, int ybin) {
+	return synchronised(_model.get(i, WindowModel.YSTART), _model.get(i, WindowModel.XLEFT), _model.get(i, WindowModel.XRIGHT), xbin, ybin);
+    }
+
+}
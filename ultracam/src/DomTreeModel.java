@@ -0,0 +1,182 @@
+package warwick.marsh.ultracam;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
+
+/**
+ * A TreeModel showing a list of DOM trees, each under a labelled entry,
+ * directly from the DOM. Nothing is copied up front: the children of a
+ * node, its attributes followed by its child nodes other than text, are
+ * looked up when the JTree first asks for them, i.e. when the node is
+ * shown, and remembered until its entry is removed. Labels are given by
+ * label(), for use by the JTree's convertValueToText. Use on the event
+ * dispatch thread only.
+ */
+
+class DomTreeModel implements TreeModel {
+
+    /** One labelled DOM tree */
+    static final class Entry {
+
+	final String label;
+	final Node   node;
+
+	Entry(String label, Node node) {
+	    this.label = label;
+	    this.node  = node;
+	}
+
+	public String toString() {
+	    return label;
+	}
+    }
+
+    private final Object                  _root      = new Object();
+    private final List<Entry>             _entries   = new ArrayList<Entry>();
+    private final Map<Object,Object[]>    _children  = new IdentityHashMap<Object,Object[]>();
+    private final List<TreeModelListener> _listeners = new ArrayList<TreeModelListener>();
+    private final boolean                 _displayNodeValue;
+
+    /** Constructor
+     * @param displayNodeValue true to show the values of nodes in their labels
+     */
+    DomTreeModel(boolean displayNodeValue) {
+	_displayNodeValue = displayNodeValue;
+    }
+
+    /** Adds a DOM tree at the end. Returns the path to its entry. */
+    TreePath add(String label, Node node) {
+	Entry entry = new Entry(label, node);
+	_entries.add(entry);
+	_fire(new TreeModelEvent(this, new Object[] {_root}, new int[] {_entries.size()-1}, new Object[] {entry}), 0);
+	return new TreePath(new Object[] {_root, entry});
+    }
+
+    /** Removes the first DOM tree */
+    void removeFirst() {
+	Entry entry = _entries.remove(0);
+	_forget(entry);
+	_fire(new TreeModelEvent(this, new Object[] {_root}, new int[] {0}, new Object[] {entry}), 1);
+    }
+
+    /** Removes all the DOM trees */
+    void clear() {
+	_entries.clear();
+	_children.clear();
+	_fire(new TreeModelEvent(this, new Object[] {_root}), 2);
+    }
+
+    /** Number of DOM trees */
+    int size() {
+	return _entries.size();
+    }
+
+    /** The label of a node of the tree */
+    String label(Object value) {
+	if(value instanceof Node)
+	    return TreeDomNode.label((Node)value, _displayNodeValue);
+	return value == _root ? "" : String.valueOf(value);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    public Object getRoot() {
+	return _root;
+    }
+
+    public Object getChild(Object parent, int index) {
+	return _children(parent)[index];
+    }
+
+    public int getChildCount(Object parent) {
+	return _children(parent).length;
+    }
+
+    // Decided without looking up the children, as the JTree asks of every node shown
+    public boolean isLeaf(Object node) {
+	if(node == _root || node instanceof Entry) return false;
+	Node domNode = (Node)node;
+	if(domNode.hasAttributes()) return false;
+	for(Node child = domNode.getFirstChild(); child != null; child = child.getNextSibling())
+	    if(!(child instanceof Text)) return false;
+	return true;
+    }
+
+    public int getIndexOfChild(Object parent, Object child) {
+	if(parent == null || child == null) return -1;
+	Object[] children = _children(parent);
+	for(int i=0; i<children.length; i++)
+	    if(children[i] == child) return i;
+	return -1;
+    }
+
+    public void valueForPathChanged(TreePath path, Object value) {}
+
+    public void addTreeModelListener(TreeModelListener listener) {
+	_listeners.add(listener);
+    }
+
+    public void removeTreeModelListener(TreeModelListener listener) {
+	_listeners.remove(listener);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    // Returns the children of a node, looking them up the first time
+    private Object[] _children(Object parent) {
+	if(parent == _root) return _entries.toArray();
+
+	Object[] children = _children.get(parent);
+	if(children == null){
+	    if(parent instanceof Entry){
+		children = new Object[] {((Entry)parent).node};
+	    }else{
+		Node domNode = (Node)parent;
+		List<Node> list = new ArrayList<Node>();
+		NamedNodeMap attributes = domNode.getAttributes();
+		if(attributes != null)
+		    for(int i=0; i<attributes.getLength(); i++)
+			list.add(attributes.item(i));
+		NodeList childNodes = domNode.getChildNodes();
+		for(int i=0; i<childNodes.getLength(); i++)
+		    if(!(childNodes.item(i) instanceof Text)) list.add(childNodes.item(i));
+		children = list.toArray();
+	    }
+	    _children.put(parent, children);
+	}
+	return children;
+    }
+
+    // Drops the looked up children of a node and its descendants
+    private void _forget(Object node) {
+	Object[] children = _children.remove(node);
+	if(children != null)
+	    for(Object child : children)
+		_forget(child);
+    }
+
+    // Tells listeners of a change: 0 inserted, 1 removed, 2 structure changed
+    private void _fire(TreeModelEvent event, int change) {
+	for(TreeModelListener listener : new ArrayList<TreeModelListener>(_listeners)){
+	    if(change == 0)
+		listener.treeNodesInserted(event);
+	    else if(change == 1)
+		listener.treeNodesRemoved(event);
+	    else
+		listener.treeStructureChanged(event);
+	}
+    }
+
+}
@@ -0,0 +1,345 @@
+package warwick.marsh.ultracam;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An in-memory index of every row logged during a session, for searching.
+ * Unlike the LogPanel display, which keeps only the last MAX_ROW rows,
+ * nothing is ever dropped. Each entry carries its time, text, severity and
+ * the run number, target and kind of event current when it was logged.
+ * Entries are numbered from 0 in the order logged, and for each word, run,
+ * target, event and severity a list of the entries having it is kept in
+ * that order, so that a query only touches entries that might match.
+ *
+ * A query is a list of terms, all of which must match:
+ * <pre>
+ * run:123       entries logged during run 123
+ * target:ss     entries logged with a target starting "ss"
+ * event:reset   entries of one kind, e.g. post, start, stop, reset, command
+ * type:error    entries of one severity: ok, warning or error
+ * word          entries with a word starting with "word" in their text
+ * </pre>
+ * Matching ignores case. Words, runs, targets and events share storage
+ * between entries, so the index stays small however long the night.
+ */
+
+public class LogIndex {
+
+    // Severities of entries; LogPanel's OK, WARNING and ERROR
+    public static final int OK      = 1;
+    public static final int WARNING = 2;
+    public static final int ERROR   = 3;
+
+    // Entries returned by a query at most, newest first
+    public static final int MAX_RESULTS = 2000;
+
+    private int        _size      = 0;
+    private long[]     _time      = new long[1024];
+    private String[]   _text      = new String[1024];
+    private int[]      _type      = new int[1024];
+    private String[]   _run       = new String[1024];
+    private String[]   _target    = new String[1024];
+    private String[]   _targetKey = new String[1024];
+    private String[]   _event     = new String[1024];
+    private String[][] _words     = new String[1024][];
+
+    private final TreeMap<String,Postings> _wordIndex   = new TreeMap<String,Postings>();
+    private final TreeMap<String,Postings> _targetIndex = new TreeMap<String,Postings>();
+    private final Map<String,Postings>     _runIndex    = new HashMap<String,Postings>();
+    private final Map<String,Postings>     _eventIndex  = new HashMap<String,Postings>();
+    private final Map<Integer,Postings>    _typeIndex   = new HashMap<Integer,Postings>();
+
+    // Marks the entries of a term with many postings during a query
+    private int[] _marks = new int[0];
+    private int   _mark  = 0;
+
+    /** Adds an entry. Returns its number.
+     * @param time   time logged, milliseconds since 1970
+     * @param text   text logged, which may contain HTML markup
+     * @param type   OK, WARNING or ERROR
+     * @param run    run number, or null
+     * @param target target name, or null
+     * @param event  kind of event, or null
+     */
+    public synchronized int add(long time, String text, int type, String run, String target, String event) {
+
+	if(_size == _time.length) _grow();
+
+	int n = _size++;
+	String plain = plainText(text);
+	_time[n]   = time;
+	_text[n]   = plain;
+	_type[n]   = type;
+	_run[n]    = run    != null ? _key(_runIndex, run, n)                   : null;
+	_event[n]  = event  != null ? _key(_eventIndex, event.toLowerCase(), n) : null;
+	_target[n]    = target;
+	_targetKey[n] = target != null ? _key(_targetIndex, target.toLowerCase(), n) : null;
+	_posting(_typeIndex, type).add(n);
+
+	List<String> words = new ArrayList<String>();
+	for(String word : _words(plain)){
+	    String key = _key(_wordIndex, word, n);
+	    if(key != null) words.add(key);
+	}
+	_words[n] = words.toArray(new String[words.size()]);
+	return n;
+    }
+
+    /** Number of entries */
+    public synchronized int size() {
+	return _size;
+    }
+
+    public synchronized long getTime(int n) {
+	return _time[n];
+    }
+
+    /** The text of an entry, without markup */
+    public synchronized String getText(int n) {
+	return _text[n];
+    }
+
+    public synchronized int getType(int n) {
+	return _type[n];
+    }
+
+    public synchronized String getRun(int n) {
+	return _run[n];
+    }
+
+    public synchronized String getTarget(int n) {
+	return _target[n];
+    }
+
+    public synchronized String getEvent(int n) {
+	return _event[n];
+    }
+
+    /** Returns the numbers of the entries matching a query, newest first, at most MAX_RESULTS of them */
+    public synchronized int[] query(String query) {
+
+	List<Term> terms = new ArrayList<Term>();
+	for(String token : query.trim().toLowerCase().split("\\s+")){
+	    if(token.length() == 0) continue;
+	    Term term = _term(token);
+	    if(term == null) return new int[0];
+	    terms.add(term);
+	}
+
+	if(terms.isEmpty()){
+	    int nres = Math.min(_size, MAX_RESULTS);
+	    int[] result = new int[nres];
+	    for(int i=0; i<nres; i++)
+		result[i] = _size - 1 - i;
+	    return result;
+	}
+
+	// Start from the term with fewest entries, then check the others against each candidate
+	Term[] others = terms.toArray(new Term[terms.size()]);
+	Term first = others[0];
+	for(Term term : others)
+	    if(term.count < first.count) first = term;
+
+	int[] result = new int[Math.min(first.count, MAX_RESULTS)];
+	int nres = 0;
+	if(first.lists.length == 1){
+	    Postings postings = first.lists[0];
+	    for(int i=postings.size-1; i>=0 && nres<result.length; i--)
+		if(_matches(others, first, postings.entries[i])) result[nres++] = postings.entries[i];
+	}else{
+	    // Several words share the prefix: mark their entries, then run back through the marks
+	    if(_marks.length < _size){
+		_marks = new int[_time.length];
+		_mark  = 0;
+	    }
+	    _mark++;
+	    for(Postings postings : first.lists)
+		for(int i=0; i<postings.size; i++)
+		    _marks[postings.entries[i]] = _mark;
+	    for(int n=_size-1; n>=0 && nres<result.length; n--)
+		if(_marks[n] == _mark && _matches(others, first, n)) result[nres++] = n;
+	}
+	return nres == result.length ? result : Arrays.copyOf(result, nres);
+    }
+
+    // Whether an entry matches all the terms, other than one known to match
+    private static boolean _matches(Term[] terms, Term known, int n) {
+	for(int i=0; i<terms.length; i++)
+	    if(terms[i] != known && !terms[i].matches(n)) return false;
+	return true;
+    }
+
+    /** Strips HTML tags and the common entities from text */
+    public static String plainText(String html) {
+	if(html.indexOf('<') < 0 && html.indexOf('&') < 0) return html;
+	StringBuilder buff = new StringBuilder(html.length());
+	boolean tag = false;
+	for(int i=0; i<html.length(); i++){
+	    char c = html.charAt(i);
+	    if(c == '<'){
+		tag = true;
+	    }else if(c == '>' && tag){
+		tag = false;
+	    }else if(!tag){
+		buff.append(c);
+	    }
+	}
+	return buff.toString().replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&nbsp;", " ").replace("&amp;", "&");
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    private void _grow() {
+	int size = 2*_time.length;
+	_time      = Arrays.copyOf(_time,      size);
+	_text      = Arrays.copyOf(_text,      size);
+	_type      = Arrays.copyOf(_type,      size);
+	_run       = Arrays.copyOf(_run,       size);
+	_target    = Arrays.copyOf(_target,    size);
+	_targetKey = Arrays.copyOf(_targetKey, size);
+	_event     = Arrays.copyOf(_event,     size);
+	_words     = Arrays.copyOf(_words,     size);
+    }
+
+    // Splits text into lower case words
+    private static List<String> _words(String text) {
+	List<String> words = new ArrayList<String>();
+	int start = -1;
+	for(int i=0; i<=text.length(); i++){
+	    boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+	    if(letter && start < 0){
+		start = i;
+	    }else if(!letter && start >= 0){
+		words.add(text.substring(start, i).toLowerCase());
+		start = -1;
+	    }
+	}
+	return words;
+    }
+
+    private static <K> Postings _posting(Map<K,Postings> index, K key) {
+	Postings postings = index.get(key);
+	if(postings == null){
+	    postings = new Postings();
+	    index.put(key, postings);
+	}
+	return postings;
+    }
+
+    // Adds an entry under a key, returning the stored copy of the key, or null if the entry is already there
+    private static String _key(Map<String,Postings> index, String key, int n) {
+	Postings postings = index.get(key);
+	if(postings == null){
+	    postings = new Postings();
+	    postings.key = key;
+	    index.put(key, postings);
+	}
+	if(postings.size > 0 && postings.entries[postings.size-1] == n) return null;
+	postings.add(n);
+	return postings.key;
+    }
+
+    // Parses one term of a query; null if it can match nothing
+    private Term _term(String token) {
+	int colon = token.indexOf(':');
+	String field = colon > 0 ? token.substring(0, colon) : "";
+	final String value = colon > 0 ? token.substring(colon+1) : token;
+
+	if(field.equals("run")){
+	    final Postings postings = _runIndex.get(value);
+	    if(postings == null) return null;
+	    return new Term(postings) {
+		boolean matches(int n) {
+		    return value.equals(_run[n]);
+		}
+	    };
+
+	}else if(field.equals("event")){
+	    final Postings postings = _eventIndex.get(value);
+	    if(postings == null) return null;
+	    return new Term(postings) {
+		boolean matches(int n) {
+		    return postings.key.equals(_event[n]);
+		}
+	    };
+
+	}else if(field.equals("type")){
+	    final int type = value.startsWith("err") ? ERROR : value.startsWith("warn") ? WARNING :
+		value.equals("ok") ? OK : 0;
+	    Postings postings = _typeIndex.get(type);
+	    if(postings == null) return null;
+	    return new Term(postings) {
+		boolean matches(int n) {
+		    return _type[n] == type;
+		}
+	    };
+
+	}else if(field.equals("target")){
+	    final SortedMap<String,Postings> targets = _prefixed(_targetIndex, value);
+	    if(targets.isEmpty()) return null;
+	    return new Term(targets.values()) {
+		boolean matches(int n) {
+		    return _targetKey[n] != null && _targetKey[n].startsWith(value);
+		}
+	    };
+
+	}else{
+	    final SortedMap<String,Postings> words = _prefixed(_wordIndex, token);
+	    if(words.isEmpty()) return null;
+	    final String prefix = token;
+	    return new Term(words.values()) {
+		boolean matches(int n) {
+		    for(String word : _words[n])
+			if(word.startsWith(prefix)) return true;
+		    return false;
+		}
+	    };
+	}
+    }
+
+    private static SortedMap<String,Postings> _prefixed(TreeMap<String,Postings> index, String prefix) {
+	return index.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    /** Entries having one word, run, target, event or severity, in the order logged */
+    private static final class Postings {
+
+	String key;
+	int[]  entries = new int[4];
+	int    size    = 0;
+
+	void add(int n) {
+	    if(size == entries.length) entries = Arrays.copyOf(entries, 2*size);
+	    entries[size++] = n;
+	}
+    }
+
+    /** One term of a query */
+    private abstract static class Term {
+
+	final Postings[] lists;
+	final int count;
+
+	Term(Postings postings) {
+	    this(Arrays.asList(postings));
+	}
+
+	Term(java.util.Collection<Postings> postings) {
+	    this.lists = postings.toArray(new Postings[postings.size()]);
+	    int count = 0;
+	    for(Postings p : lists)
+		count += p.size;
+	    this.count = count;
+	}
+
+	/** Whether an entry matches */
+	abstract boolean matches(int n);
+    }
+
+}
@@ -2,10 +2,12 @@
 package warwick.marsh.ultracam;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.IOException;
 
 import javax.swing.*;
 import javax.swing.border.LineBorder;
+import javax.swing.text.Element;
+import javax.swing.text.html.HTMLDocument;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeModel;
 import java.awt.event.ActionListener;
@@ -16,6 +18,7 @@ import java.awt.GridLayout;
 import java.awt.Dimension;
 
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 import java.text.DateFormat;
 
 import org.w3c.dom.Comment;
@@ -29,14 +32,19 @@ import warwick.marsh.util.*;
 
 /**
  * Class for logging in Udriver both to a JTextPane and a file if wanted.
- *
+ * The last MAX_ROW rows are displayed; each new row is inserted into the
+ * displayed HTML document and the oldest removed, so that adding
+ * a row costs the same however full the log is. The display is only
+ * touched on the event dispatch thread. Every row of the session is also
+ * kept in a LogIndex, tagged with the run and target current at the time,
+ * for searching.
  */
 
 public class LogPanel extends JPanel {
 
-    public static final int OK      = 1;
-    public static final int WARNING = 2;
-    public static final int ERROR   = 3;
+    public static final int OK      = LogIndex.OK;
+    public static final int WARNING = LogIndex.WARNING;
+    public static final int ERROR   = LogIndex.ERROR;
 
     // Maximum size to prevent the scrollable area eating up 
     // rest of GUI.
@@ -51,13 +59,26 @@ public class LogPanel extends JPanel {
     static final String START_ROW = "<tr valign=\"top\">";
     static final String END_ROW   = "</tr>\n";
 
-    private StringBuffer _htmlBuffer     = new StringBuffer();
+    // Id of the table element holding the rows
+    static final String TABLE_ID = "log";
 
-    private boolean      _logEnabled     = false;
-    private File         _logFile        = null;
-    private FileWriter   _logFileWriter  = null;
-    private JFileChooser _logFileChooser = null;
-    private JTextPane    _pane           = new JTextPane();
+    // Number of rows displayed
+    private int          _nrow           = 0;
+    private HTMLDocument _document;
+    private Element      _table;
+
+    private volatile boolean   _logEnabled      = false;
+    private File               _logFile         = null;
+    private volatile LogWriter _logWriter       = null;
+    private final AtomicLong   _droppedReported = new AtomicLong(0);
+    private JFileChooser       _logFileChooser  = null;
+    private final String       _logDirectory;
+    private JTextPane          _pane            = new JTextPane();
+
+    // Index of every row of the session, and the run and target rows are tagged with
+    private final LogIndex     _index           = new LogIndex();
+    private volatile String    _run             = null;
+    private volatile String    _target          = null;
 
     public LogPanel(String LOG_FILE_DIRECTORY) {
 
@@ -66,14 +87,16 @@ public class LogPanel extends JPanel {
 	// Set up pane
 	_pane.setEditable(false);
 	_pane.setContentType("text/html");
+	_pane.setText("<html><body><table id=\"" + TABLE_ID + "\"></table></body></html>");
+	_document = (HTMLDocument)_pane.getDocument();
+	_table    = _document.getElement(TABLE_ID);
 	_pane.setMaximumSize(new Dimension(MAX_X_SIZE, MAX_Y_SIZE));
 	
 	JScrollPane scrollPane = new JScrollPane(_pane, JScrollPane.VERTICAL_SCROLLBAR_ALWAYS, JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
 	add(scrollPane);
 
-	_logFileChooser = new JFileChooser();
-	_logFileChooser.setFileFilter(new FileFilterHTML());
-	_logFileChooser.setCurrentDirectory(new File(LOG_FILE_DIRECTORY));
+	// The file chooser is slow to make, so is only made when first needed
+	_logDirectory = LOG_FILE_DIRECTORY;
 
 	setPreferredSize(new Dimension(MAX_X_SIZE, MAX_Y_SIZE));
 	setMaximumSize(new Dimension(MAX_X_SIZE, MAX_Y_SIZE));
@@ -87,35 +110,45 @@ public class LogPanel extends JPanel {
      * of the error messages).
      */
     public void add(String text, int type, boolean fileToo) {
+	add(text, type, fileToo, null);
+    }
+
+    /** Adds a row to the log, marking it as a particular kind of event for searching
+     * @param text    text to add
+     * @param type    OK, WARNING or ERROR
+     * @param fileToo true to send the line to the log file as well
+     * @param event   kind of event, e.g. "post", "start", "reset"; may be null
+     */
+    public void add(String text, int type, boolean fileToo, String event) {
 
-	
 	Date       date = new Date();
 	DateFormat df   = DateFormat.getTimeInstance(DateFormat.MEDIUM);
 
-	// Add the row into the internal buffer
-	_htmlBuffer.append(START_ROW + 
-			   "<td width=\"80\">" + df.format(date) + "</td> <td" + _bgcolor(type) + ">" + text + "</td>" +
-			   END_ROW);
-
-	// Limit the number of rows
-	limitRows();
-
-	_pane.setText("<table>\n" + _htmlBuffer.toString() + "</table>\n");
+	_index.add(date.getTime(), text, type, _run, _target, event);
 
-	// now optionally to a file
-	if(_logEnabled && fileToo){
+	// Display the row, on the event thread
+	final Row row = new Row(df.format(date), text, type);
+	if(SwingUtilities.isEventDispatchThread()){
+	    _display(row);
+	}else{
+	    SwingUtilities.invokeLater(new Runnable() {
+		    public void run() {
+			_display(row);
+		    }
+		});
+	}
 
-	    try {
-		
-		_logFileWriter.write(START_ROW + 
-				     "<td width=\"80\">" + df.format(date) + "</td> <td" + _bgcolor(type) + ">" + text + "</td>" +
-				     END_ROW);
-		
-	    }
-	    catch(Exception e){
-		_close();
-		add(e.toString() + ". File logging disabled.", ERROR, false);
-	    }
+	// now optionally to a file, via the writer thread
+	LogWriter logWriter = _logWriter;
+	if(_logEnabled && fileToo && logWriter != null){
+
+	    // Whichever thread moves the count on reports the rows dropped, and gives the count back if it cannot
+	    long reported = _droppedReported.get();
+	    long dropped  = logWriter.getDropped();
+	    if(dropped > reported && _droppedReported.compareAndSet(reported, dropped) &&
+	       !logWriter.write(new Row(row.time, (dropped - reported) + " log rows were not written to file as the disk was too slow", WARNING).html()))
+		_droppedReported.compareAndSet(dropped, reported);
+	    logWriter.write(row.html());
 	}
     }
 
@@ -124,6 +157,11 @@ public class LogPanel extends JPanel {
 	try{
 
 	    if(!_logEnabled){
+		if(_logFileChooser == null){
+		    _logFileChooser = new JFileChooser();
+		    _logFileChooser.setFileFilter(new FileFilterHTML());
+		    _logFileChooser.setCurrentDirectory(new File(_logDirectory));
+		}
 		int result = _logFileChooser.showDialog(null, "Log file");
 		if(result == JFileChooser.APPROVE_OPTION){
 		    _logFile = _logFileChooser.getSelectedFile();
@@ -132,17 +170,19 @@ public class LogPanel extends JPanel {
 			_logFile = new File(newFilePath);
 		    }
 		    
-		    Date       date = new Date();
-		    DateFormat df   = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.MEDIUM);
-		    
-		    // Write, appending to end
-		    if(_logFile.exists()){
-			add("Will append to <strong>" + _logFile.getName() + "</strong>", OK, false);
-			_logFileWriter = new FileWriter(_logFile, true);		    
-		    }else{
-			_logFileWriter = new FileWriter(_logFile, true);
-			_logFileWriter.write("<html>\n<body>\n<h1>Udriver log file</h1>\n\n<p>\n<table>\n");
-		    }
+		    // Write, appending to end. The file is opened by the writer thread.
+		    _droppedReported.set(0);
+		    _logWriter = new LogWriter(_logFile, true, "<html>\n<body>\n<h1>Udriver log file</h1>\n\n<p>\n<table>\n",
+					       new LogWriter.Listener() {
+						   public void opened(File file, boolean appended){
+						       if(appended)
+							   add("Will append to <strong>" + file.getName() + "</strong>", OK, false);
+						   }
+						   public void failed(File file, IOException e){
+						       _logEnabled = false;
+						       add(e.toString() + ". File logging disabled.", ERROR, false);
+						   }
+					       });
 	    
 		    _logEnabled = true;
 		    add("Started logging to <strong>" + _logFile.getName() + "</strong>", OK, true);
@@ -165,19 +205,10 @@ public class LogPanel extends JPanel {
     public void stopLog(){
 	if(_logEnabled){
 
-	    Date       date = new Date();
-	    DateFormat df   = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.MEDIUM);
 	    add("Stopped logging to <strong>" + _logFile.getName() + "</strong>", OK, true);
-	    if(_logEnabled){
-		try {
-		    _logFileWriter.close();
-		    _logEnabled  = false;
-		}
-		catch(Exception e){
-		    _close();
-		    add(e.toString() + ". File logging disabled.", ERROR, false);
-		}
-	    }
+
+	    // Queued rows are still written; a shutdown hook sees to it if the program exits first
+	    _close();
 	}else{
 	    add("Cannot stop file logging which was not enabled", WARNING, false);
 	}
@@ -187,12 +218,23 @@ public class LogPanel extends JPanel {
 	return _logEnabled;
     }
 
+    /** Sets the run number and target with which subsequent rows are tagged; either may be null */
+    public void setContext(String run, String target){
+	_run    = run    != null && run.trim().length()    > 0 ? run.trim()    : null;
+	_target = target != null && target.trim().length() > 0 ? target.trim() : null;
+    }
+
+    /** The index of all rows logged this session */
+    public LogIndex getIndex(){
+	return _index;
+    }
+
     private void _close(){
 	_logEnabled = false;
-	try {_logFileWriter.close(); } catch(Exception e){}
+	if(_logWriter != null) _logWriter.close();
     }
 
-    private String _bgcolor(int type){
+    private static String _bgcolor(int type){
 	if(type == WARNING){
 	    return " bgcolor=\"#FFA500\"";
 	}else if(type == ERROR){
@@ -202,24 +244,51 @@ public class LogPanel extends JPanel {
 	}
     }
 
-    /* Limits the number of rows in the internal buffer */
-    public void limitRows(){
-	int nrow = 0;
-	int index = 0, nindex;
-	while((nindex = _htmlBuffer.indexOf(START_ROW, index)) != -1){
-	    nrow++;
-	    index = nindex + 4;
+    /* Adds a row to the display, dropping the oldest if full */
+    private void _display(Row row){
+	try {
+	    if(_nrow == MAX_ROW){
+		_removeFirstRow();
+		_nrow--;
+	    }
+	    _nrow++;
+
+	    _document.insertBeforeEnd(_table, row.html());
+	    _pane.setCaretPosition(_document.getLength());
 	}
-	if(nrow > MAX_ROW){
-	    int start = _htmlBuffer.indexOf(START_ROW);
-	    int end   = _htmlBuffer.indexOf(END_ROW);
-	    if(end == -1){
-		System.out.println("Error in logpanel: unterminated html table row");
-	    }else{
-		_htmlBuffer.delete(start, end+END_ROW.length());
+	catch(Exception e){
+	    System.out.println("Error in logpanel: " + e);
+	}
+    }
+
+    // Removes the first row of the table. An empty table starts with an implied paragraph, which is skipped.
+    private void _removeFirstRow(){
+	for(int i=0; i<_table.getElementCount(); i++){
+	    Element element = _table.getElement(i);
+	    if(element.getName().equals("tr")){
+		_document.removeElement(element);
+		return;
 	    }
 	}
     }
 
+    /** One row of the log */
+    static final class Row {
+
+	final String time;
+	final String text;
+	final int    type;
+
+	Row(String time, String text, int type){
+	    this.time = time;
+	    this.text = text;
+	    this.type = type;
+	}
+
+	String html(){
+	    return START_ROW + "<td width=\"80\">" + time + "</td> <td" + _bgcolor(type) + ">" + text + "</td>" + END_ROW;
+	}
+    }
+
 }
 
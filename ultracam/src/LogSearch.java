@@ -0,0 +1,148 @@
+package warwick.marsh.ultracam;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.text.DateFormat;
+import java.util.Date;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.DefaultTableCellRenderer;
+
+/**
+ * A window for searching the whole of a session's log through its
+ * LogIndex. The entries matching the query in the search box are listed,
+ * newest first, as it is typed; see LogIndex for the form of queries. The
+ * list is refreshed as new rows are logged.
+ */
+
+public class LogSearch extends JFrame {
+
+    private static final long serialVersionUID = 1L;
+
+    // Milliseconds between checks for new rows
+    static final int REFRESH = 1000;
+
+    private final LogIndex   _index;
+    private final JTextField _query  = new JTextField(30);
+    private final JLabel     _status = new JLabel(" ");
+    private final Model      _model  = new Model();
+    private final Timer      _timer;
+    private int              _indexed = -1;
+
+    public LogSearch(LogIndex index) {
+
+	super("Log search");
+	_index = index;
+
+	JPanel top = new JPanel(new BorderLayout(5, 5));
+	top.add(new JLabel("Search: "), BorderLayout.WEST);
+	top.add(_query, BorderLayout.CENTER);
+	_query.setToolTipText("Words to find, and run:<number> target:<name> event:<post|start|stop|reset|command|exec|setup|throughput|sequence> type:<ok|warning|error>");
+	_query.getDocument().addDocumentListener(new DocumentListener() {
+		public void insertUpdate(DocumentEvent e)  { _search(); }
+		public void removeUpdate(DocumentEvent e)  { _search(); }
+		public void changedUpdate(DocumentEvent e) { _search(); }
+	    });
+
+	JTable table = new JTable(_model);
+	table.setDefaultRenderer(Object.class, new DefaultTableCellRenderer() {
+		public Component getTableCellRendererComponent(JTable table, Object value, boolean selected, boolean focus, int row, int column) {
+		    super.getTableCellRendererComponent(table, value, selected, focus, row, column);
+		    if(!selected){
+			int type = _model.getType(row);
+			setBackground(type == LogIndex.ERROR ? Color.RED : type == LogIndex.WARNING ? new Color(0xFFA500) : table.getBackground());
+		    }
+		    return this;
+		}
+	    });
+	table.getColumnModel().getColumn(0).setPreferredWidth(80);
+	table.getColumnModel().getColumn(1).setPreferredWidth(50);
+	table.getColumnModel().getColumn(2).setPreferredWidth(100);
+	table.getColumnModel().getColumn(3).setPreferredWidth(60);
+	table.getColumnModel().getColumn(4).setPreferredWidth(400);
+
+	getContentPane().add(top, BorderLayout.NORTH);
+	getContentPane().add(new JScrollPane(table), BorderLayout.CENTER);
+	getContentPane().add(_status, BorderLayout.SOUTH);
+	setPreferredSize(new Dimension(750, 400));
+
+	_timer = new Timer(REFRESH, new ActionListener() {
+		public void actionPerformed(ActionEvent e) {
+		    if(_index.size() != _indexed) _search();
+		}
+	    });
+	addWindowListener(new WindowAdapter() {
+		public void windowClosed(WindowEvent e) {
+		    _timer.stop();
+		}
+	    });
+	setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+	_search();
+	_timer.start();
+	pack();
+	setVisible(true);
+    }
+
+    // Runs the query in the search box
+    private void _search() {
+	long start = System.nanoTime();
+	_indexed = _index.size();
+	_model.setResult(_index.query(_query.getText()));
+	long micro = (System.nanoTime() - start)/1000;
+	_status.setText(_model.getRowCount() + (_model.getRowCount() == LogIndex.MAX_RESULTS ? " most recent" : "") +
+			" of " + _indexed + " rows (" + micro + " microseconds)");
+    }
+
+    /** The rows matched */
+    private final class Model extends AbstractTableModel {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String[]   COLUMNS = {"Time", "Run", "Target", "Event", "Text"};
+	private final DateFormat _format = DateFormat.getTimeInstance(DateFormat.MEDIUM);
+	private int[] _result = new int[0];
+
+	void setResult(int[] result) {
+	    _result = result;
+	    fireTableDataChanged();
+	}
+
+	int getType(int row) {
+	    return _index.getType(_result[row]);
+	}
+
+	public int getRowCount() {
+	    return _result.length;
+	}
+
+	public int getColumnCount() {
+	    return COLUMNS.length;
+	}
+
+	public String getColumnName(int column) {
+	    return COLUMNS[column];
+	}
+
+	public Object getValueAt(int row, int column) {
+	    int n = _result[row];
+	    switch(column){
+	    case 0:  return _format.format(new Date(_index.getTime(n)));
+	    case 1:  return _index.getRun(n);
+	    case 2:  return _index.getTarget(n);
+	    case 3:  return _index.getEvent(n);
+	    default: return _index.getText(n);
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,198 @@
+package warwick.marsh.ultracam;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes text to a file from a thread of its own, so that callers, usually
+ * the GUI thread, never wait for the disk. Text is handed over through a
+ * bounded lock-free queue and written in large batches, flushed once
+ * FLUSH_SIZE characters are waiting, FLUSH_INTERVAL milliseconds after the
+ * first of them was queued, and on closing. If the disk falls so far behind
+ * that the queue fills, further text is dropped and counted rather than
+ * blocking the caller. Any text still queued when the program exits is
+ * written out by a shutdown hook.
+ */
+
+public class LogWriter {
+
+    /** Told of the opening of the file and of failures. Called from the writer thread. */
+    public interface Listener {
+
+	/** The file has been opened; 'appended' if it already existed */
+	public void opened(File file, boolean appended);
+
+	/** Writing has failed and stopped */
+	public void failed(File file, IOException e);
+    }
+
+    // Maximum number of texts queued
+    public static final int  MAX_QUEUE      = 10000;
+
+    // Characters waiting which trigger a write
+    public static final int  FLUSH_SIZE     = 64*1024;
+
+    // Longest time text waits before being written, milliseconds
+    public static final long FLUSH_INTERVAL = 1000;
+
+    private final File     _file;
+    private final String   _header;
+    private final boolean  _append;
+    private final Listener _listener;
+
+    private final ConcurrentLinkedQueue<String> _queue = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger _queued  = new AtomicInteger(0);
+    private final AtomicLong    _dropped = new AtomicLong(0);
+    private volatile boolean    _closed  = false;
+
+    private final Thread _thread;
+    private final Thread _shutdownHook;
+
+    /** Starts a writer. The file is opened by the writer thread.
+     * @param file     the file to write to
+     * @param append   true to append to the file if it exists, false to replace it
+     * @param header   text written first if the file is new; may be null
+     * @param listener told of the file being opened and of failures; may be null
+     */
+    public LogWriter(File file, boolean append, String header, Listener listener) {
+	_file     = file;
+	_append   = append;
+	_header   = header;
+	_listener = listener;
+
+	_thread = new Thread(new Runnable() {
+		public void run() {
+		    _run();
+		}
+	    }, "log writer " + file.getName());
+	_thread.setDaemon(true);
+
+	_shutdownHook = new Thread(new Runnable() {
+		public void run() {
+		    close();
+		    awaitClosed(5000);
+		}
+	    });
+	Runtime.getRuntime().addShutdownHook(_shutdownHook);
+	_thread.start();
+    }
+
+    public File getFile() {
+	return _file;
+    }
+
+    /** Queues text to be written. Never blocks. Returns false if the text was
+     * dropped because the queue is full or the writer is closed.
+     */
+    public boolean write(String text) {
+	// Counted before _closed is read, so that the writer thread, which only
+	// stops once closed with nothing counted, cannot stop with this text unwritten
+	if(_queued.incrementAndGet() > MAX_QUEUE || _closed){
+	    _queued.decrementAndGet();
+	    _dropped.incrementAndGet();
+	    return false;
+	}
+	_queue.offer(text);
+	LockSupport.unpark(_thread);
+	return true;
+    }
+
+    /** The number of texts dropped so far */
+    public long getDropped() {
+	return _dropped.get();
+    }
+
+    /** Returns true while the writer accepts text */
+    public boolean isOpen() {
+	return !_closed;
+    }
+
+    /** Stops accepting text. Text already queued is still written, after which
+     * the file is closed. Does not wait.
+     */
+    public void close() {
+	_closed = true;
+	LockSupport.unpark(_thread);
+    }
+
+    /** Waits for the file to be closed after close(). Returns true if it has been. */
+    public boolean awaitClosed(long millis) {
+	try {
+	    _thread.join(millis);
+	}
+	catch(InterruptedException e){
+	    Thread.currentThread().interrupt();
+	}
+	return !_thread.isAlive();
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    // The writer thread
+    private void _run() {
+
+	Writer writer = null;
+	try {
+	    boolean appended = _append && _file.exists();
+	    writer = new OutputStreamWriter(new FileOutputStream(_file, _append));
+	    if(!appended && _header != null){
+		writer.write(_header);
+		writer.flush();
+	    }
+	    if(_listener != null) _listener.opened(_file, appended);
+
+	    StringBuilder batch = new StringBuilder(FLUSH_SIZE + 1024);
+	    long first = 0;
+	    for(;;){
+		boolean closing = _closed;
+
+		String text;
+		while((text = _queue.poll()) != null){
+		    _queued.decrementAndGet();
+		    if(batch.length() == 0) first = System.nanoTime();
+		    batch.append(text);
+		    if(batch.length() >= FLUSH_SIZE) break;
+		}
+
+		long waited = System.nanoTime() - first;
+		if(batch.length() > 0 && (closing || batch.length() >= FLUSH_SIZE || waited >= TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL))){
+		    writer.write(batch.toString());
+		    writer.flush();
+		    batch.setLength(0);
+		}
+
+		if(closing && _queued.get() == 0 && batch.length() == 0) break;
+
+		if(_queue.isEmpty())
+		    LockSupport.parkNanos(batch.length() > 0 ? TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL) - waited :
+					  TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL));
+	    }
+	}
+	catch(IOException e){
+	    _closed = true;
+	    while(_queue.poll() != null){
+		_queued.decrementAndGet();
+		_dropped.incrementAndGet();
+	    }
+	    if(_listener != null) _listener.failed(_file, e);
+	}
+	finally {
+	    try { if(writer != null) writer.close(); } catch(IOException e){}
+	    try {
+		Runtime.getRuntime().removeShutdownHook(_shutdownHook);
+	    }
+	    catch(IllegalStateException e){
+		// Shutting down already
+	    }
+	}
+    }
+
+}
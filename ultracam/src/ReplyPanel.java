@@ -8,9 +8,11 @@ import javax.swing.JTextPane;
 import javax.swing.JButton;
 import javax.swing.JTree;
 import javax.swing.JTabbedPane;
+import javax.swing.SwingUtilities;
 import javax.swing.border.LineBorder;
-import javax.swing.tree.DefaultMutableTreeNode;
-import javax.swing.tree.DefaultTreeModel;
+import javax.swing.text.Element;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.tree.TreePath;
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
 import java.awt.Color;
@@ -36,8 +38,13 @@ import javax.xml.transform.stream.StreamResult;
 import warwick.marsh.util.*;
 
 /**
- * Class that displays the server replies that result from various HTTP calls
- *
+ * Class that displays the server replies that result from various HTTP calls.
+ * At most MAX_REPLY replies are kept. Each is rendered to HTML once, when it
+ * arrives, and inserted into the displayed document, the oldest being
+ * removed, rather than the whole history being rendered again. The tree
+ * view reads the reply DOMs through a DomTreeModel, which looks up nodes
+ * only as they are shown. The display is only touched on the event
+ * dispatch thread.
  */
 
 public class ReplyPanel extends JPanel {
@@ -47,12 +54,19 @@ public class ReplyPanel extends JPanel {
 
     private static final String HTML_ERROR   = "\"red\"";
     private static final String HTML_WARNING = "\"#FFA500\"";
-    
-    private DefaultMutableTreeNode _replyTreeRoot = new DefaultMutableTreeNode();
-    private JTree   _replyTree                    = new JTree(new DefaultMutableTreeNode());
-    private JTextPane _replyTextPane              = new JTextPane();
-    
-    StringBuffer _replyTextBuffer = new StringBuffer();
+
+    // Maximum number of replies kept
+    static final int MAX_REPLY = 50;
+
+    // Id of the element holding the replies in the text view
+    static final String REPLIES_ID = "replies";
+
+    private final DomTreeModel _replyTreeModel = new DomTreeModel(true);
+    private final JTree        _replyTree;
+    private JTextPane          _replyTextPane  = new JTextPane();
+    private HTMLDocument       _replyDocument;
+    private Element            _replies;
+    private int                _nreply         = 0;
     
     public ReplyPanel() {
 
@@ -60,6 +74,17 @@ public class ReplyPanel extends JPanel {
 
 	_replyTextPane.setEditable(false);
 	_replyTextPane.setContentType("text/html");
+	_replyTextPane.setText("<html><body><div id=\"" + REPLIES_ID + "\"></div></body></html>");
+	_replyDocument = (HTMLDocument)_replyTextPane.getDocument();
+	_replies       = _replyDocument.getElement(REPLIES_ID);
+
+	_replyTree = new JTree(_replyTreeModel) {
+		public String convertValueToText(Object value, boolean selected, boolean expanded, boolean leaf, int row, boolean focus) {
+		    return _replyTreeModel.label(value);
+		}
+	    };
+	_replyTree.setRootVisible(false);
+	_replyTree.setShowsRootHandles(true);
 	
 	this.add(new JScrollPane(_replyTextPane, JScrollPane.VERTICAL_SCROLLBAR_ALWAYS, JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED), 
 		 XML_TEXT_VIEW);
@@ -70,75 +95,72 @@ public class ReplyPanel extends JPanel {
 
     }
     
-    public void showReply(Document document, String description, boolean reset, boolean expert) {
-		TreeDomNode rootTreeNode = new TreeDomNode(true);
-		domNodeToTree(document, rootTreeNode, true);
-		
-		// Get rid of two top level root nodes.
-		rootTreeNode = (TreeDomNode)rootTreeNode.getFirstChild();
-		rootTreeNode = (TreeDomNode)rootTreeNode.getFirstChild();
-		
-		_updateTree(rootTreeNode, description, reset);
-		_updateText(document, description, reset, expert);
+    /** Shows a reply. May be called from any thread.
+     * @param document    the reply
+     * @param description what it is a reply to
+     * @param reset       true to clear the replies shown before
+     * @param expert      true to show readback values
+     */
+    public void showReply(final Document document, final String description, final boolean reset, boolean expert) {
+	final String html = _html(document, description, expert);
+	if(SwingUtilities.isEventDispatchThread()){
+	    _display(document, description, html, reset);
+	}else{
+	    SwingUtilities.invokeLater(new Runnable() {
+		    public void run() {
+			_display(document, description, html, reset);
+		    }
+		});
+	}
     }
 
-    public static void domNodeToTree(Node domNode, TreeDomNode parentTreeNode, boolean displayNodeValue) {
+    /* Adds a reply to both views, dropping the oldest if there are too many */
+    private void _display(Document document, String description, String html, boolean reset) {
 
-	if(domNode instanceof Text) return;
-	
-	TreeDomNode treeNode = new TreeDomNode(domNode, displayNodeValue);
-	
-	parentTreeNode.add(treeNode);
-	
-	NamedNodeMap attributeNodes = domNode.getAttributes();
-	
-	if((attributeNodes != null) && (attributeNodes.getLength() > 0)) {
-	    
-	    for(int i = 0; i < attributeNodes.getLength(); i++) {
-		treeNode.add(new TreeDomNode(attributeNodes.item(i), displayNodeValue));
+	if(reset){
+	    _replyTreeModel.clear();
+	    while(_removeFirstReply());
+	    _nreply = 0;
+	}
+
+	// Tree view, showing the top level of the reply
+	if(_replyTreeModel.size() == MAX_REPLY) _replyTreeModel.removeFirst();
+	TreePath path = _replyTreeModel.add(description, document.getDocumentElement());
+	_replyTree.expandPath(path);
+	_replyTree.expandPath(path.pathByAddingChild(document.getDocumentElement()));
+
+	// Text view
+	try {
+	    if(_nreply == MAX_REPLY){
+		_removeFirstReply();
+		_nreply--;
 	    }
+	    _replyDocument.insertBeforeEnd(_replies, html);
+	    _nreply++;
+	    _replyTextPane.setCaretPosition(_replyDocument.getLength());
 	}
-	
-	
-	NodeList childNodes = domNode.getChildNodes();
-	
-	if((childNodes != null) && (childNodes.getLength() > 0)) {
-	    
-	    for(int i = 0; i < childNodes.getLength(); i++)
-		domNodeToTree(childNodes.item(i), treeNode, displayNodeValue);
+	catch(Exception e){
+	    System.out.println("Error in replypanel: " + e);
 	}
     }
-    
-    /**
-     * Makes the reply tree rootTreeNode a subtree of the
-     * root of model of the JTree of this class.
-     */
-    private void _updateTree(TreeDomNode rootTreeNode, String description, boolean reset) {
-	// Remove all but the permanent root of model of the JTree of this
-	// ReplyPanel class.
-	if(reset)
-	    _replyTreeRoot = new DefaultMutableTreeNode();
-	
-	// Create a description node and add the root node of the reply tree to it.
-	DefaultMutableTreeNode descriptionNode = new DefaultMutableTreeNode(description);
-	
-	descriptionNode.add(rootTreeNode);
-	
-	// Add the description node to the permanent root of model of the JTree of this
-	// ReplyPanel class.
-	_replyTreeRoot.add(descriptionNode);
-	
-	_replyTree.setModel(new DefaultTreeModel(_replyTreeRoot));
-	
-	for(int i = 0; i < _replyTree.getRowCount(); i++)
-	    _replyTree.expandRow(i);
-	
+
+    // Removes the first reply of the text view, returning false if there are none. An empty
+    // element starts with an implied paragraph, which is skipped.
+    private boolean _removeFirstReply(){
+	for(int i=0; i<_replies.getElementCount(); i++){
+	    Element element = _replies.getElement(i);
+	    if(element.getName().equals("div")){
+		_replyDocument.removeElement(element);
+		return true;
+	    }
+	}
+	return false;
     }
-    
-    private void _updateText(Document document, String description, boolean reset, boolean expert) {
 
-	if(reset) 
-	    _replyTextBuffer.setLength(0);
+    // Renders the status and state of a reply as HTML
+    private static String _html(Document document, String description, boolean expert) {
+
+	StringBuilder html = new StringBuilder();
 	
 	String sourceName = "";
 	
@@ -165,9 +187,9 @@ public class ReplyPanel extends JPanel {
 	    sourceName = "Unknown source";
 	}
 	
-	_replyTextBuffer.append("<u>" + description + "</u>");
+	html.append("<div><u>" + description + "</u>");
 	
-	_replyTextBuffer.append("<table>");
+	html.append("<table>");
 
 	if (expert) {
 		try {
@@ -179,7 +201,7 @@ public class ReplyPanel extends JPanel {
 
 				if (nodeName.equalsIgnoreCase("readback")) {
 					if (nodeValue != null) {
-						_replyTextBuffer.append("<tr><td><i><b>Readback</b></i></td><td>" + nodeValue + "</td></tr>\n");
+						html.append("<tr><td><i><b>Readback</b></i></td><td>" + nodeValue + "</td></tr>\n");
 					}
 				}
 			}
@@ -197,20 +219,20 @@ public class ReplyPanel extends JPanel {
 		if(nodeName.equalsIgnoreCase("camera") || (nodeName.equalsIgnoreCase("software"))) {
 		    if(nodeValue != null) {
 			if(nodeValue.trim().equalsIgnoreCase("WARNING")) {
-			    _replyTextBuffer.append("<tr bgcolor=" + HTML_WARNING + ">");
+			    html.append("<tr bgcolor=" + HTML_WARNING + ">");
 			}else if(nodeValue.trim().equalsIgnoreCase("ERROR")) {
-			    _replyTextBuffer.append("<tr bgcolor=" + HTML_ERROR + ">");
+			    html.append("<tr bgcolor=" + HTML_ERROR + ">");
 			}else{
-			    _replyTextBuffer.append("<tr>");
+			    html.append("<tr>");
 			}
 		    }
 		    
-		    _replyTextBuffer.append("<td><i><b>" + sourceName + "</b></i></td><td>" + nodeName + "</td><td>" + nodeValue + "</td></tr>\n");
+		    html.append("<td><i><b>" + sourceName + "</b></i></td><td>" + nodeName + "</td><td>" + nodeValue + "</td></tr>\n");
 		}
 	    }
 	}
 	catch(Exception e) {
-	    _replyTextBuffer.append(sourceName + ": no status information");
+	    html.append(sourceName + ": no status information");
 	}
 	
 	try {
@@ -224,28 +246,29 @@ public class ReplyPanel extends JPanel {
 		if(nodeName.equalsIgnoreCase("camera") || (nodeName.equalsIgnoreCase("software"))) {
 		    if(nodeValue != null) {
 			if(nodeValue.trim().equalsIgnoreCase("WARNING")) {
-			    _replyTextBuffer.append("<tr bgcolor=" + HTML_WARNING + ">");
+			    html.append("<tr bgcolor=" + HTML_WARNING + ">");
 			}
 			else if(nodeValue.trim().equalsIgnoreCase("ERROR")) {
-			    _replyTextBuffer.append("<tr bgcolor=" + HTML_ERROR + ">");
+			    html.append("<tr bgcolor=" + HTML_ERROR + ">");
 			}
 			else {
-			    _replyTextBuffer.append("<tr>");
+			    html.append("<tr>");
 			}
 		    }
 		    
-		    _replyTextBuffer.append("<td>" + sourceName + "</td><td>" + nodeName + "</td><td>" + nodeValue + "</td></tr>\n");
+		    html.append("<td>" + sourceName + "</td><td>" + nodeName + "</td><td>" + nodeValue + "</td></tr>\n");
 		}
 	    }
 	    
-	    _replyTextBuffer.append("</table><hr>\n");
+	    html.append("</table><hr>\n");
 	    
 	}
 	catch(Exception e) {
-	    _replyTextBuffer.append(sourceName + ": no state information");
+	    html.append(sourceName + ": no state information");
 	}
 	
-	_replyTextPane.setText(_replyTextBuffer.toString());
+	html.append("</div>\n");
+	return html.toString();
     }
     
     public void setTreeView(boolean treeView){
@@ -44,23 +44,30 @@ class TreeDomNode  extends DefaultMutableTreeNode {
 
   public String toString() {
     try {
-      Node domNode = (Node)getUserObject();
-      String domNodeValue = getNodeValue(domNode);
-
-      if(_displayNodeValue && (domNodeValue != null) && (!domNodeValue.trim().equals(""))) {
-        if(domNode instanceof Attr) {
-          return ((Attr)domNode).getName() + ": " + domNodeValue;
-        }
-        else {
-          return domNode.getNodeName() + ": " + domNodeValue;
-        }
+      return label((Node)getUserObject(), _displayNodeValue);
+    }
+    catch(Exception e) {
+      return super.toString();
+    }
+  }
+
+  /**
+   * Returns the text shown for a DOM node: its name, followed by its value
+   * if wanted and not blank.
+   */
+  public static String label(Node domNode, boolean displayNodeValue) {
+    String domNodeValue = getNodeValue(domNode);
+
+    if(displayNodeValue && (domNodeValue != null) && (!domNodeValue.trim().equals(""))) {
+      if(domNode instanceof Attr) {
+        return ((Attr)domNode).getName() + ": " + domNodeValue;
       }
       else {
-        return domNode.getNodeName();
+        return domNode.getNodeName() + ": " + domNodeValue;
       }
     }
-    catch(Exception e) {
-      return super.toString();
+    else {
+      return domNode.getNodeName();
     }
   }
 